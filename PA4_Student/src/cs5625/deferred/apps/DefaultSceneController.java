@@ -46,6 +46,7 @@ public class DefaultSceneController extends SceneController
 		{
 			/* Load default scene with materials. */
 			mSceneRoot.addGeometry(Geometry.load("models/default-scene.obj", true, true));
+			mSceneRoot.setUsePackedVertexDataForAllGeometry(true, true);
 			
 			/* Example of manipulating an object by name. */
 			mSceneRoot.findDescendantByName("fighter1").getOrientation().set(new AxisAngle4f(0.0f, 1.0f, 0.0f, -(float)Math.PI / 4.0f));
@@ -11,6 +11,7 @@ import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 import javax.vecmath.Quat4f;
 
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.Util;
 import cs5625.deferred.materials.UnshadedMaterial;
 import cs5625.deferred.scenegraph.Geometry;
@@ -81,7 +82,7 @@ public class ManyLightsSceneController extends SceneController
 						((float)Math.random() - 0.5f) * 8.0f));
 				
 				/* Add a sphere as a child of the light (so we can see where it is), and set the sphere to the same color as the light. */
-				Geometry sphere = Geometry.load("models/lowpolysphere.obj", false, false).get(0);
+				Geometry sphere = AssetManager.acquireGeometry("models/lowpolysphere.obj", false, false).get(0);
 				sphere.setScale(0.1f);
 				sphere.getMeshes().get(0).setMaterial(new UnshadedMaterial(lightColor));
 				light.addChild(sphere);
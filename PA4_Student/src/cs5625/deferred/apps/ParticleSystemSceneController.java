@@ -58,13 +58,13 @@ public class ParticleSystemSceneController extends DefaultSceneController implem
 			
 			//added texture to particlesystem LOOK
 			/*for (int i = 0; i < numClouds; i++){
-				mParticleSystem = new ParticleSystem(40, mRenderer.textures, ID);
+				mParticleSystem = new ParticleSystem(40, mRenderer.sprites, ID);
 				mParticleSystem.setStart(new Point3f((float)i, 0.5f, 0.0f));
 				mParticleSystem.setScale(1.0f);
 				mParticleSystem.getPosition().y = 0.1f * mParticleSystem.getScale();
 				mSceneRoot.addChild(mParticleSystem); }*/
 			
-			mParticleSystem = new CloudSystem(40, mRenderer.textures, ID, start);
+			mParticleSystem = new CloudSystem(40, mRenderer.sprites, ID, start);
 			mParticleSystem.setScale(40.0f);
 			mParticleSystem.getPosition().y = 0.1f * mParticleSystem.getScale();
 			mSceneRoot.addChild(mParticleSystem);
@@ -59,13 +59,13 @@ public class PrecipitationSystemSceneController extends DefaultSceneController i
 			
 			//added texture to particlesystem LOOK
 			/*for (int i = 0; i < numClouds; i++){
-				mParticleSystem = new ParticleSystem(40, mRenderer.textures, ID);
+				mParticleSystem = new ParticleSystem(40, mRenderer.sprites, ID);
 				mParticleSystem.setStart(new Point3f((float)i, 0.5f, 0.0f));
 				mParticleSystem.setScale(1.0f);
 				mParticleSystem.getPosition().y = 0.1f * mParticleSystem.getScale();
 				mSceneRoot.addChild(mParticleSystem); }*/
 			
-			mParticleSystem = new PrecipitationSystem(20, mRenderer.textures, ID);
+			mParticleSystem = new PrecipitationSystem(20, mRenderer.sprites, ID);
 			mParticleSystem.setScale(1.0f);
 			mParticleSystem.getPosition().y = 0.1f * mParticleSystem.getScale();
 			mSceneRoot.addChild(mParticleSystem);
@@ -103,14 +103,18 @@ public abstract class SceneController implements MouseListener, MouseMotionListe
 	
 	/**
 	 * Can be called by anyone to tell a self-animating controller to update and render a new frame.
-	 * Default implementation just calls `mSceneRoot.animate(dt)` and `requiresRender()`.
+	 * Default implementation just calls `mSceneRoot.animate(dt)`, timed as the renderer profiler's 
+	 * "Animate" stage, and `requiresRender()`.
 	 * 
 	 * @param dt The time (in seconds) since the last frame update. Used for time-based (as opposed to 
 	 *        frame-based) animation.
 	 */
 	public void nextFrame(float dt)
 	{
+		long start = System.nanoTime();
 		mSceneRoot.animate(dt);
+		mRenderer.getProfiler().recordCpu("Animate", (System.nanoTime() - start) / 1.0e6f);
+		
 		requiresRender();
 	}
 	
@@ -133,6 +137,7 @@ public abstract class SceneController implements MouseListener, MouseMotionListe
 	{
 		mRenderer.init(drawable);
 		initializeScene();
+		mRenderer.warmUpShaders(drawable.getGL().getGL2(), mSceneRoot);
 	}
 	
 	/**
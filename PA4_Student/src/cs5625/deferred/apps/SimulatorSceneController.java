@@ -29,14 +29,17 @@ import cs5625.deferred.materials.OceanMaterial;
 import cs5625.deferred.materials.ProceduralTerrainMaterial;
 import cs5625.deferred.misc.ScenegraphException;
 import cs5625.deferred.misc.Util;
+import cs5625.deferred.rendering.ResolutionController;
 import cs5625.deferred.scenegraph.Cloud;
 import cs5625.deferred.scenegraph.CloudSystem;
 import cs5625.deferred.scenegraph.Geometry;
 import cs5625.deferred.scenegraph.PointLight;
-import cs5625.deferred.scenegraph.Quadmesh;
+import cs5625.deferred.scenegraph.ProjectedGrid;
 import cs5625.deferred.scenegraph.SceneObject;
 import cs5625.deferred.scenegraph.Trimesh;
+import cs5625.deferred.procedural.OceanSimulation;
 import cs5625.deferred.procedural.PerlinNoiseGenerator;
+import cs5625.deferred.procedural.SplatWeightGenerator;
 
 public class SimulatorSceneController extends SceneController implements ActionListener
 {
@@ -57,7 +60,7 @@ public class SimulatorSceneController extends SceneController implements ActionL
 	private Point3f start = new Point3f(-15.0f, 2.0f, -5.0f);
 	//private Point3f origin = new Point3f(-10.5f, 1.5f, -10.5f);
 	
-	Quadmesh oceanMesh;
+	ProjectedGrid oceanGrid;
 	Bintree leftBintree;
 	Bintree rightBintree;
 
@@ -67,7 +70,6 @@ public class SimulatorSceneController extends SceneController implements ActionL
 	int worldWidth = 128;
 	int texWidth = 256;
 	int worldHeight = 40;
-	int oceanWidth = 2 * worldWidth;
 	int oceanHeight = 5;
 	int numVertices = (worldWidth + 1) * (worldWidth + 1);
 	float threshold = (float) Math.sqrt(Math.pow(worldWidth/2, 2) * 2);
@@ -138,59 +140,20 @@ public class SimulatorSceneController extends SceneController implements ActionL
 			Geometry terrainGeometry = new Geometry();
 			terrainGeometry.addMesh(trimesh);
 			
-			oceanMesh = new Quadmesh();
-			oceanMesh.setMaterial(new OceanMaterial(new Color3f(0f, .5f, 1f), oceanWidth));
-			oceanMesh.setName("Ocean");
+			/* The ocean is a grid projected onto the water plane from the camera each frame, so its
+			 * vertices are spent where they show up on screen. */
+			oceanGrid = new ProjectedGrid(128, 128, oceanHeight);
 			
-			FloatBuffer oceanNormalData = Buffers.newDirectFloatBuffer(12);
-			FloatBuffer oceanVertexData = Buffers.newDirectFloatBuffer(12);
-			FloatBuffer oceanTexCoordData = Buffers.newDirectFloatBuffer(8);
-			IntBuffer oceanQuadData = Buffers.newDirectIntBuffer(4);
-			
-			for(int x = 0; x < 2; x++)
-			{
-				for(int y = 0; y < 2; y++)
-				{
-					float xPos = (2 * x * oceanWidth) - oceanWidth;
-					float yPos = oceanHeight;
-					float zPos = (2 * y * oceanWidth) - oceanWidth;
-					
-					oceanVertexData.put(xPos);
-					oceanVertexData.put(yPos);
-					oceanVertexData.put(zPos);
-
-					float xCoord = (float)x / (float)worldWidth / 2f * (float)texWidth;
-					float yCoord = (float)y / (float)worldWidth / 2f * (float)texWidth;
-					oceanTexCoordData.put(xCoord);
-					oceanTexCoordData.put(yCoord);
-					
-					oceanNormalData.put(0f);
-					oceanNormalData.put(1f);
-					oceanNormalData.put(0f);
-				}
-			}
-			
-			oceanQuadData.put(0);
-			oceanQuadData.put(2);
-			oceanQuadData.put(3);
-			oceanQuadData.put(1);
-			
-			oceanNormalData.rewind();
-			oceanVertexData.rewind();
-			oceanTexCoordData.rewind();
-			oceanQuadData.rewind();
-			
-			oceanMesh.setVertexData(oceanVertexData);
-			oceanMesh.setPolygonData(oceanQuadData);
-			oceanMesh.setTexCoordData(oceanTexCoordData);
-			oceanMesh.setNormalData(oceanNormalData);
-			
-			Geometry oceanGeometry = new Geometry();
-			oceanGeometry.addMesh(oceanMesh);
+			/* Simulate waves at a resolution this machine's processors can afford, 30 times a second. */
+			OceanSimulation oceanSimulation = new OceanSimulation(OceanSimulation.getDefaultResolution(), 64f, 8f, 0.5f, 0.005f, System.nanoTime());
+			oceanSimulation.setUpdateRate(30f);
+			oceanGrid.getMesh().setMaterial(new OceanMaterial(new Color3f(0f, .5f, 1f), oceanSimulation));
+			oceanGrid.getMesh().setName("Ocean");
+			oceanGrid.setName("Ocean");
 			
 			ArrayList<Geometry> terrainList = new ArrayList<Geometry>();
 			terrainList.add(terrainGeometry);
-			terrainList.add(oceanGeometry);
+			terrainList.add(oceanGrid);
 			mSceneRoot.addGeometry(terrainList);
 			
 			PointLight light = new PointLight();
@@ -219,7 +182,7 @@ public class SimulatorSceneController extends SceneController implements ActionL
 				if (s.x < -5) s.x *= -0.5;
 				if (s.x > 5) s.x *= 0.5;
 
-				mParticleSystem = new CloudSystem(55, mRenderer.textures, ID, s);
+				mParticleSystem = new CloudSystem(55, mRenderer.sprites, ID, s);
 				mParticleSystem.setScale(scale);
 				mParticleSystem.getPosition().y = cloudHeight;
 				mParticleSystem.setStart(new Point3f(-5.0f, s.y, s.z));
@@ -369,7 +332,7 @@ public class SimulatorSceneController extends SceneController implements ActionL
 			if (s.x > 5) s.x *= 0.5;
 
 			try {
-				mParticleSystem = new CloudSystem(55, mRenderer.textures, ID, s);
+				mParticleSystem = new CloudSystem(55, mRenderer.sprites, ID, s);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -404,6 +367,53 @@ public class SimulatorSceneController extends SceneController implements ActionL
 			mRenderer.setRenderWireframes(!mRenderer.getRenderWireframes());
 			requiresRender();
 		}
+		else if (c == 'r')
+		{
+			System.out.println(mRenderer.getRenderQueueStatistics());
+			System.out.print(mRenderer.getRenderGraphTimings());
+			System.out.println(mRenderer.getTranslucentResolutionTimings());
+			System.out.println("Dynamic resolution: " + mRenderer.getResolutionController());
+			System.out.print(mRenderer.getProfiler().getReport());
+		}
+		else if (c == 'c')
+		{
+			mRenderer.setUseCoreProfile(!mRenderer.getUseCoreProfile());
+			System.out.println("Rendering path: " + (mRenderer.getUseCoreProfile() ? "core profile" : "fixed function"));
+			requiresRender();
+		}
+		else if (c == 'g')
+		{
+			mRenderer.setUseCompactGBuffer(!mRenderer.getUseCompactGBuffer());
+			System.out.println("GBuffer layout: " + (mRenderer.getUseCompactGBuffer() ? "compact" : "full"));
+			requiresRender();
+		}
+		else if (c == 'h')
+		{
+			/* Cycle the translucent pass through full, half, and quarter resolution. */
+			int divisor = (mRenderer.getTranslucentResolution() >= 4 ? 1 : mRenderer.getTranslucentResolution() * 2);
+			mRenderer.setTranslucentResolution(divisor);
+			System.out.println("Translucent resolution: " + (divisor == 1 ? "full" : "1/" + divisor));
+			requiresRender();
+		}
+		else if (c == 'v')
+		{
+			ResolutionController controller = mRenderer.getResolutionController();
+			controller.setEnabled(!controller.isEnabled());
+			System.out.println("Dynamic resolution: " + controller);
+			requiresRender();
+		}
+		else if (c == '[' || c == ']')
+		{
+			/* Lower or raise the frame time dynamic resolution aims for, 2 ms at a time. */
+			ResolutionController controller = mRenderer.getResolutionController();
+			controller.setTargetFrameTime(Math.max(2.0f, controller.getTargetFrameTime() + (c == '[' ? -2.0f : 2.0f)));
+			System.out.println("Dynamic resolution: " + controller);
+		}
+		else if (c == 'p')
+		{
+			mRenderer.setShowProfilerOverlay(!mRenderer.getShowProfilerOverlay());
+			requiresRender();
+		}
 		else if (c == 'w')
 		{
 			Vector3f dPos = mCamera.transformVectorToParentSpace(new Vector3f(0f, 0f, -5f));
@@ -635,6 +645,12 @@ public class SimulatorSceneController extends SceneController implements ActionL
 		trimesh.setTexCoordData(texCoordData);
 		trimesh.setNormalData(normalData);
 		
+		/* Precompute the terrain layer blend weights from height and slope. */
+		trimesh.vertexAttribData.put(SplatWeightGenerator.WEIGHT_ATTRIBUTE, new SplatWeightGenerator().generate(verts, normalData));
+		
+		/* The terrain never changes once built, so store it compactly on the GPU. */
+		trimesh.setUsePackedVertexData(true, true);
+		
 		return trimesh;
 	}
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package cs5625.deferred.materials;
 import javax.media.opengl.GL2;
 import javax.vecmath.Color3f;
 
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.rendering.ShaderProgram;
 
@@ -68,6 +69,12 @@ public class BlinnPhongMaterial extends Material
 		return mDiffuseTexture;
 	}
 	
+	@Override
+	public Texture2D getPrimaryTexture()
+	{
+		return mDiffuseTexture;
+	}
+	
 	public void setDiffuseTexture(Texture2D texture)
 	{
 		mDiffuseTexture = texture;
@@ -96,12 +103,12 @@ public class BlinnPhongMaterial extends Material
 		getShaderProgram().bind(gl);
 		
 //SOLUTION
-		gl.glUniform3f(mDiffuseUniformLocation, mDiffuseColor.x, mDiffuseColor.y, mDiffuseColor.z);
-		gl.glUniform3f(mSpecularUniformLocation, mSpecularColor.x, mSpecularColor.y, mSpecularColor.z);
-		gl.glUniform1f(mExponentUniformLocation, mPhongExponent);
+		getShaderProgram().setUniform3f(gl, mDiffuseUniformLocation, mDiffuseColor.x, mDiffuseColor.y, mDiffuseColor.z);
+		getShaderProgram().setUniform3f(gl, mSpecularUniformLocation, mSpecularColor.x, mSpecularColor.y, mSpecularColor.z);
+		getShaderProgram().setUniform1f(gl, mExponentUniformLocation, mPhongExponent);
 
-		gl.glUniform1i(mHasDiffuseTextureUniformLocation, (mDiffuseTexture == null ? 0 : 1));
-		gl.glUniform1i(mHasSpecularTextureUniformLocation, (mSpecularTexture == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mHasDiffuseTextureUniformLocation, (mDiffuseTexture == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mHasSpecularTextureUniformLocation, (mSpecularTexture == null ? 0 : 1));
 		
 		/* Bind textures if we have them. */
 		if (mDiffuseTexture != null)
@@ -129,8 +136,8 @@ public class BlinnPhongMaterial extends Material
 		
 		/* These are only set once, so set them here. */
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "DiffuseTexture"), 0);
-		gl.glUniform1i(shader.getUniformLocation(gl, "SpecularTexture"), 1);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "DiffuseTexture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "SpecularTexture"), 1);
 		shader.unbind(gl);
 	}
 
@@ -152,4 +159,26 @@ public class BlinnPhongMaterial extends Material
 		}
 //ENDSOLUTION
 	}
+	
+	/**
+	 * Releases the shader, and gives up any textures acquired from `AssetManager` (as `Material.load()`
+	 * does), which are released once no other material uses them. Other textures are left alone.
+	 */
+	@Override
+	public void releaseGPUResources(GL2 gl)
+	{
+		super.releaseGPUResources(gl);
+		
+		if (mDiffuseTexture != null && AssetManager.isSharedTexture(mDiffuseTexture))
+		{
+			AssetManager.releaseTexture(gl, mDiffuseTexture);
+			mDiffuseTexture = null;
+		}
+		
+		if (mSpecularTexture != null && AssetManager.isSharedTexture(mSpecularTexture))
+		{
+			AssetManager.releaseTexture(gl, mSpecularTexture);
+			mSpecularTexture = null;
+		}
+	}
 }
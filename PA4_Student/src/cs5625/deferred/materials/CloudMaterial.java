@@ -1,17 +1,14 @@
 package cs5625.deferred.materials;
 
-import java.util.ArrayList;
-
 import javax.media.opengl.GL2;
 import javax.vecmath.Color3f;
 import javax.vecmath.Color4f;
 import javax.vecmath.Point3f;
 
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.rendering.Camera;
 import cs5625.deferred.rendering.ShaderProgram;
-import cs5625.deferred.scenegraph.Light;
-import cs5625.deferred.scenegraph.PointLight;
 
 /**
  * ParticleMaterial.java
@@ -29,6 +26,7 @@ public class CloudMaterial extends Material
 	/* Material properties. */
 	private Color4f mColor = new Color4f(1.0f, 1.0f, 1.0f, 1.0f);
 	private Texture2D mTexture = null;
+	private SpriteArray mSprites = null;
 	
 	private Point3f startPosition = new Point3f(0.0f, 0.0f, 0.0f);
 	private Point3f maxPosition = new Point3f(-110.0f, -110.0f, -110.0f);
@@ -43,10 +41,10 @@ public class CloudMaterial extends Material
 	private int mPosUniformLocation = -1;
 	private int mMaxUniformLocation = -1;
 	private int mOffUniformLocation = -1;
-	private int mLightPositionsUniformLocation = -1;
-	private int mLightAttenuationsUniformLocation = -1;
-	private int mLightColorsUniformLocation = -1;
 	private int mNumLightsUniformLocation = -1;
+	private int mUseSpritesUniformLocation = -1;
+	private int mAtlasGridUniformLocation = -1;
+	private int mAtlasInsetUniformLocation = -1;
 	
 	
 	
@@ -112,10 +110,37 @@ public class CloudMaterial extends Material
 		return mTexture;
 	}
 	
+	@Override
+	public Texture getPrimaryTexture()
+	{
+		return (mSprites != null ? mSprites.getTexture() : mTexture);
+	}
+	
 	public void setTexture(Texture2D texture)
 	{
 		mTexture = texture;
 	}
+	
+	public SpriteArray getSprites()
+	{
+		return mSprites;
+	}
+	
+	/**
+	 * Makes this material draw each mesh with the sprite selected by its `SpriteLayer` attribute 
+	 * (see `SpriteArray.setLayer()`), instead of with the single texture from `setTexture()`. 
+	 * Null goes back to the single texture.
+	 */
+	public void setSprites(SpriteArray sprites)
+	{
+		mSprites = sprites;
+	}
+	
+	@Override
+	public String[] getRequiredVertexAttributes()
+	{
+		return (mSprites != null ? new String[] { SpriteArray.LAYER_ATTRIBUTE } : super.getRequiredVertexAttributes());
+	}
 
 	@Override
 	public void bind(GL2 gl) throws OpenGLException
@@ -124,51 +149,29 @@ public class CloudMaterial extends Material
 		/* Bind shader, and any textures, and update uniforms. */
 		getShaderProgram().bind(gl);
 		
-		ArrayList<Light> lights = getLights();
-		for (int i = 0; i < lights.size(); ++i)
-		{
-			/* Transform each light position to eye space. */
-			Light light = lights.get(i);
-			
-			//only adds the light if it's enabled
-			if (light.isEnabled()) {
-				Point3f eyespacePosition = getCamera().transformPointFromWorldSpace(light.transformPointToWorldSpace(new Point3f()));
-				
-				/* Send light color and eyespace position to the ubershader. */
-				OpenGLException.checkOpenGLError(gl);
-				if (mLightPositionsUniformLocation != -1) gl.glUniform3f(mLightPositionsUniformLocation + i, eyespacePosition.x, eyespacePosition.y, eyespacePosition.z);
-				OpenGLException.checkOpenGLError(gl);
-				if (mLightColorsUniformLocation != -1) gl.glUniform3f(mLightColorsUniformLocation + i, light.getColor().x, light.getColor().y, light.getColor().z);
-				OpenGLException.checkOpenGLError(gl);
-				
-				if (light instanceof PointLight)
-				{ if (mLightAttenuationsUniformLocation != -1) {
-					gl.glUniform3f(mLightAttenuationsUniformLocation + i, 
-							((PointLight)light).getConstantAttenuation(), 
-							((PointLight)light).getLinearAttenuation(), 
-							((PointLight)light).getQuadraticAttenuation());}
-					OpenGLException.checkOpenGLError(gl);}
-				else
-				{
-					gl.glUniform3f(mLightAttenuationsUniformLocation + i, 1.0f, 0.0f, 0.0f);
-				}
-			}
-		}
-		OpenGLException.checkOpenGLError(gl);
-		if (mNumLightsUniformLocation != -1) gl.glUniform1i(mNumLightsUniformLocation, lights.size());
-		gl.glUniform4f(mUniformLocation, mColor.x, mColor.y, mColor.z, mColor.w);
+		/* Read lights from the renderer's shared light buffer, already in eye space. */
+		getLightBuffer().bind(gl, 1);
+		if (mNumLightsUniformLocation != -1) getShaderProgram().setUniform1i(gl, mNumLightsUniformLocation, getLightBuffer().getLightCount());
+		getShaderProgram().setUniform4f(gl, mUniformLocation, mColor.x, mColor.y, mColor.z, mColor.w);
 		OpenGLException.checkOpenGLError(gl);
 		
-		gl.glUniform3f(mMaxUniformLocation, maxPosition.x, maxPosition.y, maxPosition.z);
-		gl.glUniform3f(mPosUniformLocation, startPosition.x, startPosition.y, startPosition.z);
-		gl.glUniform1f(mOffUniformLocation, xlimit);
-		gl.glUniform1i(mIDUniformLocation, ID);
+		getShaderProgram().setUniform3f(gl, mMaxUniformLocation, maxPosition.x, maxPosition.y, maxPosition.z);
+		getShaderProgram().setUniform3f(gl, mPosUniformLocation, startPosition.x, startPosition.y, startPosition.z);
+		getShaderProgram().setUniform1f(gl, mOffUniformLocation, xlimit);
+		getShaderProgram().setUniform1i(gl, mIDUniformLocation, ID);
 		OpenGLException.checkOpenGLError(gl);
 		
 		
-		gl.glUniform1i(mHasTextureUniformLocation, (mTexture == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mHasTextureUniformLocation, (mTexture == null && mSprites == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mUseSpritesUniformLocation, (mSprites == null ? 0 : 1));
 
-		if (mTexture != null)
+		if (mSprites != null)
+		{
+			mSprites.getTexture().bind(gl, 2);
+			getShaderProgram().setUniform2f(gl, mAtlasGridUniformLocation, mSprites.getAtlasColumns(), mSprites.getAtlasRows());
+			getShaderProgram().setUniform1f(gl, mAtlasInsetUniformLocation, 0.5f / mSprites.getLayerSize());
+		}
+		else if (mTexture != null)
 		{
 			mTexture.bind(gl, 0);
 		}
@@ -183,12 +186,12 @@ public class CloudMaterial extends Material
 		 * The default particle shader uses alpha blending, but you can subclass ParticleMaterial
 		 * and write your own shader; if it follows this alpha convention it will "just work".
 		 */
-		gl.glBlendFunc(GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
-		gl.glEnable(GL2.GL_BLEND);
+		GLState.setBlendFunc(gl, GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
+		GLState.setBlend(gl, true);
 		
 		/* Disable writing of depth values by these particles. They will still clip against the 
 		 * opaque scene geometry, but not against other particles. */
-		gl.glDepthMask(false);
+		GLState.setDepthMask(gl, false);
 		
 		OpenGLException.checkOpenGLError(gl);
 	}
@@ -198,8 +201,13 @@ public class CloudMaterial extends Material
 	{
 		/* Unbind anything bound in bind(). */
 		getShaderProgram().unbind(gl);
+		getLightBuffer().unbind(gl);
 
-		if (mTexture != null)
+		if (mSprites != null)
+		{
+			mSprites.getTexture().unbind(gl);
+		}
+		else if (mTexture != null)
 		{
 			mTexture.unbind(gl);
 		}
@@ -216,14 +224,16 @@ public class CloudMaterial extends Material
 		mOffUniformLocation  = shader.getUniformLocation(gl, "xlimit");
 		mIDUniformLocation = shader.getUniformLocation(gl, "ID");
 		
-		mLightPositionsUniformLocation = shader.getUniformLocation(gl, "LightPositions");
-		mLightColorsUniformLocation = shader.getUniformLocation(gl, "LightColors");
-		mLightAttenuationsUniformLocation = shader.getUniformLocation(gl, "LightAttenuations");
 		mNumLightsUniformLocation = shader.getUniformLocation(gl, "NumLights");
+		mUseSpritesUniformLocation = shader.getUniformLocation(gl, "UseSprites");
+		mAtlasGridUniformLocation = shader.getUniformLocation(gl, "AtlasGrid");
+		mAtlasInsetUniformLocation = shader.getUniformLocation(gl, "AtlasInset");
 
 		/* This uniform won't ever change, so just set it here. */
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "Texture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "Texture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "LightBuffer"), 1);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "Sprites"), 2);
 		shader.unbind(gl);
 	}
 
@@ -52,6 +52,12 @@ public class LambertianMaterial extends Material
 		return mDiffuseTexture;
 	}
 	
+	@Override
+	public Texture2D getPrimaryTexture()
+	{
+		return mDiffuseTexture;
+	}
+	
 	public void setDiffuseTexture(Texture2D texture)
 	{
 		mDiffuseTexture = texture;
@@ -64,8 +70,8 @@ public class LambertianMaterial extends Material
 		getShaderProgram().bind(gl);
 
 //SOLUTION
-		gl.glUniform3f(mDiffuseUniformLocation, mDiffuseColor.x, mDiffuseColor.y, mDiffuseColor.z);
-		gl.glUniform1i(mHasDiffuseTextureUniformLocation, (mDiffuseTexture == null ? 0 : 1));
+		getShaderProgram().setUniform3f(gl, mDiffuseUniformLocation, mDiffuseColor.x, mDiffuseColor.y, mDiffuseColor.z);
+		getShaderProgram().setUniform1i(gl, mHasDiffuseTextureUniformLocation, (mDiffuseTexture == null ? 0 : 1));
 
 		if (mDiffuseTexture != null)
 		{
@@ -97,7 +103,7 @@ public class LambertianMaterial extends Material
 
 		/* This uniform won't ever change, so just set it here. */
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "DiffuseTexture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "DiffuseTexture"), 0);
 		shader.unbind(gl);
 	}
 
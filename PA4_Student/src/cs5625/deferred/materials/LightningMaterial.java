@@ -1,17 +1,13 @@
 package cs5625.deferred.materials;
 
-import java.util.ArrayList;
-
 import javax.media.opengl.GL2;
 import javax.vecmath.Color3f;
 import javax.vecmath.Color4f;
-import javax.vecmath.Point3f;
 
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.rendering.Camera;
 import cs5625.deferred.rendering.ShaderProgram;
-import cs5625.deferred.scenegraph.Light;
-import cs5625.deferred.scenegraph.PointLight;
 
 /**
  * ParticleMaterial.java
@@ -29,16 +25,19 @@ public class LightningMaterial extends Material
 	/* Material properties. */
 	private Color4f mColor = new Color4f(1.0f, 1.0f, 1.0f, 1.0f);
 	private Texture2D mTexture = null;
+	private SpriteArray mSprites = null;
+	private int mSpriteLayer = 0;
 	
 	
 
 	/* Uniform locations. */
 	private int mUniformLocation = -1;
 	private int mHasTextureUniformLocation = -1;
+	private int mUseSpritesUniformLocation = -1;
+	private int mLayerUniformLocation = -1;
+	private int mAtlasGridUniformLocation = -1;
+	private int mAtlasInsetUniformLocation = -1;
 	private int mEnabledUniformLocation = -1;
-	private int mLightPositionsUniformLocation = -1;
-	private int mLightAttenuationsUniformLocation = -1;
-	private int mLightColorsUniformLocation = -1;
 	private int mNumLightsUniformLocation = -1;
 	
 	
@@ -80,10 +79,37 @@ public class LightningMaterial extends Material
 		return mTexture;
 	}
 	
+	@Override
+	public Texture getPrimaryTexture()
+	{
+		return (mSprites != null ? mSprites.getTexture() : mTexture);
+	}
+	
 	public void setTexture(Texture2D texture)
 	{
 		mTexture = texture;
 	}
+	
+	public SpriteArray getSprites()
+	{
+		return mSprites;
+	}
+	
+	public int getSpriteLayer()
+	{
+		return mSpriteLayer;
+	}
+	
+	/**
+	 * Makes this material draw with one layer of a sprite array instead of the texture from 
+	 * `setTexture()`, so it shares its texture binding with other materials using the same array. 
+	 * Null goes back to the single texture.
+	 */
+	public void setSprite(SpriteArray sprites, int layer)
+	{
+		mSprites = sprites;
+		mSpriteLayer = layer;
+	}
 
 	@Override
 	public void bind(GL2 gl) throws OpenGLException
@@ -92,45 +118,27 @@ public class LightningMaterial extends Material
 		/* Bind shader, and any textures, and update uniforms. */
 		getShaderProgram().bind(gl);
 		
-		ArrayList<Light> lights = getLights();
-		for (int i = 0; i < lights.size(); ++i)
-		{
-			/* Transform each light position to eye space. */
-			Light light = lights.get(i);
-			
-			//only adds the light if it's enabled
-			if (light.isEnabled()) {
-				Point3f eyespacePosition = getCamera().transformPointFromWorldSpace(light.transformPointToWorldSpace(new Point3f()));
-				
-				/* Send light color and eyespace position to the ubershader. */
-				if (mLightPositionsUniformLocation != -1) gl.glUniform3f(mLightPositionsUniformLocation + i, eyespacePosition.x, eyespacePosition.y, eyespacePosition.z);
-				if (mLightColorsUniformLocation != -1) gl.glUniform3f(mLightColorsUniformLocation + i, light.getColor().x, light.getColor().y, light.getColor().z);
-				
-				if (light instanceof PointLight)
-				{ if (mLightAttenuationsUniformLocation != -1) {
-					gl.glUniform3f(mLightAttenuationsUniformLocation + i, 
-							((PointLight)light).getConstantAttenuation(), 
-							((PointLight)light).getLinearAttenuation(), 
-							((PointLight)light).getQuadraticAttenuation());}
-					OpenGLException.checkOpenGLError(gl);}
-				else
-				{
-					gl.glUniform3f(mLightAttenuationsUniformLocation + i, 1.0f, 0.0f, 0.0f);
-				}
-			}
-		}
-		OpenGLException.checkOpenGLError(gl);
-		if (mNumLightsUniformLocation != -1) gl.glUniform1i(mNumLightsUniformLocation, lights.size());
-		gl.glUniform4f(mUniformLocation, mColor.x, mColor.y, mColor.z, mColor.w);
-		if (mEnabledUniformLocation != -1) gl.glUniform1i(mEnabledUniformLocation, getEnabled());
+		/* Read lights from the renderer's shared light buffer, already in eye space. */
+		getLightBuffer().bind(gl, 1);
+		if (mNumLightsUniformLocation != -1) getShaderProgram().setUniform1i(gl, mNumLightsUniformLocation, getLightBuffer().getLightCount());
+		getShaderProgram().setUniform4f(gl, mUniformLocation, mColor.x, mColor.y, mColor.z, mColor.w);
+		if (mEnabledUniformLocation != -1) getShaderProgram().setUniform1i(gl, mEnabledUniformLocation, getEnabled());
 		OpenGLException.checkOpenGLError(gl);
 		
 
 		
 		
-		gl.glUniform1i(mHasTextureUniformLocation, (mTexture == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mHasTextureUniformLocation, (mTexture == null && mSprites == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mUseSpritesUniformLocation, (mSprites == null ? 0 : 1));
 
-		if (mTexture != null)
+		if (mSprites != null)
+		{
+			mSprites.getTexture().bind(gl, 2);
+			getShaderProgram().setUniform1f(gl, mLayerUniformLocation, mSpriteLayer);
+			getShaderProgram().setUniform2f(gl, mAtlasGridUniformLocation, mSprites.getAtlasColumns(), mSprites.getAtlasRows());
+			getShaderProgram().setUniform1f(gl, mAtlasInsetUniformLocation, 0.5f / mSprites.getLayerSize());
+		}
+		else if (mTexture != null)
 		{
 			mTexture.bind(gl, 0);
 		}
@@ -145,12 +153,12 @@ public class LightningMaterial extends Material
 		 * The default particle shader uses alpha blending, but you can subclass ParticleMaterial
 		 * and write your own shader; if it follows this alpha convention it will "just work".
 		 */
-		gl.glBlendFunc(GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
-		gl.glEnable(GL2.GL_BLEND);
+		GLState.setBlendFunc(gl, GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
+		GLState.setBlend(gl, true);
 		
 		/* Disable writing of depth values by these particles. They will still clip against the 
 		 * opaque scene geometry, but not against other particles. */
-		gl.glDepthMask(false);
+		GLState.setDepthMask(gl, false);
 		
 		OpenGLException.checkOpenGLError(gl);
 	}
@@ -160,8 +168,13 @@ public class LightningMaterial extends Material
 	{
 		/* Unbind anything bound in bind(). */
 		getShaderProgram().unbind(gl);
+		getLightBuffer().unbind(gl);
 
-		if (mTexture != null)
+		if (mSprites != null)
+		{
+			mSprites.getTexture().unbind(gl);
+		}
+		else if (mTexture != null)
 		{
 			mTexture.unbind(gl);
 		}
@@ -173,17 +186,20 @@ public class LightningMaterial extends Material
 		/* Get locations of uniforms in this shader. */
 		mUniformLocation = shader.getUniformLocation(gl, "Color");
 		mHasTextureUniformLocation = shader.getUniformLocation(gl, "HasTexture");
+		mUseSpritesUniformLocation = shader.getUniformLocation(gl, "UseSprites");
+		mLayerUniformLocation = shader.getUniformLocation(gl, "Layer");
+		mAtlasGridUniformLocation = shader.getUniformLocation(gl, "AtlasGrid");
+		mAtlasInsetUniformLocation = shader.getUniformLocation(gl, "AtlasInset");
 		mEnabledUniformLocation = shader.getUniformLocation(gl, "isEnabled");
 
 		
-		mLightPositionsUniformLocation = shader.getUniformLocation(gl, "LightPositions");
-		mLightColorsUniformLocation = shader.getUniformLocation(gl, "LightColors");
-		mLightAttenuationsUniformLocation = shader.getUniformLocation(gl, "LightAttenuations");
 		mNumLightsUniformLocation = shader.getUniformLocation(gl, "NumLights");
 
 		/* This uniform won't ever change, so just set it here. */
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "Texture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "Texture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "Sprites"), 2);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "LightBuffer"), 1);
 		shader.unbind(gl);
 	}
 
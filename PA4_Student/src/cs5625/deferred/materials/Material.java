@@ -4,7 +4,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -12,13 +11,14 @@ import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
 import javax.vecmath.Color3f;
 
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.OpenGLResourceObject;
 import cs5625.deferred.misc.Util;
 import cs5625.deferred.rendering.Camera;
+import cs5625.deferred.rendering.LightBuffer;
 import cs5625.deferred.rendering.ShaderProgram;
 import cs5625.deferred.scenegraph.Geometry;
-import cs5625.deferred.scenegraph.Light;
 
 /**
  * Material.java
@@ -35,10 +35,13 @@ public abstract class Material implements OpenGLResourceObject
 {
 	/** This material's shader, if any. */
 	private ShaderProgram mShaderProgram = null;
-	private ArrayList<Light> lights = new ArrayList<Light>();
+	private LightBuffer mLightBuffer = null;
 	private Camera cam;
 	private int isEnabled = 1;
 	
+	/* Number of meshes using this material; see `addUser()`. */
+	private int mUsers = 0;
+	
 	public void enable() {
 		isEnabled = 1;
 	}
@@ -53,14 +56,18 @@ public abstract class Material implements OpenGLResourceObject
 
 	
 	
-	public ArrayList<Light> getLights() {
-		return lights;
+	/**
+	 * Returns the renderer's shared buffer of eye-space light data for the current frame. 
+	 * Forward-shaded materials bind this instead of uploading their own light uniforms.
+	 */
+	public LightBuffer getLightBuffer() {
+		return mLightBuffer;
 	}
 	
-	public void setLights(ArrayList<Light> l) {
-		lights = l;
-		
+	public void setLightBuffer(LightBuffer lightBuffer) {
+		mLightBuffer = lightBuffer;
 	}
+	
 	public void setCamera(Camera c) {
 		cam = c;
 	}
@@ -108,6 +115,15 @@ public abstract class Material implements OpenGLResourceObject
 		return mShaderProgram;
 	}
 	
+	/**
+	 * Returns the texture which most identifies this material's texture state, or null if it has none. 
+	 * The renderer sorts meshes by this texture so that materials sharing it are drawn together.
+	 */
+	public Texture getPrimaryTexture()
+	{
+		return null;
+	}
+	
 	/**
 	 * Returns an array of names of vertex attributes which a mesh must have to render correctly
 	 * using this material, or an empty array if none are required.
@@ -167,6 +183,37 @@ public abstract class Material implements OpenGLResourceObject
 		/* Do nothing by default. */
 	}
 	
+	/**
+	 * Records that a mesh uses this material. Meshes can share a material (e.g. instances of a model 
+	 * acquired from `AssetManager`), so each mesh adds itself as a user and only the last one to be 
+	 * released releases the material's GPU resources; see `Mesh.releaseGPUResources()`.
+	 */
+	public synchronized void addUser()
+	{
+		++mUsers;
+	}
+	
+	/**
+	 * Records that a mesh no longer uses this material. Returns true if that was the last user, in 
+	 * which case the caller should release the material's GPU resources.
+	 */
+	public synchronized boolean removeUser()
+	{
+		if (mUsers > 0)
+		{
+			--mUsers;
+		}
+		
+		return (mUsers == 0);
+	}
+	
+	/**
+	 * Returns the number of meshes using this material.
+	 */
+	public synchronized int getUserCount()
+	{
+		return mUsers;
+	}
 	
 	public void releaseGPUResources(GL2 gl)
 	{
@@ -179,6 +226,9 @@ public abstract class Material implements OpenGLResourceObject
 	/**
 	 * Loads materials from a .mtl file. 
 	 * 
+	 * Texture maps are acquired from `AssetManager`, so materials which use the same image share one
+	 * texture, and are released along with the last material using them.
+	 * 
 	 * @param identifier The identifier of the material file to load. Of the form 'models/my_materials.mtl'. 
 	 * 
 	 * @return A map containing the named materials loaded from the file, keyed on material name. 
@@ -244,7 +294,7 @@ public abstract class Material implements OpenGLResourceObject
 					String textureName = line.substring("map_Kd".length()).trim();
 					try
 					{
-						currentMaterial.setDiffuseTexture(Texture2D.load(GLU.getCurrentGL().getGL2(), Util.makeIdentifierOfSibling(identifier, textureName)));
+						currentMaterial.setDiffuseTexture(AssetManager.acquireTexture(GLU.getCurrentGL().getGL2(), Util.makeIdentifierOfSibling(identifier, textureName)));
 					}
 					catch (OpenGLException err)
 					{
@@ -258,7 +308,7 @@ public abstract class Material implements OpenGLResourceObject
 					String textureName = line.substring("map_Ks".length()).trim();
 					try
 					{
-						currentMaterial.setSpecularTexture(Texture2D.load(GLU.getCurrentGL().getGL2(), Util.makeIdentifierOfSibling(identifier, textureName)));
+						currentMaterial.setSpecularTexture(AssetManager.acquireTexture(GLU.getCurrentGL().getGL2(), Util.makeIdentifierOfSibling(identifier, textureName)));
 					}
 					catch (OpenGLException err)
 					{
@@ -1,107 +1,201 @@
 package cs5625.deferred.materials;
 
-import java.awt.Color;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import javax.swing.Timer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import javax.imageio.ImageIO;
 import javax.media.opengl.GL2;
-import javax.media.opengl.GLException;
-import javax.media.opengl.glu.GLU;
 import javax.vecmath.Color3f;
-import javax.vecmath.Vector3f;
 
 import cs5625.deferred.misc.OpenGLException;
-import cs5625.deferred.procedural.PerlinNoiseGenerator;
+import cs5625.deferred.procedural.OceanSimulation;
 import cs5625.deferred.rendering.ShaderProgram;
 
-public class OceanMaterial extends Material implements ActionListener
+/**
+ * OceanMaterial.java
+ *
+ * Shades the ocean surface with an animated `OceanSimulation`. Whenever the simulation is due (at
+ * its own update rate), it steps on a background thread while frames keep drawing the previous
+ * surface; the first `bind()` after it finishes copies its displacement and normal maps into two
+ * textures with sub-image updates. The vertex shader displaces vertices by the first; the fragment
+ * shader shades with the second. Both tile every `getPatchSize()` world units.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class OceanMaterial extends Material
 {
 	private Color3f mDiffuseColor = new Color3f(130f/255f, 215f/255f, 210f/255f);
-	private Texture2D mBumpMapTexture;
-	Timer timer = new Timer(1000/60, this);
-	public long time = 0;
 
-	int texWidth;
-	PerlinNoiseGenerator generator;
+	/* The wave simulation, the textures its results are uploaded to, and when it started. */
+	private OceanSimulation mSimulation;
+	private Texture2D mDisplacementTexture;
+	private Texture2D mNormalTexture;
+	private long mStartTime = System.nanoTime();
+	
+	/* Thread the simulation steps on, created on first use, and the step running on it, if any. */
+	private ExecutorService mWorker = null;
+	private Future<Boolean> mPendingUpdate = null;
 
 	private int mDiffuseUniformLocation = -1;
-	private int mTimeUniformLocation = -1;
+	private int mPatchSizeUniformLocation = -1;
 
+	/**
+	 * Creates an ocean simulated at the given resolution (clamped to a power of two between 
+	 * `OceanSimulation.MIN_RESOLUTION` and `MAX_RESOLUTION`), with default wind and wave settings.
+	 */
 	public OceanMaterial(Color3f baseColor, int texWidth)
 	{
-		this.texWidth = texWidth;
+		this(baseColor, new OceanSimulation(Integer.highestOneBit(Math.max(OceanSimulation.MIN_RESOLUTION, Math.min(OceanSimulation.MAX_RESOLUTION, texWidth))),
+											64.0f, 8.0f, 0.5f, 0.005f, System.nanoTime()));
+	}
+
+	/**
+	 * Creates an ocean animated by the given simulation.
+	 */
+	public OceanMaterial(Color3f baseColor, OceanSimulation simulation)
+	{
 		mDiffuseColor = baseColor;
-		generator = new PerlinNoiseGenerator(texWidth, texWidth);
+		mSimulation = simulation;
+	}
+
+	/**
+	 * Returns the simulation animating this ocean, e.g. to change its update rate.
+	 */
+	public OceanSimulation getSimulation()
+	{
+		return mSimulation;
+	}
+
+	/**
+	 * Collects a finished simulation step, starts the next one if it's due, and uploads the maps of
+	 * the collected step. Creates the textures on first use, filled by one step run right here, since
+	 * there is no earlier surface to draw meanwhile.
+	 */
+	private void updateSimulation(GL2 gl) throws OpenGLException
+	{
+		int resolution = mSimulation.getResolution();
+		float seconds = (System.nanoTime() - mStartTime) / 1e9f;
+		boolean changed = false;
 
-		BufferedImage bumpMap = new BufferedImage(texWidth, texWidth, BufferedImage.TYPE_INT_RGB);
-		float[][] heightChannel = generator.seededPerlinNoiseTexture(-1, 3);
-		for(int x = 0; x < texWidth; x++)
+		if (mDisplacementTexture == null)
 		{
-			for(int y = 0; y < texWidth; y++)
+			mDisplacementTexture = new Texture2D(gl, Texture.Format.RGB, Texture.Datatype.FLOAT16, resolution, resolution, null, false);
+			mNormalTexture = new Texture2D(gl, Texture.Format.RGBA, Texture.Datatype.INT8, resolution, resolution, null, false);
+			
+			if (mPendingUpdate == null)
 			{
-				Vector3f normal = getNormalAtPoint(x, y, heightChannel);
-//				System.out.println(normal);
-//				Color color = new Color(heightChannel[x][y], heightChannel[x][y], heightChannel[x][y]);
-//				System.out.println(color);
-				Color color = new Color(normal.x, normal.y, normal.z);
-				bumpMap.setRGB(x, y, color.getRGB());
+				mSimulation.simulate(seconds);
+				mSimulation.swapOutputs();
 			}
+			
+			changed = true;
 		}
-
-		File bumpFile = new File("src/textures/ocean.png");
 		
-		try 
+		if (mPendingUpdate != null && mPendingUpdate.isDone())
 		{
-			ImageIO.write(bumpMap, "png", bumpFile);
-		} 
-		catch (IOException e) 
+			changed |= collectUpdate();
+		}
+		
+		/* The step writes the simulation's back outputs, so uploading the front ones can overlap it. */
+		if (mPendingUpdate == null && mSimulation.isDue(seconds))
+		{
+			startUpdate(seconds);
+		}
+
+		if (changed)
 		{
-			e.printStackTrace();
-			System.exit(-1);
+			mDisplacementTexture.update(gl, 0, 0, resolution, resolution, Texture.Format.RGB, Texture.Datatype.FLOAT32, mSimulation.getDisplacementData());
+			mNormalTexture.update(gl, 0, 0, resolution, resolution, Texture.Format.RGBA, Texture.Datatype.INT8, mSimulation.getNormalData());
+			mNormalTexture.generateMipmaps(gl);
+		}
+	}
+	
+	/**
+	 * Starts stepping the simulation to the given time on the worker thread.
+	 */
+	private void startUpdate(final float seconds)
+	{
+		if (mWorker == null)
+		{
+			mWorker = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "OceanMaterial");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
 		
-		try {
-			mBumpMapTexture = Texture2D.load(GLU.getCurrentGL().getGL2(), "textures/ocean.png");
-		} catch (GLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (OpenGLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		mPendingUpdate = mWorker.submit(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return mSimulation.update(seconds);
+			}
+		});
+	}
+	
+	/**
+	 * Waits for the running simulation step, and makes its outputs the front ones. Returns true if
+	 * the step changed them.
+	 */
+	private boolean collectUpdate()
+	{
+		try
+		{
+			boolean updated = mPendingUpdate.get();
+			
+			if (updated)
+			{
+				mSimulation.swapOutputs();
+			}
+			
+			return updated;
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException err)
+		{
+			throw new RuntimeException("Ocean simulation failed.", err.getCause());
+		}
+		finally
+		{
+			mPendingUpdate = null;
 		}
-//		timer.start();
 	}
 
 	@Override
 	public void bind(GL2 gl) throws OpenGLException {
+		updateSimulation(gl);
+		
 		getShaderProgram().bind(gl);
-		gl.glUniform3f(mDiffuseUniformLocation, mDiffuseColor.x, mDiffuseColor.y, mDiffuseColor.z);
-		gl.glUniform1f(mTimeUniformLocation, time);
+		getShaderProgram().setUniform3f(gl, mDiffuseUniformLocation, mDiffuseColor.x, mDiffuseColor.y, mDiffuseColor.z);
+		getShaderProgram().setUniform1f(gl, mPatchSizeUniformLocation, mSimulation.getPatchSize());
 		
 //		System.out.println("ping");
 //		gl.glEnableVertexAttribArray(1);
 		
-		if (mBumpMapTexture != null)
-		{
-			mBumpMapTexture.bind(gl, 0);
-		}
+		mNormalTexture.bind(gl, 0);
+		mDisplacementTexture.bind(gl, 1);
 	}
 
 	public void initializeShader(GL2 gl, ShaderProgram shader)
 	{
 		mDiffuseUniformLocation = shader.getUniformLocation(gl, "DiffuseColor");
-		mTimeUniformLocation = shader.getUniformLocation(gl, "Time");
+		mPatchSizeUniformLocation = shader.getUniformLocation(gl, "PatchSize");
 	
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "BumpMap"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "NormalMap"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "DisplacementMap"), 1);
 //		gl.glBindAttribLocation(shader.getHandle(), 1, "noiseval");
 //		gl.glVertexAttribPointer(1, 1, gl.GL_FLOAT, false, 0, (Buffer)buffer);
 		shader.unbind(gl);
@@ -113,177 +207,35 @@ public class OceanMaterial extends Material implements ActionListener
 		
 //		gl.glDisableVertexAttribArray(1);
 		
-		if (mBumpMapTexture != null)
-		{
-			mBumpMapTexture.unbind(gl);
-		}
+		mNormalTexture.unbind(gl);
+		mDisplacementTexture.unbind(gl);
 	}
 
+	/**
+	 * Releases the shader and the simulation's textures. They are recreated if the material is used
+	 * again. A step still running is collected first, so that its outputs are the ones uploaded then.
+	 */
 	@Override
-	public String getShaderIdentifier() {
-		return "shaders/material_ocean";
-	}
-
-	private Vector3f getNormalAtPoint(int x, int y, float[][] heightmap)
+	public void releaseGPUResources(GL2 gl)
 	{
-		Vector3f vert = new Vector3f();
-		Vector3f norm = new Vector3f();
-		Vector3f line1 = new Vector3f();
-		Vector3f line2 = new Vector3f();
-		Vector3f line3 = new Vector3f();
-		Vector3f line4 = new Vector3f();
-		Vector3f tri1 = new Vector3f();
-		Vector3f tri2 = new Vector3f();
+		super.releaseGPUResources(gl);
 		
-		float xPos = (2 * x) - texWidth;
-		float yPos = heightmap[x][y];
-		float zPos = (2 * y) - texWidth;
-
-		vert.set(xPos, yPos, zPos);
-
-		if(x == 0 && y == 0)
-		{
-			norm = new Vector3f(vert);
-			norm.sub(new Vector3f(x+2, heightmap[x+1][y], y));
-			Vector3f temp = new Vector3f(vert);
-			temp.sub(new Vector3f(x, heightmap[x][y+1], y+2));
-			norm.cross(norm, temp);
-		}
-		else if(x == texWidth && y == 0)
-		{
-			norm = new Vector3f(vert);
-			norm.sub(new Vector3f(x-2, heightmap[x-1][y], y));
-			Vector3f temp = new Vector3f(vert);
-			temp.sub(new Vector3f(x, heightmap[x][y+1], y+2));
-			norm.cross(norm, temp);
-		}
-		else if(x == 0 && y == texWidth)
-		{
-			norm = new Vector3f(vert);
-			norm.sub(new Vector3f(x, heightmap[x][y-1], y-2));
-			Vector3f temp = new Vector3f(vert);
-			temp.sub(new Vector3f(x+2, heightmap[x+1][y], y));
-			norm.cross(norm, temp);
-		}
-		else if(x == texWidth && y == texWidth)
-		{
-			norm = new Vector3f(vert);
-			norm.sub(new Vector3f(x-2, heightmap[x-1][y], y));
-			Vector3f temp = new Vector3f(vert);
-			temp.sub(new Vector3f(x, heightmap[x][y-1], y-2));
-			norm.cross(norm, temp);
-		}
-		else if(x == 0)
-		{
-			line1 = new Vector3f(vert);
-			line1.sub(new Vector3f(x+2, heightmap[x+1][y], y));
-			line2 = new Vector3f(vert);
-			line2.sub(new Vector3f(x, heightmap[x][y+1], y+2));
-			line3 = new Vector3f(vert);
-			line3.sub(new Vector3f(x, heightmap[x][y-1], y-2));
-			tri1 = new Vector3f();
-			tri1.cross(line1, line2);
-			tri2 = new Vector3f();
-			tri2.cross(line1, line3);
-			norm = new Vector3f();
-			norm.add(tri1, tri2);
-		}
-		else if(y == 0)
+		if (mPendingUpdate != null)
 		{
-			line1 = new Vector3f(vert);
-			line1.sub(new Vector3f(x, heightmap[x][y+1], y+2));
-			line2 = new Vector3f(vert);
-			line2.sub(new Vector3f(x+2, heightmap[x+1][y], y));
-			line3 = new Vector3f(vert);
-			line3.sub(new Vector3f(x-2, heightmap[x-1][y], y));
-			tri1 = new Vector3f();
-			tri1.cross(line1, line2);
-			tri2 = new Vector3f();
-			tri2.cross(line1, line3);
-			norm = new Vector3f();
-			norm.add(tri1, tri2);
+			collectUpdate();
 		}
-		else if(x == texWidth)
-		{
-			line1 = new Vector3f(vert);
-			line1.sub(new Vector3f(x-2, heightmap[x-1][y], y));
-			line2 = new Vector3f(vert);
-			line2.sub(new Vector3f(x, heightmap[x][y+1], y+2));
-			line3 = new Vector3f(vert);
-			line3.sub(new Vector3f(x, heightmap[x][y-1], y-2));
-			tri1 = new Vector3f();
-			tri1.cross(line1, line2);
-			tri2 = new Vector3f();
-			tri2.cross(line1, line3);
-			norm = new Vector3f();
-			norm.add(tri1, tri2);
-		}
-		else if(y == texWidth)
-		{
-			line1 = new Vector3f(vert);
-			line1.sub(new Vector3f(x, heightmap[x][y-1], y+2));
-			line2 = new Vector3f(vert);
-			line2.sub(new Vector3f(x+2, heightmap[x+1][y], y));
-			line3 = new Vector3f(vert);
-			line3.sub(new Vector3f(x-2, heightmap[x-1][y], y));
-			tri1 = new Vector3f();
-			tri1.cross(line1, line2);
-			tri2 = new Vector3f();
-			tri2.cross(line1, line3);
-			norm = new Vector3f();
-			norm.add(tri1, tri2);
-		}
-		else
-		{
-			line1 = new Vector3f(vert);
-			line1.sub(new Vector3f(vert.x, heightmap[x][y+1], vert.z+2));
-			line2 = new Vector3f(vert);
-			line2.sub(new Vector3f(vert.x+2, heightmap[x+1][y], vert.z));
-			line3 = new Vector3f(vert);
-			line3.sub(new Vector3f(vert.x-2, heightmap[x-1][y], vert.z));
-			line4 = new Vector3f(vert);
-			line4.sub(new Vector3f(vert.x, heightmap[x][y-1], vert.z-2));
-			tri1 = new Vector3f();
-			tri1.cross(line3, line1);
-			tri2 = new Vector3f();
-			tri2.cross(line2, line4);
-			norm = new Vector3f();
-			norm.add(tri1, tri2);
-		}
-		norm.normalize();
-//		System.out.println("Norm: " + norm);
-		if(norm.x < 0)
-		{
-			norm.x = 1+norm.x;
-		}
-		if(norm.y < 0)
-		{
-			norm.y = 1+norm.y;
-		}
-		if(norm.z < 0)
+		
+		if (mDisplacementTexture != null)
 		{
-			norm.z = 1+norm.z;
+			mDisplacementTexture.releaseGPUResources(gl);
+			mNormalTexture.releaseGPUResources(gl);
+			mDisplacementTexture = null;
+			mNormalTexture = null;
 		}
-		return norm;
 	}
 
 	@Override
-	public void actionPerformed(ActionEvent event) {
-		// TODO Auto-generated method stub
-		if (event.getSource() == timer)
-		{
-			long now = System.currentTimeMillis();
-			time = now;
-//			System.out.println("now: " + now);
-		}
-	}
-
-	public long getTime() {
-		return time;
-	}
-
-	public void setTime(long time) {
-		System.out.println(time);
-		this.time = time;
+	public String getShaderIdentifier() {
+		return "shaders/material_ocean";
 	}
 }
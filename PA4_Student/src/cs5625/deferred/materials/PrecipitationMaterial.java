@@ -5,6 +5,7 @@ import javax.vecmath.Color3f;
 import javax.vecmath.Color4f;
 import javax.vecmath.Point3f;
 
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.rendering.ShaderProgram;
 
@@ -24,6 +25,8 @@ public class PrecipitationMaterial extends Material
 	/* Material properties. */
 	private Color4f mColor = new Color4f(1.0f, 1.0f, 1.0f, 1.0f);
 	private Texture2D mTexture = null;
+	private SpriteArray mSprites = null;
+	private int mSpriteLayer = 0;
 	
 	private Point3f startPosition;
 	private float maxy;
@@ -34,6 +37,10 @@ public class PrecipitationMaterial extends Material
 	/* Uniform locations. */
 	private int mUniformLocation = -1;
 	private int mHasTextureUniformLocation = -1;
+	private int mUseSpritesUniformLocation = -1;
+	private int mLayerUniformLocation = -1;
+	private int mAtlasGridUniformLocation = -1;
+	private int mAtlasInsetUniformLocation = -1;
 	private int mPosUniformLocation = -1;
 	private int mMaxUniformLocation = -1;
 	private int mDiffUniformLocation = -1;
@@ -94,10 +101,37 @@ public class PrecipitationMaterial extends Material
 		return mTexture;
 	}
 	
+	@Override
+	public Texture getPrimaryTexture()
+	{
+		return (mSprites != null ? mSprites.getTexture() : mTexture);
+	}
+	
 	public void setTexture(Texture2D texture)
 	{
 		mTexture = texture;
 	}
+	
+	public SpriteArray getSprites()
+	{
+		return mSprites;
+	}
+	
+	public int getSpriteLayer()
+	{
+		return mSpriteLayer;
+	}
+	
+	/**
+	 * Makes this material draw with one layer of a sprite array instead of the texture from 
+	 * `setTexture()`, so it shares its texture binding with other materials using the same array. 
+	 * Null goes back to the single texture.
+	 */
+	public void setSprite(SpriteArray sprites, int layer)
+	{
+		mSprites = sprites;
+		mSpriteLayer = layer;
+	}
 
 	@Override
 	public void bind(GL2 gl) throws OpenGLException
@@ -106,17 +140,25 @@ public class PrecipitationMaterial extends Material
 		/* Bind shader, and any textures, and update uniforms. */
 		getShaderProgram().bind(gl);
 		
-		gl.glUniform4f(mUniformLocation, mColor.x, mColor.y, mColor.z, mColor.w);
+		getShaderProgram().setUniform4f(gl, mUniformLocation, mColor.x, mColor.y, mColor.z, mColor.w);
 		
-		gl.glUniform1f(mMaxUniformLocation, maxy);
-		gl.glUniform3f(mPosUniformLocation, startPosition.x, startPosition.y, startPosition.z);
-		gl.glUniform1f(mDiffUniformLocation, difference);
-		gl.glUniform1f(mMinUniformLocation, minDiff);
+		getShaderProgram().setUniform1f(gl, mMaxUniformLocation, maxy);
+		getShaderProgram().setUniform3f(gl, mPosUniformLocation, startPosition.x, startPosition.y, startPosition.z);
+		getShaderProgram().setUniform1f(gl, mDiffUniformLocation, difference);
+		getShaderProgram().setUniform1f(gl, mMinUniformLocation, minDiff);
 		
 		
-		gl.glUniform1i(mHasTextureUniformLocation, (mTexture == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mHasTextureUniformLocation, (mTexture == null && mSprites == null ? 0 : 1));
+		getShaderProgram().setUniform1i(gl, mUseSpritesUniformLocation, (mSprites == null ? 0 : 1));
 
-		if (mTexture != null)
+		if (mSprites != null)
+		{
+			mSprites.getTexture().bind(gl, 2);
+			getShaderProgram().setUniform1f(gl, mLayerUniformLocation, mSpriteLayer);
+			getShaderProgram().setUniform2f(gl, mAtlasGridUniformLocation, mSprites.getAtlasColumns(), mSprites.getAtlasRows());
+			getShaderProgram().setUniform1f(gl, mAtlasInsetUniformLocation, 0.5f / mSprites.getLayerSize());
+		}
+		else if (mTexture != null)
 		{
 			mTexture.bind(gl, 0);
 		}
@@ -131,12 +173,12 @@ public class PrecipitationMaterial extends Material
 		 * The default particle shader uses alpha blending, but you can subclass ParticleMaterial
 		 * and write your own shader; if it follows this alpha convention it will "just work".
 		 */
-		gl.glBlendFunc(GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
-		gl.glEnable(GL2.GL_BLEND);
+		GLState.setBlendFunc(gl, GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
+		GLState.setBlend(gl, true);
 		
 		/* Disable writing of depth values by these particles. They will still clip against the 
 		 * opaque scene geometry, but not against other particles. */
-		gl.glDepthMask(false);
+		GLState.setDepthMask(gl, false);
 		
 		OpenGLException.checkOpenGLError(gl);
 	}
@@ -147,7 +189,11 @@ public class PrecipitationMaterial extends Material
 		/* Unbind anything bound in bind(). */
 		getShaderProgram().unbind(gl);
 
-		if (mTexture != null)
+		if (mSprites != null)
+		{
+			mSprites.getTexture().unbind(gl);
+		}
+		else if (mTexture != null)
 		{
 			mTexture.unbind(gl);
 		}
@@ -159,6 +205,10 @@ public class PrecipitationMaterial extends Material
 		/* Get locations of uniforms in this shader. */
 		mUniformLocation = shader.getUniformLocation(gl, "Color");
 		mHasTextureUniformLocation = shader.getUniformLocation(gl, "HasTexture");
+		mUseSpritesUniformLocation = shader.getUniformLocation(gl, "UseSprites");
+		mLayerUniformLocation = shader.getUniformLocation(gl, "Layer");
+		mAtlasGridUniformLocation = shader.getUniformLocation(gl, "AtlasGrid");
+		mAtlasInsetUniformLocation = shader.getUniformLocation(gl, "AtlasInset");
 		mPosUniformLocation = shader.getUniformLocation(gl, "startPosition");
 		mMaxUniformLocation = shader.getUniformLocation(gl, "maxPoint");
 		mDiffUniformLocation = shader.getUniformLocation(gl, "difference");
@@ -166,7 +216,8 @@ public class PrecipitationMaterial extends Material
 
 		/* This uniform won't ever change, so just set it here. */
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "Texture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "Texture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "Sprites"), 2);
 		shader.unbind(gl);
 	}
 
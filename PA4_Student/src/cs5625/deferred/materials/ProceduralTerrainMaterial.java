@@ -4,6 +4,13 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.media.opengl.GL2;
@@ -11,8 +18,11 @@ import javax.media.opengl.GLException;
 import javax.media.opengl.glu.GLU;
 import javax.vecmath.Color3f;
 
+import com.jogamp.common.nio.Buffers;
+
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.procedural.PerlinNoiseGenerator;
+import cs5625.deferred.procedural.SplatWeightGenerator;
 import cs5625.deferred.rendering.ShaderProgram;
 
 public class ProceduralTerrainMaterial extends Material
@@ -35,6 +45,9 @@ public class ProceduralTerrainMaterial extends Material
 	
 	private int mTexWidthUniformLocation = -1;
 	
+	/* Where to write generated layers for inspection, or null to skip. */
+	private static File sDebugDumpDirectory = null;
+	
 	
 	/* Uniform locations for the shader. */
 //	private int mGrassUniformLocation = -1;
@@ -54,90 +67,36 @@ public class ProceduralTerrainMaterial extends Material
 		this.texWidth = texWidth;
 		generator = new PerlinNoiseGenerator(texWidth, texWidth);
 		
-		BufferedImage grassImg = new BufferedImage(texWidth, texWidth, BufferedImage.TYPE_INT_RGB);
-		float[][] grassChannel = generator.seededPerlinNoiseTexture(-1, 5);
-		for(int x = 0; x < texWidth; x++)
-		{
-			for(int y = 0; y < texWidth; y++)
-			{
-				float t = grassChannel[x][y];
-				float u = 1 - t;
-				Color color = new Color((int)(mGrassGradientBegin.getRed() * u + mGrassGradientEnd.getRed() * t),
-								        (int)(mGrassGradientBegin.getGreen() * u + mGrassGradientEnd.getGreen() * t),
-								        (int)(mGrassGradientBegin.getBlue() * u +mGrassGradientEnd.getBlue() * t));
-				grassImg.setRGB(x, y, color.getRGB());
-			}
-		}
+		/* Generate the four gradient layers in parallel, straight into upload-ready RGBA buffers. */
+		Color gradients[][] = {
+			{ mGrassGradientBegin, mGrassGradientEnd },
+			{ mRockGradientBegin, mRockGradientEnd },
+			{ mSnowGradientBegin, mSnowGradientEnd },
+			{ mSandGradientBegin, mSandGradientEnd } };
 		
-		BufferedImage rockImg = new BufferedImage(texWidth, texWidth, BufferedImage.TYPE_INT_RGB);
-		float[][] rockChannel = generator.seededPerlinNoiseTexture(-1, 5);
-		for(int x = 0; x < texWidth; x++)
-		{
-			for(int y = 0; y < texWidth; y++)
-			{
-				float t = rockChannel[x][y];
-				float u = 1 - t;
-				Color color = new Color((int)(mRockGradientBegin.getRed() * u + mRockGradientEnd.getRed() * t),
-								        (int)(mRockGradientBegin.getGreen() * u + mRockGradientEnd.getGreen() * t),
-								        (int)(mRockGradientBegin.getBlue() * u +mRockGradientEnd.getBlue() * t));
-				rockImg.setRGB(x, y, color.getRGB());
-			}
-		}
-		
-		BufferedImage snowImg = new BufferedImage(texWidth, texWidth, BufferedImage.TYPE_INT_RGB);
-		float[][] snowChannel = generator.seededPerlinNoiseTexture(-1, 5);
-		for(int x = 0; x < texWidth; x++)
-		{
-			for(int y = 0; y < texWidth; y++)
-			{
-				float t = snowChannel[x][y];
-				float u = 1 - t;
-				Color color = new Color((int)(mSnowGradientBegin.getRed() * u + mSnowGradientEnd.getRed() * t),
-								        (int)(mSnowGradientBegin.getGreen() * u + mSnowGradientEnd.getGreen() * t),
-								        (int)(mSnowGradientBegin.getBlue() * u +mSnowGradientEnd.getBlue() * t));
-				snowImg.setRGB(x, y, color.getRGB());
-			}
-		}
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(gradients.length, Runtime.getRuntime().availableProcessors()));
+		ArrayList<Future<ByteBuffer>> layers = new ArrayList<Future<ByteBuffer>>();
 		
-		BufferedImage sandImg = new BufferedImage(texWidth, texWidth, BufferedImage.TYPE_INT_RGB);
-		float[][] sandChannel = generator.seededPerlinNoiseTexture(-1, 5);
-		for(int x = 0; x < texWidth; x++)
+		for (final Color gradient[] : gradients)
 		{
-			for(int y = 0; y < texWidth; y++)
+			layers.add(workers.submit(new Callable<ByteBuffer>()
 			{
-				float t = sandChannel[x][y];
-				float u = 1 - t;
-				Color color = new Color((int)(mSandGradientBegin.getRed() * u + mSandGradientEnd.getRed() * t),
-								        (int)(mSandGradientBegin.getGreen() * u + mSandGradientEnd.getGreen() * t),
-								        (int)(mSandGradientBegin.getBlue() * u +mSandGradientEnd.getBlue() * t));
-				sandImg.setRGB(x, y, color.getRGB());
-			}
+				public ByteBuffer call()
+				{
+					return generateLayer(gradient[0], gradient[1]);
+				}
+			}));
 		}
 		
-		File grassFile = new File("src/textures/grass.png");
-		File rockFile = new File("src/textures/rock.png");
-		File snowFile = new File("src/textures/snow.png");
-		File sandFile = new File("src/textures/sand.png");
-		
-		try 
-		{
-			ImageIO.write(grassImg, "png", grassFile);
-			ImageIO.write(rockImg, "png", rockFile);
-			ImageIO.write(snowImg, "png", snowFile);
-			ImageIO.write(sandImg, "png", sandFile);
-		} 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			System.exit(-1);
-		}
+		workers.shutdown();
 		
 		try
 		{
-			mGrassTexture = Texture2D.load(GLU.getCurrentGL().getGL2(), "textures/grass.png");
-			mRockTexture = Texture2D.load(GLU.getCurrentGL().getGL2(), "textures/rock.png");
-			mSnowTexture = Texture2D.load(GLU.getCurrentGL().getGL2(), "textures/snow.png");
-			mSandTexture = Texture2D.load(GLU.getCurrentGL().getGL2(), "textures/sand.png");
+			GL2 gl = GLU.getCurrentGL().getGL2();
+			mGrassTexture = uploadLayer(gl, layers.get(0).get(), "grass");
+			mRockTexture = uploadLayer(gl, layers.get(1).get(), "rock");
+			mSnowTexture = uploadLayer(gl, layers.get(2).get(), "snow");
+			mSandTexture = uploadLayer(gl, layers.get(3).get(), "sand");
 		}
 		catch (OpenGLException e){
 			e.printStackTrace();
@@ -145,17 +104,102 @@ public class ProceduralTerrainMaterial extends Material
 		} catch (GLException e) {
 			e.printStackTrace();
 			System.exit(-1);
-		} catch (IOException e) {
+		} catch (InterruptedException e) {
 			e.printStackTrace();
 			System.exit(-1);
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Sets a directory to write each generated terrain layer to, as a PNG, for debugging.
+	 * Null (the default) disables the dumps.
+	 */
+	public static void setDebugDumpDirectory(File directory)
+	{
+		sDebugDumpDirectory = directory;
+	}
+	
+	/**
+	 * Returns the directory terrain layers are dumped to, or null if dumps are disabled.
+	 */
+	public static File getDebugDumpDirectory()
+	{
+		return sDebugDumpDirectory;
+	}
+	
+	/**
+	 * Fills a texWidth x texWidth RGBA8 buffer with a fresh Perlin noise field mapped onto the
+	 * gradient from `begin` to `end`. Rows are stored bottom first, as OpenGL expects.
+	 * Safe to call from any thread.
+	 */
+	private ByteBuffer generateLayer(Color begin, Color end)
+	{
+		float[][] channel = generator.seededPerlinNoiseTexture(-1, 5);
+		ByteBuffer data = Buffers.newDirectByteBuffer(texWidth * texWidth * 4);
+		
+		int r0 = begin.getRed(), g0 = begin.getGreen(), b0 = begin.getBlue();
+		int r1 = end.getRed(), g1 = end.getGreen(), b1 = end.getBlue();
+		
+		for (int y = 0; y < texWidth; y++)
+		{
+			int offset = (texWidth - 1 - y) * texWidth * 4;
+			
+			for (int x = 0; x < texWidth; x++)
+			{
+				float t = channel[x][y];
+				float u = 1 - t;
+				
+				data.put(offset++, (byte)(int)(r0 * u + r1 * t));
+				data.put(offset++, (byte)(int)(g0 * u + g1 * t));
+				data.put(offset++, (byte)(int)(b0 * u + b1 * t));
+				data.put(offset++, (byte)255);
+			}
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Creates a texture from a layer made by `generateLayer()`, first dumping it to disk if enabled.
+	 */
+	private Texture2D uploadLayer(GL2 gl, ByteBuffer data, String name) throws OpenGLException
+	{
+		if (sDebugDumpDirectory != null)
+		{
+			BufferedImage image = new BufferedImage(texWidth, texWidth, BufferedImage.TYPE_INT_RGB);
+			
+			for (int y = 0; y < texWidth; y++)
+			{
+				int offset = (texWidth - 1 - y) * texWidth * 4;
+				
+				for (int x = 0; x < texWidth; x++, offset += 4)
+				{
+					image.setRGB(x, y, ((data.get(offset) & 0xff) << 16) | ((data.get(offset + 1) & 0xff) << 8) | (data.get(offset + 2) & 0xff));
+				}
+			}
+			
+			try
+			{
+				ImageIO.write(image, "png", new File(sDebugDumpDirectory, name + ".png"));
+			}
+			catch (IOException e)
+			{
+				/* Only a debugging aid, so don't let it stop the terrain. */
+				e.printStackTrace();
+			}
 		}
+		
+		return new Texture2D(gl, Texture.Format.RGBA, Texture.Datatype.INT8, texWidth, texWidth, data);
 	}
 
 	@Override
 	public void bind(GL2 gl) throws OpenGLException {
 		/* Bind shader and textures.*/
 		getShaderProgram().bind(gl);
-		gl.glUniform1i(mTexWidthUniformLocation, texWidth);
+		getShaderProgram().setUniform1i(gl, mTexWidthUniformLocation, texWidth);
 		if (mGrassTexture != null)
 		{
 			mGrassTexture.bind(gl, 0);
@@ -182,10 +226,10 @@ public class ProceduralTerrainMaterial extends Material
 		
 		/* These are only set once, so set them here. */
 		shader.bind(gl);
-		gl.glUniform1i(shader.getUniformLocation(gl, "DiffuseTexture"), 0);
-		gl.glUniform1i(shader.getUniformLocation(gl, "RockTexture"), 1);
-		gl.glUniform1i(shader.getUniformLocation(gl, "SnowTexture"), 2);
-		gl.glUniform1i(shader.getUniformLocation(gl, "SandTexture"), 3);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "DiffuseTexture"), 0);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "RockTexture"), 1);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "SnowTexture"), 2);
+		shader.setUniform1i(gl, shader.getUniformLocation(gl, "SandTexture"), 3);
 		shader.unbind(gl);
 	}
 	
@@ -211,6 +255,13 @@ public class ProceduralTerrainMaterial extends Material
 		}
 	}
 	
+	@Override
+	public String[] getRequiredVertexAttributes()
+	{
+		/* Layer blend weights, from SplatWeightGenerator. */
+		return new String[] { SplatWeightGenerator.WEIGHT_ATTRIBUTE };
+	}
+	
 	@Override
 	public String getShaderIdentifier()
 	{
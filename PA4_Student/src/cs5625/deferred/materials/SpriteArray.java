@@ -0,0 +1,212 @@
+package cs5625.deferred.materials;
+
+import java.nio.ByteBuffer;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+import cs5625.deferred.scenegraph.Mesh;
+
+/**
+ * SpriteArray.java
+ *
+ * Packs a set of sprite images into a single texture object, so that particles using different
+ * sprites can share one material and one texture binding. Each sprite is a numbered layer; meshes
+ * select theirs with a per-instance `SpriteLayer` attribute (see `setLayer()`), so instances of one
+ * shared quad can show different sprites.
+ *
+ * Where texture arrays are supported the sprites become the layers of a Texture2DArray. Otherwise
+ * they are tiled into a grid atlas in one Texture2D, `getAtlasColumns()` wide and `getAtlasRows()`
+ * high. Shaders handle both by testing the `GL_EXT_texture_array` macro; see material_cloud.fp.
+ *
+ * The layers are built on the CPU from decoded images (see `Texture2D.decode()`), so the sprites never
+ * exist as textures of their own. All layers have the size of the largest sprite; smaller sprites are
+ * scaled up to fit.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class SpriteArray implements OpenGLResourceObject
+{
+	/** Name of the vertex attribute holding each mesh's layer index. */
+	public static final String LAYER_ATTRIBUTE = "SpriteLayer";
+	
+	/* The texture holding all layers: a Texture2DArray, or a Texture2D atlas. */
+	private Texture mTexture;
+	private int mLayerCount;
+	private int mLayerSize;
+	private int mAtlasColumns = 1;
+	private int mAtlasRows = 1;
+	
+	/**
+	 * Packs the given images into a sprite array, with layer i holding image i.
+	 *
+	 * @param gl The OpenGL state.
+	 * @param sprites The decoded sprite images, e.g. from `TextureLoader.decodeAll()`. Null entries
+	 *        (e.g. images which failed to load) leave their layers transparent.
+	 */
+	public SpriteArray(GL2 gl, Texture2D.DecodedImage sprites[]) throws OpenGLException
+	{
+		mLayerCount = sprites.length;
+		
+		int size = 1;
+		for (Texture2D.DecodedImage sprite : sprites)
+		{
+			if (sprite != null)
+			{
+				size = Math.max(size, Math.max(sprite.getWidth(), sprite.getHeight()));
+			}
+		}
+		
+		mLayerSize = size;
+		int layerBytes = size * size * 4;
+		
+		if (Texture2DArray.isSupported(gl))
+		{
+			/* Layers one after another. */
+			ByteBuffer data = Buffers.newDirectByteBuffer(layerBytes * mLayerCount);
+			
+			for (int layer = 0; layer < mLayerCount; ++layer)
+			{
+				copyLayer(sprites[layer], size, data, layer * layerBytes, size);
+			}
+			
+			mTexture = new Texture2DArray(gl, Texture.Format.RGBA, Texture.Datatype.INT8, size, size, mLayerCount, data);
+		}
+		else
+		{
+			/* Layers in a grid, row by row from the bottom. */
+			mAtlasColumns = (int)Math.ceil(Math.sqrt(mLayerCount));
+			mAtlasRows = (mLayerCount + mAtlasColumns - 1) / mAtlasColumns;
+			
+			int atlasWidth = mAtlasColumns * size;
+			ByteBuffer data = Buffers.newDirectByteBuffer(layerBytes * mAtlasColumns * mAtlasRows);
+			
+			for (int layer = 0; layer < mLayerCount; ++layer)
+			{
+				int x = (layer % mAtlasColumns) * size;
+				int y = (layer / mAtlasColumns) * size;
+				copyLayer(sprites[layer], size, data, (y * atlasWidth + x) * 4, atlasWidth);
+			}
+			
+			mTexture = new Texture2D(gl, Texture.Format.RGBA, Texture.Datatype.INT8, atlasWidth, mAtlasRows * size, data, false);
+		}
+	}
+	
+	/**
+	 * Writes a decoded sprite, scaled bilinearly to `size` x `size`, into `data`. Cooked images are 
+	 * decompressed from their full-size level first.
+	 *
+	 * @param offset Byte offset of the layer's first texel in `data`.
+	 * @param rowTexels Texels from one row of the layer to the next in `data`.
+	 */
+	private static void copyLayer(Texture2D.DecodedImage sprite, int size, ByteBuffer data, int offset, int rowTexels)
+	{
+		if (sprite == null)
+		{
+			return;
+		}
+		
+		int width = sprite.getWidth();
+		int height = sprite.getHeight();
+		ByteBuffer source = (ByteBuffer)sprite.getData();
+		
+		if (sprite.isCompressed())
+		{
+			source = TextureCooker.decompress(source, width, height, sprite.getCompressedFormat());
+		}
+		
+		for (int y = 0; y < size; ++y)
+		{
+			/* Texel centers of the layer, mapped into the sprite. */
+			float sy = Math.max(0.0f, (y + 0.5f) * height / size - 0.5f);
+			int y0 = Math.min((int)sy, height - 1);
+			int y1 = Math.min(y0 + 1, height - 1);
+			float fy = sy - y0;
+			
+			for (int x = 0; x < size; ++x)
+			{
+				float sx = Math.max(0.0f, (x + 0.5f) * width / size - 0.5f);
+				int x0 = Math.min((int)sx, width - 1);
+				int x1 = Math.min(x0 + 1, width - 1);
+				float fx = sx - x0;
+				
+				for (int c = 0; c < 4; ++c)
+				{
+					float top = (1.0f - fx) * (source.get((y0 * width + x0) * 4 + c) & 0xff) + fx * (source.get((y0 * width + x1) * 4 + c) & 0xff);
+					float bottom = (1.0f - fx) * (source.get((y1 * width + x0) * 4 + c) & 0xff) + fx * (source.get((y1 * width + x1) * 4 + c) & 0xff);
+					
+					data.put(offset + (y * rowTexels + x) * 4 + c, (byte)Math.round((1.0f - fy) * top + fy * bottom));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sets the layer a mesh is drawn with, as its per-instance `SpriteLayer` attribute (see 
+	 * `Mesh.setInstanceAttrib()`). Other instances sharing the mesh's data are unaffected.
+	 */
+	public static void setLayer(Mesh mesh, int layer)
+	{
+		mesh.setInstanceAttrib(LAYER_ATTRIBUTE, layer);
+	}
+	
+	/**
+	 * Returns the texture holding the sprites: a Texture2DArray, or a Texture2D atlas if `isAtlas()`.
+	 */
+	public Texture getTexture()
+	{
+		return mTexture;
+	}
+	
+	/**
+	 * Returns true if the sprites are tiled into an atlas rather than stored as a texture array.
+	 */
+	public boolean isAtlas()
+	{
+		return !(mTexture instanceof Texture2DArray);
+	}
+	
+	/**
+	 * Returns the number of sprites.
+	 */
+	public int getLayerCount()
+	{
+		return mLayerCount;
+	}
+	
+	/**
+	 * Returns the width and height of each layer, in texels.
+	 */
+	public int getLayerSize()
+	{
+		return mLayerSize;
+	}
+	
+	/**
+	 * Returns the number of sprites across the atlas; 1 for texture arrays.
+	 */
+	public int getAtlasColumns()
+	{
+		return mAtlasColumns;
+	}
+	
+	/**
+	 * Returns the number of sprites up the atlas; 1 for texture arrays.
+	 */
+	public int getAtlasRows()
+	{
+		return mAtlasRows;
+	}
+	
+	/**
+	 * Releases the sprite texture.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		mTexture.releaseGPUResources(gl);
+	}
+}
@@ -2,6 +2,7 @@ package cs5625.deferred.materials;
 
 import javax.media.opengl.GL2;
 
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.OpenGLResourceObject;
 
@@ -53,6 +54,7 @@ public abstract class Texture implements OpenGLResourceObject
 	{
 		RGB, 
 		RGBA, 
+		RG, 
 		LUMINANCE, 
 		DEPTH;
 		
@@ -62,6 +64,7 @@ public abstract class Texture implements OpenGLResourceObject
 			{
 			case RGB:       return GL2.GL_RGB;
 			case RGBA:      return GL2.GL_RGBA;
+			case RG:        return GL2.GL_RG;
 			case LUMINANCE: return GL2.GL_LUMINANCE;
 			case DEPTH:     return GL2.GL_DEPTH_COMPONENT;
 			}
@@ -78,6 +81,7 @@ public abstract class Texture implements OpenGLResourceObject
 				{
 				case RGB:  		return GL2.GL_RGB8;
 				case RGBA: 		return GL2.GL_RGBA8;
+				case RG: 		return GL2.GL_RG8;
 				case LUMINANCE: return GL2.GL_LUMINANCE8;
 				}
 				break;
@@ -87,6 +91,7 @@ public abstract class Texture implements OpenGLResourceObject
 				{
 				case RGB:  		return GL2.GL_RGB16;
 				case RGBA: 		return GL2.GL_RGBA16;
+				case RG: 		return GL2.GL_RG16;
 				case LUMINANCE: return GL2.GL_LUMINANCE16;
 				case DEPTH:		return GL2.GL_DEPTH_COMPONENT16;
 				}
@@ -104,6 +109,7 @@ public abstract class Texture implements OpenGLResourceObject
 				{
 				case RGB:  		return GL2.GL_RGB16F;
 				case RGBA: 		return GL2.GL_RGBA16F;
+				case RG: 		return GL2.GL_RG16F;
 				case LUMINANCE: return GL2.GL_LUMINANCE16F;
 				}
 				break;
@@ -113,6 +119,7 @@ public abstract class Texture implements OpenGLResourceObject
 				{
 				case RGB:  		return GL2.GL_RGB32F;
 				case RGBA: 		return GL2.GL_RGBA32F;
+				case RG: 		return GL2.GL_RG32F;
 				case LUMINANCE: return GL2.GL_LUMINANCE32F;
 				case DEPTH:		return GL2.GL_DEPTH_COMPONENT32F;
 				}
@@ -196,6 +203,7 @@ public abstract class Texture implements OpenGLResourceObject
 		int names[] = new int[1];
 		names[0] = mHandle;
 		gl.glDeleteTextures(1, names, 0);
+		GLState.textureDeleted(mHandle);
 		mHandle = -1;
 			
 		try
@@ -213,6 +221,15 @@ public abstract class Texture implements OpenGLResourceObject
 	 */
 	public abstract int getTextureTarget();
 	
+	/**
+	 * Returns true if this texture's target can be enabled for fixed-function texturing, so `bind()`
+	 * should glEnable() it. Subclasses whose targets are shader-only (e.g. texture arrays) return false.
+	 */
+	protected boolean isFixedFunctionTarget()
+	{
+		return true;
+	}
+	
 	/**
 	 * Bind this texture to the indicated texture unit.
 	 * 
@@ -228,23 +245,21 @@ public abstract class Texture implements OpenGLResourceObject
 			throw new OpenGLException("Cannot bind to out-of-range texture unit " + textureUnit + "; max is " + (getNumTextureUnits(gl) - 1));
 		}
 		
-		/* Save the currently active texture, and then activate the requested one. */
-		int previousActive[] = new int[1];
-		gl.glGetIntegerv(GL2.GL_ACTIVE_TEXTURE, previousActive, 0);
-		gl.glActiveTexture(GL2.GL_TEXTURE0 + textureUnit);
-
-		/* Unbind any previous binding. */
-		unbind(gl);
+		/* Unbind any previous binding on another unit. */
+		if (mBoundUnit != textureUnit)
+		{
+			unbind(gl);
+		}
 		
-		/* Bind. */
+		/* Bind, leaving the requested unit active. */
 		int target = getTextureTarget();
 		
-		gl.glBindTexture(target, mHandle);
-		gl.glEnable(target);
+		GLState.bindTexture(gl, textureUnit, target, mHandle);
+		if (isFixedFunctionTarget())
+		{
+			gl.glEnable(target);
+		}
 		mBoundUnit = textureUnit;
-				
-		/* Restore the previously active texture unit. */
-		gl.glActiveTexture(previousActive[0]);
 		
 		OpenGLException.checkOpenGLError(gl);
 	}
@@ -272,20 +287,15 @@ public abstract class Texture implements OpenGLResourceObject
 	{
 		if (isBound())
 		{
-			/* Save the currently active texture, and then activate the requested one. */
-			int previousActive[] = new int[1];
-			gl.glGetIntegerv(GL2.GL_ACTIVE_TEXTURE, previousActive, 0);
-			gl.glActiveTexture(GL2.GL_TEXTURE0 + mBoundUnit);
-
-			/* Unbind. */
+			/* Unbind, leaving the texture's unit active. */
 			int target = getTextureTarget();
 			
-			gl.glBindTexture(target, 0);
-			gl.glDisable(target);
+			GLState.bindTexture(gl, mBoundUnit, target, 0);
+			if (isFixedFunctionTarget())
+			{
+				gl.glDisable(target);
+			}
 			mBoundUnit = -1;
-
-			/* Restore the previously active texture unit. */
-			gl.glActiveTexture(previousActive[0]);
 		}
 	}
 	
@@ -311,15 +321,11 @@ public abstract class Texture implements OpenGLResourceObject
 			bind(gl, 0);
 		}
 		
-		int previousActive[] = new int[1];
-		gl.glGetIntegerv(GL2.GL_ACTIVE_TEXTURE, previousActive, 0);
-		gl.glActiveTexture(GL2.GL_TEXTURE0 + getBoundTextureUnit());
+		GLState.activeTexture(gl, getBoundTextureUnit());
 		
 		gl.glTexParameteri(target, GL2.GL_TEXTURE_WRAP_S, gl_mode);
 		gl.glTexParameteri(target, GL2.GL_TEXTURE_WRAP_T, gl_mode);
 		
-		gl.glActiveTexture(previousActive[0]);
-		
 		if (!wasBound)
 		{
 			unbind(gl);
@@ -347,8 +353,6 @@ public abstract class Texture implements OpenGLResourceObject
 	 */
 	public static int getNumTextureUnits(GL2 gl)
 	{
-		int result[] = new int[1];
-		gl.glGetIntegerv(GL2.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, result, 0);
-		return result[0];
+		return GLState.getMaxTextureUnits(gl);
 	}
 }
@@ -1,16 +1,36 @@
 package cs5625.deferred.materials;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 import javax.media.opengl.GL2;
 
 import com.jogamp.common.nio.Buffers;
 
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.rendering.Renderer;
 
@@ -37,6 +57,10 @@ public class Texture2D extends Texture
 	
 	private String texID;
 	
+	/* Images with at least this many pixels are converted to RGBA by several threads at once. */
+	private static final int PARALLEL_CONVERSION_PIXELS = 512 * 512;
+	private static ExecutorService sConversionWorkers;
+	
 	public String getID() {
 		return texID;
 	}
@@ -86,15 +110,102 @@ public class Texture2D extends Texture
 	}
 	
 	/**
-	 * Creates a new texture object with data loaded from an image file.
-	 * The "rectangularness" of the texture is chosen automatically.
+	 * Image data read from a file and converted to RGBA8, or read from a cooked file (see `TextureCooker`)
+	 * as compressed mip levels, ready to be uploaded with `load(GL2, DecodedImage)`.
+	 * Decoding needs no OpenGL context, so it can be done on any thread; see `TextureLoader`.
+	 */
+	public static class DecodedImage
+	{
+		private String mIdentifier;
+		private int mWidth, mHeight;
+		private int mCompressedFormat;
+		private Buffer mLevels[];
+		
+		private DecodedImage(String identifier, int width, int height, Buffer data)
+		{
+			this(identifier, width, height, 0, new Buffer[] { data });
+		}
+		
+		DecodedImage(String identifier, int width, int height, int compressedFormat, Buffer levels[])
+		{
+			mIdentifier = identifier;
+			mWidth = width;
+			mHeight = height;
+			mCompressedFormat = compressedFormat;
+			mLevels = levels;
+		}
+		
+		/** The identifier of the image file. */
+		public String getIdentifier()
+		{
+			return mIdentifier;
+		}
+		
+		/** The width of the image, in pixels. */
+		public int getWidth()
+		{
+			return mWidth;
+		}
+		
+		/** The height of the image, in pixels. */
+		public int getHeight()
+		{
+			return mHeight;
+		}
+		
+		/** The pixels of the full-size image: formatted as by `createBufferFromImage()` if not compressed. */
+		public Buffer getData()
+		{
+			return mLevels[0];
+		}
+		
+		/** True if the image was read from a cooked file. */
+		public boolean isCompressed()
+		{
+			return (mCompressedFormat != 0);
+		}
+		
+		/** The OpenGL compressed internal format of the levels, or 0 if not compressed. */
+		public int getCompressedFormat()
+		{
+			return mCompressedFormat;
+		}
+		
+		/** The number of mip levels; always 1 if not compressed. */
+		public int getLevelCount()
+		{
+			return mLevels.length;
+		}
+		
+		/** The data of one mip level, 0 being the full-size image. */
+		public Buffer getLevelData(int level)
+		{
+			return mLevels[level];
+		}
+	}
+	
+	/**
+	 * Reads an image file and converts it to RGBA8 pixel data, or, if there is an up-to-date cooked
+	 * version of the image (see `TextureCooker`), maps its compressed mip levels instead. Safe to call 
+	 * from any thread.
 	 * 
-	 * @param gl The OpenGL context in which this texture lives.
 	 * @param identifier The name of the image to load.
-	 * 
-	 * @return The new texture, or null if the file doesn't exist.
 	 */
-	public static Texture2D load(GL2 gl, String identifier) throws OpenGLException, IOException
+	public static DecodedImage decode(String identifier) throws IOException
+	{
+		DecodedImage cooked = TextureCooker.read(identifier);
+		if (cooked != null)
+		{
+			return cooked;
+		}
+		
+		return decodeImageFile(identifier);
+	}
+	
+	/**
+	 * Reads an image file and converts it to RGBA8 pixel data, ignoring any cooked version.
+	 */
+	private static DecodedImage decodeImageFile(String identifier) throws IOException
 	{
 		URL url = Texture2D.class.getClassLoader().getResource(identifier);
 		if (url == null)
@@ -102,29 +213,41 @@ public class Texture2D extends Texture
 			throw new IOException("Could not find texture file '" + identifier + "'.");
 		}
 		
-		Texture2D result = new Texture2D(gl);
-		BufferedImage image;
-		
-		/* Try to load image. */
-		try
+		BufferedImage image = ImageIO.read(url);
+		if (image == null)
 		{
-			image = ImageIO.read(url);
-		}
-		catch (IOException err)
-		{
-			result.releaseGPUResources(gl);
-			throw err;
+			throw new IOException("Could not decode texture file '" + identifier + "'.");
 		}
 		
-		/* Create buffer of image data. */
-		Buffer imageData = createBufferFromImage(image);
+		return new DecodedImage(identifier, image.getWidth(), image.getHeight(), createBufferFromImage(image));
+	}
+	
+	/**
+	 * Creates a new texture object with data loaded from an image file.
+	 * The "rectangularness" of the texture is chosen automatically.
+	 * 
+	 * @param gl The OpenGL context in which this texture lives.
+	 * @param identifier The name of the image to load.
+	 * 
+	 * @return The new texture, or null if the file doesn't exist.
+	 */
+	public static Texture2D load(GL2 gl, String identifier) throws OpenGLException, IOException
+	{
+		return load(gl, decode(identifier));
+	}
+	
+	/**
+	 * Creates a new texture object from an image decoded with `decode()`.
+	 * The "rectangularness" of the texture is chosen automatically; cooked images are never rectangular.
+	 * 
+	 * @param gl The OpenGL context in which this texture lives.
+	 * @param image The decoded image.
+	 */
+	public static Texture2D load(GL2 gl, DecodedImage image) throws OpenGLException
+	{
 		int width = image.getWidth();
 		int height = image.getHeight();
-
-		/* Initialize with that data. */
-		result.initialize(gl, Format.RGBA, Datatype.INT8, width, height, !(isPOT(width) && isPOT(height)), imageData);
-		result.texID = identifier;
-		return result;
+		return load(gl, image, !image.isCompressed() && !(isPOT(width) && isPOT(height)));
 	}
 
 	/**
@@ -139,33 +262,39 @@ public class Texture2D extends Texture
 	 */
 	public static Texture2D load(GL2 gl, String identifier, boolean rectTexture) throws OpenGLException, IOException
 	{
-		URL url = Texture2D.class.getClassLoader().getResource(identifier);
-		if (url == null)
-		{
-			throw new IOException("Could not find texture file '" + identifier + "'.");
-		}
-		
+		/* Cooked textures are mipmapped, which rectangle textures can't be. */
+		return load(gl, (rectTexture ? decodeImageFile(identifier) : decode(identifier)), rectTexture);
+	}
+	
+	/**
+	 * Creates a new texture object from an image decoded with `decode()`.
+	 * 
+	 * @param gl The OpenGL context in which this texture lives.
+	 * @param image The decoded image.
+	 * @param rectTexture If true, the texture will be a rectangular texture. If false, it will not
+	 * 		  be (requires GL_EXT_texture_non_power_of_two for non-power-of-two textures in this case).
+	 * 		  Must be false for cooked images.
+	 */
+	public static Texture2D load(GL2 gl, DecodedImage image, boolean rectTexture) throws OpenGLException
+	{
 		Texture2D result = new Texture2D(gl);
-		BufferedImage image;
 		
-		/* Try to load image. */
-		try
+		if (image.isCompressed())
 		{
-			image = ImageIO.read(url);
+			if (rectTexture)
+			{
+				result.releaseGPUResources(gl);
+				throw new OpenGLException("Cooked texture '" + image.getIdentifier() + "' cannot be a rectangular texture.");
+			}
+			
+			result.initializeCompressed(gl, image);
 		}
-		catch (IOException err)
+		else
 		{
-			result.releaseGPUResources(gl);
-			throw err;
+			result.initialize(gl, Format.RGBA, Datatype.INT8, image.getWidth(), image.getHeight(), rectTexture, image.getData());
 		}
-
-		/* Create buffer of image data. */
-		Buffer imageData = createBufferFromImage(image);
-		int width = image.getWidth();
-		int height = image.getHeight();
-
-		/* Initialize with that data. */
-		result.initialize(gl, Format.RGBA, Datatype.INT8, width, height, rectTexture, imageData);
+		
+		result.texID = image.getIdentifier();
 		return result;
 	}
 
@@ -203,16 +332,69 @@ public class Texture2D extends Texture
 			/* Bind and send texture data to OpenGL. */
 			bind(gl, 0);
 
-			int previousActive[] = new int[1];
-			gl.glGetIntegerv(GL2.GL_ACTIVE_TEXTURE, previousActive, 0);
-			gl.glActiveTexture(GL2.GL_TEXTURE0 + getBoundTextureUnit());
+			GLState.activeTexture(gl, getBoundTextureUnit());
 
 			gl.glTexImage2D(mTarget, 0, glinternalformat, width, height, 0, glformat, gltype, data);
 			gl.glTexParameteri(mTarget, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
 			gl.glTexParameteri(mTarget, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
 			
-			gl.glActiveTexture(previousActive[0]);
-
+			/* Unbind and make sure it all went smoothly. */
+			unbind(gl);
+			OpenGLException.checkOpenGLError(gl);
+		}
+		catch (OpenGLException err)
+		{
+			/* Clean up on error. */
+			releaseGPUResources(gl);
+			throw err;
+		}
+	}
+	
+	/**
+	 * Initializes a new texture object with the compressed mip levels of a cooked image, sampled with 
+	 * trilinear filtering. Without GL_EXT_texture_compression_s3tc, the levels are decompressed in 
+	 * software (see `TextureCooker.decompress()`) and uploaded as RGBA8 instead, which costs 4 to 8 
+	 * times the memory but looks the same.
+	 */
+	private void initializeCompressed(GL2 gl, DecodedImage image) throws OpenGLException
+	{
+		try
+		{
+			boolean s3tc = gl.isExtensionAvailable("GL_EXT_texture_compression_s3tc");
+			
+			mTarget = GL2.GL_TEXTURE_2D;
+			mWidth = image.getWidth();
+			mHeight = image.getHeight();
+			mFormat = (image.getCompressedFormat() == GL2.GL_COMPRESSED_RGB_S3TC_DXT1_EXT && s3tc ? Format.RGB : Format.RGBA);
+			mDatatype = Datatype.INT8;
+			
+			/* Bind and send each level to OpenGL. */
+			bind(gl, 0);
+			
+			GLState.activeTexture(gl, getBoundTextureUnit());
+			
+			for (int level = 0; level < image.getLevelCount(); ++level)
+			{
+				Buffer data = image.getLevelData(level);
+				int width = Math.max(1, mWidth >> level);
+				int height = Math.max(1, mHeight >> level);
+				
+				if (s3tc)
+				{
+					gl.glCompressedTexImage2D(mTarget, level, image.getCompressedFormat(), width, height, 0, data.remaining(), data);
+				}
+				else
+				{
+					Buffer texels = TextureCooker.decompress((ByteBuffer)data, width, height, image.getCompressedFormat());
+					gl.glTexImage2D(mTarget, level, Format.RGBA.toGLinternalformat(Datatype.INT8), width, height, 0, 
+							Format.RGBA.toGLformat(), Datatype.INT8.toGLtype(), texels);
+				}
+			}
+			
+			gl.glTexParameteri(mTarget, GL2.GL_TEXTURE_MAX_LEVEL, image.getLevelCount() - 1);
+			gl.glTexParameteri(mTarget, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR_MIPMAP_LINEAR);
+			gl.glTexParameteri(mTarget, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+			
 			/* Unbind and make sure it all went smoothly. */
 			unbind(gl);
 			OpenGLException.checkOpenGLError(gl);
@@ -227,34 +409,65 @@ public class Texture2D extends Texture
 	
 	/**
 	 * Create a buffer of raw pixel data from the passed image.
-	 * The returned data is RGBA8 formatted (Format.RGBA and Datatype.INT8).
+	 * The returned data is RGBA8 formatted (Format.RGBA and Datatype.INT8), with the bottom row first.
+	 * 
+	 * Common image types (packed int RGB and ARGB, interleaved 8-bit sRGB, and 8-bit indexed) are read 
+	 * straight from their rasters a row at a time; anything else goes through `getRGB()`, a row at a 
+	 * time. Large images are converted by several threads at once.
 	 */
 	public static Buffer createBufferFromImage(BufferedImage image)
 	{
-		int width = image.getWidth();
-		int height = image.getHeight();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
 		
 		/* Allocate space to hold data. */
-		ByteBuffer result = Buffers.newDirectByteBuffer(width * height * 4);
-
-		/* Loop over pixels and fill buffer. */
-		for (int y = 0; y < height; ++y)
+		final ByteBuffer result = Buffers.newDirectByteBuffer(width * height * 4);
+		final RowReader reader = RowReader.create(image);
+		
+		/* Split the rows into one band per thread (just one band for small images), and convert each band. */
+		int bandCount = 1;
+		if ((long)width * height >= PARALLEL_CONVERSION_PIXELS)
 		{
-			for (int x = 0; x < width; ++x)
+			bandCount = Math.min(height, Runtime.getRuntime().availableProcessors());
+		}
+		
+		if (bandCount <= 1)
+		{
+			convertRows(reader, result, width, height, 0, height);
+		}
+		else
+		{
+			ArrayList<Future<?>> bands = new ArrayList<Future<?>>();
+			
+			for (int band = 0; band < bandCount; ++band)
 			{
-				int pixel = image.getRGB(x, height - 1 - y);
+				final int firstRow = (int)((long)height * band / bandCount);
+				final int endRow = (int)((long)height * (band + 1) / bandCount);
 				
-				/* getRGB() returns an ARGB-packed int */
-				int alpha = (pixel >> 24) & 0xff;
-				int red   = (pixel >> 16) & 0xff;
-				int green = (pixel >> 8)  & 0xff;
-				int blue  = (pixel >> 0)  & 0xff;
-					
-				/* Repack into RGBA order for OpenGL. */
-				result.put((byte)red);
-				result.put((byte)green);
-				result.put((byte)blue);
-				result.put((byte)alpha);
+				bands.add(getConversionWorkers().submit(new Runnable()
+				{
+					public void run()
+					{
+						convertRows(reader, result, width, height, firstRow, endRow);
+					}
+				}));
+			}
+			
+			try
+			{
+				for (Future<?> band : bands)
+				{
+					band.get();
+				}
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while converting image.", err);
+			}
+			catch (ExecutionException err)
+			{
+				throw new RuntimeException("Error while converting image.", err.getCause());
 			}
 		}
 		
@@ -263,6 +476,178 @@ public class Texture2D extends Texture
 		return result;
 	}
 	
+	/**
+	 * Converts image rows [firstRow, endRow) into their flipped positions in `result`.
+	 */
+	private static void convertRows(RowReader reader, ByteBuffer result, int width, int height, int firstRow, int endRow)
+	{
+		/* Viewed as little-endian ints, RGBA bytes are 0xAABBGGRR. */
+		IntBuffer pixels = result.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		int row[] = new int[width];
+		
+		for (int y = firstRow; y < endRow; ++y)
+		{
+			reader.readRow(y, row);
+			
+			/* Repack ARGB into RGBA order for OpenGL. */
+			for (int x = 0; x < width; ++x)
+			{
+				int argb = row[x];
+				row[x] = (argb & 0xff00ff00) | ((argb >> 16) & 0xff) | ((argb & 0xff) << 16);
+			}
+			
+			pixels.position((height - 1 - y) * width);
+			pixels.put(row, 0, width);
+		}
+	}
+	
+	/**
+	 * Returns the pool used to convert large images, creating it if necessary.
+	 */
+	private static synchronized ExecutorService getConversionWorkers()
+	{
+		if (sConversionWorkers == null)
+		{
+			sConversionWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "Texture2D conversion");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return sConversionWorkers;
+	}
+	
+	/**
+	 * Reads rows of an image as non-premultiplied ARGB ints, exactly as `BufferedImage.getRGB()` would.
+	 * Safe to use from several threads at once.
+	 */
+	private static abstract class RowReader
+	{
+		/**
+		 * Reads image row `y` (0 at the top) into `argb`.
+		 */
+		public abstract void readRow(int y, int argb[]);
+		
+		/**
+		 * Returns the fastest reader for the given image.
+		 */
+		public static RowReader create(final BufferedImage image)
+		{
+			final int width = image.getWidth();
+			final Raster raster = image.getRaster();
+			final int tx = raster.getSampleModelTranslateX();
+			final int ty = raster.getSampleModelTranslateY();
+			SampleModel sampleModel = raster.getSampleModel();
+			ColorModel colorModel = image.getColorModel();
+			
+			/* Packed ints, which already are ARGB (or RGB with no alpha). */
+			if ((image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB) &&
+				sampleModel instanceof SinglePixelPackedSampleModel && raster.getDataBuffer() instanceof DataBufferInt)
+			{
+				final SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel)sampleModel;
+				final DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+				final int data[] = buffer.getData();
+				final int opaque = (image.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0);
+				
+				return new RowReader()
+				{
+					public void readRow(int y, int argb[])
+					{
+						int offset = buffer.getOffset() + packed.getOffset(-tx, y - ty);
+						System.arraycopy(data, offset, argb, 0, width);
+						
+						if (opaque != 0)
+						{
+							for (int x = 0; x < width; ++x)
+							{
+								argb[x] |= opaque;
+							}
+						}
+					}
+				};
+			}
+			
+			/* Interleaved 8-bit sRGB(A) components, e.g. TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR. */
+			if (colorModel instanceof ComponentColorModel && colorModel.getColorSpace().isCS_sRGB() &&
+				!colorModel.isAlphaPremultiplied() && colorModel.getTransferType() == DataBuffer.TYPE_BYTE &&
+				sampleModel instanceof ComponentSampleModel && raster.getDataBuffer() instanceof DataBufferByte &&
+				(sampleModel.getNumBands() == 3 || (sampleModel.getNumBands() == 4 && colorModel.hasAlpha())))
+			{
+				final ComponentSampleModel components = (ComponentSampleModel)sampleModel;
+				final DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+				final byte data[] = buffer.getData();
+				final int pixelStride = components.getPixelStride();
+				final boolean hasAlpha = (sampleModel.getNumBands() == 4);
+				
+				return new RowReader()
+				{
+					public void readRow(int y, int argb[])
+					{
+						int r = buffer.getOffset() + components.getOffset(-tx, y - ty, 0);
+						int g = buffer.getOffset() + components.getOffset(-tx, y - ty, 1);
+						int b = buffer.getOffset() + components.getOffset(-tx, y - ty, 2);
+						int a = (hasAlpha ? buffer.getOffset() + components.getOffset(-tx, y - ty, 3) : 0);
+						
+						for (int x = 0; x < width; ++x)
+						{
+							int alpha = (hasAlpha ? data[a] & 0xff : 0xff);
+							argb[x] = (alpha << 24) | ((data[r] & 0xff) << 16) | ((data[g] & 0xff) << 8) | (data[b] & 0xff);
+							
+							r += pixelStride;
+							g += pixelStride;
+							b += pixelStride;
+							a += pixelStride;
+						}
+					}
+				};
+			}
+			
+			/* One byte per pixel, indexing a palette. */
+			if (colorModel instanceof IndexColorModel && sampleModel instanceof ComponentSampleModel &&
+				raster.getDataBuffer() instanceof DataBufferByte && sampleModel.getNumBands() == 1)
+			{
+				final ComponentSampleModel components = (ComponentSampleModel)sampleModel;
+				final DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+				final byte data[] = buffer.getData();
+				final int pixelStride = components.getPixelStride();
+				
+				/* Entries beyond the end of the palette are transparent black, as in `IndexColorModel.getRGB()`. */
+				IndexColorModel indexed = (IndexColorModel)colorModel;
+				final int palette[] = new int[256];
+				indexed.getRGBs(palette);
+				Arrays.fill(palette, indexed.getMapSize(), 256, 0);
+				
+				return new RowReader()
+				{
+					public void readRow(int y, int argb[])
+					{
+						int index = buffer.getOffset() + components.getOffset(-tx, y - ty, 0);
+						
+						for (int x = 0; x < width; ++x)
+						{
+							argb[x] = palette[data[index] & 0xff];
+							index += pixelStride;
+						}
+					}
+				};
+			}
+			
+			/* Anything else: let the image convert each row. */
+			return new RowReader()
+			{
+				public void readRow(int y, int argb[])
+				{
+					image.getRGB(0, y, width, 1, argb, 0, width);
+				}
+			};
+		}
+	}
+	
 	/**
 	 * The width of the texture, in texels.
 	 */
@@ -287,6 +672,65 @@ public class Texture2D extends Texture
 		return (mTarget == GL2.GL_TEXTURE_RECTANGLE);
 	}
 	
+	/**
+	 * Replaces a rectangle of the texture image (with glTexSubImage2D), leaving the rest untouched and 
+	 * without reallocating the texture. Cheaper than creating a new texture for data which changes often.
+	 *
+	 * @param x The left edge of the rectangle, in texels.
+	 * @param y The bottom edge of the rectangle, in texels.
+	 * @param width The width of the rectangle.
+	 * @param height The height of the rectangle.
+	 * @param format The format of the provided pixel data. Does not have to match the format of the texture.
+	 * @param datatype The datatype of the provided pixel data. Does not have to match the datatype of the texture.
+	 * @param data The new pixels, rows bottom first.
+	 */
+	public void update(GL2 gl, int x, int y, int width, int height, Format format, Datatype datatype, Buffer data) throws OpenGLException
+	{
+		/* Bound if we weren't already. */
+		boolean wasBound = isBound();
+		if (!wasBound)
+		{
+			bind(gl, 0);
+		}
+		
+		GLState.activeTexture(gl, getBoundTextureUnit());
+		
+		gl.glTexSubImage2D(getTextureTarget(), 0, x, y, width, height, format.toGLformat(), datatype.toGLtype(), data);
+		
+		/* Unbind if we were unbound before. */
+		if (!wasBound)
+		{
+			unbind(gl);
+		}
+		
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
+	/**
+	 * Rebuilds the texture's mipmaps from its full-size image, and switches it to trilinear filtering.
+	 * Call again after each `update()` to keep the smaller levels current. Not valid for rectangular textures.
+	 */
+	public void generateMipmaps(GL2 gl) throws OpenGLException
+	{
+		boolean wasBound = isBound();
+		if (!wasBound)
+		{
+			bind(gl, 0);
+		}
+		
+		GLState.activeTexture(gl, getBoundTextureUnit());
+		
+		gl.glGenerateMipmap(mTarget);
+		gl.glTexParameteri(mTarget, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR_MIPMAP_LINEAR);
+		
+		if (!wasBound)
+		{
+			unbind(gl);
+		}
+		
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
 	/**
 	 * Copies the texture image from the GPU and returns it in a buffer.
 	 *
@@ -313,6 +757,7 @@ public class Texture2D extends Texture
 		{
 		case RGB:       numChannels = 3; break;
 		case RGBA:      numChannels = 4; break;
+		case RG:        numChannels = 2; break;
 		case LUMINANCE: numChannels = 1; break; 
 		case DEPTH:     numChannels = 1; break;
 		default:		throw new OpenGLException("Invalid Format enum " + format + ".");
@@ -339,14 +784,10 @@ public class Texture2D extends Texture
 			bind(gl, 0);
 		}
 		
-		/* Switch to this texture, get pixel data, and switch back. */
-		int previousActive[] = new int[1];
-		gl.glGetIntegerv(GL2.GL_ACTIVE_TEXTURE, previousActive, 0);
-		gl.glActiveTexture(GL2.GL_TEXTURE0 + getBoundTextureUnit());
+		/* Switch to this texture and get pixel data. */
+		GLState.activeTexture(gl, getBoundTextureUnit());
 
-		gl.glGetTexImage(getTextureTarget(), 0, mFormat.toGLformat(), mDatatype.toGLtype(), result);
-		
-		gl.glActiveTexture(GL2.GL_TEXTURE0 + getBoundTextureUnit());
+		gl.glGetTexImage(getTextureTarget(), 0, format.toGLformat(), datatype.toGLtype(), result);
 		
 		/* Unbind if we were unbound before. */
 		if (!wasBound)
@@ -363,21 +804,30 @@ public class Texture2D extends Texture
 	 * Renders a fullscreen quad with this texture.
 	 */
 	public void blit(GL2 gl) throws OpenGLException
+	{
+		blit(gl, mWidth, mHeight);
+	}
+	
+	/**
+	 * Renders a fullscreen quad with the lower-left `width` x `height` pixels of this texture 
+	 * (e.g. a pooled render target larger than the image it holds).
+	 */
+	public void blit(GL2 gl, int width, int height) throws OpenGLException
 	{
 		/* Save state, set color to white, and bind. */
-		gl.glPushAttrib(GL2.GL_CURRENT_BIT);		
+		GLState.pushAttrib(gl, GL2.GL_CURRENT_BIT);
 		gl.glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
 		bind(gl, 0);
 		
 		/* Compute texture coordinates and render. */
-		float smax = (isRectTexture() ? mWidth : 1.0f);
-		float tmax = (isRectTexture() ? mHeight: 1.0f);
+		float smax = (isRectTexture() ? width : (float)width / mWidth);
+		float tmax = (isRectTexture() ? height : (float)height / mHeight);
 		
 		Renderer.drawFullscreenQuad(gl, smax, tmax);
 		
 		/* Unbind, restore state, check for errors, and done. */
 		unbind(gl);
-		gl.glPopAttrib();
+		GLState.popAttrib(gl);
 		
 		OpenGLException.checkOpenGLError(gl);
 	}
@@ -0,0 +1,124 @@
+package cs5625.deferred.materials;
+
+import java.nio.Buffer;
+
+import javax.media.opengl.GL2;
+
+import cs5625.deferred.misc.GLState;
+import cs5625.deferred.misc.OpenGLException;
+
+/**
+ * Texture2DArray.java
+ *
+ * The Texture2DArray class represents an OpenGL 2D texture array (GL_EXT_texture_array): a stack of
+ * equally sized 2D layers in one texture object, sampled in shaders with `sampler2DArray` and
+ * `texture2DArray(sampler, vec3(s, t, layer))`. Layers are mipmapped and filtered independently,
+ * so unlike an atlas they never bleed into each other.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class Texture2DArray extends Texture
+{
+	/* Texture object state. */
+	private int mWidth = -1;
+	private int mHeight = -1;
+	private int mLayerCount = -1;
+	
+	/**
+	 * Creates a new texture array with the passed attributes and data, and builds its mipmaps.
+	 *
+	 * @param gl The OpenGL context in which this texture lives.
+	 * @param format The format of the provided pixel data.
+	 * @param datatype The datatype of the provided pixel data.
+	 * @param width The width of each layer.
+	 * @param height The height of each layer.
+	 * @param layerCount The number of layers.
+	 * @param data The pixel data of all layers, one after another. May be null, in which case an
+	 *        empty texture of the indicated format and size is created.
+	 */
+	public Texture2DArray(GL2 gl, Format format, Datatype datatype, int width, int height, int layerCount, Buffer data) throws OpenGLException
+	{
+		super(gl);
+		
+		try
+		{
+			/* Get GL formats first, in case something is invalid. */
+			int gltype = datatype.toGLtype();
+			int glformat = format.toGLformat();
+			int glinternalformat = format.toGLinternalformat(datatype);
+			
+			mWidth = width;
+			mHeight = height;
+			mLayerCount = layerCount;
+			mFormat = format;
+			mDatatype = datatype;
+			
+			/* Bind and send texture data to OpenGL. */
+			bind(gl, 0);
+			
+			GLState.activeTexture(gl, getBoundTextureUnit());
+			
+			gl.glTexImage3D(GL2.GL_TEXTURE_2D_ARRAY, 0, glinternalformat, width, height, layerCount, 0, glformat, gltype, data);
+			gl.glGenerateMipmap(GL2.GL_TEXTURE_2D_ARRAY);
+			gl.glTexParameteri(GL2.GL_TEXTURE_2D_ARRAY, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR_MIPMAP_LINEAR);
+			gl.glTexParameteri(GL2.GL_TEXTURE_2D_ARRAY, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+			
+			/* Unbind and make sure it all went smoothly. */
+			unbind(gl);
+			OpenGLException.checkOpenGLError(gl);
+		}
+		catch (OpenGLException err)
+		{
+			/* Clean up on error. */
+			releaseGPUResources(gl);
+			throw err;
+		}
+	}
+	
+	/**
+	 * Returns true if the given OpenGL context supports texture arrays. Only the extension counts, not
+	 * GL 3.0: shaders find out the same way, from the `GL_EXT_texture_array` macro, and must agree.
+	 */
+	public static boolean isSupported(GL2 gl)
+	{
+		return gl.isExtensionAvailable("GL_EXT_texture_array");
+	}
+	
+	/**
+	 * The width of each layer, in texels.
+	 */
+	public int getWidth()
+	{
+		return mWidth;
+	}
+	
+	/**
+	 * The height of each layer, in texels.
+	 */
+	public int getHeight()
+	{
+		return mHeight;
+	}
+	
+	/**
+	 * The number of layers.
+	 */
+	public int getLayerCount()
+	{
+		return mLayerCount;
+	}
+	
+	@Override
+	public int getTextureTarget()
+	{
+		return GL2.GL_TEXTURE_2D_ARRAY;
+	}
+	
+	@Override
+	protected boolean isFixedFunctionTarget()
+	{
+		/* Texture arrays are only usable from shaders, so there is nothing to glEnable(). */
+		return false;
+	}
+}
@@ -0,0 +1,952 @@
+package cs5625.deferred.materials;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+import javax.media.opengl.GL2;
+
+/**
+ * TextureCooker.java
+ *
+ * Offline texture cooking: converts an image file into a full mip chain compressed with S3TC (BC1 for
+ * opaque images, BC3 for images with alpha), stored in a container file next to the image, named like
+ * the image but with the extension `.ctex`. `Texture2D.decode()` uses the cooked file instead of the
+ * image whenever it exists and is newer than the image, and `Texture2D.load()` uploads it one level at
+ * a time with `glCompressedTexImage2D()`, sampled with trilinear filtering. Compressed textures take
+ * 1/8 (BC1) or 1/4 (BC3) of the memory of RGBA8 ones, plus a third for the mip levels.
+ *
+ * Cook textures by running this class with the identifiers of the images to cook as arguments, e.g.
+ *
+ *     java cs5625.deferred.materials.TextureCooker [-kaiser] models/cloud.png textures/grass.png
+ *
+ * Only power-of-two images are cooked, since rectangle textures can't be mipmapped.
+ *
+ * The container holds, in little-endian byte order: a header (magic number, version, OpenGL compressed
+ * internal format, width, height, and number of levels), the offset and size of each level's data,
+ * and the levels themselves, largest first. It is memory-mapped when read, and the levels are uploaded
+ * straight from the mapping.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class TextureCooker
+{
+	/** Extension of cooked texture files, which replaces the image file's extension. */
+	public static final String COOKED_EXTENSION = ".ctex";
+	
+	/* File identification. */
+	private static final int MAGIC = 0x58455443;
+	private static final int VERSION = 1;
+	
+	/**
+	 * The MipFilter enum selects the filter used to downsample each mip level from the one above it.
+	 */
+	public enum MipFilter
+	{
+		/** Averages each 2x2 block of texels. Fast, but slightly blurry. */
+		BOX,
+		
+		/** Kaiser-windowed sinc, 6 taps wide in each direction. Keeps distant textures sharper. */
+		KAISER
+	}
+	
+	/* Kaiser window parameters: the window is (2 * KAISER_RADIUS) source texels wide. */
+	private static final float KAISER_ALPHA = 4.0f;
+	private static final int KAISER_RADIUS = 3;
+	
+	/**
+	 * Cooks the image with the given identifier, writing the cooked file next to it.
+	 *
+	 * @param identifier The name of the image to cook, as for `Texture2D.load()`.
+	 * @param filter The filter used to compute mip levels.
+	 *
+	 * @return The cooked file.
+	 */
+	public static File cook(String identifier, MipFilter filter) throws IOException
+	{
+		File source = getFile(Texture2D.class.getClassLoader().getResource(identifier));
+		if (source == null)
+		{
+			throw new IOException("Could not find texture file '" + identifier + "' on disk.");
+		}
+		
+		BufferedImage image = ImageIO.read(source);
+		if (image == null)
+		{
+			throw new IOException("Could not decode texture file '" + identifier + "'.");
+		}
+		
+		File cooked = new File(source.getParentFile(), getCookedName(source.getName()));
+		cook(image, filter, cooked);
+		return cooked;
+	}
+	
+	/**
+	 * Cooks an image into the given file.
+	 *
+	 * @param image The image to cook. Must have power-of-two dimensions.
+	 * @param filter The filter used to compute mip levels.
+	 * @param file The cooked file to write.
+	 */
+	public static void cook(BufferedImage image, MipFilter filter, File file) throws IOException
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		
+		if (Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1)
+		{
+			throw new IOException("Only power-of-two images can be cooked; image is " + width + "x" + height + ".");
+		}
+		
+		/* Work in floats, bottom row first like the texture data itself. */
+		ByteBuffer rgba = (ByteBuffer)Texture2D.createBufferFromImage(image);
+		float texels[] = new float[width * height * 4];
+		boolean hasAlpha = false;
+		
+		for (int i = 0; i < texels.length; ++i)
+		{
+			texels[i] = rgba.get(i) & 0xff;
+			hasAlpha |= (i % 4 == 3 && texels[i] < 255.0f);
+		}
+		
+		int glformat = (hasAlpha ? GL2.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL2.GL_COMPRESSED_RGB_S3TC_DXT1_EXT);
+		
+		/* Compress each level, then downsample it into the next, down to 1x1. */
+		ArrayList<byte[]> levels = new ArrayList<byte[]>();
+		
+		while (true)
+		{
+			levels.add(compress(texels, width, height, hasAlpha));
+			
+			if (width == 1 && height == 1)
+			{
+				break;
+			}
+			
+			int nextWidth = Math.max(1, width / 2);
+			int nextHeight = Math.max(1, height / 2);
+			
+			if (filter == MipFilter.KAISER)
+			{
+				texels = downsampleKaiser(texels, width, height, nextWidth, nextHeight);
+			}
+			else
+			{
+				texels = downsampleBox(texels, width, height, nextWidth, nextHeight);
+			}
+			
+			width = nextWidth;
+			height = nextHeight;
+		}
+		
+		/* Assemble the header, level table, and levels. */
+		int headerSize = 6 * 4 + levels.size() * 2 * 4;
+		int totalSize = headerSize;
+		for (byte level[] : levels)
+		{
+			totalSize += level.length;
+		}
+		
+		ByteBuffer out = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putInt(glformat);
+		out.putInt(image.getWidth());
+		out.putInt(image.getHeight());
+		out.putInt(levels.size());
+		
+		int offset = headerSize;
+		for (byte level[] : levels)
+		{
+			out.putInt(offset);
+			out.putInt(level.length);
+			offset += level.length;
+		}
+		
+		for (byte level[] : levels)
+		{
+			out.put(level);
+		}
+		
+		out.flip();
+		
+		/* Write under a temporary name and rename, so a partially written file is never read. */
+		File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			
+			while (out.hasRemaining())
+			{
+				channel.write(out);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		if (!temporary.renameTo(file))
+		{
+			file.delete();
+			if (!temporary.renameTo(file))
+			{
+				temporary.delete();
+				throw new IOException("Could not write cooked texture file '" + file + "'.");
+			}
+		}
+	}
+	
+	/**
+	 * Reads the cooked version of an image, if there is one.
+	 *
+	 * @param identifier The name of the image, as for `Texture2D.load()`.
+	 *
+	 * @return The cooked texture, or null if there is no cooked file, it is older than the image, or it
+	 *         is not a valid cooked file of the current version.
+	 */
+	static Texture2D.DecodedImage read(String identifier) throws IOException
+	{
+		ClassLoader loader = Texture2D.class.getClassLoader();
+		URL url = loader.getResource(getCookedName(identifier));
+		if (url == null)
+		{
+			return null;
+		}
+		
+		/* Ignore cooked files which are out of date. */
+		File cooked = getFile(url);
+		File source = getFile(loader.getResource(identifier));
+		
+		if (cooked != null && source != null && source.lastModified() > cooked.lastModified())
+		{
+			return null;
+		}
+		
+		/* Map the file if it's on disk; otherwise (e.g. in a jar) read it into memory. */
+		ByteBuffer data;
+		
+		if (cooked != null)
+		{
+			RandomAccessFile stream = new RandomAccessFile(cooked, "r");
+			try
+			{
+				FileChannel channel = stream.getChannel();
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		else
+		{
+			InputStream stream = url.openStream();
+			try
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte chunk[] = new byte[65536];
+				int count;
+				
+				while ((count = stream.read(chunk)) > 0)
+				{
+					bytes.write(chunk, 0, count);
+				}
+				
+				data = ByteBuffer.allocateDirect(bytes.size());
+				data.put(bytes.toByteArray());
+				data.flip();
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		
+		try
+		{
+			if (data.getInt() != MAGIC || data.getInt() != VERSION)
+			{
+				return null;
+			}
+			
+			int glformat = data.getInt();
+			int width = data.getInt();
+			int height = data.getInt();
+			int levelCount = data.getInt();
+			
+			if (glformat != GL2.GL_COMPRESSED_RGB_S3TC_DXT1_EXT && glformat != GL2.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT)
+			{
+				return null;
+			}
+			
+			Buffer levels[] = new Buffer[levelCount];
+			
+			for (int level = 0; level < levelCount; ++level)
+			{
+				int offset = data.getInt();
+				int size = data.getInt();
+				
+				if (offset < 0 || size < 0 || offset + size > data.limit())
+				{
+					return null;
+				}
+				
+				ByteBuffer slice = data.duplicate();
+				slice.position(offset);
+				slice.limit(offset + size);
+				levels[level] = slice.slice();
+			}
+			
+			return new Texture2D.DecodedImage(identifier, width, height, glformat, levels);
+		}
+		catch (BufferUnderflowException err)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the name of the cooked file for an image file: the image's name with its extension
+	 * replaced by `COOKED_EXTENSION`.
+	 */
+	public static String getCookedName(String identifier)
+	{
+		int dot = identifier.lastIndexOf('.');
+		int slash = identifier.lastIndexOf('/');
+		
+		if (dot > slash)
+		{
+			identifier = identifier.substring(0, dot);
+		}
+		
+		return identifier + COOKED_EXTENSION;
+	}
+	
+	/**
+	 * Returns the file a resource URL refers to, or null if it isn't a file on disk.
+	 */
+	private static File getFile(URL url)
+	{
+		if (url == null || !"file".equals(url.getProtocol()))
+		{
+			return null;
+		}
+		
+		try
+		{
+			return new File(url.toURI());
+		}
+		catch (URISyntaxException err)
+		{
+			return new File(url.getPath());
+		}
+	}
+	
+	/**
+	 * Halves an RGBA float image by averaging 2x2 blocks (or 2x1 blocks once a dimension reaches 1).
+	 */
+	private static float[] downsampleBox(float texels[], int width, int height, int newWidth, int newHeight)
+	{
+		float result[] = new float[newWidth * newHeight * 4];
+		int stepX = width / newWidth;
+		int stepY = height / newHeight;
+		float scale = 1.0f / (stepX * stepY);
+		
+		for (int y = 0; y < newHeight; ++y)
+		{
+			for (int x = 0; x < newWidth; ++x)
+			{
+				for (int c = 0; c < 4; ++c)
+				{
+					float sum = 0.0f;
+					
+					for (int dy = 0; dy < stepY; ++dy)
+					{
+						for (int dx = 0; dx < stepX; ++dx)
+						{
+							sum += texels[((y * stepY + dy) * width + x * stepX + dx) * 4 + c];
+						}
+					}
+					
+					result[(y * newWidth + x) * 4 + c] = sum * scale;
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Halves an RGBA float image with a separable Kaiser-windowed sinc filter, clamping at the edges.
+	 */
+	private static float[] downsampleKaiser(float texels[], int width, int height, int newWidth, int newHeight)
+	{
+		/* Filter horizontally, then vertically; a dimension which isn't halved is copied. */
+		float rows[] = (newWidth < width ? filterKaiser(texels, width, height, true) : texels);
+		float result[] = (newHeight < height ? filterKaiser(rows, newWidth, height, false) : rows);
+		
+		/* Filtering can ring past the valid range. */
+		for (int i = 0; i < result.length; ++i)
+		{
+			result[i] = Math.max(0.0f, Math.min(255.0f, result[i]));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Halves an RGBA float image in one direction with the Kaiser filter.
+	 *
+	 * @param width Width of the source, or of the result if filtering vertically.
+	 * @param height Height of the source.
+	 * @param horizontal True to halve the width, false to halve the height.
+	 */
+	private static float[] filterKaiser(float texels[], int width, int height, boolean horizontal)
+	{
+		int length = (horizontal ? width : height);
+		int outWidth = (horizontal ? width / 2 : width);
+		int outHeight = (horizontal ? height : height / 2);
+		float result[] = new float[outWidth * outHeight * 4];
+		
+		/* Every output texel sits between source texels 2i and 2i + 1, so the weights are the same for all. */
+		float weights[] = new float[2 * KAISER_RADIUS];
+		float total = 0.0f;
+		
+		for (int t = 0; t < weights.length; ++t)
+		{
+			float distance = (t - KAISER_RADIUS + 0.5f) / 2.0f;
+			weights[t] = sinc(distance) * kaiser(distance / (KAISER_RADIUS / 2.0f));
+			total += weights[t];
+		}
+		
+		for (int t = 0; t < weights.length; ++t)
+		{
+			weights[t] /= total;
+		}
+		
+		for (int y = 0; y < outHeight; ++y)
+		{
+			for (int x = 0; x < outWidth; ++x)
+			{
+				int i = (horizontal ? x : y);
+				
+				for (int c = 0; c < 4; ++c)
+				{
+					float sum = 0.0f;
+					
+					for (int t = 0; t < weights.length; ++t)
+					{
+						int source = Math.max(0, Math.min(length - 1, 2 * i - KAISER_RADIUS + 1 + t));
+						int index = (horizontal ? y * width + source : source * width + x);
+						sum += weights[t] * texels[index * 4 + c];
+					}
+					
+					result[(y * outWidth + x) * 4 + c] = sum;
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Normalized sinc, sin(pi x) / (pi x).
+	 */
+	private static float sinc(float x)
+	{
+		if (Math.abs(x) < 1e-6f)
+		{
+			return 1.0f;
+		}
+		
+		return (float)(Math.sin(Math.PI * x) / (Math.PI * x));
+	}
+	
+	/**
+	 * Kaiser window over [-1, 1].
+	 */
+	private static float kaiser(float x)
+	{
+		if (Math.abs(x) > 1.0f)
+		{
+			return 0.0f;
+		}
+		
+		return (float)(besselI0(KAISER_ALPHA * Math.sqrt(1.0 - x * x)) / besselI0(KAISER_ALPHA));
+	}
+	
+	/**
+	 * Zeroth-order modified Bessel function of the first kind, by its power series.
+	 */
+	private static double besselI0(double x)
+	{
+		double sum = 1.0;
+		double term = 1.0;
+		
+		for (int k = 1; k < 32; ++k)
+		{
+			term *= (x / (2.0 * k)) * (x / (2.0 * k));
+			sum += term;
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Compresses an RGBA float image into BC1 (8 bytes per 4x4 block) or, if `alpha` is true, BC3 (16 bytes
+	 * per block: an alpha block followed by a BC1 color block). Blocks past the edge of images smaller
+	 * than 4 texels repeat the edge texels.
+	 */
+	private static byte[] compress(float texels[], int width, int height, boolean alpha)
+	{
+		int blocksWide = (width + 3) / 4;
+		int blocksHigh = (height + 3) / 4;
+		int blockSize = (alpha ? 16 : 8);
+		
+		byte result[] = new byte[blocksWide * blocksHigh * blockSize];
+		int block[] = new int[16 * 4];
+		int offset = 0;
+		
+		for (int by = 0; by < blocksHigh; ++by)
+		{
+			for (int bx = 0; bx < blocksWide; ++bx)
+			{
+				for (int i = 0; i < 16; ++i)
+				{
+					int x = Math.min(width - 1, bx * 4 + i % 4);
+					int y = Math.min(height - 1, by * 4 + i / 4);
+					
+					for (int c = 0; c < 4; ++c)
+					{
+						block[i * 4 + c] = Math.round(texels[(y * width + x) * 4 + c]);
+					}
+				}
+				
+				if (alpha)
+				{
+					compressAlphaBlock(block, result, offset);
+					offset += 8;
+				}
+				
+				compressColorBlock(block, result, offset);
+				offset += 8;
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Writes the 8-byte BC1 color block for 16 RGBA texels. Endpoints are the extremes of the texels along
+	 * their principal axis of color variation, and each texel gets the nearest of the 4 palette colors.
+	 */
+	private static void compressColorBlock(int block[], byte out[], int offset)
+	{
+		/* Mean and covariance of the colors. */
+		float mean[] = new float[3];
+		for (int i = 0; i < 16; ++i)
+		{
+			for (int c = 0; c < 3; ++c)
+			{
+				mean[c] += block[i * 4 + c] / 16.0f;
+			}
+		}
+		
+		float cov[] = new float[6];
+		for (int i = 0; i < 16; ++i)
+		{
+			float r = block[i * 4] - mean[0];
+			float g = block[i * 4 + 1] - mean[1];
+			float b = block[i * 4 + 2] - mean[2];
+			
+			cov[0] += r * r;
+			cov[1] += r * g;
+			cov[2] += r * b;
+			cov[3] += g * g;
+			cov[4] += g * b;
+			cov[5] += b * b;
+		}
+		
+		/* Principal axis by power iteration, starting from the luminance direction. */
+		float axis[] = new float[] { 0.299f, 0.587f, 0.114f };
+		for (int iteration = 0; iteration < 8; ++iteration)
+		{
+			float x = cov[0] * axis[0] + cov[1] * axis[1] + cov[2] * axis[2];
+			float y = cov[1] * axis[0] + cov[3] * axis[1] + cov[4] * axis[2];
+			float z = cov[2] * axis[0] + cov[4] * axis[1] + cov[5] * axis[2];
+			float length = (float)Math.sqrt(x * x + y * y + z * z);
+			
+			if (length < 1e-6f)
+			{
+				break;
+			}
+			
+			axis[0] = x / length;
+			axis[1] = y / length;
+			axis[2] = z / length;
+		}
+		
+		/* Endpoints are the texels projecting furthest along the axis. */
+		float minProjection = Float.MAX_VALUE, maxProjection = -Float.MAX_VALUE;
+		int minTexel = 0, maxTexel = 0;
+		
+		for (int i = 0; i < 16; ++i)
+		{
+			float projection = block[i * 4] * axis[0] + block[i * 4 + 1] * axis[1] + block[i * 4 + 2] * axis[2];
+			
+			if (projection < minProjection)
+			{
+				minProjection = projection;
+				minTexel = i;
+			}
+			if (projection > maxProjection)
+			{
+				maxProjection = projection;
+				maxTexel = i;
+			}
+		}
+		
+		int color0 = packRGB565(block, maxTexel);
+		int color1 = packRGB565(block, minTexel);
+		
+		/* color0 > color1 selects 4-color mode; equal endpoints give a flat block, all index 0. */
+		if (color0 < color1)
+		{
+			int swap = color0;
+			color0 = color1;
+			color1 = swap;
+		}
+		
+		int indices = 0;
+		
+		if (color0 != color1)
+		{
+			int palette[] = new int[4 * 3];
+			unpackRGB565(color0, palette, 0);
+			unpackRGB565(color1, palette, 1);
+			
+			for (int c = 0; c < 3; ++c)
+			{
+				palette[2 * 3 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+				palette[3 * 3 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+			}
+			
+			for (int i = 0; i < 16; ++i)
+			{
+				int best = 0;
+				int bestError = Integer.MAX_VALUE;
+				
+				for (int p = 0; p < 4; ++p)
+				{
+					int dr = block[i * 4] - palette[p * 3];
+					int dg = block[i * 4 + 1] - palette[p * 3 + 1];
+					int db = block[i * 4 + 2] - palette[p * 3 + 2];
+					int error = dr * dr + dg * dg + db * db;
+					
+					if (error < bestError)
+					{
+						bestError = error;
+						best = p;
+					}
+				}
+				
+				indices |= best << (2 * i);
+			}
+		}
+		
+		putShort(out, offset, color0);
+		putShort(out, offset + 2, color1);
+		putShort(out, offset + 4, indices & 0xffff);
+		putShort(out, offset + 6, indices >>> 16);
+	}
+	
+	/**
+	 * Writes the 8-byte BC3 alpha block for 16 RGBA texels, using their minimum and maximum alpha as
+	 * endpoints with 6 interpolated values between.
+	 */
+	private static void compressAlphaBlock(int block[], byte out[], int offset)
+	{
+		int alpha0 = 0, alpha1 = 255;
+		for (int i = 0; i < 16; ++i)
+		{
+			alpha0 = Math.max(alpha0, block[i * 4 + 3]);
+			alpha1 = Math.min(alpha1, block[i * 4 + 3]);
+		}
+		
+		long indices = 0;
+		
+		if (alpha0 > alpha1)
+		{
+			/* Palette entries: 0 and 1 are the endpoints, 2 to 7 step from alpha0 towards alpha1. */
+			int palette[] = new int[8];
+			palette[0] = alpha0;
+			palette[1] = alpha1;
+			for (int p = 1; p <= 6; ++p)
+			{
+				palette[p + 1] = ((7 - p) * alpha0 + p * alpha1) / 7;
+			}
+			
+			for (int i = 0; i < 16; ++i)
+			{
+				int best = 0;
+				int bestError = Integer.MAX_VALUE;
+				
+				for (int p = 0; p < 8; ++p)
+				{
+					int error = Math.abs(block[i * 4 + 3] - palette[p]);
+					
+					if (error < bestError)
+					{
+						bestError = error;
+						best = p;
+					}
+				}
+				
+				indices |= (long)best << (3 * i);
+			}
+		}
+		
+		out[offset] = (byte)alpha0;
+		out[offset + 1] = (byte)(alpha0 > alpha1 ? alpha1 : alpha0);
+		for (int i = 0; i < 6; ++i)
+		{
+			out[offset + 2 + i] = (byte)(indices >>> (8 * i));
+		}
+	}
+	
+	/**
+	 * Expands one BC1 or BC3 compressed level back to RGBA8 texels, in the same row order, for OpenGL 
+	 * implementations without GL_EXT_texture_compression_s3tc (see `Texture2D.load()`). Decodes exactly 
+	 * as the hardware would, including BC1's 3-color mode, which `compress()` never writes.
+	 * 
+	 * @param data The compressed level, from its position to its limit.
+	 * @param glformat GL_COMPRESSED_RGB_S3TC_DXT1_EXT or GL_COMPRESSED_RGBA_S3TC_DXT5_EXT.
+	 */
+	static ByteBuffer decompress(ByteBuffer data, int width, int height, int glformat)
+	{
+		boolean alpha = (glformat == GL2.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT);
+		int blocksWide = (width + 3) / 4;
+		int blocksHigh = (height + 3) / 4;
+		
+		ByteBuffer result = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+		int block[] = new int[16 * 4];
+		int offset = data.position();
+		
+		for (int by = 0; by < blocksHigh; ++by)
+		{
+			for (int bx = 0; bx < blocksWide; ++bx)
+			{
+				if (alpha)
+				{
+					decompressAlphaBlock(data, offset, block);
+					offset += 8;
+				}
+				
+				decompressColorBlock(data, offset, block, !alpha);
+				offset += 8;
+				
+				/* Texels past the edge of images smaller than 4 texels are dropped. */
+				for (int i = 0; i < 16; ++i)
+				{
+					int x = bx * 4 + i % 4;
+					int y = by * 4 + i / 4;
+					
+					if (x < width && y < height)
+					{
+						for (int c = 0; c < 4; ++c)
+						{
+							result.put((y * width + x) * 4 + c, (byte)block[i * 4 + c]);
+						}
+					}
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Reads the 8-byte BC1 color block at `offset` into the RGB of 16 texels, and sets their alpha to 
+	 * opaque if `opaque` is true. Cooked BC1 textures are RGB, so 3-color mode's fourth entry is opaque black.
+	 */
+	private static void decompressColorBlock(ByteBuffer data, int offset, int block[], boolean opaque)
+	{
+		int color0 = getShort(data, offset);
+		int color1 = getShort(data, offset + 2);
+		int indices = getShort(data, offset + 4) | (getShort(data, offset + 6) << 16);
+		
+		int palette[] = new int[4 * 3];
+		unpackRGB565(color0, palette, 0);
+		unpackRGB565(color1, palette, 1);
+		
+		for (int c = 0; c < 3; ++c)
+		{
+			if (color0 > color1)
+			{
+				palette[2 * 3 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+				palette[3 * 3 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+			}
+			else
+			{
+				palette[2 * 3 + c] = (palette[c] + palette[3 + c]) / 2;
+				palette[3 * 3 + c] = 0;
+			}
+		}
+		
+		for (int i = 0; i < 16; ++i)
+		{
+			int p = (indices >>> (2 * i)) & 3;
+			
+			for (int c = 0; c < 3; ++c)
+			{
+				block[i * 4 + c] = palette[p * 3 + c];
+			}
+			
+			if (opaque)
+			{
+				block[i * 4 + 3] = 255;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the 8-byte BC3 alpha block at `offset` into the alpha of 16 texels.
+	 */
+	private static void decompressAlphaBlock(ByteBuffer data, int offset, int block[])
+	{
+		int alpha0 = data.get(offset) & 0xff;
+		int alpha1 = data.get(offset + 1) & 0xff;
+		
+		long indices = 0;
+		for (int i = 0; i < 6; ++i)
+		{
+			indices |= (long)(data.get(offset + 2 + i) & 0xff) << (8 * i);
+		}
+		
+		/* 8 steps between the endpoints, or 6 steps plus 0 and 255. */
+		int palette[] = new int[8];
+		palette[0] = alpha0;
+		palette[1] = alpha1;
+		
+		if (alpha0 > alpha1)
+		{
+			for (int p = 1; p <= 6; ++p)
+			{
+				palette[p + 1] = ((7 - p) * alpha0 + p * alpha1) / 7;
+			}
+		}
+		else
+		{
+			for (int p = 1; p <= 4; ++p)
+			{
+				palette[p + 1] = ((5 - p) * alpha0 + p * alpha1) / 5;
+			}
+			palette[6] = 0;
+			palette[7] = 255;
+		}
+		
+		for (int i = 0; i < 16; ++i)
+		{
+			block[i * 4 + 3] = palette[(int)(indices >>> (3 * i)) & 7];
+		}
+	}
+	
+	/**
+	 * Packs texel `i` of a block into 5:6:5 bits.
+	 */
+	private static int packRGB565(int block[], int i)
+	{
+		int r = (block[i * 4] * 31 + 127) / 255;
+		int g = (block[i * 4 + 1] * 63 + 127) / 255;
+		int b = (block[i * 4 + 2] * 31 + 127) / 255;
+		return (r << 11) | (g << 5) | b;
+	}
+	
+	/**
+	 * Expands a 5:6:5 color to 8 bits per channel, as the hardware does, into entry `i` of an RGB palette.
+	 */
+	private static void unpackRGB565(int color, int palette[], int i)
+	{
+		int r = (color >> 11) & 0x1f;
+		int g = (color >> 5) & 0x3f;
+		int b = color & 0x1f;
+		
+		palette[i * 3] = (r << 3) | (r >> 2);
+		palette[i * 3 + 1] = (g << 2) | (g >> 4);
+		palette[i * 3 + 2] = (b << 3) | (b >> 2);
+	}
+	
+	/**
+	 * Writes a little-endian 16-bit value.
+	 */
+	private static void putShort(byte out[], int offset, int value)
+	{
+		out[offset] = (byte)value;
+		out[offset + 1] = (byte)(value >>> 8);
+	}
+	
+	/**
+	 * Reads a little-endian 16-bit value.
+	 */
+	private static int getShort(ByteBuffer data, int offset)
+	{
+		return (data.get(offset) & 0xff) | ((data.get(offset + 1) & 0xff) << 8);
+	}
+	
+	/**
+	 * Cooks the images named on the command line. Pass `-kaiser` before them to use the Kaiser mip filter
+	 * instead of the box filter.
+	 */
+	public static void main(String args[])
+	{
+		MipFilter filter = MipFilter.BOX;
+		
+		if (args.length == 0)
+		{
+			System.out.println("Usage: TextureCooker [-box | -kaiser] identifier...");
+			return;
+		}
+		
+		for (String arg : args)
+		{
+			if (arg.equals("-box"))
+			{
+				filter = MipFilter.BOX;
+			}
+			else if (arg.equals("-kaiser"))
+			{
+				filter = MipFilter.KAISER;
+			}
+			else
+			{
+				try
+				{
+					File cooked = cook(arg, filter);
+					System.out.println("Cooked '" + arg + "' into '" + cooked + "' (" + cooked.length() + " bytes).");
+				}
+				catch (IOException err)
+				{
+					System.out.println("Error cooking '" + arg + "': " + err.getMessage());
+				}
+			}
+		}
+	}
+}
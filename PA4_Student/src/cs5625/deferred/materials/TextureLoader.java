@@ -0,0 +1,229 @@
+package cs5625.deferred.materials;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL2;
+
+import cs5625.deferred.misc.OpenGLException;
+
+/**
+ * TextureLoader.java
+ *
+ * Loads textures asynchronously. Image files are read and converted to RGBA (`Texture2D.decode()`) on a
+ * pool of worker threads, in parallel; only the upload, which needs the OpenGL context, is left for the
+ * GL thread, which collects finished images in a batch with `uploadCompleted()` or `uploadAll()`. Each
+ * request's listener is called on the GL thread as its texture is created. `decodeAll()` decodes images
+ * in parallel without uploading them, for callers which pack them into textures themselves.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class TextureLoader
+{
+	/**
+	 * Receives textures once they have been uploaded.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called on the GL thread with the newly created texture.
+		 */
+		public void textureLoaded(String identifier, Texture2D texture);
+	}
+	
+	/* A texture being decoded, and who to tell when it's ready. */
+	private static class Request
+	{
+		private String mIdentifier;
+		private Future<Texture2D.DecodedImage> mImage;
+		private Listener mListener;
+	}
+	
+	/* Worker pool, and requests which haven't been uploaded yet, in request order. */
+	private ExecutorService mWorkers;
+	private ArrayList<Request> mPending = new ArrayList<Request>();
+	
+	/**
+	 * Creates a loader with one worker thread per processor.
+	 */
+	public TextureLoader()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a loader with the given number of worker threads. The workers are daemon threads, so they
+	 * never keep the application running.
+	 */
+	public TextureLoader(int threadCount)
+	{
+		mWorkers = Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "TextureLoader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Starts decoding an image file on a worker thread. The texture is created, and `listener` called, by
+	 * a later `uploadCompleted()` or `uploadAll()`.
+	 *
+	 * @param identifier The name of the image to load, as for `Texture2D.load()`.
+	 * @param listener Receives the texture once it is uploaded.
+	 */
+	public void request(final String identifier, Listener listener)
+	{
+		Request request = new Request();
+		request.mIdentifier = identifier;
+		request.mListener = listener;
+		request.mImage = mWorkers.submit(new Callable<Texture2D.DecodedImage>()
+		{
+			public Texture2D.DecodedImage call() throws Exception
+			{
+				return Texture2D.decode(identifier);
+			}
+		});
+		
+		mPending.add(request);
+	}
+	
+	/**
+	 * Decodes several image files in parallel on the worker threads and waits for them, without creating
+	 * any textures, for callers which combine the images into textures of their own (see `SpriteArray`).
+	 * Images which fail to load are reported and left null.
+	 *
+	 * @param identifiers The names of the images to decode, as for `Texture2D.decode()`.
+	 * @return The decoded images, in the same order.
+	 */
+	public Texture2D.DecodedImage[] decodeAll(String identifiers[])
+	{
+		ArrayList<Future<Texture2D.DecodedImage>> futures = new ArrayList<Future<Texture2D.DecodedImage>>();
+		
+		for (final String identifier : identifiers)
+		{
+			futures.add(mWorkers.submit(new Callable<Texture2D.DecodedImage>()
+			{
+				public Texture2D.DecodedImage call() throws Exception
+				{
+					return Texture2D.decode(identifier);
+				}
+			}));
+		}
+		
+		Texture2D.DecodedImage images[] = new Texture2D.DecodedImage[identifiers.length];
+		
+		for (int i = 0; i < identifiers.length; ++i)
+		{
+			try
+			{
+				images[i] = futures.get(i).get();
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException err)
+			{
+				System.out.println("Error loading texture '" + identifiers[i] + "'.");
+				err.getCause().printStackTrace();
+			}
+		}
+		
+		return images;
+	}
+	
+	/**
+	 * Uploads every image which has finished decoding, without waiting for the rest. Cheap if there are
+	 * none, so it can be called every frame. Must be called on the GL thread.
+	 *
+	 * @return The number of textures uploaded.
+	 */
+	public int uploadCompleted(GL2 gl)
+	{
+		return upload(gl, false);
+	}
+	
+	/**
+	 * Waits for all outstanding images to finish decoding, and uploads them. Must be called on the GL thread.
+	 *
+	 * @return The number of textures uploaded.
+	 */
+	public int uploadAll(GL2 gl)
+	{
+		return upload(gl, true);
+	}
+	
+	/**
+	 * Returns the number of requested textures which haven't been uploaded yet.
+	 */
+	public int getPendingCount()
+	{
+		return mPending.size();
+	}
+	
+	/**
+	 * Uploads finished (or, if `wait` is true, all) pending images in request order. Images which fail to
+	 * load are reported and dropped, without calling their listeners.
+	 */
+	private int upload(GL2 gl, boolean wait)
+	{
+		int uploaded = 0;
+		Iterator<Request> it = mPending.iterator();
+		
+		while (it.hasNext())
+		{
+			Request request = it.next();
+			
+			if (!wait && !request.mImage.isDone())
+			{
+				continue;
+			}
+			
+			it.remove();
+			
+			try
+			{
+				Texture2D texture = Texture2D.load(gl, request.mImage.get());
+				request.mListener.textureLoaded(request.mIdentifier, texture);
+				++uploaded;
+			}
+			catch (InterruptedException err)
+			{
+				Thread.currentThread().interrupt();
+				return uploaded;
+			}
+			catch (ExecutionException err)
+			{
+				System.out.println("Error loading texture '" + request.mIdentifier + "'.");
+				err.getCause().printStackTrace();
+			}
+			catch (OpenGLException err)
+			{
+				System.out.println("Error creating texture '" + request.mIdentifier + "'.");
+				err.printStackTrace();
+			}
+		}
+		
+		return uploaded;
+	}
+	
+	/**
+	 * Stops the worker threads once they have finished any images already requested.
+	 */
+	public void shutdown()
+	{
+		mWorkers.shutdown();
+	}
+}
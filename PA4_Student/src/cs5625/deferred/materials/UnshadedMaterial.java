@@ -47,7 +47,7 @@ public class UnshadedMaterial extends Material
 	{
 		/* Bind shader and update color uniform. */
 		getShaderProgram().bind(gl);
-		gl.glUniform3f(mUniformLocation, mColor.x, mColor.y, mColor.z);
+		getShaderProgram().setUniform3f(gl, mUniformLocation, mColor.x, mColor.y, mColor.z);
 	}
 
 	@Override
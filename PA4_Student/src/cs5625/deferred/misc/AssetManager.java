@@ -0,0 +1,256 @@
+package cs5625.deferred.misc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL2;
+
+import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.scenegraph.Geometry;
+import cs5625.deferred.scenegraph.Mesh;
+
+/**
+ * AssetManager.java
+ *
+ * The AssetManager class is a registry of assets loaded from files, keyed by identifier, so that each
+ * file is loaded once no matter how many objects use it.
+ *
+ *  - Textures are shared outright: `acquireTexture()` returns the same Texture2D for the same
+ *    identifier, and counts its users. `releaseTexture()` releases the texture when the last user does.
+ *  - Models are loaded once with `Geometry.load()` and kept as prototypes. `acquireGeometry()` returns
+ *    new Geometry objects whose meshes are instances of the prototype meshes (see
+ *    `Mesh.createInstance()`): they share vertex data and GPU buffers, which are released with the last
+ *    instance using them, but have their own transforms and names. When that happens and no instance
+ *    of the model holds GPU buffers any more, the prototypes are forgotten too (see `meshReleased()`). Instances start out sharing the
+ *    prototype's materials, which are released with the last mesh using them (see `Material.addUser()`),
+ *    and may be given materials of their own.
+ *
+ * Shared assets should be treated as read-only; to modify one, load a private copy with
+ * `Geometry.load()` or `Texture2D.load()` instead.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class AssetManager
+{
+	/* Shared textures and their user counts, keyed on identifier. */
+	private static HashMap<String, Texture2D> sTextures = new HashMap<String, Texture2D>();
+	private static HashMap<Texture2D, Integer> sTextureUsers = new HashMap<Texture2D, Integer>();
+	
+	/* Prototype objects of each loaded model, keyed on identifier and load options. */
+	private static HashMap<String, List<Geometry>> sGeometry = new HashMap<String, List<Geometry>>();
+	
+	/**
+	 * Returns the shared texture loaded from the given image file, loading it if necessary, and counts
+	 * the caller as one of its users. Each call should be matched by a call to `releaseTexture()`.
+	 *
+	 * @param gl The OpenGL state.
+	 * @param identifier The name of the image to load, as for `Texture2D.load()`.
+	 */
+	public static synchronized Texture2D acquireTexture(GL2 gl, String identifier) throws OpenGLException, IOException
+	{
+		Texture2D texture = sTextures.get(identifier);
+		
+		/* Reload textures which were released behind the registry's back. */
+		if (texture == null || texture.getHandle() < 0)
+		{
+			if (texture != null)
+			{
+				sTextureUsers.remove(texture);
+			}
+			
+			texture = Texture2D.load(gl, identifier);
+			sTextures.put(identifier, texture);
+			sTextureUsers.put(texture, 0);
+		}
+		
+		sTextureUsers.put(texture, sTextureUsers.get(texture) + 1);
+		return texture;
+	}
+	
+	/**
+	 * Gives up one use of a texture returned by `acquireTexture()`, and releases it if that was the
+	 * last use. Textures not from `acquireTexture()` are ignored.
+	 */
+	public static synchronized void releaseTexture(GL2 gl, Texture2D texture)
+	{
+		Integer users = sTextureUsers.get(texture);
+		if (users == null)
+		{
+			return;
+		}
+		
+		if (users > 1)
+		{
+			sTextureUsers.put(texture, users - 1);
+		}
+		else
+		{
+			sTextureUsers.remove(texture);
+			sTextures.values().remove(texture);
+			texture.releaseGPUResources(gl);
+		}
+	}
+	
+	/**
+	 * Returns true if the texture was returned by `acquireTexture()` and is still in use.
+	 */
+	public static synchronized boolean isSharedTexture(Texture2D texture)
+	{
+		return sTextureUsers.containsKey(texture);
+	}
+	
+	/**
+	 * Returns the number of users of the shared texture with the given identifier, or 0 if it isn't loaded.
+	 */
+	public static synchronized int getTextureUserCount(String identifier)
+	{
+		Texture2D texture = sTextures.get(identifier);
+		return (texture == null ? 0 : sTextureUsers.get(texture));
+	}
+	
+	/**
+	 * Returns new instances of the objects in a model file, loading the file if it hasn't been loaded
+	 * with the same options already. Parameters are as for `Geometry.load()`.
+	 *
+	 * The returned objects start out with the model's transforms and materials, and may be moved and
+	 * given different materials independently. Their meshes share data with every other instance of the
+	 * model, and must not be modified.
+	 */
+	public static synchronized List<Geometry> acquireGeometry(String identifier, boolean loadMaterials, boolean centerObjects) throws IOException
+	{
+		String key = identifier + (loadMaterials ? "|materials" : "") + (centerObjects ? "|centered" : "");
+		List<Geometry> prototypes = sGeometry.get(key);
+		
+		if (prototypes == null)
+		{
+			prototypes = Geometry.load(identifier, loadMaterials, centerObjects);
+			sGeometry.put(key, prototypes);
+		}
+		
+		ArrayList<Geometry> instances = new ArrayList<Geometry>();
+		
+		for (Geometry prototype : prototypes)
+		{
+			Geometry instance = new Geometry();
+			instance.setName(prototype.getName());
+			instance.getPosition().set(prototype.getPosition());
+			instance.getOrientation().set(prototype.getOrientation());
+			instance.setScale(prototype.getScale());
+			
+			for (Mesh mesh : prototype.getMeshes())
+			{
+				instance.addMesh(mesh.createInstance());
+			}
+			
+			instances.add(instance);
+		}
+		
+		return instances;
+	}
+	
+	/**
+	 * Forgets models none of whose instances currently hold GPU buffers, so their data can be garbage
+	 * collected once the application drops its own references. They are reloaded if acquired again.
+	 *
+	 * The prototypes are released, which drops their use of the model's materials; materials still
+	 * used by live instances stay loaded until those are released too.
+	 *
+	 * @param gl The OpenGL state.
+	 */
+	public static synchronized void purgeUnusedGeometry(GL2 gl)
+	{
+		Iterator<Map.Entry<String, List<Geometry>>> it = sGeometry.entrySet().iterator();
+		
+		while (it.hasNext())
+		{
+			List<Geometry> prototypes = it.next().getValue();
+			
+			if (!isInUse(prototypes))
+			{
+				releasePrototypes(gl, prototypes);
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Called by `Mesh.releaseGPUResources()` when the last instance of a mesh holding its GPU buffers
+	 * releases them. If the mesh is part of a shared model and no instance of that model holds GPU
+	 * buffers any more, the model is forgotten as by `purgeUnusedGeometry()`. Instances which have
+	 * never been drawn keep working, sharing the forgotten data; acquiring the model again reloads it.
+	 */
+	public static synchronized void meshReleased(GL2 gl, Mesh mesh)
+	{
+		Iterator<Map.Entry<String, List<Geometry>>> it = sGeometry.entrySet().iterator();
+		
+		while (it.hasNext())
+		{
+			List<Geometry> prototypes = it.next().getValue();
+			
+			if (contains(prototypes, mesh))
+			{
+				if (!isInUse(prototypes))
+				{
+					releasePrototypes(gl, prototypes);
+					it.remove();
+				}
+				
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if an instance of any of the given prototypes' meshes holds GPU buffers.
+	 */
+	private static boolean isInUse(List<Geometry> prototypes)
+	{
+		for (Geometry prototype : prototypes)
+		{
+			for (Mesh mesh : prototype.getMeshes())
+			{
+				if (mesh.getGPUUserCount() > 0)
+				{
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns true if one of the given prototypes' meshes shares its data with the given mesh.
+	 */
+	private static boolean contains(List<Geometry> prototypes, Mesh mesh)
+	{
+		for (Geometry prototype : prototypes)
+		{
+			for (Mesh prototypeMesh : prototype.getMeshes())
+			{
+				if (prototypeMesh.sharesDataWith(mesh))
+				{
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Releases the prototypes of a model which is being forgotten.
+	 */
+	private static void releasePrototypes(GL2 gl, List<Geometry> prototypes)
+	{
+		for (Geometry prototype : prototypes)
+		{
+			prototype.releaseGPUResources(gl);
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package cs5625.deferred.misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.media.opengl.GL2;
+
+/**
+ * GLState.java
+ *
+ * Client-side copy of the OpenGL state this renderer changes most often: the current program, the
+ * active texture unit and the textures bound to each unit, the bound framebuffers, and blending and
+ * depth state. Classes set this state through here instead of calling OpenGL directly, which skips
+ * calls that wouldn't change anything and answers "what is bound?" without `glGet*()` round-trips,
+ * which can stall the pipeline on real drivers.
+ *
+ * The copy is only correct if every change to the tracked state goes through this class, including
+ * `glPushAttrib()` / `glPopAttrib()` (see `pushAttrib()`) and deleting bound objects. State which
+ * hasn't been set since the last `reset()` is unknown: setters always issue the call, and getters ask
+ * OpenGL once.
+ *
+ * There is one copy for the whole program, matching the renderer's single OpenGL context; call
+ * `reset()` whenever that context is (re)created.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class GLState
+{
+	/* Value of state which hasn't been set or queried since the last reset. */
+	private static final int UNKNOWN = -1;
+	
+	/* Texture targets whose bindings are tracked; others are always bound. */
+	private static final int TRACKED_TARGETS[] = new int[] { GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_RECTANGLE_ARB, GL2.GL_TEXTURE_2D_ARRAY, GL2.GL_TEXTURE_BUFFER };
+	
+	/* Indices of the blend and depth state in `sFixedState`. */
+	private static final int BLEND = 0;
+	private static final int BLEND_SRC = 1;
+	private static final int BLEND_DST = 2;
+	private static final int DEPTH_TEST = 3;
+	private static final int DEPTH_MASK = 4;
+	private static final int DEPTH_FUNC = 5;
+	
+	/* Current program, active unit (0-based), and draw and read framebuffers. */
+	private static int sProgram = UNKNOWN;
+	private static int sActiveUnit = UNKNOWN;
+	private static int sDrawFramebuffer = UNKNOWN;
+	private static int sReadFramebuffer = UNKNOWN;
+	
+	/* Texture bound to each unit, indexed by unit and then by position in TRACKED_TARGETS. */
+	private static int sTextures[][] = new int[0][];
+	
+	/* Blend and depth state; booleans are stored as 0 or 1. */
+	private static int sFixedState[] = new int[] { UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN };
+	
+	/* Copies of the blend and depth state saved by `pushAttrib()`, with their masks. */
+	private static ArrayList<int[]> sAttribStack = new ArrayList<int[]>();
+	private static ArrayList<Integer> sAttribMaskStack = new ArrayList<Integer>();
+	
+	/* GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, which never changes for a context. */
+	private static int sMaxTextureUnits = UNKNOWN;
+	
+	/**
+	 * Forgets all tracked state, e.g. because a new OpenGL context was created.
+	 */
+	public static void reset()
+	{
+		sProgram = UNKNOWN;
+		sActiveUnit = UNKNOWN;
+		sDrawFramebuffer = UNKNOWN;
+		sReadFramebuffer = UNKNOWN;
+		sTextures = new int[0][];
+		
+		for (int i = 0; i < sFixedState.length; ++i)
+		{
+			sFixedState[i] = UNKNOWN;
+		}
+		
+		sAttribStack.clear();
+		sAttribMaskStack.clear();
+		sMaxTextureUnits = UNKNOWN;
+	}
+	
+	/**
+	 * Makes the given program current (0 for none), unless it already is.
+	 */
+	public static void useProgram(GL2 gl, int program)
+	{
+		if (sProgram != program)
+		{
+			gl.glUseProgram(program);
+			sProgram = program;
+		}
+	}
+	
+	/**
+	 * Returns the current program, or 0 if none.
+	 */
+	public static int getProgram(GL2 gl)
+	{
+		if (sProgram == UNKNOWN)
+		{
+			int result[] = new int[1];
+			gl.glGetIntegerv(GL2.GL_CURRENT_PROGRAM, result, 0);
+			sProgram = result[0];
+		}
+		
+		return sProgram;
+	}
+	
+	/**
+	 * Records that a program was deleted. It stays current until another is used, but its name may be
+	 * reused right away, so the current program is forgotten.
+	 */
+	public static void programDeleted(int program)
+	{
+		if (sProgram == program)
+		{
+			sProgram = UNKNOWN;
+		}
+	}
+	
+	/**
+	 * Makes the given texture unit (0-based) active, unless it already is.
+	 */
+	public static void activeTexture(GL2 gl, int unit)
+	{
+		if (sActiveUnit != unit)
+		{
+			gl.glActiveTexture(GL2.GL_TEXTURE0 + unit);
+			sActiveUnit = unit;
+		}
+	}
+	
+	/**
+	 * Returns the active texture unit (0-based).
+	 */
+	public static int getActiveTexture(GL2 gl)
+	{
+		if (sActiveUnit == UNKNOWN)
+		{
+			int result[] = new int[1];
+			gl.glGetIntegerv(GL2.GL_ACTIVE_TEXTURE, result, 0);
+			sActiveUnit = result[0] - GL2.GL_TEXTURE0;
+		}
+		
+		return sActiveUnit;
+	}
+	
+	/**
+	 * Makes the given unit active and binds a texture (0 for none) to one of its targets, unless it's
+	 * already bound there.
+	 */
+	public static void bindTexture(GL2 gl, int unit, int target, int texture)
+	{
+		activeTexture(gl, unit);
+		bindTexture(gl, target, texture);
+	}
+	
+	/**
+	 * Binds a texture (0 for none) to one of the active unit's targets, unless it's already bound there.
+	 */
+	public static void bindTexture(GL2 gl, int target, int texture)
+	{
+		int unit = getActiveTexture(gl);
+		int slot = getTargetSlot(target);
+		
+		if (slot < 0)
+		{
+			gl.glBindTexture(target, texture);
+			return;
+		}
+		
+		if (unit >= sTextures.length)
+		{
+			int grown[][] = new int[unit + 1][];
+			System.arraycopy(sTextures, 0, grown, 0, sTextures.length);
+			
+			for (int i = sTextures.length; i < grown.length; ++i)
+			{
+				grown[i] = new int[TRACKED_TARGETS.length];
+				Arrays.fill(grown[i], UNKNOWN);
+			}
+			
+			sTextures = grown;
+		}
+		
+		if (sTextures[unit][slot] != texture)
+		{
+			gl.glBindTexture(target, texture);
+			sTextures[unit][slot] = texture;
+		}
+	}
+	
+	/**
+	 * Records that a texture was deleted, which unbinds it from every unit.
+	 */
+	public static void textureDeleted(int texture)
+	{
+		for (int unit[] : sTextures)
+		{
+			for (int slot = 0; slot < unit.length; ++slot)
+			{
+				if (unit[slot] == texture)
+				{
+					unit[slot] = 0;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the index of a texture target in TRACKED_TARGETS, or -1 if it isn't tracked.
+	 */
+	private static int getTargetSlot(int target)
+	{
+		for (int slot = 0; slot < TRACKED_TARGETS.length; ++slot)
+		{
+			if (TRACKED_TARGETS[slot] == target)
+			{
+				return slot;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, querying it only once per context.
+	 */
+	public static int getMaxTextureUnits(GL2 gl)
+	{
+		if (sMaxTextureUnits == UNKNOWN)
+		{
+			int result[] = new int[1];
+			gl.glGetIntegerv(GL2.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, result, 0);
+			sMaxTextureUnits = result[0];
+		}
+		
+		return sMaxTextureUnits;
+	}
+	
+	/**
+	 * Binds a framebuffer (0 for the window) to GL_FRAMEBUFFER (both draw and read), GL_DRAW_FRAMEBUFFER,
+	 * or GL_READ_FRAMEBUFFER, unless it's already bound there.
+	 */
+	public static void bindFramebuffer(GL2 gl, int target, int framebuffer)
+	{
+		boolean draw = (target != GL2.GL_READ_FRAMEBUFFER);
+		boolean read = (target != GL2.GL_DRAW_FRAMEBUFFER);
+		
+		if ((draw && sDrawFramebuffer != framebuffer) || (read && sReadFramebuffer != framebuffer))
+		{
+			gl.glBindFramebuffer(target, framebuffer);
+			
+			if (draw)
+			{
+				sDrawFramebuffer = framebuffer;
+			}
+			
+			if (read)
+			{
+				sReadFramebuffer = framebuffer;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the framebuffer bound to GL_DRAW_FRAMEBUFFER (or GL_FRAMEBUFFER), or GL_READ_FRAMEBUFFER.
+	 */
+	public static int getFramebuffer(GL2 gl, int target)
+	{
+		if (target == GL2.GL_READ_FRAMEBUFFER)
+		{
+			if (sReadFramebuffer == UNKNOWN)
+			{
+				int result[] = new int[1];
+				gl.glGetIntegerv(GL2.GL_READ_FRAMEBUFFER_BINDING, result, 0);
+				sReadFramebuffer = result[0];
+			}
+			
+			return sReadFramebuffer;
+		}
+		else
+		{
+			if (sDrawFramebuffer == UNKNOWN)
+			{
+				int result[] = new int[1];
+				gl.glGetIntegerv(GL2.GL_DRAW_FRAMEBUFFER_BINDING, result, 0);
+				sDrawFramebuffer = result[0];
+			}
+			
+			return sDrawFramebuffer;
+		}
+	}
+	
+	/**
+	 * Records that a framebuffer was deleted, which binds the window framebuffer in its place.
+	 */
+	public static void framebufferDeleted(int framebuffer)
+	{
+		if (sDrawFramebuffer == framebuffer)
+		{
+			sDrawFramebuffer = 0;
+		}
+		
+		if (sReadFramebuffer == framebuffer)
+		{
+			sReadFramebuffer = 0;
+		}
+	}
+	
+	/**
+	 * Enables or disables blending, unless it already is.
+	 */
+	public static void setBlend(GL2 gl, boolean enabled)
+	{
+		setCapability(gl, BLEND, GL2.GL_BLEND, enabled);
+	}
+	
+	/**
+	 * Sets the blend function, unless it's already set.
+	 */
+	public static void setBlendFunc(GL2 gl, int source, int destination)
+	{
+		if (sFixedState[BLEND_SRC] != source || sFixedState[BLEND_DST] != destination)
+		{
+			gl.glBlendFunc(source, destination);
+			sFixedState[BLEND_SRC] = source;
+			sFixedState[BLEND_DST] = destination;
+		}
+	}
+	
+	/**
+	 * Enables or disables depth testing, unless it already is.
+	 */
+	public static void setDepthTest(GL2 gl, boolean enabled)
+	{
+		setCapability(gl, DEPTH_TEST, GL2.GL_DEPTH_TEST, enabled);
+	}
+	
+	/**
+	 * Enables or disables depth writes, unless they already are.
+	 */
+	public static void setDepthMask(GL2 gl, boolean enabled)
+	{
+		int value = (enabled ? 1 : 0);
+		
+		if (sFixedState[DEPTH_MASK] != value)
+		{
+			gl.glDepthMask(enabled);
+			sFixedState[DEPTH_MASK] = value;
+		}
+	}
+	
+	/**
+	 * Sets the depth comparison function, unless it's already set.
+	 */
+	public static void setDepthFunc(GL2 gl, int function)
+	{
+		if (sFixedState[DEPTH_FUNC] != function)
+		{
+			gl.glDepthFunc(function);
+			sFixedState[DEPTH_FUNC] = function;
+		}
+	}
+	
+	/**
+	 * Enables or disables a capability tracked at `index` in `sFixedState`, unless it already is.
+	 */
+	private static void setCapability(GL2 gl, int index, int capability, boolean enabled)
+	{
+		int value = (enabled ? 1 : 0);
+		
+		if (sFixedState[index] != value)
+		{
+			if (enabled)
+			{
+				gl.glEnable(capability);
+			}
+			else
+			{
+				gl.glDisable(capability);
+			}
+			
+			sFixedState[index] = value;
+		}
+	}
+	
+	/**
+	 * Calls `glPushAttrib()`, and saves the tracked state it covers so `popAttrib()` can restore it.
+	 * Every `glPushAttrib()` must go through here, so that the two stacks stay in step.
+	 */
+	public static void pushAttrib(GL2 gl, int mask)
+	{
+		gl.glPushAttrib(mask);
+		sAttribStack.add(sFixedState.clone());
+		sAttribMaskStack.add(mask);
+	}
+	
+	/**
+	 * Calls `glPopAttrib()`, and restores the tracked state saved by the matching `pushAttrib()`.
+	 */
+	public static void popAttrib(GL2 gl)
+	{
+		gl.glPopAttrib();
+		
+		int saved[] = sAttribStack.remove(sAttribStack.size() - 1);
+		int mask = sAttribMaskStack.remove(sAttribMaskStack.size() - 1);
+		
+		if ((mask & (GL2.GL_ENABLE_BIT | GL2.GL_COLOR_BUFFER_BIT)) != 0)
+		{
+			sFixedState[BLEND] = saved[BLEND];
+		}
+		
+		if ((mask & GL2.GL_COLOR_BUFFER_BIT) != 0)
+		{
+			sFixedState[BLEND_SRC] = saved[BLEND_SRC];
+			sFixedState[BLEND_DST] = saved[BLEND_DST];
+		}
+		
+		if ((mask & (GL2.GL_ENABLE_BIT | GL2.GL_DEPTH_BUFFER_BIT)) != 0)
+		{
+			sFixedState[DEPTH_TEST] = saved[DEPTH_TEST];
+		}
+		
+		if ((mask & GL2.GL_DEPTH_BUFFER_BIT) != 0)
+		{
+			sFixedState[DEPTH_MASK] = saved[DEPTH_MASK];
+			sFixedState[DEPTH_FUNC] = saved[DEPTH_FUNC];
+		}
+		
+		/* Texture bindings and the active unit aren't saved; forget them if they were restored. */
+		if ((mask & GL2.GL_TEXTURE_BIT) != 0)
+		{
+			sActiveUnit = UNKNOWN;
+			sTextures = new int[0][];
+		}
+	}
+}
@@ -20,6 +20,9 @@ public class OpenGLException extends Exception
 
 	/* Make Eclipse happy; since Exception is serializable, we must define a format version. */
 	private static final long serialVersionUID = 1L;
+	
+	/* Whether `checkOpenGLError()` actually checks. Set with -Dcs5625.debugGL=true, or `setDebugChecks()`. */
+	private static boolean sDebugChecks = Boolean.getBoolean("cs5625.debugGL");
 
 	/** 
 	 * Default constructor.
@@ -53,13 +56,43 @@ public class OpenGLException extends Exception
 		super(arg0, arg1);
 	}
 	
+	/**
+	 * Sets whether `checkOpenGLError()` checks for errors (debug builds) or does nothing (release builds, 
+	 * the default). Each check is a `glGetError()`, which can stall the pipeline, so release builds only 
+	 * check once a frame, with `checkOpenGLErrorAlways()`.
+	 */
+	public static void setDebugChecks(boolean debugChecks)
+	{
+		sDebugChecks = debugChecks;
+	}
+	
+	/**
+	 * Returns true if `checkOpenGLError()` checks for errors.
+	 */
+	public static boolean getDebugChecks()
+	{
+		return sDebugChecks;
+	}
+	
 	/**
 	 * Checks the OpenGL error state using `glGetError()`, and throws an exception if 
-	 * there is indeed an error.
+	 * there is indeed an error. Does nothing unless debug checks are on (see `setDebugChecks()`).
 	 * 
 	 * You should call this method frequently in your OpenGL code.
 	 */
 	public static void checkOpenGLError(GL2 gl) throws OpenGLException
+	{
+		if (sDebugChecks)
+		{
+			checkOpenGLErrorAlways(gl);
+		}
+	}
+	
+	/**
+	 * Checks the OpenGL error state using `glGetError()` whether or not debug checks are on, and throws 
+	 * an exception if there is an error. The error may have been caused by any call since the last check.
+	 */
+	public static void checkOpenGLErrorAlways(GL2 gl) throws OpenGLException
 	{
 		int err = gl.glGetError();
 		
@@ -62,6 +62,57 @@ public class Util
 		};
 	}
 	
+	/**
+	 * Writes the passed matrix into `result` in column-major order, like `fromMatrix4f(Matrix4f)`, 
+	 * but without allocating. `result` must hold at least 16 floats.
+	 */
+	public static void fromMatrix4f(Matrix4f m, float result[])
+	{
+		result[0]  = m.m00; result[1]  = m.m10; result[2]  = m.m20; result[3]  = m.m30;
+		result[4]  = m.m01; result[5]  = m.m11; result[6]  = m.m21; result[7]  = m.m31;
+		result[8]  = m.m02; result[9]  = m.m12; result[10] = m.m22; result[11] = m.m32;
+		result[12] = m.m03; result[13] = m.m13; result[14] = m.m23; result[15] = m.m33;
+	}
+	
+	/**
+	 * Converts a float to IEEE 754 half precision, rounding to nearest. Values too large for 
+	 * a half become infinity and values too small become (signed) zero or denormals.
+	 * 
+	 * @return The 16 bits of the half-precision value, suitable for GL_HALF_FLOAT data.
+	 */
+	public static short toHalfFloat(float value)
+	{
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		
+		if (((bits >>> 23) & 0xff) == 0xff)
+		{
+			/* Infinity or NaN. */
+			return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		else if (exponent >= 0x1f)
+		{
+			/* Overflow. */
+			return (short)(sign | 0x7c00);
+		}
+		else if (exponent <= 0)
+		{
+			/* Denormal or zero. */
+			if (exponent < -10)
+			{
+				return (short)sign;
+			}
+			
+			mantissa = (mantissa | 0x800000) >> (1 - exponent);
+			return (short)(sign | ((mantissa + 0x1000) >> 13));
+		}
+		
+		/* Rounding may carry into the exponent, which correctly produces the next power of two (or infinity). */
+		return (short)(sign | ((exponent << 10) + ((mantissa + 0x1000) >> 13)));
+	}
+	
 	/**
 	 * Splits the passed string into words separated by any one of a list of characters.
 	 * 
@@ -0,0 +1,758 @@
+package cs5625.deferred.procedural;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * OceanSimulation.java
+ *
+ * A spectral ocean surface after Tessendorf, "Simulating Ocean Water". A square patch of ocean,
+ * `getPatchSize()` units across, is described by a Phillips spectrum of wave amplitudes, fixed at
+ * construction. Each `update()` advances every wave by its dispersion relation and transforms the
+ * spectrum back to space with inverse FFTs, producing a tileable grid of
+ *
+ *  - displacements: horizontal ("choppy") x and z offsets, and height in y; and
+ *  - unit surface normals, from the analytic slopes.
+ *
+ * The five real fields are packed two to a complex FFT, so each update is three complex
+ * `getResolution()` x `getResolution()` transforms. Rows and columns are transformed in parallel
+ * on a pool of worker threads; together with the resolution (64 to 512) and the update rate, the
+ * thread count sets how much of the frame the simulation costs.
+ *
+ * Outputs are kept in direct buffers laid out for `Texture2D`: `getDisplacementData()` is RGB
+ * FLOAT32, `getNormalData()` is RGBA INT8 holding `0.5 * normal + 0.5`. Texel (x, y) is the
+ * point (x, y) * patchSize / resolution of the patch, with world z along texture y. The buffers
+ * are double-buffered: updates write the back pair and `swapOutputs()` publishes it, so one thread
+ * can run the next update (e.g. on a worker) while another uploads the last one.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class OceanSimulation
+{
+	/** Limits on the resolution of the simulation grid. */
+	public static final int MIN_RESOLUTION = 64;
+	public static final int MAX_RESOLUTION = 512;
+	
+	private static final float GRAVITY = 9.81f;
+	
+	/* Columns transformed together, one cache line of floats. */
+	private static final int COLUMN_BLOCK = 16;
+	
+	/* Simulation parameters. */
+	private int mResolution;
+	private float mPatchSize;
+	private float mChoppiness = 1.0f;
+	private float mUpdateInterval = 1.0f / 30.0f;
+	private float mLastUpdateTime = Float.NEGATIVE_INFINITY;
+	
+	/* Wavenumber of each grid index, and the initial spectrum h0(k) and conj(h0(-k)), indexed [z * N + x]. */
+	private float mWavenumbers[];
+	private float mH0Re[], mH0Im[];
+	private float mH0ConjRe[], mH0ConjIm[];
+	
+	/* A wave's frequency depends only on |k|, i.e. on the integer (x - N/2)^2 + (z - N/2)^2, which
+	 * many grid points share. The distinct values in use, their frequencies, and each update's
+	 * cos(w t) and sin(w t), indexed by that integer. */
+	private int mPhaseRadii[];
+	private float mPhaseOmega[];
+	private float mPhaseCos[], mPhaseSin[];
+	
+	/* The three complex fields being transformed: (height + i slope x), (slope z + i displacement x),
+	 * and (displacement z). */
+	private float mRe[][], mIm[][];
+	
+	/* FFT tables: bit-reversal permutation, and the twiddle factors exp(2 pi i k / N) for k < N/2. */
+	private int mBitReverse[];
+	private float mTwiddleRe[], mTwiddleIm[];
+	
+	/* Front and back outputs; updates write the pair at index `mBack`. */
+	private FloatBuffer mDisplacement[] = new FloatBuffer[2];
+	private ByteBuffer mNormals[] = new ByteBuffer[2];
+	private int mBack = 1;
+	
+	/* Workers, and the tasks of each pass, split into bands of rows or columns. */
+	private ExecutorService mWorkers;
+	private List<Callable<Object>> mPhaseTasks = new ArrayList<Callable<Object>>();
+	private List<Callable<Object>> mSpectrumTasks = new ArrayList<Callable<Object>>();
+	private List<Callable<Object>> mColumnTasks = new ArrayList<Callable<Object>>();
+	private List<Callable<Object>> mOutputTasks = new ArrayList<Callable<Object>>();
+	private float mTime;
+	
+	/**
+	 * Creates a simulation using `getDefaultThreadCount()` threads.
+	 *
+	 * @see #OceanSimulation(int, float, float, float, float, long, int)
+	 */
+	public OceanSimulation(int resolution, float patchSize, float windSpeed, float windDirection, float amplitude, long seed)
+	{
+		this(resolution, patchSize, windSpeed, windDirection, amplitude, seed, getDefaultThreadCount());
+	}
+	
+	/**
+	 * Creates a simulation and its initial spectrum.
+	 *
+	 * @param resolution Grid points along each side of the patch; a power of two between
+	 *        `MIN_RESOLUTION` and `MAX_RESOLUTION`.
+	 * @param patchSize Width of the (tiling) patch, in world units (treated as meters).
+	 * @param windSpeed Wind speed, in units per second. Faster winds make longer waves.
+	 * @param windDirection Direction the wind blows towards, in radians counterclockwise from +x in the xz plane.
+	 * @param amplitude The Phillips constant, scaling the spectrum; wave heights grow with its square
+	 *        root. Around 0.005 gives waves about 1.5 units high in an 8 unit/s wind.
+	 * @param seed Seed for the random wave phases and amplitudes.
+	 * @param threadCount Number of threads to run the FFTs on. 1 runs them on the calling thread.
+	 */
+	public OceanSimulation(int resolution, float patchSize, float windSpeed, float windDirection, float amplitude, long seed, int threadCount)
+	{
+		if (resolution < MIN_RESOLUTION || resolution > MAX_RESOLUTION || (resolution & (resolution - 1)) != 0)
+		{
+			throw new IllegalArgumentException("Ocean resolution must be a power of two between " + MIN_RESOLUTION + " and " + MAX_RESOLUTION + ".");
+		}
+		
+		mResolution = resolution;
+		mPatchSize = patchSize;
+		
+		int n = resolution;
+		for (int i = 0; i < 2; ++i)
+		{
+			mDisplacement[i] = Buffers.newDirectFloatBuffer(3 * n * n);
+			mNormals[i] = Buffers.newDirectByteBuffer(4 * n * n);
+		}
+		
+		mRe = new float[3][n * n];
+		mIm = new float[3][n * n];
+		
+		initializeFFT();
+		initializeSpectrum(windSpeed, windDirection, amplitude, seed);
+		initializeTasks(Math.max(1, threadCount));
+	}
+	
+	/**
+	 * Returns the number of worker threads new simulations use by default: one per processor.
+	 */
+	public static int getDefaultThreadCount()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Suggests a grid resolution which keeps the simulation affordable on this machine's processors.
+	 */
+	public static int getDefaultResolution()
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+		
+		if (processors >= 8)
+		{
+			return 512;
+		}
+		else if (processors >= 3)
+		{
+			return 256;
+		}
+		else if (processors == 2)
+		{
+			return 128;
+		}
+		else
+		{
+			return MIN_RESOLUTION;
+		}
+	}
+	
+	/**
+	 * Builds the bit-reversal and twiddle tables for N-point transforms.
+	 */
+	private void initializeFFT()
+	{
+		int n = mResolution;
+		int bits = Integer.numberOfTrailingZeros(n);
+		
+		mBitReverse = new int[n];
+		for (int i = 0; i < n; ++i)
+		{
+			mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+		
+		mTwiddleRe = new float[n / 2];
+		mTwiddleIm = new float[n / 2];
+		for (int k = 0; k < n / 2; ++k)
+		{
+			double angle = 2.0 * Math.PI * k / n;
+			mTwiddleRe[k] = (float)Math.cos(angle);
+			mTwiddleIm[k] = (float)Math.sin(angle);
+		}
+	}
+	
+	/**
+	 * Draws the initial amplitudes h0(k) from the Phillips spectrum, and computes each wave's frequency.
+	 */
+	private void initializeSpectrum(float windSpeed, float windDirection, float amplitude, long seed)
+	{
+		int n = mResolution;
+		Random random = new Random(seed);
+		
+		mWavenumbers = new float[n];
+		for (int i = 0; i < n; ++i)
+		{
+			mWavenumbers[i] = (float)(2.0 * Math.PI * (i - n / 2) / mPatchSize);
+		}
+		
+		/* Draw h0 for every wavevector, then pair each with its mirror -k. */
+		float re[] = new float[n * n];
+		float im[] = new float[n * n];
+		boolean radiusUsed[] = new boolean[n * n / 2 + 1];
+		
+		float windX = (float)Math.cos(windDirection);
+		float windZ = (float)Math.sin(windDirection);
+		float largestWave = windSpeed * windSpeed / GRAVITY;
+		float smallestWave = largestWave / 1000.0f;
+		
+		for (int z = 0; z < n; ++z)
+		{
+			for (int x = 0; x < n; ++x)
+			{
+				float kx = mWavenumbers[x];
+				float kz = mWavenumbers[z];
+				float k2 = kx * kx + kz * kz;
+				int index = z * n + x;
+				
+				/* Draw both gaussians even where unused, so the spectrum doesn't depend on which waves are skipped. */
+				float gaussRe = (float)random.nextGaussian();
+				float gaussIm = (float)random.nextGaussian();
+				
+				/* Skip k = 0, and the Nyquist row and column (index 0), whose mirrors -k aren't in the grid. */
+				if (x == 0 || z == 0 || k2 == 0.0f)
+				{
+					continue;
+				}
+				
+				/* Phillips spectrum, damping waves much smaller than the wind allows. */
+				float kLength = (float)Math.sqrt(k2);
+				float alignment = (kx * windX + kz * windZ) / kLength;
+				double phillips = amplitude * Math.exp(-1.0 / (k2 * largestWave * largestWave)) / (k2 * k2) * alignment * alignment;
+				phillips *= Math.exp(-k2 * smallestWave * smallestWave);
+				
+				/* Waves moving against the wind are mostly suppressed. */
+				if (alignment < 0.0f)
+				{
+					phillips *= 0.07;
+				}
+				
+				/* Scale by the area of each grid cell in k-space, so heights don't depend on the patch size. */
+				float cellArea = mWavenumbers[1] - mWavenumbers[0];
+				float scale = (float)Math.sqrt(phillips * cellArea * cellArea / 2.0);
+				re[index] = gaussRe * scale;
+				im[index] = gaussIm * scale;
+				radiusUsed[(x - n / 2) * (x - n / 2) + (z - n / 2) * (z - n / 2)] = true;
+			}
+		}
+		
+		mH0Re = re;
+		mH0Im = im;
+		mH0ConjRe = new float[n * n];
+		mH0ConjIm = new float[n * n];
+		
+		for (int z = 0; z < n; ++z)
+		{
+			for (int x = 0; x < n; ++x)
+			{
+				/* -k has index N - i; index 0 was left empty above. */
+				if (x == 0 || z == 0)
+				{
+					continue;
+				}
+				
+				int mx = n - x;
+				int mz = n - z;
+				
+				mH0ConjRe[z * n + x] = re[mz * n + mx];
+				mH0ConjIm[z * n + x] = -im[mz * n + mx];
+			}
+		}
+		
+		/* Collect the distinct |k| in use, with their dispersion w = sqrt(g |k|). */
+		int radiusCount = 0;
+		for (boolean used : radiusUsed)
+		{
+			radiusCount += (used ? 1 : 0);
+		}
+		
+		mPhaseRadii = new int[radiusCount];
+		mPhaseOmega = new float[radiusCount];
+		mPhaseCos = new float[radiusUsed.length];
+		mPhaseSin = new float[radiusUsed.length];
+		
+		for (int radius = 0, i = 0; radius < radiusUsed.length; ++radius)
+		{
+			if (radiusUsed[radius])
+			{
+				float kLength = (float)Math.sqrt(radius) * (mWavenumbers[1] - mWavenumbers[0]);
+				mPhaseRadii[i] = radius;
+				mPhaseOmega[i] = (float)Math.sqrt(GRAVITY * kLength);
+				++i;
+			}
+		}
+	}
+	
+	/**
+	 * Splits each pass into one band of rows (or columns) per thread, and starts the workers.
+	 */
+	private void initializeTasks(int threadCount)
+	{
+		int n = mResolution;
+		int bands = Math.min(threadCount, n);
+		
+		for (int band = 0; band < bands; ++band)
+		{
+			final int first = band * n / bands;
+			final int last = (band + 1) * n / bands;
+			final int firstRadius = band * mPhaseRadii.length / bands;
+			final int lastRadius = (band + 1) * mPhaseRadii.length / bands;
+			
+			mPhaseTasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					computePhases(firstRadius, lastRadius);
+					return null;
+				}
+			});
+			
+			mSpectrumTasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					evolveSpectrum(first, last);
+					return null;
+				}
+			});
+			
+			mColumnTasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					transformColumns(first, last);
+					return null;
+				}
+			});
+			
+			mOutputTasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					writeOutputs(first, last);
+					return null;
+				}
+			});
+		}
+		
+		if (bands > 1)
+		{
+			mWorkers = Executors.newFixedThreadPool(bands, new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "OceanSimulation");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Sets how many times per second `update()` actually advances the simulation.
+	 */
+	public void setUpdateRate(float updatesPerSecond)
+	{
+		mUpdateInterval = 1.0f / updatesPerSecond;
+	}
+	
+	/**
+	 * Returns how many times per second `update()` actually advances the simulation.
+	 */
+	public float getUpdateRate()
+	{
+		return 1.0f / mUpdateInterval;
+	}
+	
+	/**
+	 * Sets how strongly waves are displaced horizontally towards their crests. 0 gives smooth,
+	 * purely vertical waves; much above 1, crests fold over themselves.
+	 */
+	public void setChoppiness(float choppiness)
+	{
+		mChoppiness = choppiness;
+	}
+	
+	/**
+	 * Returns how strongly waves are displaced horizontally towards their crests.
+	 */
+	public float getChoppiness()
+	{
+		return mChoppiness;
+	}
+	
+	/**
+	 * Returns the number of grid points along each side of the patch.
+	 */
+	public int getResolution()
+	{
+		return mResolution;
+	}
+	
+	/**
+	 * Returns the width of the patch, in world units.
+	 */
+	public float getPatchSize()
+	{
+		return mPatchSize;
+	}
+	
+	/**
+	 * Returns true if `update()` at the given time would advance the simulation, i.e. if it was last
+	 * advanced at least one update interval (see `setUpdateRate()`) ago.
+	 */
+	public boolean isDue(float time)
+	{
+		return (time - mLastUpdateTime >= mUpdateInterval || time < mLastUpdateTime);
+	}
+	
+	/**
+	 * Advances the simulation to the given time, unless it isn't due yet (see `isDue()`). The new
+	 * surface goes to the back outputs; see `swapOutputs()`.
+	 *
+	 * @param time Time in seconds.
+	 * @return True if the back outputs changed.
+	 */
+	public boolean update(float time)
+	{
+		if (!isDue(time))
+		{
+			return false;
+		}
+		
+		simulate(time);
+		mLastUpdateTime = time;
+		return true;
+	}
+	
+	/**
+	 * Computes the surface at the given time into the back outputs, regardless of the update rate.
+	 *
+	 * @param time Time in seconds.
+	 */
+	public void simulate(float time)
+	{
+		mTime = time;
+		
+		runPass(mPhaseTasks);
+		runPass(mSpectrumTasks);
+		runPass(mColumnTasks);
+		runPass(mOutputTasks);
+	}
+	
+	/**
+	 * Runs the tasks of one pass, in parallel if there are workers, and waits for them all to finish.
+	 */
+	private void runPass(List<Callable<Object>> tasks)
+	{
+		try
+		{
+			if (mWorkers == null)
+			{
+				for (Callable<Object> task : tasks)
+				{
+					task.call();
+				}
+			}
+			else
+			{
+				for (Future<Object> result : mWorkers.invokeAll(tasks))
+				{
+					result.get();
+				}
+			}
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException err)
+		{
+			throw new RuntimeException("Ocean simulation failed.", err.getCause());
+		}
+		catch (Exception err)
+		{
+			throw new RuntimeException("Ocean simulation failed.", err);
+		}
+	}
+	
+	/**
+	 * Computes cos(w t) and sin(w t) for entries [first, last) of the distinct wavenumber magnitudes.
+	 */
+	private void computePhases(int first, int last)
+	{
+		for (int i = first; i < last; ++i)
+		{
+			float phase = mPhaseOmega[i] * mTime;
+			mPhaseCos[mPhaseRadii[i]] = (float)Math.cos(phase);
+			mPhaseSin[mPhaseRadii[i]] = (float)Math.sin(phase);
+		}
+	}
+	
+	/**
+	 * Fills rows [first, last) of the three fields with the spectrum at the current time, and
+	 * transforms them along x.
+	 */
+	private void evolveSpectrum(int first, int last)
+	{
+		int n = mResolution;
+		float re0[] = mRe[0], im0[] = mIm[0];
+		float re1[] = mRe[1], im1[] = mIm[1];
+		float re2[] = mRe[2], im2[] = mIm[2];
+		
+		for (int z = first; z < last; ++z)
+		{
+			float kz = mWavenumbers[z];
+			int radiusZ = (z - n / 2) * (z - n / 2);
+			
+			for (int x = 0; x < n; ++x)
+			{
+				int index = z * n + x;
+				int radius = (x - n / 2) * (x - n / 2) + radiusZ;
+				float kx = mWavenumbers[x];
+				float kLength = (float)Math.sqrt(kx * kx + kz * kz);
+				
+				/* h(k, t) = h0(k) exp(i w t) + conj(h0(-k)) exp(-i w t) */
+				float c = mPhaseCos[radius];
+				float s = mPhaseSin[radius];
+				
+				float hRe = (mH0Re[index] + mH0ConjRe[index]) * c - (mH0Im[index] - mH0ConjIm[index]) * s;
+				float hIm = (mH0Re[index] - mH0ConjRe[index]) * s + (mH0Im[index] + mH0ConjIm[index]) * c;
+				
+				/* Since all five fields are real, pairs of them share one transform as real and imaginary
+				 * parts. Slopes are (i kx h, i kz h); displacements are (-i kx/|k| h, -i kz/|k| h). */
+				float dx = (kLength == 0.0f ? 0.0f : kx / kLength);
+				float dz = (kLength == 0.0f ? 0.0f : kz / kLength);
+				
+				/* height + i slopeX = h (1 - kx) */
+				re0[index] = hRe * (1.0f - kx);
+				im0[index] = hIm * (1.0f - kx);
+				
+				/* slopeZ + i displacementX = h (dx + i kz) */
+				re1[index] = hRe * dx - hIm * kz;
+				im1[index] = hRe * kz + hIm * dx;
+				
+				/* displacementZ = h (-i dz) */
+				re2[index] = hIm * dz;
+				im2[index] = -hRe * dz;
+			}
+			
+			for (int field = 0; field < 3; ++field)
+			{
+				inverseFFT(mRe[field], mIm[field], z * n, 1);
+			}
+		}
+	}
+	
+	/**
+	 * Transforms columns [first, last) of the three fields along z.
+	 */
+	private void transformColumns(int first, int last)
+	{
+		int n = mResolution;
+		
+		/* Transpose blocks of adjacent columns into contiguous scratch arrays, so each row of the
+		 * field is read a cache line at a time rather than a single value at a time. */
+		int block = COLUMN_BLOCK;
+		float re[] = new float[block * n];
+		float im[] = new float[block * n];
+		
+		for (int field = 0; field < 3; ++field)
+		{
+			float fieldRe[] = mRe[field];
+			float fieldIm[] = mIm[field];
+			
+			for (int x0 = first; x0 < last; x0 += block)
+			{
+				int width = Math.min(block, last - x0);
+				
+				for (int z = 0; z < n; ++z)
+				{
+					for (int i = 0; i < width; ++i)
+					{
+						re[i * n + z] = fieldRe[z * n + x0 + i];
+						im[i * n + z] = fieldIm[z * n + x0 + i];
+					}
+				}
+				
+				for (int i = 0; i < width; ++i)
+				{
+					inverseFFT(re, im, i * n, 1);
+				}
+				
+				for (int z = 0; z < n; ++z)
+				{
+					for (int i = 0; i < width; ++i)
+					{
+						fieldRe[z * n + x0 + i] = re[i * n + z];
+						fieldIm[z * n + x0 + i] = im[i * n + z];
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Unpacks rows [first, last) of the transformed fields into the output buffers.
+	 */
+	private void writeOutputs(int first, int last)
+	{
+		int n = mResolution;
+		float re0[] = mRe[0], im0[] = mIm[0];
+		float re1[] = mRe[1], im1[] = mIm[1];
+		float re2[] = mRe[2];
+		FloatBuffer displacement = mDisplacement[mBack];
+		ByteBuffer normals = mNormals[mBack];
+		
+		for (int z = first; z < last; ++z)
+		{
+			for (int x = 0; x < n; ++x)
+			{
+				int index = z * n + x;
+				
+				/* The spectrum is centered on k = 0, which shifts every other sample's sign. */
+				float sign = (((x + z) & 1) == 0 ? 1.0f : -1.0f);
+				
+				float height = sign * re0[index];
+				float slopeX = sign * im0[index];
+				float slopeZ = sign * re1[index];
+				float displacementX = sign * im1[index] * mChoppiness;
+				float displacementZ = sign * re2[index] * mChoppiness;
+				
+				displacement.put(3 * index + 0, displacementX);
+				displacement.put(3 * index + 1, height);
+				displacement.put(3 * index + 2, displacementZ);
+				
+				float invLength = 1.0f / (float)Math.sqrt(slopeX * slopeX + 1.0f + slopeZ * slopeZ);
+				normals.put(4 * index + 0, toUnsignedByte(-slopeX * invLength));
+				normals.put(4 * index + 1, toUnsignedByte(invLength));
+				normals.put(4 * index + 2, toUnsignedByte(-slopeZ * invLength));
+				normals.put(4 * index + 3, (byte)255);
+			}
+		}
+	}
+	
+	/**
+	 * Maps [-1, 1] onto an unsigned byte.
+	 */
+	private static byte toUnsignedByte(float value)
+	{
+		return (byte)Math.round(127.5f * value + 127.5f);
+	}
+	
+	/**
+	 * In-place radix-2 inverse FFT (exponent +2 pi i, no 1/N normalization) of N samples starting at
+	 * `offset`, `stride` apart.
+	 */
+	private void inverseFFT(float re[], float im[], int offset, int stride)
+	{
+		int n = mResolution;
+		
+		for (int i = 0; i < n; ++i)
+		{
+			int j = mBitReverse[i];
+			if (j > i)
+			{
+				int a = offset + i * stride;
+				int b = offset + j * stride;
+				
+				float tempRe = re[a];
+				re[a] = re[b];
+				re[b] = tempRe;
+				
+				float tempIm = im[a];
+				im[a] = im[b];
+				im[b] = tempIm;
+			}
+		}
+		
+		for (int size = 2; size <= n; size <<= 1)
+		{
+			int half = size >> 1;
+			int twiddleStep = n / size;
+			
+			for (int start = 0; start < n; start += size)
+			{
+				for (int k = 0; k < half; ++k)
+				{
+					float wRe = mTwiddleRe[k * twiddleStep];
+					float wIm = mTwiddleIm[k * twiddleStep];
+					
+					int a = offset + (start + k) * stride;
+					int b = a + half * stride;
+					
+					float tRe = re[b] * wRe - im[b] * wIm;
+					float tIm = re[b] * wIm + im[b] * wRe;
+					
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Makes the outputs of the last update the front ones, returned by `getDisplacementData()` and
+	 * `getNormalData()`, and the previous front ones the target of the next update. Must not be
+	 * called while an update is running.
+	 */
+	public void swapOutputs()
+	{
+		mBack = 1 - mBack;
+	}
+	
+	/**
+	 * Returns the front displacement of each grid point: RGB FLOAT32, (x offset, height, z offset).
+	 * Updates don't touch it, so it can be read while one runs, until the next `swapOutputs()`.
+	 */
+	public FloatBuffer getDisplacementData()
+	{
+		return mDisplacement[1 - mBack];
+	}
+	
+	/**
+	 * Returns the front unit normal of each grid point: RGBA INT8, `0.5 * normal + 0.5` with alpha 1.
+	 * Updates don't touch it, so it can be read while one runs, until the next `swapOutputs()`.
+	 */
+	public ByteBuffer getNormalData()
+	{
+		return mNormals[1 - mBack];
+	}
+	
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown()
+	{
+		if (mWorkers != null)
+		{
+			mWorkers.shutdown();
+		}
+	}
+}
@@ -26,23 +26,16 @@ public class PerlinNoiseGenerator {
 	   int width = baseNoise.length;
 	   int height = baseNoise[0].length;
 	 
-	   float[][][] smoothNoise = new float[octaveCount][][]; //an array of 2D arrays containing different smooth noise arrays
-	 
 	   float persistance = 0.5f;
 	 
-	   //generate smooth noise
-	   for (int i = 0; i < octaveCount; i++)
-	   {
-	       smoothNoise[i] = generateSmoothNoise(baseNoise, i);
-	   }
-	 
 	    float[][] perlinNoise = new float[width][height];
 	    float amplitude = 1.0f;
 	    float totalAmplitude = 0.0f;
 	 
-	    //blend noise together
+	    //generate each octave of smooth noise and blend it in right away, so only one is alive at a time
 	    for (int octave = octaveCount - 1; octave >= 0; octave--)
 	    {
+	       float[][] smoothNoise = generateSmoothNoise(baseNoise, octave);
 	       amplitude *= persistance;
 	       totalAmplitude += amplitude;
 	 
@@ -50,7 +43,7 @@ public class PerlinNoiseGenerator {
 	       {
 	          for (int j = 0; j < height; j++)
 	          {
-	             perlinNoise[i][j] += smoothNoise[octave][i][j] * amplitude;
+	             perlinNoise[i][j] += smoothNoise[i][j] * amplitude;
 	          }
 	       }
 	    }
@@ -118,7 +111,7 @@ public class PerlinNoiseGenerator {
 		{
 			random = new Random(seed);
 		}
-	    float[][] noise = new float[1024][1024];
+	    float[][] noise = new float[width][height];
 	 
 	    for (int i = 0; i < width; i++)
 	    {
@@ -0,0 +1,145 @@
+package cs5625.deferred.procedural;
+
+import java.nio.FloatBuffer;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * SplatWeightGenerator.java
+ *
+ * Precomputes per-vertex blend ("splat") weights for the four terrain layers -- sand, grass, rock
+ * and snow, in that order -- so the terrain shader can blend them with a single weighted sum instead
+ * of choosing layers per fragment.
+ *
+ * Weights come from two sources:
+ *
+ *  - Height: a list of stops, each naming the layer found at a height, with linear blends between
+ *    consecutive stops. The defaults reproduce the original height bands of material_terrain.fp.
+ *  - Slope: where the surface normal tilts away from vertical, rock takes over from whatever the
+ *    height alone would give, so cliffs show rock even at grass or snow altitudes.
+ *
+ * The weights of each vertex sum to 1. Store them in a mesh's `WEIGHT_ATTRIBUTE` vertex attribute.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class SplatWeightGenerator
+{
+	/** Name of the 4-component per-vertex attribute holding the weights. */
+	public static final String WEIGHT_ATTRIBUTE = "SplatWeights";
+	
+	/** Layer indices, i.e. components of the weight attribute. */
+	public static final int SAND = 0;
+	public static final int GRASS = 1;
+	public static final int ROCK = 2;
+	public static final int SNOW = 3;
+	
+	/* Height stops, in increasing order of height, and the layer at each. */
+	private float mStopHeights[] = new float[] { 5.5f, 7.0f, 10.0f, 12.0f, 20.0f, 25.0f };
+	private int mStopLayers[] = new int[] { SAND, GRASS, GRASS, ROCK, ROCK, SNOW };
+	
+	/* Normal y components between which the slope blends to rock. */
+	private float mSlopeStart = 0.8f;
+	private float mSlopeEnd = 0.6f;
+	
+	/**
+	 * Replaces the height stops. Below the first stop the first layer is used, above the last the last.
+	 *
+	 * @param heights Heights of the stops, in increasing order.
+	 * @param layers The layer (`SAND`, `GRASS`, `ROCK` or `SNOW`) found at each stop.
+	 */
+	public void setHeightStops(float heights[], int layers[])
+	{
+		if (heights.length == 0 || heights.length != layers.length)
+		{
+			throw new IllegalArgumentException("Need matching, non-empty arrays of stop heights and layers.");
+		}
+		
+		mStopHeights = heights.clone();
+		mStopLayers = layers.clone();
+	}
+	
+	/**
+	 * Sets the slope range over which rock takes over, as the y component of the unit normal. Surfaces
+	 * flatter than `start` are unaffected; surfaces steeper than `end` are pure rock.
+	 * Pass a `start` below -1 to disable slope-based rock.
+	 */
+	public void setSlopeRange(float start, float end)
+	{
+		mSlopeStart = start;
+		mSlopeEnd = end;
+	}
+	
+	/**
+	 * Computes the weights of a single point.
+	 *
+	 * @param height The point's height (world space y).
+	 * @param normalY The y component of the point's unit normal.
+	 * @param weights Receives the sand, grass, rock and snow weights.
+	 */
+	public void computeWeights(float height, float normalY, float weights[])
+	{
+		weights[SAND] = weights[GRASS] = weights[ROCK] = weights[SNOW] = 0.0f;
+		
+		/* Find the stops on either side of this height and blend their layers. */
+		int last = mStopHeights.length - 1;
+		
+		if (height <= mStopHeights[0])
+		{
+			weights[mStopLayers[0]] = 1.0f;
+		}
+		else if (height >= mStopHeights[last])
+		{
+			weights[mStopLayers[last]] = 1.0f;
+		}
+		else
+		{
+			int stop = 0;
+			while (height >= mStopHeights[stop + 1])
+			{
+				++stop;
+			}
+			
+			float t = (height - mStopHeights[stop]) / (mStopHeights[stop + 1] - mStopHeights[stop]);
+			weights[mStopLayers[stop]] += 1.0f - t;
+			weights[mStopLayers[stop + 1]] += t;
+		}
+		
+		/* Blend toward pure rock on steep slopes. */
+		if (normalY < mSlopeStart)
+		{
+			float steepness = Math.min(1.0f, (mSlopeStart - normalY) / Math.max(mSlopeStart - mSlopeEnd, 1e-6f));
+			
+			for (int layer = 0; layer < 4; ++layer)
+			{
+				weights[layer] *= 1.0f - steepness;
+			}
+			
+			weights[ROCK] += steepness;
+		}
+	}
+	
+	/**
+	 * Computes the weights of every vertex of a mesh.
+	 *
+	 * @param vertices Vertex positions, 3 floats per vertex.
+	 * @param normals Unit vertex normals, 3 floats per vertex; may be null, in which case only height is used.
+	 * @return A new buffer of weights, 4 floats per vertex, suitable for `WEIGHT_ATTRIBUTE`.
+	 */
+	public FloatBuffer generate(FloatBuffer vertices, FloatBuffer normals)
+	{
+		int vertexCount = vertices.capacity() / 3;
+		FloatBuffer result = Buffers.newDirectFloatBuffer(4 * vertexCount);
+		float weights[] = new float[4];
+		
+		for (int v = 0; v < vertexCount; ++v)
+		{
+			float normalY = (normals == null ? 1.0f : normals.get(3 * v + 1));
+			computeWeights(vertices.get(3 * v + 1), normalY, weights);
+			result.put(weights);
+		}
+		
+		result.rewind();
+		return result;
+	}
+}
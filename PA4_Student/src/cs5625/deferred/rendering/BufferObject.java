@@ -0,0 +1,253 @@
+package cs5625.deferred.rendering;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import javax.media.opengl.GL2;
+
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+
+/**
+ * BufferObject.java
+ *
+ * The BufferObject class keeps a copy of one client-side NIO buffer in an OpenGL buffer object
+ * (vertex or index data), and tracks which part of it has changed since it was last uploaded.
+ *
+ * Storage is allocated lazily by the first `update()`, and reallocated only when the size of
+ * the data changes; otherwise only the dirty range is copied with `glBufferSubData()`. Buffers
+ * which are modified after their first upload are reallocated as GL_DYNAMIC_DRAW instead of
+ * GL_STATIC_DRAW.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class BufferObject implements OpenGLResourceObject
+{
+	/* Buffer target (GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER) and OpenGL name. */
+	private int mTarget;
+	private int mHandle = -1;
+	
+	/* Size of the current GPU storage in bytes, or -1 if none has been allocated. */
+	private long mAllocatedSize = -1;
+	private int mUsage = GL2.GL_STATIC_DRAW;
+	
+	/* Dirty range, in elements of the client buffer: [mDirtyFirst, mDirtyEnd). Empty if first >= end. */
+	private int mDirtyFirst = 0;
+	private int mDirtyEnd = Integer.MAX_VALUE;
+	
+	/**
+	 * Creates a buffer object for the given target. No OpenGL resources are created until the
+	 * first `update()`.
+	 *
+	 * @param target GL_ARRAY_BUFFER for vertex data or GL_ELEMENT_ARRAY_BUFFER for indices.
+	 */
+	public BufferObject(int target)
+	{
+		mTarget = target;
+	}
+	
+	/**
+	 * Returns the OpenGL name of the buffer, or -1 if it has not been uploaded yet.
+	 */
+	public int getHandle()
+	{
+		return mHandle;
+	}
+	
+	/**
+	 * Returns the buffer target passed to the constructor.
+	 */
+	public int getTarget()
+	{
+		return mTarget;
+	}
+	
+	/**
+	 * Returns true if any part of the data has changed since the last `update()`.
+	 */
+	public boolean isDirty()
+	{
+		return mDirtyFirst < mDirtyEnd;
+	}
+	
+	/**
+	 * Marks all of the data as changed, e.g. because the client buffer was replaced.
+	 */
+	public void markDirty()
+	{
+		mDirtyFirst = 0;
+		mDirtyEnd = Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Marks part of the data as changed. Successive calls between updates are merged into one
+	 * range covering all of them.
+	 *
+	 * @param first Index of the first changed element (float, int, etc.) of the client buffer.
+	 * @param count Number of changed elements.
+	 */
+	public void markDirty(int first, int count)
+	{
+		if (count <= 0)
+		{
+			return;
+		}
+		
+		if (isDirty())
+		{
+			mDirtyFirst = Math.min(mDirtyFirst, first);
+			mDirtyEnd = Math.max(mDirtyEnd, first + count);
+		}
+		else
+		{
+			mDirtyFirst = first;
+			mDirtyEnd = first + count;
+		}
+	}
+	
+	/**
+	 * Forgets any pending changes without uploading them, e.g. because the data is being sent 
+	 * to the GPU some other way.
+	 */
+	public void markClean()
+	{
+		mDirtyFirst = 0;
+		mDirtyEnd = 0;
+	}
+	
+	/**
+	 * Copies any dirty part of `data` to the GPU, creating or resizing the buffer as needed.
+	 * The whole capacity of `data` is used, regardless of its position and limit.
+	 * Leaves the buffer bound to its target.
+	 *
+	 * @param gl The OpenGL state.
+	 * @param data The client-side data. Must be a direct Byte-, Short-, Int-, or FloatBuffer.
+	 */
+	public void update(GL2 gl, Buffer data) throws OpenGLException
+	{
+		if (mHandle < 0)
+		{
+			int names[] = new int[1];
+			gl.glGenBuffers(1, names, 0);
+			mHandle = names[0];
+		}
+		
+		int elementSize = getElementSize(data);
+		long size = (long)data.capacity() * elementSize;
+		
+		gl.glBindBuffer(mTarget, mHandle);
+		
+		if (size != mAllocatedSize)
+		{
+			/* A buffer being reallocated after its first upload is evidently not static. */
+			if (mAllocatedSize >= 0)
+			{
+				mUsage = GL2.GL_DYNAMIC_DRAW;
+			}
+			
+			gl.glBufferData(mTarget, size, rewound(data, 0, data.capacity()), mUsage);
+			mAllocatedSize = size;
+		}
+		else if (isDirty())
+		{
+			int first = Math.max(mDirtyFirst, 0);
+			int end = Math.min(mDirtyEnd, data.capacity());
+			
+			if (first < end)
+			{
+				mUsage = GL2.GL_DYNAMIC_DRAW;
+				gl.glBufferSubData(mTarget, (long)first * elementSize, (long)(end - first) * elementSize, rewound(data, first, end));
+			}
+		}
+		
+		mDirtyFirst = 0;
+		mDirtyEnd = 0;
+		
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
+	/**
+	 * Binds the buffer to its target. It must have been uploaded with `update()` first.
+	 */
+	public void bind(GL2 gl)
+	{
+		gl.glBindBuffer(mTarget, mHandle);
+	}
+	
+	/**
+	 * Unbinds whatever buffer is bound to this buffer's target.
+	 */
+	public void unbind(GL2 gl)
+	{
+		gl.glBindBuffer(mTarget, 0);
+	}
+	
+	/**
+	 * Returns a view of elements [first, end) of a buffer, without disturbing the buffer's own position and limit.
+	 */
+	private static Buffer rewound(Buffer data, int first, int end)
+	{
+		Buffer view;
+		
+		if (data instanceof FloatBuffer)
+		{
+			view = ((FloatBuffer)data).duplicate();
+		}
+		else if (data instanceof IntBuffer)
+		{
+			view = ((IntBuffer)data).duplicate();
+		}
+		else if (data instanceof ShortBuffer)
+		{
+			view = ((ShortBuffer)data).duplicate();
+		}
+		else
+		{
+			view = ((ByteBuffer)data).duplicate();
+		}
+		
+		view.limit(end);
+		view.position(first);
+		return view;
+	}
+	
+	/**
+	 * Returns the size in bytes of one element of a buffer.
+	 */
+	private static int getElementSize(Buffer data) throws OpenGLException
+	{
+		if (data instanceof FloatBuffer || data instanceof IntBuffer)
+		{
+			return 4;
+		}
+		else if (data instanceof ShortBuffer)
+		{
+			return 2;
+		}
+		else if (data instanceof ByteBuffer)
+		{
+			return 1;
+		}
+		
+		throw new OpenGLException("Unsupported buffer type " + data.getClass().getName() + ".");
+	}
+	
+	/**
+	 * Releases the OpenGL buffer. The next `update()` will recreate and fully re-upload it.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		if (mHandle >= 0)
+		{
+			gl.glDeleteBuffers(1, new int[] { mHandle }, 0);
+			mHandle = -1;
+		}
+		
+		mAllocatedSize = -1;
+		markDirty();
+	}
+}
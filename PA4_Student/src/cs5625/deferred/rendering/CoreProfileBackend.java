@@ -0,0 +1,296 @@
+package cs5625.deferred.rendering;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+import cs5625.deferred.scenegraph.Mesh;
+import cs5625.deferred.scenegraph.PackedVertexData;
+
+/**
+ * CoreProfileBackend.java
+ *
+ * Draws meshes and fullscreen passes using only core-profile (GL 3+) features: vertex array objects,
+ * vertex and index buffers, generic vertex attributes at the locations fixed by `ShaderProgram`, and
+ * triangles rather than quads. Transforms are supplied to shaders as uniforms (see
+ * `ShaderProgram.setModelviewMatrix()`), so nothing here touches the matrix stack.
+ *
+ * Meshes are drawn from their own buffer objects (see `Mesh.updateGPUBuffers()`), through one shared
+ * vertex array object whose attribute pointers are reset for each mesh.
+ *
+ * The renderer uses this instead of fixed-function vertex arrays and immediate mode when core-profile
+ * rendering is enabled; see `Renderer.setUseCoreProfile()`.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class CoreProfileBackend implements OpenGLResourceObject
+{
+	/* Vertex array objects for meshes and for the fullscreen triangles. */
+	private int mMeshVertexArray = -1;
+	private int mFullscreenVertexArray = -1;
+	private int mFullscreenBuffer = -1;
+	
+	/**
+	 * Creates the vertex arrays and buffers used for drawing.
+	 */
+	public CoreProfileBackend(GL2 gl) throws OpenGLException
+	{
+		int names[] = new int[2];
+		
+		gl.glGenVertexArrays(2, names, 0);
+		mMeshVertexArray = names[0];
+		mFullscreenVertexArray = names[1];
+		
+		gl.glGenBuffers(1, names, 0);
+		mFullscreenBuffer = names[0];
+		
+		/* The fullscreen pass is two triangles covering clip space. */
+		FloatBuffer fullscreen = Buffers.newDirectFloatBuffer(new float[] {
+			-1.0f, -1.0f,   1.0f, -1.0f,   1.0f,  1.0f,
+			-1.0f, -1.0f,   1.0f,  1.0f,  -1.0f,  1.0f
+		});
+		
+		gl.glBindVertexArray(mFullscreenVertexArray);
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mFullscreenBuffer);
+		gl.glBufferData(GL2.GL_ARRAY_BUFFER, fullscreen.capacity() * Buffers.SIZEOF_FLOAT, fullscreen, GL2.GL_STATIC_DRAW);
+		gl.glEnableVertexAttribArray(ShaderProgram.POSITION_ATTRIB_LOCATION);
+		gl.glVertexAttribPointer(ShaderProgram.POSITION_ATTRIB_LOCATION, 2, GL2.GL_FLOAT, false, 0, 0);
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+		
+		try
+		{
+			OpenGLException.checkOpenGLError(gl);
+		}
+		catch (OpenGLException err)
+		{
+			releaseGPUResources(gl);
+			throw err;
+		}
+	}
+	
+	/**
+	 * Draws a mesh's polygons with the bound shader, which must be a core-profile shader with its 
+	 * transforms already set.
+	 *
+	 * @param gl The OpenGL state.
+	 * @param mesh The mesh to draw.
+	 * @param shader The bound shader.
+	 * @param requiredAttributes Custom vertex attributes required by the shader (see 
+	 *        `Material.getRequiredVertexAttributes()`), supplied by the mesh's `vertexAttribData` or 
+	 *        per-instance values.
+	 */
+	public void drawMesh(GL2 gl, Mesh mesh, ShaderProgram shader, String requiredAttributes[]) throws OpenGLException
+	{
+		bindMesh(gl, mesh, shader, requiredAttributes);
+		
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.getTriangleBufferHandle(gl));
+		gl.glDrawElements(getPrimitiveType(mesh.getVerticesPerPolygon()), mesh.getTriangleIndexCount(), GL2.GL_UNSIGNED_INT, 0);
+		
+		unbindMesh(gl, shader, requiredAttributes);
+	}
+	
+	/**
+	 * Draws a mesh's marked edges (e.g. subdivision creases) as lines with the bound shader, if it has any.
+	 */
+	public void drawEdges(GL2 gl, Mesh mesh, ShaderProgram shader) throws OpenGLException
+	{
+		if (mesh.getEdgeData() != null)
+		{
+			String noAttributes[] = new String[0];
+			bindMesh(gl, mesh, shader, noAttributes);
+			
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.getBufferHandle(Mesh.EDGE_STREAM));
+			gl.glDrawElements(GL2.GL_LINES, mesh.getEdgeData().capacity(), GL2.GL_UNSIGNED_INT, 0);
+			
+			unbindMesh(gl, shader, noAttributes);
+		}
+	}
+	
+	/**
+	 * Draws two triangles covering the viewport. The bound shader reads `VertexPosition` in clip space.
+	 */
+	public void drawFullscreen(GL2 gl) throws OpenGLException
+	{
+		gl.glBindVertexArray(mFullscreenVertexArray);
+		gl.glDrawArrays(GL2.GL_TRIANGLES, 0, 6);
+		gl.glBindVertexArray(0);
+		
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
+	/**
+	 * Uploads any changed mesh data, points the mesh vertex array at the mesh's buffer objects, and 
+	 * sets the shader's position dequantization for the mesh.
+	 */
+	private void bindMesh(GL2 gl, Mesh mesh, ShaderProgram shader, String requiredAttributes[]) throws OpenGLException
+	{
+		if (mesh.getVertexData() == null)
+		{
+			throw new OpenGLException("Mesh must have non-null vertex data to render!");
+		}
+		
+		mesh.updateGPUBuffers(gl);
+		shader.setPositionDequantization(gl, mesh.getPositionScale(), mesh.getPositionBias());
+		
+		PackedVertexData packed = mesh.getPackedVertexData();
+		
+		gl.glBindVertexArray(mMeshVertexArray);
+		
+		if (packed != null)
+		{
+			int handle = mesh.getPackedBufferHandle();
+			bindAttribute(gl, ShaderProgram.POSITION_ATTRIB_LOCATION, packed.getPosition(), packed.getStride(), handle);
+			bindAttribute(gl, ShaderProgram.NORMAL_ATTRIB_LOCATION, packed.getNormal(), packed.getStride(), handle);
+			bindAttribute(gl, ShaderProgram.TEXCOORD_ATTRIB_LOCATION, packed.getTexCoord(), packed.getStride(), handle);
+		}
+		else
+		{
+			bindAttribute(gl, ShaderProgram.POSITION_ATTRIB_LOCATION, 3, mesh.getBufferHandle(Mesh.VERTEX_STREAM));
+			bindAttribute(gl, ShaderProgram.NORMAL_ATTRIB_LOCATION, 3, (mesh.getNormalData() == null ? -1 : mesh.getBufferHandle(Mesh.NORMAL_STREAM)));
+			bindAttribute(gl, ShaderProgram.TEXCOORD_ATTRIB_LOCATION, 2, (mesh.getTexCoordData() == null ? -1 : mesh.getBufferHandle(Mesh.TEXCOORD_STREAM)));
+		}
+		
+		for (String attrib : requiredAttributes)
+		{
+			int location = shader.getAttribLocation(gl, attrib);
+			
+			if (location >= 0 && !mesh.bindInstanceAttrib(gl, attrib, location))
+			{
+				FloatBuffer data = mesh.vertexAttribData.get(attrib);
+				if (data == null)
+				{
+					throw new OpenGLException("Material requires vertex attribute '" + attrib + "' which is not present in mesh's vertexAttribData.");
+				}
+				
+				if (packed != null)
+				{
+					bindAttribute(gl, location, packed.getAttribute(attrib), packed.getStride(), mesh.getPackedBufferHandle());
+				}
+				else
+				{
+					bindAttribute(gl, location, data.capacity() / mesh.getVertexCount(), mesh.getAttribBufferHandle(attrib));
+				}
+			}
+		}
+		
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Disables the custom attributes enabled by `bindMesh()`, since the next mesh's shader might 
+	 * not use them, and unbinds the vertex array.
+	 */
+	private void unbindMesh(GL2 gl, ShaderProgram shader, String requiredAttributes[])
+	{
+		for (String attrib : requiredAttributes)
+		{
+			int location = shader.getAttribLocation(gl, attrib);
+			
+			if (location >= 0)
+			{
+				gl.glDisableVertexAttribArray(location);
+			}
+		}
+		
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Points an attribute at one element of an interleaved packed vertex buffer, or disables it if 
+	 * `element` is null.
+	 */
+	private static void bindAttribute(GL2 gl, int location, PackedVertexData.Element element, int stride, int handle)
+	{
+		if (element == null)
+		{
+			gl.glDisableVertexAttribArray(location);
+		}
+		else
+		{
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, handle);
+			gl.glEnableVertexAttribArray(location);
+			gl.glVertexAttribPointer(location, element.getComponents(), element.getType(), element.isNormalized(), stride, element.getOffset());
+		}
+	}
+	
+	/**
+	 * Points an attribute at a whole vertex buffer, or disables it if `handle` is -1.
+	 */
+	private static void bindAttribute(GL2 gl, int location, int components, int handle)
+	{
+		if (handle < 0)
+		{
+			gl.glDisableVertexAttribArray(location);
+		}
+		else
+		{
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, handle);
+			gl.glEnableVertexAttribArray(location);
+			gl.glVertexAttribPointer(location, components, GL2.GL_FLOAT, false, 0, 0);
+		}
+	}
+	
+	/**
+	 * Returns the core-profile primitive type used to draw polygons with the given number of vertices.
+	 */
+	private static int getPrimitiveType(int verticesPerPolygon) throws OpenGLException
+	{
+		switch (verticesPerPolygon)
+		{
+		case 1: return GL2.GL_POINTS;
+		case 2: return GL2.GL_LINES;
+		case 3: return GL2.GL_TRIANGLES;
+		case 4: return GL2.GL_TRIANGLES; /* Triangulated by Mesh.getTriangleBufferHandle(). */
+		}
+		
+		throw new OpenGLException("Don't know how to render mesh with " + verticesPerPolygon + " vertices per polygon.");
+	}
+	
+	/**
+	 * Computes a column-major perspective projection matrix, as `gluPerspective()` would.
+	 *
+	 * @param fovY Vertical field of view, in degrees.
+	 * @param aspect Aspect ratio (width / height).
+	 * @param near Distance to the near plane.
+	 * @param far Distance to the far plane.
+	 * @param result Array of 16 floats to receive the matrix.
+	 */
+	public static void computePerspective(float fovY, float aspect, float near, float far, float result[])
+	{
+		float f = 1.0f / (float)Math.tan(Math.toRadians(fovY) / 2.0);
+		
+		Arrays.fill(result, 0.0f);
+		result[0] = f / aspect;
+		result[5] = f;
+		result[10] = (far + near) / (near - far);
+		result[11] = -1.0f;
+		result[14] = 2.0f * far * near / (near - far);
+	}
+	
+	/**
+	 * Releases the vertex arrays and buffers.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		if (mMeshVertexArray >= 0)
+		{
+			gl.glDeleteVertexArrays(2, new int[] { mMeshVertexArray, mFullscreenVertexArray }, 0);
+			mMeshVertexArray = -1;
+			mFullscreenVertexArray = -1;
+		}
+		
+		if (mFullscreenBuffer >= 0)
+		{
+			gl.glDeleteBuffers(1, new int[] { mFullscreenBuffer }, 0);
+			mFullscreenBuffer = -1;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package cs5625.deferred.rendering;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * FrameProfiler.java
+ *
+ * Collects the CPU and GPU times of the stages of each frame: the render graph's passes, which
+ * record themselves (see `RenderGraph.setProfiler()`), and anything else timed with `recordCpu()`,
+ * such as animating the scene. Each stage's rolling percentiles are published as a JMX MBean named
+ * "cs5625.deferred:type=FrameStage,name=<stage>", so they can be watched from JConsole or VisualVM
+ * while the program runs, and `getReport()` formats them for printing or an on-screen overlay.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class FrameProfiler
+{
+	/* JMX domain of the stage MBeans. */
+	public static final String JMX_DOMAIN = "cs5625.deferred";
+	
+	/* Stages in the order first recorded. */
+	private LinkedHashMap<String, StageTimings> mStages = new LinkedHashMap<String, StageTimings>();
+	
+	/**
+	 * Records the CPU time of one frame of the named stage, in milliseconds.
+	 */
+	public void recordCpu(String stage, float millis)
+	{
+		getStage(stage).recordCpu(millis);
+	}
+	
+	/**
+	 * Records the GPU time of one frame of the named stage, in milliseconds.
+	 */
+	public void recordGpu(String stage, float millis)
+	{
+		getStage(stage).recordGpu(millis);
+	}
+	
+	/**
+	 * Returns the timings of the named stage, creating them (and registering their MBean) the first
+	 * time the stage is recorded.
+	 */
+	public synchronized StageTimings getStage(String name)
+	{
+		StageTimings stage = mStages.get(name);
+		
+		if (stage == null)
+		{
+			stage = new StageTimings(name);
+			mStages.put(name, stage);
+			register(stage);
+		}
+		
+		return stage;
+	}
+	
+	/**
+	 * Registers a stage's MBean with the platform MBean server, unless another profiler in this
+	 * process already has. Failure only costs the JMX view, so it is reported and otherwise ignored.
+	 */
+	private void register(StageTimings stage)
+	{
+		try
+		{
+			Hashtable<String, String> properties = new Hashtable<String, String>();
+			properties.put("type", "FrameStage");
+			properties.put("name", stage.getName());
+			ObjectName name = new ObjectName(JMX_DOMAIN, properties);
+			
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name))
+			{
+				server.registerMBean(stage, name);
+			}
+		}
+		catch (JMException err)
+		{
+			err.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Returns a table of the median, 95th and 99th percentile CPU and GPU times of each stage over
+	 * the last `StageTimings.WINDOW` frames.
+	 */
+	public synchronized String getReport()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-16s %23s   %23s\n", "stage (ms)", "cpu p50   p95   p99", "gpu p50   p95   p99"));
+		
+		for (StageTimings stage : mStages.values())
+		{
+			report.append(String.format("%-16s", stage.getName()));
+			appendPercentiles(report, stage.getCpuMillisP50(), stage.getCpuMillisP95(), stage.getCpuMillisP99());
+			appendPercentiles(report, stage.getGpuMillisP50(), stage.getGpuMillisP95(), stage.getGpuMillisP99());
+			report.append("\n");
+		}
+		
+		return report.toString();
+	}
+	
+	/**
+	 * Appends three percentiles to a report row, or a dash if the stage has no times of that kind.
+	 */
+	private static void appendPercentiles(StringBuilder report, float p50, float p95, float p99)
+	{
+		if (p50 < 0.0f)
+		{
+			report.append(String.format(" %23s  ", "-"));
+		}
+		else
+		{
+			report.append(String.format(" %11.2f %5.2f %5.2f  ", p50, p95, p99));
+		}
+	}
+}
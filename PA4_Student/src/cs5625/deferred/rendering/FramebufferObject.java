@@ -5,6 +5,7 @@ import javax.media.opengl.GL2;
 import cs5625.deferred.materials.Texture2D;
 import cs5625.deferred.materials.Texture.Datatype;
 import cs5625.deferred.materials.Texture.Format;
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.OpenGLResourceObject;
 
@@ -30,7 +31,7 @@ public class FramebufferObject implements OpenGLResourceObject
 	private int mWidth = -1;
 	private int mHeight = -1;
 	private boolean mIsBound = false;
-	private int mPreviousBinding[] = new int[1];
+	private int mPreviousBinding = 0;
 	
 	/**
 	 * Creates a new FBO with the passed attributes and number of render targets.
@@ -72,9 +73,8 @@ public class FramebufferObject implements OpenGLResourceObject
 		mHandle = names[0];
 		
 		/* Remember previous FBO binding, and then bind this one. */
-		int previousBinding[] = new int[1];
-		gl.glGetIntegerv(GL2.GL_FRAMEBUFFER_BINDING, previousBinding, 0);
-		gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, mHandle);
+		int previousBinding = GLState.getFramebuffer(gl, GL2.GL_FRAMEBUFFER);
+		GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, mHandle);
 		
 		/* Create and attach color textures. */
 		mColorTextures = new Texture2D[colorTextureCount];
@@ -100,7 +100,7 @@ public class FramebufferObject implements OpenGLResourceObject
 		}
 		
 		/* Restore whatever FBO was bound before this function was called. */
-		gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, previousBinding[0]);
+		GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, previousBinding);
 	}
 	
 	/**
@@ -127,6 +127,7 @@ public class FramebufferObject implements OpenGLResourceObject
 			int names[] = new int[1];
 			names[0] = mHandle;
 			gl.glDeleteFramebuffers(1, names, 0);
+			GLState.framebufferDeleted(mHandle);
 			mHandle = -1;
 		}
 	}
@@ -148,9 +149,9 @@ public class FramebufferObject implements OpenGLResourceObject
 		/* Save state and adjust viewport if this is the first bind. */
 		if (!mIsBound)
 		{
-			gl.glPushAttrib(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
-			gl.glGetIntegerv(GL2.GL_FRAMEBUFFER_BINDING, mPreviousBinding, 0);
-			gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, getHandle());
+			GLState.pushAttrib(gl, GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
+			mPreviousBinding = GLState.getFramebuffer(gl, GL2.GL_FRAMEBUFFER);
+			GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, getHandle());
 			gl.glViewport(0, 0, mWidth, mHeight);
 			mIsBound = true;
 		}
@@ -173,9 +174,9 @@ public class FramebufferObject implements OpenGLResourceObject
 		/* Save state and adjust viewport if this is the first bind. */
 		if (!mIsBound)
 		{
-			gl.glPushAttrib(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
-			gl.glGetIntegerv(GL2.GL_FRAMEBUFFER_BINDING, mPreviousBinding, 0);
-			gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, getHandle());
+			GLState.pushAttrib(gl, GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
+			mPreviousBinding = GLState.getFramebuffer(gl, GL2.GL_FRAMEBUFFER);
+			GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, getHandle());
 			gl.glViewport(0, 0, mWidth, mHeight);
 			mIsBound = true;
 		}
@@ -210,9 +211,9 @@ public class FramebufferObject implements OpenGLResourceObject
 		/* Save state and adjust viewport if this is the first bind. */
 		if (!mIsBound)
 		{
-			gl.glPushAttrib(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
-			gl.glGetIntegerv(GL2.GL_FRAMEBUFFER_BINDING, mPreviousBinding, 0);
-			gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, getHandle());
+			GLState.pushAttrib(gl, GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
+			mPreviousBinding = GLState.getFramebuffer(gl, GL2.GL_FRAMEBUFFER);
+			GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, getHandle());
 			gl.glViewport(0, 0, mWidth, mHeight);
 			mIsBound = true;
 		}
@@ -238,8 +239,8 @@ public class FramebufferObject implements OpenGLResourceObject
 	{
 		if (mIsBound)
 		{
-			gl.glBindFramebuffer(GL2.GL_FRAMEBUFFER, mPreviousBinding[0]);
-			gl.glPopAttrib();
+			GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, mPreviousBinding);
+			GLState.popAttrib(gl);
 			mIsBound = false;
 
 			OpenGLException.checkOpenGLError(gl);
@@ -0,0 +1,276 @@
+package cs5625.deferred.rendering;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import javax.media.opengl.GL2;
+import javax.vecmath.Point3f;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.misc.GLState;
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+import cs5625.deferred.scenegraph.Light;
+import cs5625.deferred.scenegraph.PointLight;
+
+/**
+ * LightBuffer.java
+ *
+ * The LightBuffer holds the eye-space description of every enabled light in the scene, in a texture
+ * buffer object which any shader can read. It is filled once per frame by the renderer, so that the
+ * ubershader and the forward-shaded materials share one copy of the light data instead of each
+ * uploading their own uniform arrays.
+ *
+ * Each light occupies three consecutive RGBA32F texels: eye-space position and radius, color, and 
+ * attenuation (constant, linear, quadratic). Shaders read it with `texelFetchBuffer()` from 
+ * EXT_gpu_shader4; see `ubershader.fp` for the accessor functions. The radius is the distance beyond
+ * which the light contributes less than `INTENSITY_CUTOFF`, and is used by `LightClusters` to bin 
+ * lights; it is infinite for lights without distance attenuation.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class LightBuffer implements OpenGLResourceObject
+{
+	/** Number of RGBA texels used to describe each light. */
+	public static final int TEXELS_PER_LIGHT = 3;
+
+	/** Light intensity below which a light is considered not to reach a point. */
+	public static final float INTENSITY_CUTOFF = 1.0f / 256.0f;
+
+	/* OpenGL objects: the buffer holding the data, and the texture through which shaders read it. */
+	private int mBufferHandle = -1;
+	private int mTextureHandle = -1;
+	private int mBoundUnit = -1;
+
+	/* Client-side copy of the light data, reused every frame and grown as needed. */
+	private FloatBuffer mData;
+	private int mLightCount = 0;
+	
+	/* Eye-space position and radius of each light (4 floats per light), for binning on the CPU. */
+	private float mBounds[];
+
+	/**
+	 * Creates the buffer and texture objects, with room for `initialCapacity` lights. 
+	 * The buffer grows if more lights than that are enabled.
+	 */
+	public LightBuffer(GL2 gl, int initialCapacity) throws OpenGLException
+	{
+		int names[] = new int[1];
+
+		gl.glGenBuffers(1, names, 0);
+		mBufferHandle = names[0];
+		allocate(gl, Math.max(initialCapacity, 1));
+
+		/* Create the texture which exposes the buffer to shaders. */
+		gl.glGenTextures(1, names, 0);
+		mTextureHandle = names[0];
+		GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, mTextureHandle);
+		gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_RGBA32F, mBufferHandle);
+		GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, 0);
+
+		try
+		{
+			OpenGLException.checkOpenGLError(gl);
+		}
+		catch (OpenGLException err)
+		{
+			releaseGPUResources(gl);
+			throw err;
+		}
+	}
+
+	/**
+	 * (Re)allocates client and GPU storage for the given number of lights, and attaches the 
+	 * buffer to the texture.
+	 */
+	private void allocate(GL2 gl, int capacity)
+	{
+		mData = Buffers.newDirectFloatBuffer(capacity * TEXELS_PER_LIGHT * 4);
+		mBounds = new float[capacity * 4];
+		
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, mBufferHandle);
+		gl.glBufferData(GL2.GL_TEXTURE_BUFFER, mData.capacity() * Buffers.SIZEOF_FLOAT, null, GL2.GL_DYNAMIC_DRAW);
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+		
+		if (mTextureHandle >= 0)
+		{
+			GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, mTextureHandle);
+			gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_RGBA32F, mBufferHandle);
+			GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, 0);
+		}
+	}
+
+	/**
+	 * Transforms every enabled light to eye space and uploads the results. Disabled lights are skipped,
+	 * so the enabled lights are always packed at the front of the buffer.
+	 *
+	 * @param gl The OpenGL state.
+	 * @param lights All lights in the scene.
+	 * @param camera The camera whose eye space the lights are transformed to.
+	 */
+	public void update(GL2 gl, ArrayList<Light> lights, Camera camera) throws OpenGLException
+	{
+		/* Count enabled lights first, so storage only has to grow once. */
+		int enabledCount = 0;
+		for (Light light : lights)
+		{
+			if (light.isEnabled())
+			{
+				++enabledCount;
+			}
+		}
+		
+		if (enabledCount * 4 > mBounds.length)
+		{
+			allocate(gl, Math.max(enabledCount, 2 * mBounds.length / 4));
+		}
+		
+		mData.clear();
+		mLightCount = 0;
+
+		for (Light light : lights)
+		{
+			if (!light.isEnabled())
+			{
+				continue;
+			}
+
+			Point3f eyespacePosition = camera.transformPointFromWorldSpace(light.transformPointToWorldSpace(new Point3f()));
+			float intensity = Math.max(light.getColor().x, Math.max(light.getColor().y, light.getColor().z));
+			float radius;
+			
+			mData.put(eyespacePosition.x).put(eyespacePosition.y).put(eyespacePosition.z);
+
+			if (light instanceof PointLight)
+			{
+				PointLight pointLight = (PointLight)light;
+				radius = computeRadius(intensity, pointLight.getConstantAttenuation(), pointLight.getLinearAttenuation(), pointLight.getQuadraticAttenuation());
+				
+				mData.put(radius);
+				mData.put(light.getColor().x).put(light.getColor().y).put(light.getColor().z).put(1.0f);
+				mData.put(pointLight.getConstantAttenuation()).put(pointLight.getLinearAttenuation()).put(pointLight.getQuadraticAttenuation()).put(0.0f);
+			}
+			else
+			{
+				radius = Float.POSITIVE_INFINITY;
+				
+				mData.put(radius);
+				mData.put(light.getColor().x).put(light.getColor().y).put(light.getColor().z).put(1.0f);
+				mData.put(1.0f).put(0.0f).put(0.0f).put(0.0f);
+			}
+			
+			mBounds[4 * mLightCount + 0] = eyespacePosition.x;
+			mBounds[4 * mLightCount + 1] = eyespacePosition.y;
+			mBounds[4 * mLightCount + 2] = eyespacePosition.z;
+			mBounds[4 * mLightCount + 3] = radius;
+
+			++mLightCount;
+		}
+
+		mData.flip();
+
+		/* Only upload the part of the buffer which is in use. */
+		if (mData.limit() > 0)
+		{
+			gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, mBufferHandle);
+			gl.glBufferSubData(GL2.GL_TEXTURE_BUFFER, 0, mData.limit() * Buffers.SIZEOF_FLOAT, mData);
+			gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+		}
+
+		OpenGLException.checkOpenGLError(gl);
+	}
+
+	/**
+	 * Returns the distance at which a light of the given intensity and attenuation coefficients
+	 * falls below `INTENSITY_CUTOFF`, i.e. the positive root of 
+	 * `quadratic * r^2 + linear * r + constant = intensity / INTENSITY_CUTOFF`.
+	 * Returns infinity if the light doesn't attenuate with distance.
+	 */
+	public static float computeRadius(float intensity, float constant, float linear, float quadratic)
+	{
+		float c = constant - intensity / INTENSITY_CUTOFF;
+		
+		if (c >= 0.0f)
+		{
+			/* Too dim to ever matter. */
+			return 0.0f;
+		}
+		else if (quadratic > 0.0f)
+		{
+			return (-linear + (float)Math.sqrt(linear * linear - 4.0f * quadratic * c)) / (2.0f * quadratic);
+		}
+		else if (linear > 0.0f)
+		{
+			return -c / linear;
+		}
+		else
+		{
+			return Float.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Returns the eye-space position and radius of each light written by the last `update()`, 
+	 * packed as (x, y, z, radius). Only the first `4 * getLightCount()` entries are valid.
+	 */
+	public float[] getBounds()
+	{
+		return mBounds;
+	}
+
+	/**
+	 * Returns the number of enabled lights written by the last `update()`.
+	 */
+	public int getLightCount()
+	{
+		return mLightCount;
+	}
+
+	/**
+	 * Binds the light data to the indicated texture unit, so a shader's `samplerBuffer` can read it.
+	 *
+	 * @param textureUnit The index of the texture unit to bind to.
+	 */
+	public void bind(GL2 gl, int textureUnit)
+	{
+		GLState.bindTexture(gl, textureUnit, GL2.GL_TEXTURE_BUFFER, mTextureHandle);
+		mBoundUnit = textureUnit;
+	}
+
+	/**
+	 * Unbinds the light data if it is currently bound.
+	 */
+	public void unbind(GL2 gl)
+	{
+		if (mBoundUnit >= 0)
+		{
+			GLState.bindTexture(gl, mBoundUnit, GL2.GL_TEXTURE_BUFFER, 0);
+			mBoundUnit = -1;
+		}
+	}
+
+	/**
+	 * Releases the buffer and texture objects.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		int names[] = new int[1];
+
+		if (mTextureHandle >= 0)
+		{
+			names[0] = mTextureHandle;
+			gl.glDeleteTextures(1, names, 0);
+			GLState.textureDeleted(mTextureHandle);
+			mTextureHandle = -1;
+		}
+
+		if (mBufferHandle >= 0)
+		{
+			names[0] = mBufferHandle;
+			gl.glDeleteBuffers(1, names, 0);
+			mBufferHandle = -1;
+		}
+	}
+}
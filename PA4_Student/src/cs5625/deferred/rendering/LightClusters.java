@@ -0,0 +1,413 @@
+package cs5625.deferred.rendering;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.misc.GLState;
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+
+/**
+ * LightClusters.java
+ *
+ * Divides the view frustum into a grid of clusters (screen-space tiles times exponentially spaced
+ * depth slices) and records which lights from a `LightBuffer` can reach each cluster, so the
+ * ubershader only has to loop over the lights near each pixel instead of every light in the scene.
+ *
+ * Binning happens on the CPU each frame, with the depth slices split between worker threads.
+ * The results are uploaded as two texture buffers:
+ *
+ *   - the cluster table, one RGBA32F texel per cluster holding (first index, light count, 0, 0), and
+ *   - the light index list, one R32F texel per entry holding an index into the light buffer.
+ *
+ * Clusters are numbered `(z * CLUSTERS_Y + y) * CLUSTERS_X + x`, with x and y counted from the
+ * lower-left of the viewport, matching `gl_FragCoord`. See `getCluster()` in `ubershader.fp`.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class LightClusters implements OpenGLResourceObject
+{
+	/** Size of the cluster grid. Must match the constants in `ubershader.fp`. */
+	public static final int CLUSTERS_X = 16;
+	public static final int CLUSTERS_Y = 9;
+	public static final int CLUSTERS_Z = 24;
+	public static final int CLUSTER_COUNT = CLUSTERS_X * CLUSTERS_Y * CLUSTERS_Z;
+
+	/* Threads used for binning, started by the first `update()` after creation or a release. Daemon 
+	 * threads, so they don't keep the application alive. */
+	private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private ExecutorService mExecutor = null;
+	private ArrayList<Callable<Object>> mTasks = new ArrayList<Callable<Object>>();
+
+	/* Per-cluster lists of light indices, written by the binning tasks. Each task owns whole depth
+	 * slices, so no two tasks ever write the same cluster. */
+	private int mClusterLights[][] = new int[CLUSTER_COUNT][8];
+	private int mClusterCounts[] = new int[CLUSTER_COUNT];
+
+	/* Frustum parameters for the frame being binned. */
+	private float mLights[];
+	private int mLightCount;
+	private float mNear, mFar;
+	private float mScaleX, mScaleY;
+
+	/* OpenGL objects for the cluster table and the light index list. */
+	private int mTableBuffer = -1, mTableTexture = -1;
+	private int mIndexBuffer = -1, mIndexTexture = -1;
+	private FloatBuffer mTableData = Buffers.newDirectFloatBuffer(CLUSTER_COUNT * 4);
+	private FloatBuffer mIndexData = Buffers.newDirectFloatBuffer(1024);
+	private int mTableUnit = -1, mIndexUnit = -1;
+
+	/**
+	 * Creates the texture buffers and the binning tasks.
+	 */
+	public LightClusters(GL2 gl) throws OpenGLException
+	{
+		int names[] = new int[2];
+
+		gl.glGenBuffers(2, names, 0);
+		mTableBuffer = names[0];
+		mIndexBuffer = names[1];
+
+		gl.glGenTextures(2, names, 0);
+		mTableTexture = names[0];
+		mIndexTexture = names[1];
+
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, mTableBuffer);
+		gl.glBufferData(GL2.GL_TEXTURE_BUFFER, mTableData.capacity() * Buffers.SIZEOF_FLOAT, null, GL2.GL_DYNAMIC_DRAW);
+		GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, mTableTexture);
+		gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_RGBA32F, mTableBuffer);
+
+		allocateIndices(gl, mIndexData.capacity());
+
+		GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, 0);
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+
+		/* Slice z is binned by task (z % THREAD_COUNT). */
+		for (int t = 0; t < THREAD_COUNT; ++t)
+		{
+			final int firstSlice = t;
+			mTasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					for (int z = firstSlice; z < CLUSTERS_Z; z += THREAD_COUNT)
+					{
+						binSlice(z);
+					}
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			OpenGLException.checkOpenGLError(gl);
+		}
+		catch (OpenGLException err)
+		{
+			releaseGPUResources(gl);
+			throw err;
+		}
+	}
+
+	/**
+	 * (Re)allocates the light index list to hold the given number of entries.
+	 */
+	private void allocateIndices(GL2 gl, int capacity)
+	{
+		mIndexData = Buffers.newDirectFloatBuffer(capacity);
+
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, mIndexBuffer);
+		gl.glBufferData(GL2.GL_TEXTURE_BUFFER, capacity * Buffers.SIZEOF_FLOAT, null, GL2.GL_DYNAMIC_DRAW);
+		GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, mIndexTexture);
+		gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_R32F, mIndexBuffer);
+	}
+
+	/**
+	 * Bins the lights of a light buffer into clusters and uploads the results.
+	 *
+	 * @param gl The OpenGL state.
+	 * @param lights The light buffer, already updated for this frame.
+	 * @param fovY Vertical field of view of the projection, in degrees.
+	 * @param aspect Aspect ratio (width / height) of the projection.
+	 * @param near Distance to the near plane.
+	 * @param far Distance to the far plane.
+	 */
+	public void update(GL2 gl, LightBuffer lights, float fovY, float aspect, float near, float far) throws OpenGLException
+	{
+		mLights = lights.getBounds();
+		mLightCount = lights.getLightCount();
+		mNear = near;
+		mFar = far;
+
+		/* Eye space (x / -z) to NDC scale factors of the perspective projection. */
+		mScaleY = 1.0f / (float)Math.tan(Math.toRadians(fovY) / 2.0);
+		mScaleX = mScaleY / aspect;
+
+		if (mExecutor == null)
+		{
+			mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "LightClusters");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		/* Bin each depth slice in parallel. */
+		try
+		{
+			for (Future<Object> result : mExecutor.invokeAll(mTasks))
+			{
+				result.get();
+			}
+		}
+		catch (InterruptedException err)
+		{
+			Thread.currentThread().interrupt();
+			throw new OpenGLException("Interrupted while binning lights into clusters.");
+		}
+		catch (ExecutionException err)
+		{
+			throw new OpenGLException("Failed to bin lights into clusters: " + err.getCause());
+		}
+
+		/* Flatten the per-cluster lists into the table and index list. */
+		int totalIndices = 0;
+		for (int i = 0; i < CLUSTER_COUNT; ++i)
+		{
+			totalIndices += mClusterCounts[i];
+		}
+
+		if (totalIndices > mIndexData.capacity())
+		{
+			allocateIndices(gl, Math.max(totalIndices, 2 * mIndexData.capacity()));
+		}
+
+		mTableData.clear();
+		mIndexData.clear();
+
+		for (int i = 0; i < CLUSTER_COUNT; ++i)
+		{
+			mTableData.put(mIndexData.position()).put(mClusterCounts[i]).put(0.0f).put(0.0f);
+
+			int list[] = mClusterLights[i];
+			for (int j = 0; j < mClusterCounts[i]; ++j)
+			{
+				mIndexData.put(list[j]);
+			}
+		}
+
+		mTableData.flip();
+		mIndexData.flip();
+
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, mTableBuffer);
+		gl.glBufferSubData(GL2.GL_TEXTURE_BUFFER, 0, mTableData.limit() * Buffers.SIZEOF_FLOAT, mTableData);
+
+		if (mIndexData.limit() > 0)
+		{
+			gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, mIndexBuffer);
+			gl.glBufferSubData(GL2.GL_TEXTURE_BUFFER, 0, mIndexData.limit() * Buffers.SIZEOF_FLOAT, mIndexData);
+		}
+
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+		GLState.bindTexture(gl, GL2.GL_TEXTURE_BUFFER, 0);
+
+		OpenGLException.checkOpenGLError(gl);
+	}
+
+	/**
+	 * Returns the distance to the near side of depth slice `z`. Slices are spaced exponentially
+	 * between the near and far planes, so clusters stay roughly cube-shaped.
+	 */
+	private float getSliceDistance(int z)
+	{
+		return mNear * (float)Math.pow(mFar / mNear, (float)z / CLUSTERS_Z);
+	}
+
+	/**
+	 * Finds every light which overlaps each cluster of depth slice `z`.
+	 */
+	private void binSlice(int z)
+	{
+		float sliceNear = getSliceDistance(z);
+		float sliceFar = getSliceDistance(z + 1);
+
+		/* Reset this slice's clusters. */
+		int sliceStart = z * CLUSTERS_X * CLUSTERS_Y;
+		for (int i = 0; i < CLUSTERS_X * CLUSTERS_Y; ++i)
+		{
+			mClusterCounts[sliceStart + i] = 0;
+		}
+
+		for (int light = 0; light < mLightCount; ++light)
+		{
+			float x = mLights[4 * light + 0];
+			float y = mLights[4 * light + 1];
+			float distance = -mLights[4 * light + 2];
+			float radius = mLights[4 * light + 3];
+
+			/* Skip lights whose sphere of influence misses this slice. */
+			if (distance + radius < sliceNear || distance - radius > sliceFar)
+			{
+				continue;
+			}
+
+			/* Project the light's bounding box, clipped to this slice, to find the tiles it covers. */
+			float nearest = Math.max(sliceNear, distance - radius);
+			float farthest = Math.min(sliceFar, distance + radius);
+
+			int minX = toTile(projectedMin(x - radius, nearest, farthest) * mScaleX, CLUSTERS_X);
+			int maxX = toTile(projectedMax(x + radius, nearest, farthest) * mScaleX, CLUSTERS_X);
+			int minY = toTile(projectedMin(y - radius, nearest, farthest) * mScaleY, CLUSTERS_Y);
+			int maxY = toTile(projectedMax(y + radius, nearest, farthest) * mScaleY, CLUSTERS_Y);
+
+			for (int ty = minY; ty <= maxY; ++ty)
+			{
+				for (int tx = minX; tx <= maxX; ++tx)
+				{
+					addLight(sliceStart + ty * CLUSTERS_X + tx, light);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the smallest value of `coordinate / distance` over the given range of distances.
+	 */
+	private static float projectedMin(float coordinate, float nearest, float farthest)
+	{
+		return (coordinate < 0.0f ? coordinate / nearest : coordinate / farthest);
+	}
+
+	/**
+	 * Returns the largest value of `coordinate / distance` over the given range of distances.
+	 */
+	private static float projectedMax(float coordinate, float nearest, float farthest)
+	{
+		return (coordinate > 0.0f ? coordinate / nearest : coordinate / farthest);
+	}
+
+	/**
+	 * Converts a normalized device coordinate in [-1, 1] to a tile index, clamped to the grid.
+	 */
+	private static int toTile(float ndc, int tileCount)
+	{
+		float tile = (ndc * 0.5f + 0.5f) * tileCount;
+
+		if (tile < 0.0f)
+		{
+			return 0;
+		}
+		else if (tile >= tileCount)
+		{
+			return tileCount - 1;
+		}
+		else
+		{
+			return (int)tile;
+		}
+	}
+
+	/**
+	 * Appends a light to a cluster's list, growing the list if needed.
+	 */
+	private void addLight(int cluster, int light)
+	{
+		int count = mClusterCounts[cluster];
+
+		if (count == mClusterLights[cluster].length)
+		{
+			int grown[] = new int[2 * count];
+			System.arraycopy(mClusterLights[cluster], 0, grown, 0, count);
+			mClusterLights[cluster] = grown;
+		}
+
+		mClusterLights[cluster][count] = light;
+		mClusterCounts[cluster] = count + 1;
+	}
+
+	/**
+	 * Returns the scale and bias which map `log(distance)` to a depth slice index,
+	 * for the ubershader's `ClusterDepthParams` uniform.
+	 */
+	public float[] getDepthParams()
+	{
+		float scale = CLUSTERS_Z / (float)Math.log(mFar / mNear);
+		return new float[] { scale, -scale * (float)Math.log(mNear) };
+	}
+
+	/**
+	 * Binds the cluster table and light index list to the indicated texture units.
+	 */
+	public void bind(GL2 gl, int tableUnit, int indexUnit)
+	{
+		GLState.bindTexture(gl, tableUnit, GL2.GL_TEXTURE_BUFFER, mTableTexture);
+		GLState.bindTexture(gl, indexUnit, GL2.GL_TEXTURE_BUFFER, mIndexTexture);
+		mTableUnit = tableUnit;
+		mIndexUnit = indexUnit;
+	}
+
+	/**
+	 * Unbinds the cluster textures if they are currently bound.
+	 */
+	public void unbind(GL2 gl)
+	{
+		if (mTableUnit >= 0)
+		{
+			GLState.bindTexture(gl, mTableUnit, GL2.GL_TEXTURE_BUFFER, 0);
+			GLState.bindTexture(gl, mIndexUnit, GL2.GL_TEXTURE_BUFFER, 0);
+			mTableUnit = -1;
+			mIndexUnit = -1;
+		}
+	}
+
+	/**
+	 * Releases the texture buffers and stops the binning threads. The threads are started again if 
+	 * the clusters are updated afterwards.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		int names[] = new int[2];
+
+		if (mTableTexture >= 0)
+		{
+			names[0] = mTableTexture;
+			names[1] = mIndexTexture;
+			gl.glDeleteTextures(2, names, 0);
+			GLState.textureDeleted(mTableTexture);
+			GLState.textureDeleted(mIndexTexture);
+			mTableTexture = -1;
+			mIndexTexture = -1;
+		}
+
+		if (mTableBuffer >= 0)
+		{
+			names[0] = mTableBuffer;
+			names[1] = mIndexBuffer;
+			gl.glDeleteBuffers(2, names, 0);
+			mTableBuffer = -1;
+			mIndexBuffer = -1;
+		}
+
+		if (mExecutor != null)
+		{
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+}
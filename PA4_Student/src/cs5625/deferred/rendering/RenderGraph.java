@@ -0,0 +1,842 @@
+package cs5625.deferred.rendering;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.media.opengl.GL2;
+
+import cs5625.deferred.materials.Texture.Datatype;
+import cs5625.deferred.materials.Texture.Format;
+import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.misc.GLState;
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+import cs5625.deferred.misc.ScenegraphException;
+
+/**
+ * RenderGraph.java
+ *
+ * A list of render passes which declare the named resources they read and write. Each frame,
+ * `execute()` is given the resource the frame should produce, and only runs the passes it depends
+ * on; e.g. the lighting pass is culled while a gbuffer texture is previewed.
+ *
+ * Resources added with `addTarget()` are transient render targets: they are taken from a
+ * `RenderTargetPool` just before the first pass which uses them and returned right after the last,
+ * so targets are only allocated for the passes which actually run, and resizing doesn't reallocate
+ * anything within a size bucket. Before a pass runs, the graph binds a framebuffer with the pass's
+ * target outputs attached (color targets in the order declared, and a `Format.DEPTH` target as the
+ * depth buffer) and sets the viewport to the size of those targets. A target can be declared at a
+ * fraction of the graph's size (e.g. half resolution); all target outputs of one pass must then
+ * share that fraction. Any other resource name (e.g. the window) is external: it only orders
+ * passes, and the pass binds it itself.
+ *
+ * Targets are allocated at the size given to `setSize()`, but passes may render into just the
+ * lower-left corner of them (see `setRenderSize()`), so the resolution can change every frame
+ * without reallocating anything.
+ *
+ * Every pass is timed on the CPU and, where timer queries are supported, on the GPU, with a pair of
+ * timestamp queries. GPU times are read back a few frames late so the query never stalls; see
+ * `getTimingReport()`, and `setProfiler()` to collect percentiles of every pass.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class RenderGraph implements OpenGLResourceObject
+{
+	/**
+	 * A node of the graph. Subclasses render in `execute()`, and may override `getInputs()` or
+	 * `getOutputs()` if what they use changes from frame to frame.
+	 */
+	public static abstract class Pass
+	{
+		private String mName;
+		private String mInputs[];
+		private String mOutputs[];
+		
+		/* Framebuffer this pass renders into, and the targets attached to it. */
+		private int mFramebuffer = 0;
+		private Texture2D mAttachedColor[] = new Texture2D[0];
+		private Texture2D mAttachedDepth = null;
+		
+		/* Start and end timestamp queries for the last few frames (interleaved), start of the current
+		 * CPU timing, and smoothed times in milliseconds (-1 until measured). */
+		private int mQueries[] = null;
+		private boolean mQueryPending[] = new boolean[QUERY_FRAMES];
+		private long mStartNanos = 0;
+		private float mCpuMillis = -1.0f;
+		private float mGpuMillis = -1.0f;
+		private boolean mCulled = false;
+		
+		/* Latest unsmoothed times, in milliseconds (-1 until measured). */
+		private float mLastCpuMillis = -1.0f;
+		private float mLastGpuMillis = -1.0f;
+		
+		/**
+		 * Creates a pass.
+		 *
+		 * @param name Name of the pass, for timings.
+		 * @param inputs Names of the resources this pass reads.
+		 * @param outputs Names of the resources this pass writes.
+		 */
+		public Pass(String name, String inputs[], String outputs[])
+		{
+			mName = name;
+			mInputs = inputs;
+			mOutputs = outputs;
+		}
+		
+		/**
+		 * Returns the name of this pass.
+		 */
+		public String getName()
+		{
+			return mName;
+		}
+		
+		/**
+		 * Returns the names of the resources this pass reads this frame.
+		 */
+		public String[] getInputs()
+		{
+			return mInputs;
+		}
+		
+		/**
+		 * Returns the names of the resources this pass writes this frame.
+		 */
+		public String[] getOutputs()
+		{
+			return mOutputs;
+		}
+		
+		/**
+		 * Renders this pass. Target outputs are already bound; inputs can be found with `graph.getTexture()`.
+		 */
+		public abstract void execute(GL2 gl, RenderGraph graph) throws OpenGLException, ScenegraphException;
+	}
+	
+	/* A transient render target and the texture holding it this frame, if any. */
+	private static class Target
+	{
+		public Format format;
+		public Datatype datatype;
+		public int divisor;
+		public Texture2D texture;
+		public int lastUse;
+	}
+	
+	/* Frames a timer query has to complete in, and the weight of each new time in the smoothed times. */
+	private static final int QUERY_FRAMES = 3;
+	private static final float SMOOTHING = 0.1f;
+	
+	private ArrayList<Pass> mPasses = new ArrayList<Pass>();
+	private HashMap<String, Target> mTargets = new HashMap<String, Target>();
+	private RenderTargetPool mPool = new RenderTargetPool();
+	private int mWidth = 1, mHeight = 1;
+	private int mRenderWidth = 1, mRenderHeight = 1;
+	
+	/* Framebuffer for reading targets with `bindForReading()`, and what's attached to it. */
+	private int mReadFramebuffer = 0;
+	private Texture2D mReadAttached = null;
+	
+	/* Framebuffer bound before the current pass's. */
+	private int mPreviousBinding = 0;
+	
+	/* Whether GPU timer queries are available (checked on the first frame), and the frame count. */
+	private Boolean mTimerQueries = null;
+	private int mFrame = 0;
+	
+	/* Receives the unsmoothed times of every pass, if set. */
+	private FrameProfiler mProfiler = null;
+	
+	/**
+	 * Declares a transient render target. Passes refer to it by `name`.
+	 */
+	public void addTarget(String name, Format format, Datatype datatype)
+	{
+		addTarget(name, format, datatype, 1);
+	}
+	
+	/**
+	 * Declares a transient render target whose width and height are those of the graph divided by
+	 * `divisor` (rounded up).
+	 */
+	public void addTarget(String name, Format format, Datatype datatype, int divisor)
+	{
+		if (divisor < 1)
+		{
+			throw new AssertionError("Render target '" + name + "' has invalid size divisor " + divisor + ".");
+		}
+		
+		Target target = new Target();
+		target.format = format;
+		target.datatype = datatype;
+		target.divisor = divisor;
+		mTargets.put(name, target);
+	}
+	
+	/**
+	 * Appends a pass. Passes run in the order they were added.
+	 */
+	public void addPass(Pass pass)
+	{
+		mPasses.add(pass);
+	}
+	
+	/**
+	 * Sets the size at which targets are allocated, in pixels, and renders at the whole of it until
+	 * `setRenderSize()` says otherwise.
+	 */
+	public void setSize(int width, int height)
+	{
+		mWidth = width;
+		mHeight = height;
+		mRenderWidth = width;
+		mRenderHeight = height;
+	}
+	
+	/**
+	 * Sets the size of the lower-left corner of the targets which passes render into (their viewport),
+	 * in pixels. It is clamped to the size given to `setSize()`.
+	 */
+	public void setRenderSize(int width, int height)
+	{
+		mRenderWidth = Math.max(1, Math.min(width, mWidth));
+		mRenderHeight = Math.max(1, Math.min(height, mHeight));
+	}
+	
+	/**
+	 * Returns the width passes render at, in pixels.
+	 */
+	public int getWidth()
+	{
+		return mRenderWidth;
+	}
+	
+	/**
+	 * Returns the height passes render at, in pixels.
+	 */
+	public int getHeight()
+	{
+		return mRenderHeight;
+	}
+	
+	/**
+	 * Returns the width of the part of a target passes render into, in pixels, which is less than the
+	 * graph's if it was declared with a size divisor.
+	 */
+	public int getTargetWidth(String name)
+	{
+		return scaledSize(mRenderWidth, getTarget(name).divisor);
+	}
+	
+	/**
+	 * Returns the height of the part of a target passes render into, in pixels.
+	 */
+	public int getTargetHeight(String name)
+	{
+		return scaledSize(mRenderHeight, getTarget(name).divisor);
+	}
+	
+	/**
+	 * Returns `size` divided by `divisor`, rounded up so no pixel of the full-size targets is left
+	 * without a corresponding one.
+	 */
+	private static int scaledSize(int size, int divisor)
+	{
+		return (size + divisor - 1) / divisor;
+	}
+	
+	/**
+	 * Returns the declaration of a target.
+	 */
+	private Target getTarget(String name)
+	{
+		Target target = mTargets.get(name);
+		if (target == null)
+		{
+			throw new AssertionError("No render target named '" + name + "'.");
+		}
+		
+		return target;
+	}
+	
+	/**
+	 * Sets the profiler which is given the CPU and GPU time of every pass, under the pass's name,
+	 * or null for none.
+	 */
+	public void setProfiler(FrameProfiler profiler)
+	{
+		mProfiler = profiler;
+	}
+	
+	/**
+	 * Returns the pool holding this graph's targets.
+	 */
+	public RenderTargetPool getPool()
+	{
+		return mPool;
+	}
+	
+	/**
+	 * Returns the texture holding a target during the current pass. Pooled textures may be larger than
+	 * the target; only the lower-left `getTargetWidth()` x `getTargetHeight()` pixels are used.
+	 */
+	public Texture2D getTexture(String name)
+	{
+		Target target = mTargets.get(name);
+		if (target == null || target.texture == null)
+		{
+			throw new AssertionError("Render target '" + name + "' is not in use by the current pass.");
+		}
+		
+		return target.texture;
+	}
+	
+	/**
+	 * Runs the passes needed to produce the `output` resource, in order, and skips the rest.
+	 */
+	public void execute(GL2 gl, String output) throws OpenGLException, ScenegraphException
+	{
+		if (mTimerQueries == null)
+		{
+			mTimerQueries = (gl.isExtensionAvailable("GL_ARB_timer_query") || gl.isExtensionAvailable("GL_VERSION_3_3"));
+		}
+		
+		/* Walk back from the output: a pass is needed if something needed later is one of its outputs,
+		 * and then its inputs are needed instead (a pass which rewrites a resource also lists it as input). */
+		boolean live[] = new boolean[mPasses.size()];
+		HashSet<String> needed = new HashSet<String>();
+		needed.add(output);
+		
+		for (int i = mPasses.size() - 1; i >= 0; --i)
+		{
+			Pass pass = mPasses.get(i);
+			
+			for (String name : pass.getOutputs())
+			{
+				live[i] |= needed.contains(name);
+			}
+			
+			if (live[i])
+			{
+				for (String name : pass.getOutputs())
+				{
+					needed.remove(name);
+				}
+				
+				for (String name : pass.getInputs())
+				{
+					needed.add(name);
+				}
+			}
+		}
+		
+		/* Find the last pass to use each target, so it can go back to the pool right after. */
+		for (Target target : mTargets.values())
+		{
+			target.lastUse = -1;
+		}
+		
+		for (int i = 0; i < mPasses.size(); ++i)
+		{
+			if (live[i])
+			{
+				markLastUse(mPasses.get(i).getInputs(), i);
+				markLastUse(mPasses.get(i).getOutputs(), i);
+			}
+		}
+		
+		try
+		{
+			for (int i = 0; i < mPasses.size(); ++i)
+			{
+				Pass pass = mPasses.get(i);
+				pass.mCulled = !live[i];
+				
+				if (!live[i])
+				{
+					continue;
+				}
+				
+				acquireTargets(gl, pass.getInputs());
+				acquireTargets(gl, pass.getOutputs());
+				
+				boolean bound = bindOutputs(gl, pass);
+				beginTiming(gl, pass);
+				
+				try
+				{
+					pass.execute(gl, this);
+				}
+				finally
+				{
+					endTiming(gl, pass);
+					
+					if (bound)
+					{
+						GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, mPreviousBinding);
+						GLState.popAttrib(gl);
+					}
+				}
+				
+				releaseTargets(pass.getInputs(), i);
+				releaseTargets(pass.getOutputs(), i);
+			}
+		}
+		finally
+		{
+			/* Normally everything was released by its last pass; this catches a pass that threw. */
+			for (Target target : mTargets.values())
+			{
+				if (target.texture != null)
+				{
+					mPool.release(target.texture);
+					target.texture = null;
+				}
+			}
+			
+			mPool.endFrame(gl);
+			++mFrame;
+		}
+	}
+	
+	/**
+	 * Records pass `index` as the last user of any targets in `names`.
+	 */
+	private void markLastUse(String names[], int index)
+	{
+		for (String name : names)
+		{
+			Target target = mTargets.get(name);
+			if (target != null)
+			{
+				target.lastUse = index;
+			}
+		}
+	}
+	
+	/**
+	 * Takes textures from the pool for any targets in `names` which don't have one yet this frame.
+	 */
+	private void acquireTargets(GL2 gl, String names[]) throws OpenGLException
+	{
+		for (String name : names)
+		{
+			Target target = mTargets.get(name);
+			if (target != null && target.texture == null)
+			{
+				target.texture = mPool.acquire(gl, target.format, target.datatype, scaledSize(mWidth, target.divisor), scaledSize(mHeight, target.divisor));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the textures of any targets in `names` last used by pass `index` to the pool.
+	 */
+	private void releaseTargets(String names[], int index)
+	{
+		for (String name : names)
+		{
+			Target target = mTargets.get(name);
+			if (target != null && target.texture != null && target.lastUse == index)
+			{
+				mPool.release(target.texture);
+				target.texture = null;
+			}
+		}
+	}
+	
+	/**
+	 * Binds a pass's framebuffer with its target outputs attached, saving the previous binding and
+	 * viewport. Returns false (binding nothing) if the pass has no target outputs.
+	 */
+	private boolean bindOutputs(GL2 gl, Pass pass) throws OpenGLException
+	{
+		ArrayList<Texture2D> colors = new ArrayList<Texture2D>();
+		Texture2D depth = null;
+		int divisor = 1;
+		
+		for (String name : pass.getOutputs())
+		{
+			Target target = mTargets.get(name);
+			if (target == null)
+			{
+				continue;
+			}
+			
+			divisor = target.divisor;
+			
+			if (target.format == Format.DEPTH)
+			{
+				depth = target.texture;
+			}
+			else
+			{
+				colors.add(target.texture);
+			}
+		}
+		
+		if (colors.isEmpty() && depth == null)
+		{
+			return false;
+		}
+		
+		if (pass.mFramebuffer == 0)
+		{
+			int names[] = new int[1];
+			gl.glGenFramebuffers(1, names, 0);
+			pass.mFramebuffer = names[0];
+		}
+		
+		GLState.pushAttrib(gl, GL2.GL_COLOR_BUFFER_BIT | GL2.GL_VIEWPORT_BIT);
+		mPreviousBinding = GLState.getFramebuffer(gl, GL2.GL_FRAMEBUFFER);
+		GLState.bindFramebuffer(gl, GL2.GL_FRAMEBUFFER, pass.mFramebuffer);
+		
+		/* Pools hand out the same textures frame after frame, so usually nothing is re-attached and
+		 * the driver doesn't have to revalidate the framebuffer. */
+		boolean changed = false;
+		
+		for (int i = colors.size(); i < pass.mAttachedColor.length; ++i)
+		{
+			gl.glFramebufferTexture2D(GL2.GL_FRAMEBUFFER, GL2.GL_COLOR_ATTACHMENT0 + i, GL2.GL_TEXTURE_RECTANGLE_ARB, 0, 0);
+			changed = true;
+		}
+		
+		if (pass.mAttachedColor.length != colors.size())
+		{
+			Texture2D attached[] = new Texture2D[colors.size()];
+			System.arraycopy(pass.mAttachedColor, 0, attached, 0, Math.min(attached.length, pass.mAttachedColor.length));
+			pass.mAttachedColor = attached;
+		}
+		
+		for (int i = 0; i < colors.size(); ++i)
+		{
+			Texture2D texture = colors.get(i);
+			if (pass.mAttachedColor[i] != texture)
+			{
+				gl.glFramebufferTexture2D(GL2.GL_FRAMEBUFFER, GL2.GL_COLOR_ATTACHMENT0 + i, texture.getTextureTarget(), texture.getHandle(), 0);
+				pass.mAttachedColor[i] = texture;
+				changed = true;
+			}
+		}
+		
+		if (pass.mAttachedDepth != depth)
+		{
+			gl.glFramebufferTexture2D(GL2.GL_FRAMEBUFFER, GL2.GL_DEPTH_ATTACHMENT,
+					(depth == null ? GL2.GL_TEXTURE_RECTANGLE_ARB : depth.getTextureTarget()), (depth == null ? 0 : depth.getHandle()), 0);
+			pass.mAttachedDepth = depth;
+			changed = true;
+		}
+		
+		if (changed)
+		{
+			int status = gl.glCheckFramebufferStatus(GL2.GL_FRAMEBUFFER);
+			if (status != GL2.GL_FRAMEBUFFER_COMPLETE)
+			{
+				throw new OpenGLException("Framebuffer of pass '" + pass.getName() + "' incomplete: " + status + ".");
+			}
+		}
+		
+		/* Draw to every color output; gl_FragData[i] goes to the i-th. */
+		if (colors.isEmpty())
+		{
+			gl.glDrawBuffer(GL2.GL_NONE);
+		}
+		else
+		{
+			int buffers[] = new int[colors.size()];
+			for (int i = 0; i < buffers.length; ++i)
+			{
+				buffers[i] = GL2.GL_COLOR_ATTACHMENT0 + i;
+			}
+			
+			gl.glDrawBuffers(buffers.length, buffers, 0);
+		}
+		
+		gl.glViewport(0, 0, scaledSize(mRenderWidth, divisor), scaledSize(mRenderHeight, divisor));
+		
+		OpenGLException.checkOpenGLError(gl);
+		return true;
+	}
+	
+	/**
+	 * Binds a color target as the read framebuffer (e.g. for `glBlitFramebuffer()`). Only valid during
+	 * a pass which has it as an input.
+	 */
+	public void bindForReading(GL2 gl, String name) throws OpenGLException
+	{
+		Texture2D texture = getTexture(name);
+		
+		if (mReadFramebuffer == 0)
+		{
+			int names[] = new int[1];
+			gl.glGenFramebuffers(1, names, 0);
+			mReadFramebuffer = names[0];
+		}
+		
+		GLState.bindFramebuffer(gl, GL2.GL_READ_FRAMEBUFFER, mReadFramebuffer);
+		
+		if (mReadAttached != texture)
+		{
+			gl.glFramebufferTexture2D(GL2.GL_READ_FRAMEBUFFER, GL2.GL_COLOR_ATTACHMENT0, texture.getTextureTarget(), texture.getHandle(), 0);
+			mReadAttached = texture;
+		}
+		
+		gl.glReadBuffer(GL2.GL_COLOR_ATTACHMENT0);
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
+	/**
+	 * Copies the last column and row of the rendered part of a color target (see `setRenderSize()`)
+	 * into the pixels just beyond it, so bilinear filtering at its right and top edges (e.g. when
+	 * scaling it up to the window) doesn't blend in stale texels from the pool. Only valid during a
+	 * pass which has it as an input; leaves it bound for reading.
+	 */
+	public void extendEdges(GL2 gl, String name) throws OpenGLException
+	{
+		Texture2D texture = getTexture(name);
+		int width = getTargetWidth(name);
+		int height = getTargetHeight(name);
+		
+		boolean right = (width < texture.getWidth());
+		boolean top = (height < texture.getHeight());
+		
+		if (!right && !top)
+		{
+			return;
+		}
+		
+		/* Copy within the one texture; the regions never overlap, which is all the blit requires. */
+		int previousDraw = GLState.getFramebuffer(gl, GL2.GL_DRAW_FRAMEBUFFER);
+		bindForReading(gl, name);
+		GLState.bindFramebuffer(gl, GL2.GL_DRAW_FRAMEBUFFER, mReadFramebuffer);
+		gl.glDrawBuffer(GL2.GL_COLOR_ATTACHMENT0);
+		
+		if (right)
+		{
+			gl.glBlitFramebuffer(width - 1, 0, width, height, width, 0, width + 1, height, GL2.GL_COLOR_BUFFER_BIT, GL2.GL_NEAREST);
+		}
+		
+		/* The row includes the corner pixel the column copy just wrote. */
+		if (top)
+		{
+			int rowWidth = (right ? width + 1 : width);
+			gl.glBlitFramebuffer(0, height - 1, rowWidth, height, 0, height, rowWidth, height + 1, GL2.GL_COLOR_BUFFER_BIT, GL2.GL_NEAREST);
+		}
+		
+		GLState.bindFramebuffer(gl, GL2.GL_DRAW_FRAMEBUFFER, previousDraw);
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
+	/**
+	 * Starts timing a pass, first collecting any GPU times which have become available.
+	 */
+	private void beginTiming(GL2 gl, Pass pass)
+	{
+		if (mTimerQueries)
+		{
+			if (pass.mQueries == null)
+			{
+				pass.mQueries = new int[2 * QUERY_FRAMES];
+				gl.glGenQueries(2 * QUERY_FRAMES, pass.mQueries, 0);
+			}
+			
+			int available[] = new int[1];
+			long start[] = new long[1];
+			long end[] = new long[1];
+			
+			for (int i = 0; i < QUERY_FRAMES; ++i)
+			{
+				if (!pass.mQueryPending[i])
+				{
+					continue;
+				}
+				
+				/* Timestamps complete in order, so once the end is available so is the start. */
+				gl.glGetQueryObjectiv(pass.mQueries[2 * i + 1], GL2.GL_QUERY_RESULT_AVAILABLE, available, 0);
+				if (available[0] != 0)
+				{
+					gl.glGetQueryObjectui64v(pass.mQueries[2 * i], GL2.GL_QUERY_RESULT, start, 0);
+					gl.glGetQueryObjectui64v(pass.mQueries[2 * i + 1], GL2.GL_QUERY_RESULT, end, 0);
+					pass.mLastGpuMillis = (end[0] - start[0]) / 1.0e6f;
+					pass.mGpuMillis = smooth(pass.mGpuMillis, pass.mLastGpuMillis);
+					pass.mQueryPending[i] = false;
+					
+					if (mProfiler != null)
+					{
+						mProfiler.recordGpu(pass.getName(), pass.mLastGpuMillis);
+					}
+				}
+			}
+			
+			/* A result still pending after QUERY_FRAMES frames is dropped rather than waited for. */
+			int slot = mFrame % QUERY_FRAMES;
+			gl.glQueryCounter(pass.mQueries[2 * slot], GL2.GL_TIMESTAMP);
+			pass.mQueryPending[slot] = true;
+		}
+		
+		pass.mStartNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Finishes timing a pass.
+	 */
+	private void endTiming(GL2 gl, Pass pass)
+	{
+		if (mTimerQueries)
+		{
+			gl.glQueryCounter(pass.mQueries[2 * (mFrame % QUERY_FRAMES) + 1], GL2.GL_TIMESTAMP);
+		}
+		
+		pass.mLastCpuMillis = (System.nanoTime() - pass.mStartNanos) / 1.0e6f;
+		pass.mCpuMillis = smooth(pass.mCpuMillis, pass.mLastCpuMillis);
+		
+		if (mProfiler != null)
+		{
+			mProfiler.recordCpu(pass.getName(), pass.mLastCpuMillis);
+		}
+	}
+	
+	/**
+	 * Returns a smoothed time given the previous one (-1 if none) and a new measurement.
+	 */
+	private static float smooth(float previous, float sample)
+	{
+		return (previous < 0.0f ? sample : previous + SMOOTHING * (sample - previous));
+	}
+	
+	/**
+	 * Returns the smoothed time of the named pass in milliseconds: its GPU time if that has been
+	 * measured, else its CPU time, or 0 if the pass doesn't exist or hasn't run.
+	 */
+	public float getMillis(String passName)
+	{
+		for (Pass pass : mPasses)
+		{
+			if (pass.getName().equals(passName))
+			{
+				return Math.max(0.0f, pass.mGpuMillis >= 0.0f ? pass.mGpuMillis : pass.mCpuMillis);
+			}
+		}
+		
+		return 0.0f;
+	}
+	
+	/**
+	 * Returns the GPU time of the last frame's passes in milliseconds, from the latest timer query of
+	 * each (which may be a few frames old), or -1 if GPU times aren't available yet.
+	 */
+	public float getFrameGpuMillis()
+	{
+		float total = 0.0f;
+		
+		for (Pass pass : mPasses)
+		{
+			if (!pass.mCulled)
+			{
+				if (pass.mLastGpuMillis < 0.0f)
+				{
+					return -1.0f;
+				}
+				
+				total += pass.mLastGpuMillis;
+			}
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Returns the CPU time spent issuing the last frame's passes, in milliseconds.
+	 */
+	public float getFrameCpuMillis()
+	{
+		float total = 0.0f;
+		
+		for (Pass pass : mPasses)
+		{
+			if (!pass.mCulled)
+			{
+				total += Math.max(0.0f, pass.mLastCpuMillis);
+			}
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Returns the CPU and GPU time of each pass, smoothed over recent frames, and which passes were
+	 * culled from the last frame.
+	 */
+	public String getTimingReport()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append("Render graph at " + mRenderWidth + "x" + mRenderHeight + " of " + mWidth + "x" + mHeight + ", " + mPool + ":\n");
+		
+		for (Pass pass : mPasses)
+		{
+			report.append(String.format("  %-12s", pass.getName()));
+			
+			if (pass.mCulled)
+			{
+				report.append(" culled");
+			}
+			else
+			{
+				report.append(String.format(" cpu %7.3f ms", pass.mCpuMillis));
+				report.append(pass.mGpuMillis < 0.0f ? "  gpu     n/a" : String.format("  gpu %7.3f ms", pass.mGpuMillis));
+			}
+			
+			report.append("\n");
+		}
+		
+		return report.toString();
+	}
+	
+	/**
+	 * Deletes the pass framebuffers, timer queries, and pooled targets.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		int names[] = new int[1];
+		
+		for (Pass pass : mPasses)
+		{
+			if (pass.mFramebuffer != 0)
+			{
+				names[0] = pass.mFramebuffer;
+				gl.glDeleteFramebuffers(1, names, 0);
+				GLState.framebufferDeleted(pass.mFramebuffer);
+				pass.mFramebuffer = 0;
+				pass.mAttachedColor = new Texture2D[0];
+				pass.mAttachedDepth = null;
+			}
+			
+			if (pass.mQueries != null)
+			{
+				gl.glDeleteQueries(2 * QUERY_FRAMES, pass.mQueries, 0);
+				pass.mQueries = null;
+				pass.mQueryPending = new boolean[QUERY_FRAMES];
+			}
+		}
+		
+		if (mReadFramebuffer != 0)
+		{
+			names[0] = mReadFramebuffer;
+			gl.glDeleteFramebuffers(1, names, 0);
+			GLState.framebufferDeleted(mReadFramebuffer);
+			mReadFramebuffer = 0;
+			mReadAttached = null;
+		}
+		
+		mPool.releaseGPUResources(gl);
+		mTimerQueries = null;
+		
+		for (Target target : mTargets.values())
+		{
+			target.texture = null;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package cs5625.deferred.rendering;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+import javax.vecmath.SingularMatrixException;
+
+import cs5625.deferred.materials.Material;
+import cs5625.deferred.materials.Texture;
+import cs5625.deferred.misc.Util;
+import cs5625.deferred.scenegraph.Mesh;
+
+/**
+ * RenderQueue.java
+ *
+ * A RenderQueue collects the meshes drawn by one rendering pass, along with the modelview matrix
+ * each one is drawn with, and sorts them by shader, texture, and material. Drawing the sorted
+ * queue lets the renderer bind each shader and material once per run of identical items instead
+ * of once per mesh.
+ *
+ * The queue also counts the draw calls and state changes issued while it was last drawn, so the
+ * savings can be reported.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class RenderQueue
+{
+	/**
+	 * A single queued draw: a mesh, the material it was queued with, and its modelview matrix.
+	 */
+	public static class Item
+	{
+		private Mesh mMesh;
+		private Material mMaterial;
+		private int mShaderHandle;
+		private int mTextureHandle;
+		private int mMaterialOrder;
+		private float mModelview[] = new float[16];
+		private float mNormalMatrix[] = new float[9];
+
+		/**
+		 * Returns the mesh to draw.
+		 */
+		public Mesh getMesh()
+		{
+			return mMesh;
+		}
+
+		/**
+		 * Returns the material to draw the mesh with.
+		 */
+		public Material getMaterial()
+		{
+			return mMaterial;
+		}
+
+		/**
+		 * Returns the column-major modelview matrix of this item, suitable for `glLoadMatrixf()`.
+		 */
+		public float[] getModelview()
+		{
+			return mModelview;
+		}
+
+		/**
+		 * Returns the column-major normal matrix (inverse transpose of the modelview's upper 3x3) of
+		 * this item, for shaders which don't use the fixed-function `gl_NormalMatrix`.
+		 */
+		public float[] getNormalMatrix()
+		{
+			return mNormalMatrix;
+		}
+	}
+
+	/* Sorts by shader first (the most expensive switch), then texture, then material. The material
+	 * order is the order in which each material was first queued, so items with the same material
+	 * always end up adjacent. Collections.sort() is stable, so ties keep scenegraph order. */
+	private static final Comparator<Item> STATE_ORDER = new Comparator<Item>()
+	{
+		public int compare(Item a, Item b)
+		{
+			if (a.mShaderHandle != b.mShaderHandle)
+			{
+				return (a.mShaderHandle < b.mShaderHandle ? -1 : 1);
+			}
+
+			if (a.mTextureHandle != b.mTextureHandle)
+			{
+				return (a.mTextureHandle < b.mTextureHandle ? -1 : 1);
+			}
+
+			if (a.mMaterialOrder != b.mMaterialOrder)
+			{
+				return (a.mMaterialOrder < b.mMaterialOrder ? -1 : 1);
+			}
+
+			return 0;
+		}
+	};
+
+	/* Queued items. Item objects are pooled and reused from frame to frame to avoid garbage. */
+	private ArrayList<Item> mItems = new ArrayList<Item>();
+	private ArrayList<Item> mItemPool = new ArrayList<Item>();
+	private IdentityHashMap<Material, Integer> mMaterialOrder = new IdentityHashMap<Material, Integer>();
+	private Matrix3f mScratchNormalMatrix = new Matrix3f();
+
+	/* Statistics for the last time this queue was drawn. */
+	private int mDrawCalls = 0;
+	private int mShaderChanges = 0;
+	private int mMaterialChanges = 0;
+	private int mTextureChanges = 0;
+
+	/**
+	 * Adds a mesh to the queue. The mesh's material must already have retrieved its shader.
+	 *
+	 * @param mesh The mesh to draw.
+	 * @param modelview The modelview matrix to draw the mesh with. Copied, so the caller may reuse it.
+	 */
+	public void add(Mesh mesh, Matrix4f modelview)
+	{
+		Item item = (mItemPool.isEmpty() ? new Item() : mItemPool.remove(mItemPool.size() - 1));
+		Material material = mesh.getMaterial();
+		Texture texture = material.getPrimaryTexture();
+
+		Integer order = mMaterialOrder.get(material);
+		if (order == null)
+		{
+			order = mMaterialOrder.size();
+			mMaterialOrder.put(material, order);
+		}
+
+		item.mMesh = mesh;
+		item.mMaterial = material;
+		item.mShaderHandle = (material.getShaderProgram() == null ? -1 : material.getShaderProgram().getHandle());
+		item.mTextureHandle = (texture == null ? -1 : texture.getHandle());
+		item.mMaterialOrder = order;
+		Util.fromMatrix4f(modelview, item.mModelview);
+
+		/* Normal matrix is the inverse transpose of the upper 3x3; stored column-major, so the
+		 * transpose is implicit in reading the inverse out row by row. */
+		modelview.getRotationScale(mScratchNormalMatrix);
+		try
+		{
+			mScratchNormalMatrix.invert();
+		}
+		catch (SingularMatrixException err)
+		{
+			/* Degenerate (e.g. zero-scale) objects are invisible anyway. */
+			mScratchNormalMatrix.setIdentity();
+		}
+		for (int row = 0; row < 3; ++row)
+		{
+			for (int col = 0; col < 3; ++col)
+			{
+				item.mNormalMatrix[3 * row + col] = mScratchNormalMatrix.getElement(row, col);
+			}
+		}
+
+		mItems.add(item);
+	}
+
+	/**
+	 * Sorts the queued items so that items sharing state are adjacent.
+	 */
+	public void sort()
+	{
+		Collections.sort(mItems, STATE_ORDER);
+	}
+
+	/**
+	 * Returns the queued items, in sorted order if `sort()` has been called.
+	 */
+	public ArrayList<Item> getItems()
+	{
+		return mItems;
+	}
+
+	/**
+	 * Empties the queue so it can be refilled for the next frame.
+	 */
+	public void clear()
+	{
+		for (Item item : mItems)
+		{
+			item.mMesh = null;
+			item.mMaterial = null;
+			mItemPool.add(item);
+		}
+
+		mItems.clear();
+		mMaterialOrder.clear();
+	}
+
+	/**
+	 * Resets the draw call and state change counters. Called by the renderer before drawing the queue.
+	 */
+	public void resetStatistics()
+	{
+		mDrawCalls = 0;
+		mShaderChanges = 0;
+		mMaterialChanges = 0;
+		mTextureChanges = 0;
+	}
+
+	/**
+	 * Records that a draw call was issued.
+	 */
+	public void countDrawCall()
+	{
+		++mDrawCalls;
+	}
+
+	/**
+	 * Records that the bound shader changed.
+	 */
+	public void countShaderChange()
+	{
+		++mShaderChanges;
+	}
+
+	/**
+	 * Records that the bound material changed, and whether that changed its primary texture.
+	 */
+	public void countMaterialChange(boolean textureChanged)
+	{
+		++mMaterialChanges;
+
+		if (textureChanged)
+		{
+			++mTextureChanges;
+		}
+	}
+
+	/**
+	 * Returns the number of items drawn the last time this queue was drawn. Without sorting,
+	 * each of them cost one material bind.
+	 */
+	public int getItemCount()
+	{
+		return mItems.size();
+	}
+
+	/**
+	 * Returns the number of draw calls issued the last time this queue was drawn.
+	 */
+	public int getDrawCallCount()
+	{
+		return mDrawCalls;
+	}
+
+	/**
+	 * Returns the number of shader changes the last time this queue was drawn.
+	 */
+	public int getShaderChangeCount()
+	{
+		return mShaderChanges;
+	}
+
+	/**
+	 * Returns the number of material binds the last time this queue was drawn.
+	 */
+	public int getMaterialChangeCount()
+	{
+		return mMaterialChanges;
+	}
+
+	/**
+	 * Returns the number of primary texture changes the last time this queue was drawn.
+	 */
+	public int getTextureChangeCount()
+	{
+		return mTextureChanges;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getItemCount() + " items, " + mDrawCalls + " draw calls, " + mShaderChanges + " shader changes, "
+				+ mMaterialChanges + " material binds, " + mTextureChanges + " texture changes";
+	}
+}
@@ -0,0 +1,184 @@
+package cs5625.deferred.rendering;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import javax.media.opengl.GL2;
+
+import cs5625.deferred.materials.Texture.Datatype;
+import cs5625.deferred.materials.Texture.Format;
+import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.misc.OpenGLException;
+import cs5625.deferred.misc.OpenGLResourceObject;
+
+/**
+ * RenderTargetPool.java
+ *
+ * Recycles the rectangle textures used as render targets by `RenderGraph`. Targets are allocated in
+ * size buckets: each dimension is rounded up to a multiple of `BUCKET_SIZE`, and a target is only
+ * rendered to and read from in its lower-left corner. The margin beyond it holds whatever an earlier
+ * user of the texture left there, so shaders which read neighbouring pixels must clamp their taps to
+ * the rendered size (see silhouette.fp). Resizing the window within a bucket
+ * therefore reuses the same textures, and a texture released by one pass can be handed to a later
+ * pass needing the same format in the same frame.
+ *
+ * Released targets stay in the pool until they have gone unused for `MAX_IDLE_FRAMES` frames, so
+ * dragging a window edge back and forth across a bucket boundary doesn't reallocate either.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class RenderTargetPool implements OpenGLResourceObject
+{
+	/* Granularity of target sizes, in pixels, and how long an unused target is kept. */
+	public static final int BUCKET_SIZE = 128;
+	public static final int MAX_IDLE_FRAMES = 120;
+	
+	/* A pooled texture and the number of frames since it was last released. */
+	private static class Entry
+	{
+		public Texture2D texture;
+		public String key;
+		public int idleFrames;
+	}
+	
+	/* Free targets by bucket key, and targets currently handed out. */
+	private HashMap<String, ArrayList<Entry>> mFree = new HashMap<String, ArrayList<Entry>>();
+	private IdentityHashMap<Texture2D, Entry> mInUse = new IdentityHashMap<Texture2D, Entry>();
+	
+	/* Number of textures created since the pool was made, for statistics. */
+	private int mAllocationCount = 0;
+	
+	/**
+	 * Returns `size` rounded up to the next multiple of `BUCKET_SIZE`.
+	 */
+	public static int getBucketSize(int size)
+	{
+		return Math.max(1, (size + BUCKET_SIZE - 1) / BUCKET_SIZE) * BUCKET_SIZE;
+	}
+	
+	/**
+	 * Returns a rectangle texture of the given format which is at least `width` x `height`, reusing a
+	 * free one from the same bucket if there is one. Release it with `release()` when done.
+	 */
+	public Texture2D acquire(GL2 gl, Format format, Datatype datatype, int width, int height) throws OpenGLException
+	{
+		int bucketWidth = getBucketSize(width);
+		int bucketHeight = getBucketSize(height);
+		String key = format + "/" + datatype + "/" + bucketWidth + "x" + bucketHeight;
+		
+		ArrayList<Entry> free = mFree.get(key);
+		Entry entry;
+		
+		if (free != null && !free.isEmpty())
+		{
+			entry = free.remove(free.size() - 1);
+		}
+		else
+		{
+			entry = new Entry();
+			entry.key = key;
+			entry.texture = new Texture2D(gl, format, datatype, bucketWidth, bucketHeight, null, true);
+			++mAllocationCount;
+		}
+		
+		entry.idleFrames = 0;
+		mInUse.put(entry.texture, entry);
+		return entry.texture;
+	}
+	
+	/**
+	 * Returns a texture obtained from `acquire()` to the pool. Its contents may be overwritten by the
+	 * next pass to acquire a target of the same bucket.
+	 */
+	public void release(Texture2D texture)
+	{
+		Entry entry = mInUse.remove(texture);
+		if (entry == null)
+		{
+			throw new AssertionError("Texture was not acquired from this pool.");
+		}
+		
+		ArrayList<Entry> free = mFree.get(entry.key);
+		if (free == null)
+		{
+			free = new ArrayList<Entry>();
+			mFree.put(entry.key, free);
+		}
+		
+		free.add(entry);
+	}
+	
+	/**
+	 * Ages the free targets by one frame and deletes those which have been idle too long.
+	 */
+	public void endFrame(GL2 gl)
+	{
+		for (ArrayList<Entry> free : mFree.values())
+		{
+			Iterator<Entry> it = free.iterator();
+			while (it.hasNext())
+			{
+				Entry entry = it.next();
+				
+				if (++entry.idleFrames > MAX_IDLE_FRAMES)
+				{
+					entry.texture.releaseGPUResources(gl);
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of textures currently owned by the pool, free or in use.
+	 */
+	public int getTextureCount()
+	{
+		int count = mInUse.size();
+		for (ArrayList<Entry> free : mFree.values())
+		{
+			count += free.size();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Returns the number of textures the pool has created over its lifetime.
+	 */
+	public int getAllocationCount()
+	{
+		return mAllocationCount;
+	}
+	
+	/**
+	 * Deletes every texture in the pool, including any still in use.
+	 */
+	public void releaseGPUResources(GL2 gl)
+	{
+		for (ArrayList<Entry> free : mFree.values())
+		{
+			for (Entry entry : free)
+			{
+				entry.texture.releaseGPUResources(gl);
+			}
+		}
+		
+		for (Texture2D texture : mInUse.keySet())
+		{
+			texture.releaseGPUResources(gl);
+		}
+		
+		mFree.clear();
+		mInUse.clear();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return getTextureCount() + " targets (" + mInUse.size() + " in use), " + mAllocationCount + " allocated in total";
+	}
+}
@@ -4,28 +4,43 @@ import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.glu.GLU;
-import javax.vecmath.AxisAngle4f;
 import javax.vecmath.Color3f;
+import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
 import javax.vecmath.Quat4f;
+import javax.vecmath.Vector3f;
 
+import com.jogamp.opengl.util.gl2.GLUT;
+
+import cs5625.deferred.materials.BlinnPhongMaterial;
 import cs5625.deferred.materials.CloudMaterial;
+import cs5625.deferred.materials.LambertianMaterial;
+import cs5625.deferred.materials.LightningMaterial;
 import cs5625.deferred.materials.Material;
+import cs5625.deferred.materials.ParticleMaterial;
+import cs5625.deferred.materials.PrecipitationMaterial;
+import cs5625.deferred.materials.SpriteArray;
 import cs5625.deferred.materials.Texture.Datatype;
 import cs5625.deferred.materials.Texture.Format;
 import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.materials.TextureLoader;
 import cs5625.deferred.materials.UnshadedMaterial;
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.ScenegraphException;
+import cs5625.deferred.misc.Util;
 import cs5625.deferred.scenegraph.Geometry;
 import cs5625.deferred.scenegraph.Light;
 import cs5625.deferred.scenegraph.Mesh;
+import cs5625.deferred.scenegraph.PackedVertexData;
 import cs5625.deferred.scenegraph.ParticleSystem;
-import cs5625.deferred.scenegraph.PointLight;
+import cs5625.deferred.scenegraph.ProjectedGrid;
 import cs5625.deferred.scenegraph.SceneObject;
 
 /**
@@ -40,6 +55,9 @@ import cs5625.deferred.scenegraph.SceneObject;
  * 4. Render any translucent geometry on top of {5}, lit using forward shading. 
  * 5. Output {5} to window.   
  * 
+ * The stages are passes of a `RenderGraph`, which skips any stage the output doesn't depend on, and 
+ * takes the gbuffer textures from a pool as they are needed.
+ * 
  * Written for Cornell CS 5625 (Interactive Computer Graphics).
  * Copyright (c) 2012, Computer Science Department, Cornell University.
  * 
@@ -51,8 +69,8 @@ public class Renderer
 	/* Viewport attributes. */
 	private float mViewportWidth, mViewportHeight;
 	
-	/* The GBuffer FBO. */
-	private FramebufferObject mGBufferFBO;
+	/* The passes which render a frame and the gbuffer targets between them; see `createRenderGraph()`. */
+	private RenderGraph mRenderGraph;
 	
 	/* Name the indices in the GBuffer so code is easier to read. */
 	private final int GBuffer_DiffuseIndex = 0;
@@ -61,17 +79,38 @@ public class Renderer
 	private final int GBuffer_NormalIndex = 3;
 	private final int GBuffer_GradientsIndex = 4;
 	private final int GBuffer_FinalSceneIndex = 5;
-	private final int GBuffer_Count = 6;
-	
-	
 	
+	/* Names of the gbuffer textures in the render graph, by index, and of its depth target and the window. */
+	private static final String GBUFFER_TARGETS[] = new String[] { "Diffuse", "MaterialParams", "Position", "Normal", "Gradients", "FinalScene" };
+	private static final String DEPTH_TARGET = "Depth";
+	private static final String DISPLAY = "Display";
 	
-	//TEXTURES LOOK
-	public Texture2D[] textures = new Texture2D[14];
+	/* Targets of the low-resolution translucent pass, and the passes whose times make up the translucent stage. */
+	private static final String LOW_RES_DEPTH_TARGET = "LowResDepth";
+	private static final String LOW_RES_TRANSLUCENT_TARGET = "LowResTranslucent";
+	private static final String TRANSLUCENT_PASSES[] = new String[] { "DownsampleDepth", "Translucent", "Upsample" };
 	
+	/* State of the frame being rendered, for the passes of the render graph: the scene, the camera, 
+	 * whether toon shading is on (which can be toggled from another thread mid-frame), and the target to show. */
+	private SceneObject mFrameSceneRoot;
+	private Camera mFrameCamera;
+	private boolean mFrameToonShading;
+	private String mPresentInputs[] = new String[] { GBUFFER_TARGETS[GBuffer_FinalSceneIndex] };
 	
+	/* The cloud, precipitation, and lightning images packed into one texture, so particles using different 
+	 * ones can share a material and a texture binding. */
+	public SpriteArray sprites;
 	
+	/* Images packed into `sprites` by `init()`, by layer. */
+	private static final String SPRITE_IDENTIFIERS[] = new String[] {
+		"models/cloud.png", "models/cloud2.png", "models/cloud3.png", "models/cloud4.png",
+		"models/cloud5.png", "models/cloud6.png", "models/cloud7.png", "models/cloud8.png",
+		"models/snowflake.png", "models/lightning.png", "models/lightning2.png", "models/lightning3.png",
+		"models/raindrop.png", "models/clear.png"
+	};
 	
+	/* Decodes textures on worker threads; finished ones are uploaded at the start of each frame. */
+	private TextureLoader mTextureLoader = new TextureLoader();
 	
 	/* The index of the texture to preview in GBufferFBO, or -1 for no preview. */
 	private int mPreviewIndex = -1;
@@ -79,6 +118,15 @@ public class Renderer
 	/* List of lights in the scene, assembled every frame. */
 	private ArrayList<Light> mLights = new ArrayList<Light>();
 	
+	/* Eye-space light data for the current frame, shared by the ubershader and forward-shaded materials. */
+	private LightBuffer mLightBuffer;
+	
+	/* Lists of the lights reaching each cluster of the view frustum, so the ubershader only shades 
+	 * each pixel with nearby lights. Bound after the gbuffer textures and the light buffer. */
+	private LightClusters mLightClusters;
+	private final int LightClusters_TableUnit = GBuffer_FinalSceneIndex + 1;
+	private final int LightClusters_IndexUnit = GBuffer_FinalSceneIndex + 2;
+	
 	/* Cache of shaders used by all the materials in the scene. Storing the shaders here instead of in 
 	 * the Material classes themselves allows the shaders to be local to the renderer and the OpenGL 
 	 * context, which is appropriate. */
@@ -93,16 +141,69 @@ public class Renderer
 	private Material mWireframeMaterial, mWireframeMarkedEdgeMaterial;
 	private boolean mRenderWireframes = false;
 	
+	/* Queues of meshes for the opaque and translucent passes. Meshes are gathered from the scenegraph, 
+	 * sorted by shader, texture, and material, and then drawn so each state is bound once per run. */
+	private RenderQueue mOpaqueQueue = new RenderQueue();
+	private RenderQueue mTranslucentQueue = new RenderQueue();
+	
+	/* Core-profile backend (VAOs, VBOs, explicit transform uniforms, triangles only), used instead of 
+	 * the fixed-function matrix stack and client arrays while `mUseCoreProfile` is set. Switching takes 
+	 * effect at the start of the next frame, since every shader has to be reloaded. */
+	private CoreProfileBackend mCoreBackend = null;
+	private boolean mUseCoreProfile = false;
+	private boolean mRequestedCoreProfile = false;
+	private float mProjection[] = new float[16];
+	
+	/* Whether the gbuffer uses the compact layout (RGBA8 diffuse and material, RG16 octahedral normals, 
+	 * and positions and edges recomputed from depth; see "shaders/gbuffer.glsl") instead of 
+	 * the full one. Switching takes effect at the start of the next frame, like `mUseCoreProfile`. */
+	private boolean mUseCompactGBuffer = false;
+	private boolean mRequestedCompactGBuffer = false;
+	
+	/* Resolution of the translucent pass as a fraction of the window's: at 1 it renders straight into 
+	 * the final scene; at 2 or 4 it renders at half or quarter resolution against a downsampled depth 
+	 * buffer, and is composited with a bilateral upsample. Switching takes effect at the start of the 
+	 * next frame. The smoothed time of the translucent stage is kept for each divisor used so far. */
+	private int mTranslucentDivisor = 1;
+	private int mRequestedTranslucentDivisor = 1;
+	private TreeMap<Integer, Float> mTranslucentMillis = new TreeMap<Integer, Float>();
+	
+	/* Picks the scale of the internal resolution from recent frame times. Frames are rendered into the 
+	 * lower-left corner of the window-sized targets and stretched to the window when presented. */
+	private ResolutionController mResolutionController = new ResolutionController();
+	
+	/* Rolling CPU and GPU percentiles of every stage of the frame, also published over JMX. The overlay 
+	 * draws them over the frame, refreshing its text every `OVERLAY_REFRESH_FRAMES` frames. */
+	private FrameProfiler mProfiler = new FrameProfiler();
+	private boolean mShowProfilerOverlay = false;
+	private String mOverlayLines[] = null;
+	private int mOverlayAge = 0;
+	private GLUT mGlut = new GLUT();
+	private static final int OVERLAY_REFRESH_FRAMES = 30;
+	
+	/* Shaders which reduce the depth buffer for the low-resolution translucent pass, and composite it. */
+	private ShaderProgram mDownsampleDepthShader, mUpsampleShader;
+	
+	/* Targets the lighting pass reads, by texture unit, without and with toon shading (null for none). */
+	private String mLightingInputs[];
+	private String mToonLightingInputs[];
+	
 	/* Locations of uniforms in the ubershader. */
-	private int mLightPositionsUniformLocation = -1;
-	private int mLightColorsUniformLocation = -1;
-	private int mLightAttenuationsUniformLocation = -1;
-	private int mNumLightsUniformLocation = -1;
 	private int mEnableToonShadingUniformLocation = -1;
-	private int mMaxLightsInUberShader = -1;
-	
+	private int mClusterTileScaleUniformLocation = -1;
+	private int mClusterDepthParamsUniformLocation = -1;
+	private int mInverseProjectionUniformLocation = -1;
+	private int mViewportSizeUniformLocation = -1;
 	
+	/* Location of the size of the rendered part of the gbuffer in the silhouette shader. */
+	private int mSilhouetteViewportSizeUniformLocation = -1;
 	
+	/* Locations of uniforms in the downsample and upsample shaders. */
+	private int mDownsampleFactorUniformLocation = -1;
+	private int mDownsampleDepthSizeUniformLocation = -1;
+	private int mUpsampleFactorUniformLocation = -1;
+	private int mUpsampleLowResSizeUniformLocation = -1;
+	private int mUpsampleDepthRangeUniformLocation = -1;
 	
 	/**
 	 * Renders a single frame of the scene. This is the main method of the Renderer class.
@@ -114,37 +215,70 @@ public class Renderer
 	public void render(GLAutoDrawable drawable, SceneObject sceneRoot, Camera camera)
 	{
 		GL2 gl = drawable.getGL().getGL2();
-		
-		
+		long frameStart = System.nanoTime();
 		
 		/* Reset lights array. It will be re-filled as the scene is traversed. */
 		mLights.clear();
+		
+		/* Count uniform uploads per frame (see `ShaderProgram.getUniformUploadCount()`). */
+		ShaderProgram.resetUniformUploadCounts();
+		
+		/* Create any textures which have finished loading in the background. */
+		mTextureLoader.uploadCompleted(gl);
 				
 		try
 		{
-			/* 1. Fill the gbuffer given this scene and camera. */ 
-			fillGBuffer(gl, sceneRoot, camera);
+			/* 0. Switch rendering paths or gbuffer layouts if requested since the last frame. */
+			if (mRequestedCoreProfile != mUseCoreProfile || mRequestedCompactGBuffer != mUseCompactGBuffer)
+			{
+				switchRenderingPath(gl, mRequestedCoreProfile, mRequestedCompactGBuffer, sceneRoot);
+			}
 			
-			/* 2. Compute gradient buffer based on positions and normals, used for toon shading. */
-			computeGradientBuffer(gl);
+			if (mRequestedTranslucentDivisor != mTranslucentDivisor)
+			{
+				mTranslucentDivisor = mRequestedTranslucentDivisor;
+				mRenderGraph.releaseGPUResources(gl);
+				createRenderGraph();
+			}
 			
-			/* 3. Apply deferred lighting to the g-buffer. At this point, the opaque scene has 
-			 * been rendered. */
-			lightGBuffer(gl, camera);
+			/* 1-6. Run the stages of the render graph (see `createRenderGraph()`). Only the stages the 
+			 * output depends on run: edge detection is skipped unless toon shading, and lighting is 
+			 * skipped while previewing a gbuffer texture. */
+			mFrameSceneRoot = sceneRoot;
+			mFrameCamera = camera;
+			mFrameToonShading = mEnableToonShading;
 			
-			/* 4. Render any translucent geometry in a forward shading pass. */
-			compositeTranslucentGeometry(gl, sceneRoot, camera);
-
-			/* 5. If we're supposed to preview one gbuffer texture, do that now. 
-			 * Otherwise, output the final scene. */
-			if (mPreviewIndex >= 0 && mPreviewIndex < GBuffer_FinalSceneIndex)
+			mPresentInputs[0] = GBUFFER_TARGETS[GBuffer_FinalSceneIndex];
+			if (mPreviewIndex >= 0 && mPreviewIndex < GBuffer_FinalSceneIndex && 
+				!(mUseCompactGBuffer && (mPreviewIndex == GBuffer_PositionIndex || mPreviewIndex == GBuffer_GradientsIndex)))
 			{
-				renderTextureFullscreen(gl, mGBufferFBO.getColorTexture(mPreviewIndex));
+				mPresentInputs[0] = GBUFFER_TARGETS[mPreviewIndex];
 			}
-			else
+			
+			float scale = mResolutionController.getScale();
+			mRenderGraph.setRenderSize(Math.round(mViewportWidth * scale), Math.round(mViewportHeight * scale));
+			
+			mRenderGraph.execute(gl, DISPLAY);
+			
+			/* Choose the next frame's resolution from this one's CPU time and the latest GPU time. */
+			float frameMillis = (System.nanoTime() - frameStart) / 1.0e6f;
+			mProfiler.recordCpu("Frame", frameMillis);
+			mResolutionController.update(frameMillis, mRenderGraph.getFrameGpuMillis());
+			
+			/* Record what the translucent stage cost at this resolution, unless it was culled. */
+			if (mPresentInputs[0].equals(GBUFFER_TARGETS[GBuffer_FinalSceneIndex]))
 			{
-				renderTextureFullscreen(gl, mGBufferFBO.getColorTexture(GBuffer_FinalSceneIndex));
+				float translucentMillis = 0.0f;
+				for (String pass : TRANSLUCENT_PASSES)
+				{
+					translucentMillis += mRenderGraph.getMillis(pass);
+				}
+				
+				mTranslucentMillis.put(mTranslucentDivisor, translucentMillis);
 			}
+			
+			/* Release builds skip the per-call error checks, so catch anything this frame missed. */
+			OpenGLException.checkOpenGLErrorAlways(gl);
 		}
 		catch (Exception err)
 		{
@@ -161,44 +295,30 @@ public class Renderer
 	 * @param sceneRoot The root node of the scene to render.
 	 * @param camera The camera describing the perspective to render from.
 	 */
-	private void fillGBuffer(GL2 gl, SceneObject sceneRoot, Camera camera) throws OpenGLException
+	private void fillGBuffer(GL2 gl, SceneObject sceneRoot, Camera camera) throws OpenGLException, ScenegraphException
 	{
-		GLU glu = GLU.createGLU(gl);
-
-		/* First, bind and clear the gbuffer. */
-		mGBufferFBO.bindSome(gl, new int[]{GBuffer_DiffuseIndex, GBuffer_MaterialIndex, GBuffer_PositionIndex, GBuffer_NormalIndex});
+		/* First, clear the gbuffer, which the render graph has bound. */
 		gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 		gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
 		
 		/* Update the projection matrix with this camera's projection matrix. */
-		gl.glMatrixMode(GL2.GL_PROJECTION);
-		gl.glLoadIdentity();
-		glu.gluPerspective(camera.getFOV(), mViewportWidth / mViewportHeight, camera.getNear(), camera.getFar());
-		
-		/* Update the modelview matrix with this camera's eye transform. */
-		gl.glMatrixMode(GL2.GL_MODELVIEW);
-		gl.glLoadIdentity();
-		
-		/* Find the inverse of the camera scale, position, and orientation in world space, accounting
-		 * for the fact that the camera might be nested inside other objects in the scenegraph.*/
-		float cameraScale = 1.0f / camera.transformDistanceToWorldSpace(1.0f);
-		Point3f cameraPosition = camera.transformPointToWorldSpace(new Point3f(0.0f, 0.0f, 0.0f));
-		AxisAngle4f cameraOrientation = new AxisAngle4f();
-		cameraOrientation.set(camera.transformOrientationToWorldSpace(new Quat4f(0.0f, 0.0f, 0.0f, 1.0f)));
-		
-		/* Apply the camera transform to OpenGL. */
-		gl.glScalef(cameraScale, cameraScale, cameraScale);
-		gl.glRotatef(cameraOrientation.angle * 180.0f / (float)Math.PI, -cameraOrientation.x, -cameraOrientation.y, -cameraOrientation.z);
-		gl.glTranslatef(-cameraPosition.x, -cameraPosition.y, -cameraPosition.z);
+		setProjection(gl, camera);
 		
 		/* Check for errors before rendering, to help isolate. */
 		OpenGLException.checkOpenGLError(gl);
 		
+		/* Gather the scene into both queues. The opaque pass happens first, so this is also where
+		 * the list of lights is assembled for the rest of the frame. */
+		mOpaqueQueue.clear();
+		mTranslucentQueue.clear();
+		queueObject(gl, camera, sceneRoot, computeViewMatrix(camera));
+		
+		/* All lights are known now, so transform them to eye space once for every shader this frame. */
+		mLightBuffer.update(gl, mLights, camera);
+		mLightClusters.update(gl, mLightBuffer, camera.getFOV(), mViewportWidth / mViewportHeight, camera.getNear(), camera.getFar());
+		
 		/* Render the scene, opaque only. */
-		renderObject(gl, camera, sceneRoot, true);
-
-		/* GBuffer is filled, so unbind it. */
-		mGBufferFBO.unbind(gl);
+		renderQueue(gl, mOpaqueQueue);
 		
 		/* Check for errors after rendering, to help isolate. */
 		OpenGLException.checkOpenGLError(gl);
@@ -210,38 +330,33 @@ public class Renderer
 	 */
 	private void computeGradientBuffer(GL2 gl) throws OpenGLException
 	{
-		/* Bind silhouette buffer as output. */
-		mGBufferFBO.bindOne(gl, GBuffer_GradientsIndex);
-
+		/* The render graph has bound the gradient buffer as output. */
 		gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 		gl.glClear(GL2.GL_COLOR_BUFFER_BIT);
 		
-		/* Save state before we disable depth testing for blitting. */
-		gl.glPushAttrib(GL2.GL_ENABLE_BIT);
-		
 		/* Disable depth test and blend, since we just want to replace the contents of the framebuffer.
 		 * Since we are rendering an opaque fullscreen quad here, we don't bother clearing the buffer
 		 * first. */
-		gl.glDisable(GL2.GL_DEPTH_TEST);
-		gl.glDisable(GL2.GL_BLEND);
+		beginFullscreenPass(gl);
 		
 		/* Bind the position and normal textures so the edge-detection shader ecan read them. */
-		mGBufferFBO.getColorTexture(GBuffer_PositionIndex).bind(gl, 0);
-		mGBufferFBO.getColorTexture(GBuffer_NormalIndex).bind(gl, 1);
+		Texture2D position = mRenderGraph.getTexture(GBUFFER_TARGETS[GBuffer_PositionIndex]);
+		Texture2D normal = mRenderGraph.getTexture(GBUFFER_TARGETS[GBuffer_NormalIndex]);
+		position.bind(gl, 0);
+		normal.bind(gl, 1);
 		
 		/* Bind silhouette shader and render. */
 		mSilhouetteShader.bind(gl);
-		drawFullscreenQuad(gl, mViewportWidth, mViewportHeight);
+		mSilhouetteShader.setUniform2f(gl, mSilhouetteViewportSizeUniformLocation, mRenderGraph.getWidth(), mRenderGraph.getHeight());
+		drawFullscreen(gl);
 		
 		/* Unbind everything. */
 		mSilhouetteShader.unbind(gl);
-		mGBufferFBO.getColorTexture(GBuffer_PositionIndex).unbind(gl);
-		mGBufferFBO.getColorTexture(GBuffer_NormalIndex).unbind(gl);
-
-		mGBufferFBO.unbind(gl);
+		position.unbind(gl);
+		normal.unbind(gl);
 
 		/* Restore attributes (blending and depth-testing) to as they were before. */
-		gl.glPopAttrib();
+		endFullscreenPass(gl);
 	}
 	
 	/**
@@ -259,84 +374,59 @@ public class Renderer
 			throw new ScenegraphException("Must have at least one light in the scene!");
 		}
 		
-		/* Can't have more lights than the shader supports. */
-		if (mLights.size() > mMaxLightsInUberShader)
-		{
-			throw new ScenegraphException(mLights.size() + " is too many lights; ubershader only supports " + mMaxLightsInUberShader + ".");
-		}
-		
-		/* Bind final scene buffer as output target for this pass. */
-		mGBufferFBO.bindOne(gl, GBuffer_FinalSceneIndex);
-		
-		/* Save state before we disable depth testing for blitting. */
-		gl.glPushAttrib(GL2.GL_ENABLE_BIT);
+		/* The render graph has bound the final scene buffer as output target for this pass. */
 		
 		/* Disable depth test and blend, since we just want to replace the contents of the framebuffer.
 		 * Since we are rendering an opaque fullscreen quad here, we don't bother clearing the buffer
 		 * first. */
-		gl.glDisable(GL2.GL_DEPTH_TEST);
-		gl.glDisable(GL2.GL_BLEND);
+		beginFullscreenPass(gl);
 		
-		/* Bind all GBuffer source textures so the ubershader can read them. */
-		for (int i = 0; i < GBuffer_FinalSceneIndex; ++i)
+		/* Bind all GBuffer source textures so the ubershader can read them. The gradients are only 
+		 * computed (and read) when toon shading. */
+		String sources[] = (mFrameToonShading ? mToonLightingInputs : mLightingInputs);
+		for (int i = 0; i < sources.length; ++i)
 		{
-			mGBufferFBO.getColorTexture(i).bind(gl, i);
+			mRenderGraph.getTexture(sources[i]).bind(gl, i);
 		}
 		
 		/* Bind ubershader. */
 		mUberShader.bind(gl);
 		
-		int lightIndex = 0;
-		/* Update all the ubershader uniforms with up-to-date light information. */
-		for (int i = 0; i < mLights.size(); ++i)
+		/* Lights were already transformed to eye space and binned into clusters in `fillGBuffer()`. */
+		mLightBuffer.bind(gl, GBuffer_FinalSceneIndex);
+		mLightClusters.bind(gl, LightClusters_TableUnit, LightClusters_IndexUnit);
+		
+		/* Ubershader needs to know how to find each fragment's cluster. */
+		float depthParams[] = mLightClusters.getDepthParams();
+		mUberShader.setUniform2f(gl, mClusterTileScaleUniformLocation, 
+				(float)LightClusters.CLUSTERS_X / mRenderGraph.getWidth(), (float)LightClusters.CLUSTERS_Y / mRenderGraph.getHeight());
+		mUberShader.setUniform2f(gl, mClusterDepthParamsUniformLocation, depthParams[0], depthParams[1]);
+		mUberShader.setUniform1i(gl, mEnableToonShadingUniformLocation, (mFrameToonShading ? 1 : 0));	
+		
+		/* Pooled targets are larger than what was rendered; silhouette taps are clamped to this. */
+		mUberShader.setUniform2f(gl, mViewportSizeUniformLocation, mRenderGraph.getWidth(), mRenderGraph.getHeight());
+		
+		/* The compact gbuffer stores depth instead of position, so the ubershader unprojects it. */
+		if (mUseCompactGBuffer)
 		{
-			/* Transform each light position to eye space. */
-			Light light = mLights.get(i);
-			
-			//only adds the light if it's enabled
-			if (light.isEnabled()) {
-				Point3f eyespacePosition = camera.transformPointFromWorldSpace(light.transformPointToWorldSpace(new Point3f()));
-//				System.out.println(Integer.toString(i) + ": " + light.getPosition().toString());
-				
-				/* Send light color and eyespace position to the ubershader. */
-				gl.glUniform3f(mLightPositionsUniformLocation + lightIndex, eyespacePosition.x, eyespacePosition.y, eyespacePosition.z);
-				gl.glUniform3f(mLightColorsUniformLocation + lightIndex, light.getColor().x, light.getColor().y, light.getColor().z);
-				
-				if (light instanceof PointLight)
-				{
-					gl.glUniform3f(mLightAttenuationsUniformLocation + lightIndex, 
-							((PointLight)light).getConstantAttenuation(), 
-							((PointLight)light).getLinearAttenuation(), 
-							((PointLight)light).getQuadraticAttenuation());
-				}
-				else
-				{
-					gl.glUniform3f(mLightAttenuationsUniformLocation + lightIndex, 1.0f, 0.0f, 0.0f);
-				}
-				lightIndex++;
-			}
+			setInverseProjection(gl, camera);
 		}
-		
-		/* Ubershader needs to know how many lights. */
-		gl.glUniform1i(mNumLightsUniformLocation, lightIndex);	
-		gl.glUniform1i(mEnableToonShadingUniformLocation, (mEnableToonShading ? 1 : 0));	
 
 		/* Let there be light! */
-		drawFullscreenQuad(gl, mViewportWidth, mViewportHeight);
+		drawFullscreen(gl);
 		
 		/* Unbind everything. */
 		mUberShader.unbind(gl);
+		mLightBuffer.unbind(gl);
+		mLightClusters.unbind(gl);
 		
-		for (int i = 0; i < GBuffer_FinalSceneIndex; ++i)
+		for (int i = 0; i < sources.length; ++i)
 		{
-			mGBufferFBO.getColorTexture(i).unbind(gl);
+			mRenderGraph.getTexture(sources[i]).unbind(gl);
 		}
 
-		/* Unbind rendering target. */
-		mGBufferFBO.unbind(gl);
-
 		/* Restore attributes (blending and depth-testing) to as they were before. */
-		gl.glPopAttrib();
+		endFullscreenPass(gl);
 	}
 	
 	/**
@@ -348,140 +438,343 @@ public class Renderer
 	 */
 	private void compositeTranslucentGeometry(GL2 gl, SceneObject sceneRoot, Camera camera) throws OpenGLException
 	{
-		GLU glu = GLU.createGLU(gl);
-
-		/* First, bind the gbuffer. We want composite over the existing color and depth buffers of the 
-		 * opaque scene, so don't clear anything. */
-		mGBufferFBO.bindOne(gl, GBuffer_FinalSceneIndex);
+		/* The render graph has bound the final scene and depth buffers of the opaque scene (or, at reduced 
+		 * resolution, an empty color buffer and the downsampled depth). We want to composite over them, 
+		 * so don't clear anything. */
 		
 		/* Update the projection matrix with this camera's projection matrix. */
-		gl.glMatrixMode(GL2.GL_PROJECTION);
-		gl.glLoadIdentity();
-		glu.gluPerspective(camera.getFOV(), mViewportWidth / mViewportHeight, camera.getNear(), camera.getFar());
-		
-		/* Update the modelview matrix with this camera's eye transform. */
-		gl.glMatrixMode(GL2.GL_MODELVIEW);
-		gl.glLoadIdentity();
-		
-		/* Find the inverse of the camera scale, position, and orientation in world space, accounting
-		 * for the fact that the camera might be nested inside other objects in the scenegraph.*/
-		float cameraScale = 1.0f / camera.transformDistanceToWorldSpace(1.0f);
-		Point3f cameraPosition = camera.transformPointToWorldSpace(new Point3f(0.0f, 0.0f, 0.0f));
-		AxisAngle4f cameraOrientation = new AxisAngle4f();
-		cameraOrientation.set(camera.transformOrientationToWorldSpace(new Quat4f(0.0f, 0.0f, 0.0f, 1.0f)));
-		
-		/* Apply the camera transform to OpenGL. */
-		gl.glScalef(cameraScale, cameraScale, cameraScale);
-		gl.glRotatef(cameraOrientation.angle * 180.0f / (float)Math.PI, -cameraOrientation.x, -cameraOrientation.y, -cameraOrientation.z);
-		gl.glTranslatef(-cameraPosition.x, -cameraPosition.y, -cameraPosition.z);
+		setProjection(gl, camera);
 		
 		/* Check for errors before rendering, to help isolate. */
 		OpenGLException.checkOpenGLError(gl);
 		
-		/* Render the scene, translucent only. */
-		renderObject(gl, camera, sceneRoot, false);
-
-		/* GBuffer is filled, so unbind it. */
-		mGBufferFBO.unbind(gl);
+		/* Render the scene, translucent only. The queue was filled during `fillGBuffer()`. */
+		renderQueue(gl, mTranslucentQueue);
 		
 		/* Check for errors after rendering, to help isolate. */
 		OpenGLException.checkOpenGLError(gl);
 	}
 	
 	/**
-	 * Renders a scenegraph node and its children.
+	 * Fills the low-resolution depth buffer, which the render graph has bound, with the nearest depth 
+	 * under each of its pixels.
+	 */
+	private void downsampleDepth(GL2 gl) throws OpenGLException
+	{
+		/* Every pixel is written, so nothing is cleared; the shader's depth replaces what's there. */
+		GLState.setDepthTest(gl, true);
+		GLState.setDepthFunc(gl, GL2.GL_ALWAYS);
+		GLState.setDepthMask(gl, true);
+		
+		Texture2D depth = mRenderGraph.getTexture(DEPTH_TARGET);
+		depth.bind(gl, 0);
+		
+		mDownsampleDepthShader.bind(gl);
+		mDownsampleDepthShader.setUniform1f(gl, mDownsampleFactorUniformLocation, mTranslucentDivisor);
+		mDownsampleDepthShader.setUniform2f(gl, mDownsampleDepthSizeUniformLocation, mRenderGraph.getWidth(), mRenderGraph.getHeight());
+		drawFullscreen(gl);
+		mDownsampleDepthShader.unbind(gl);
+		
+		depth.unbind(gl);
+		GLState.setDepthFunc(gl, GL2.GL_LEQUAL);
+	}
+	
+	/**
+	 * Composites the low-resolution translucent buffer over the final scene, which the render graph 
+	 * has bound, with the depth-aware upsample in "shaders/bilateral_upsample.fp".
+	 */
+	private void upsampleTranslucentGeometry(GL2 gl, Camera camera) throws OpenGLException
+	{
+		/* The buffer holds premultiplied color and coverage, blended like the translucent materials do. */
+		beginFullscreenPass(gl);
+		GLState.setBlendFunc(gl, GL2.GL_ONE, GL2.GL_ONE_MINUS_SRC_ALPHA);
+		GLState.setBlend(gl, true);
+		
+		Texture2D translucent = mRenderGraph.getTexture(LOW_RES_TRANSLUCENT_TARGET);
+		Texture2D lowResDepth = mRenderGraph.getTexture(LOW_RES_DEPTH_TARGET);
+		Texture2D depth = mRenderGraph.getTexture(DEPTH_TARGET);
+		translucent.bind(gl, 0);
+		lowResDepth.bind(gl, 1);
+		depth.bind(gl, 2);
+		
+		mUpsampleShader.bind(gl);
+		mUpsampleShader.setUniform1f(gl, mUpsampleFactorUniformLocation, mTranslucentDivisor);
+		mUpsampleShader.setUniform2f(gl, mUpsampleLowResSizeUniformLocation, 
+				mRenderGraph.getTargetWidth(LOW_RES_TRANSLUCENT_TARGET), mRenderGraph.getTargetHeight(LOW_RES_TRANSLUCENT_TARGET));
+		mUpsampleShader.setUniform2f(gl, mUpsampleDepthRangeUniformLocation, camera.getNear(), camera.getFar());
+		drawFullscreen(gl);
+		mUpsampleShader.unbind(gl);
+		
+		translucent.unbind(gl);
+		lowResDepth.unbind(gl);
+		depth.unbind(gl);
+		
+		GLState.setBlend(gl, false);
+		endFullscreenPass(gl);
+	}
+	
+	/**
+	 * Computes the camera's view matrix: the inverse of the camera scale, position, and orientation 
+	 * in world space, accounting for the fact that the camera might be nested inside other objects 
+	 * in the scenegraph.
+	 */
+	private Matrix4f computeViewMatrix(Camera camera)
+	{
+		float cameraScale = 1.0f / camera.transformDistanceToWorldSpace(1.0f);
+		Point3f cameraPosition = camera.transformPointToWorldSpace(new Point3f(0.0f, 0.0f, 0.0f));
+		Quat4f inverseOrientation = camera.transformOrientationToWorldSpace(new Quat4f(0.0f, 0.0f, 0.0f, 1.0f));
+		inverseOrientation.normalize();
+		inverseOrientation.inverse();
+		
+		/* view = scale * inverse(rotation) * translate(-position), as the old glScalef/glRotatef/glTranslatef sequence. */
+		Matrix4f view = new Matrix4f(inverseOrientation, new Vector3f(), cameraScale);
+		Matrix4f translation = new Matrix4f();
+		translation.setIdentity();
+		translation.setTranslation(new Vector3f(-cameraPosition.x, -cameraPosition.y, -cameraPosition.z));
+		view.mul(translation);
+		
+		return view;
+	}
+	
+	/**
+	 * Adds a scenegraph node and its children to the render queues.
 	 * 
 	 * @param gl The OpenGL state.
 	 * @param camera The camera rendering the scene.
-	 * @param obj The object to render. If this is a Geometry object, its meshes are rendered.
-	 *        If this is a Light object, it is added to the list of lights. Other objects are ignored.
-	 * @param opaque Only meshes with materials whose `isOpaque()` flag matches this flag will be rendered.
+	 * @param obj The object to queue. If this is a Geometry object, its meshes are queued in the opaque 
+	 *        or translucent queue according to their materials. If this is a Light object, it is added 
+	 *        to the list of lights. Other objects are ignored.
+	 * @param parentTransform The modelview matrix of this object's parent.
 	 */
-	private void renderObject(GL2 gl, Camera camera, SceneObject obj, boolean opaque) throws OpenGLException
+	private void queueObject(GL2 gl, Camera camera, SceneObject obj, Matrix4f parentTransform)
 	{
-		/* Save matrix before applying this object's transformation. */
-		gl.glPushMatrix();
+		/* Apply this object's transformation: translate, then rotate, then scale. */
+		Quat4f orientation = new Quat4f(obj.getOrientation());
+		orientation.normalize();
 		
-		/* Get this object's transformation. */
-		float scale = obj.getScale();
-		Point3f position = obj.getPosition();
-		AxisAngle4f orientation = new AxisAngle4f();
-		orientation.set(obj.getOrientation());
+		Matrix4f transform = new Matrix4f(orientation, new Vector3f(obj.getPosition()), obj.getScale());
+		transform.mul(parentTransform, transform);
 		
-		/* Apply this object's transformation. */
-		gl.glTranslatef(position.x, position.y, position.z);
-		gl.glRotatef(orientation.angle * 180.0f / (float)Math.PI, orientation.x, orientation.y, orientation.z);
-		gl.glScalef(scale, scale, scale);
+		/* Projected grids follow the camera, so fit them to this view before queueing their meshes. */
+		if (obj instanceof ProjectedGrid)
+		{
+			((ProjectedGrid)obj).project(camera, mViewportWidth / mViewportHeight);
+		}
 		
-		/* Render this object as appropriate for its type. */
+		/* Queue this object as appropriate for its type. */
 		if (obj instanceof Geometry)
 		{
 			for (Mesh mesh : ((Geometry)obj).getMeshes())
 			{
-				renderMesh(gl, mesh, opaque, camera);
+				/* Activate the material's shader now, so the queue can sort by it. */
+				Material material = mesh.getMaterial();
+				material.retrieveShader(gl, mShaderCache);
+				material.setLightBuffer(mLightBuffer);
+				material.setCamera(camera);
+				
+				if (material.isOpaque())
+				{
+					mOpaqueQueue.add(mesh, transform);
+				}
+				else
+				{
+					mTranslucentQueue.add(mesh, transform);
+				}
 			}
 		}
 		else if (obj instanceof Light)
 		{
-			/* Assume the opaque pass happens first; by the translucent pass, we already 
-			 * have the list of lights. */
-			if (opaque)
-			{
-				mLights.add((Light)obj);
-			}
+			mLights.add((Light)obj);
 		}
 		else if (obj instanceof ParticleSystem)
 		{
 			((ParticleSystem)obj).billboard(camera);
 		}
 		
-		/* Render this object's children. */
+		/* Queue this object's children. */
 		for (SceneObject child : obj.getChildren())
 		{
-			renderObject(gl, camera, child, opaque);
+			queueObject(gl, camera, child, transform);
 		}
-		
-		/* Restore transformation matrix and check for errors. */
-		gl.glPopMatrix();
-		OpenGLException.checkOpenGLError(gl);
 	}
-
+	
 	/**
-	 * Renders a single trimesh.
+	 * Sorts and renders a queue of meshes. Each shader and material is bound once per run of items
+	 * that share it, rather than once per mesh.
+	 * 
+	 * Materials don't restore the fixed-function state they change (blending, depth writes), so the 
+	 * state is saved once around the whole queue instead of around every mesh.
 	 * 
 	 * @param gl The OpenGL state.
-	 * @param mesh The mesh to render.
-	 * @param opaque Only meshes with materials whose `isOpaque()` flag matches this flag will be rendered.
+	 * @param queue The queue to render.
 	 */
-	private void renderMesh(GL2 gl, Mesh mesh, boolean opaque, Camera camera) throws OpenGLException
+	private void renderQueue(GL2 gl, RenderQueue queue) throws OpenGLException
 	{
-		/* Skip any materials which aren't supposed to be rendered in this pass. */ 
-		if (mesh.getMaterial().isOpaque() != opaque)
+		queue.sort();
+		queue.resetStatistics();
+		
+		/* Save state once to isolate any changes made by the queued materials. The core-profile 
+		 * path has no attribute stack, so it resets that state explicitly afterwards instead. */
+		if (!mUseCoreProfile)
 		{
-			return;
+			GLState.pushAttrib(gl, GL2.GL_ENABLE_BIT | GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+			gl.glPushClientAttrib(GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
 		}
 		
-		/* Save all state to isolate any changes made by this mesh's material. */
-		gl.glPushAttrib(GL2.GL_ALL_ATTRIB_BITS);
-		gl.glPushClientAttrib((int)GL2.GL_CLIENT_ALL_ATTRIB_BITS);
+		Material currentMaterial = null;
+		ShaderProgram currentShader = null;
 		
-		/* Activate the material. */
-		mesh.getMaterial().retrieveShader(gl, mShaderCache);
-		mesh.getMaterial().setLights(mLights);
-		mesh.getMaterial().setCamera(camera);
-		
-		mesh.getMaterial().bind(gl);
+		for (RenderQueue.Item item : queue.getItems())
+		{
+			Material material = item.getMaterial();
+			
+			/* Switch material (and shader, if that changed too) at the start of each run. */
+			if (material != currentMaterial)
+			{
+				boolean textureChanged = (currentMaterial == null || currentMaterial.getPrimaryTexture() != material.getPrimaryTexture());
+				
+				if (currentMaterial != null)
+				{
+					currentMaterial.unbind(gl);
+				}
+				
+				ShaderProgram shader = material.getShaderProgram();
+				if (shader != currentShader)
+				{
+					if (currentShader != null)
+					{
+						currentShader.setPinned(false);
+						currentShader.unbind(gl);
+					}
+					
+					shader.bind(gl);
+					shader.setPinned(true);
+					currentShader = shader;
+					queue.countShaderChange();
+					
+					if (mUseCoreProfile)
+					{
+						shader.setProjectionMatrix(gl, mProjection);
+					}
+				}
+				
+				material.bind(gl);
+				currentMaterial = material;
+				queue.countMaterialChange(textureChanged);
+			}
 			
+			if (mUseCoreProfile)
+			{
+				currentShader.setModelviewMatrix(gl, item.getModelview(), item.getNormalMatrix());
+				mCoreBackend.drawMesh(gl, item.getMesh(), currentShader, material.getRequiredVertexAttributes());
+			}
+			else
+			{
+				gl.glLoadMatrixf(item.getModelview(), 0);
+				renderMesh(gl, item.getMesh(), material);
+			}
+			queue.countDrawCall();
+		}
+		
+		/* Deactivate the last material and shader. */
+		if (currentMaterial != null)
+		{
+			currentMaterial.unbind(gl);
+		}
+		
+		if (currentShader != null)
+		{
+			currentShader.setPinned(false);
+			currentShader.unbind(gl);
+		}
+		
+		/* Render mesh wireframes and marked edges if we're supposed to. */
+		if (mRenderWireframes)
+		{
+			renderQueueWireframes(gl, queue);
+		}
+		
+		/* Restore state and check for errors. */
+		if (mUseCoreProfile)
+		{
+			/* Materials only change blending and depth writes; put back the defaults. */
+			GLState.setBlend(gl, false);
+			GLState.setBlendFunc(gl, GL2.GL_ONE, GL2.GL_ZERO);
+			GLState.setDepthMask(gl, true);
+		}
+		else
+		{
+			gl.glPopClientAttrib();
+			GLState.popAttrib(gl);
+		}
+		
+		OpenGLException.checkOpenGLError(gl);
+	}
+
+	/**
+	 * Renders a single mesh with its material, which must already be bound.
+	 * 
+	 * @param gl The OpenGL state.
+	 * @param mesh The mesh to render.
+	 * @param material The bound material, whose shader determines the required vertex attributes.
+	 */
+	private void renderMesh(GL2 gl, Mesh mesh, Material material) throws OpenGLException
+	{
 		/* Enable the required vertex arrays and send data. */
+		bindMeshArrays(gl, mesh);
+		material.getShaderProgram().setPositionDequantization(gl, mesh.getPositionScale(), mesh.getPositionBias());
+
+		/* Send custom vertex attributes (if any) to OpenGL. */
+		int enabledAttributes[] = bindRequiredMeshAttributes(gl, mesh, material);
+		
+		/* Render polygons. */
+		drawMeshElements(gl, mesh);
+		
+		/* Disable custom attributes again, since the next mesh's material might not use them. */
+		for (int location : enabledAttributes)
+		{
+			if (location >= 0)
+			{
+				gl.glDisableVertexAttribArray(location);
+			}
+		}
+	}
+	
+	/**
+	 * Draws a mesh's polygons from its index buffer, with its vertex arrays already bound.
+	 */
+	private void drawMeshElements(GL2 gl, Mesh mesh) throws OpenGLException
+	{
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.getBufferHandle(Mesh.POLYGON_STREAM));
+		gl.glDrawElements(getOpenGLPrimitiveType(mesh.getVerticesPerPolygon()), 
+						  mesh.getVerticesPerPolygon() * mesh.getPolygonCount(), 
+						  GL2.GL_UNSIGNED_INT, 
+						  0);
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Uploads any changed mesh data, and points the fixed vertex, normal, and texture coordinate 
+	 * arrays at the mesh's buffer objects.
+	 */
+	private void bindMeshArrays(GL2 gl, Mesh mesh) throws OpenGLException
+	{
 		if (mesh.getVertexData() == null)
 		{
 			throw new OpenGLException("Mesh must have non-null vertex data to render!");
 		}
-		else
+		
+		mesh.updateGPUBuffers(gl);
+		
+		if (mesh.getPackedVertexData() != null)
 		{
-			gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
-			gl.glVertexPointer(3, GL2.GL_FLOAT, 0, mesh.getVertexData());
+			bindPackedMeshArrays(gl, mesh, mesh.getPackedVertexData());
+			return;
 		}
+		
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getBufferHandle(Mesh.VERTEX_STREAM));
+		gl.glVertexPointer(3, GL2.GL_FLOAT, 0, 0);
 
 		if (mesh.getNormalData() == null)
 		{
@@ -490,7 +783,8 @@ public class Renderer
 		else
 		{
 			gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
-			gl.glNormalPointer(GL2.GL_FLOAT, 0, mesh.getNormalData());
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getBufferHandle(Mesh.NORMAL_STREAM));
+			gl.glNormalPointer(GL2.GL_FLOAT, 0, 0);
 		}
 		
 		if (mesh.getTexCoordData() == null)
@@ -500,99 +794,199 @@ public class Renderer
 		else
 		{
 			gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
-			gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, mesh.getTexCoordData());
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getBufferHandle(Mesh.TEXCOORD_STREAM));
+			gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, 0);
 		}
-
-		/* Send custom vertex attributes (if any) to OpenGL. */
-		bindRequiredMeshAttributes(gl, mesh);
 		
-		/* Render polygons. */
-		gl.glDrawElements(getOpenGLPrimitiveType(mesh.getVerticesPerPolygon()), 
-						  mesh.getVerticesPerPolygon() * mesh.getPolygonCount(), 
-						  GL2.GL_UNSIGNED_INT, 
-						  mesh.getPolygonData());
-				
-		/* Deactivate material and restore state. */
-		mesh.getMaterial().unbind(gl);
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Points the fixed vertex, normal, and texture coordinate arrays into a mesh's interleaved 
+	 * packed vertex buffer.
+	 */
+	private void bindPackedMeshArrays(GL2 gl, Mesh mesh, PackedVertexData packed)
+	{
+		int stride = packed.getStride();
+		
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getPackedBufferHandle());
+		
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glVertexPointer(3, packed.getPosition().getType(), stride, packed.getPosition().getOffset());
+		
+		if (packed.getNormal() == null)
+		{
+			gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+		}
+		else
+		{
+			gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+			gl.glNormalPointer(packed.getNormal().getType(), stride, packed.getNormal().getOffset());
+		}
+		
+		if (packed.getTexCoord() == null)
+		{
+			gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		}
+		else
+		{
+			gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+			gl.glTexCoordPointer(2, packed.getTexCoord().getType(), stride, packed.getTexCoord().getOffset());
+		}
 		
-		/* Render mesh wireframe if we're supposed to. */
-		if (mRenderWireframes && mesh.getVerticesPerPolygon() > 2)
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Renders the wireframes and marked edges of every mesh in a queue which has already been drawn.
+	 * 
+	 * All edges are rendered in thin grey wireframe, and marked edges (e.g. creases) are rendered in thick pink.
+	 */
+	private void renderQueueWireframes(GL2 gl, RenderQueue queue) throws OpenGLException
+	{
+		mWireframeMaterial.retrieveShader(gl, mShaderCache);
+		mWireframeMaterial.bind(gl);
+		
+		if (mUseCoreProfile)
 		{
-			mWireframeMaterial.retrieveShader(gl, mShaderCache);
-			mWireframeMaterial.bind(gl);
+			mWireframeMaterial.getShaderProgram().setProjectionMatrix(gl, mProjection);
+		}
 
-			gl.glLineWidth(1.0f);
-			gl.glPolygonOffset(0.0f, 1.0f);
-			gl.glEnable(GL2.GL_POLYGON_OFFSET_LINE);
-			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
+		gl.glLineWidth(1.0f);
+		gl.glPolygonOffset(0.0f, 1.0f);
+		gl.glEnable(GL2.GL_POLYGON_OFFSET_LINE);
+		gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
 
-			/* Render polygons. */
-			gl.glDrawElements(getOpenGLPrimitiveType(mesh.getVerticesPerPolygon()), 
-					  mesh.getVerticesPerPolygon() * mesh.getPolygonCount(), 
-					  GL2.GL_UNSIGNED_INT, 
-					  mesh.getPolygonData());					
-			
-			mWireframeMaterial.unbind(gl);
+		for (RenderQueue.Item item : queue.getItems())
+		{
+			Mesh mesh = item.getMesh();
+			if (mesh.getVerticesPerPolygon() > 2)
+			{
+				if (mUseCoreProfile)
+				{
+					mWireframeMaterial.getShaderProgram().setModelviewMatrix(gl, item.getModelview(), item.getNormalMatrix());
+					mCoreBackend.drawMesh(gl, mesh, mWireframeMaterial.getShaderProgram(), new String[0]);
+				}
+				else
+				{
+					gl.glLoadMatrixf(item.getModelview(), 0);
+					bindMeshArrays(gl, mesh);
+					mWireframeMaterial.getShaderProgram().setPositionDequantization(gl, mesh.getPositionScale(), mesh.getPositionBias());
+					drawMeshElements(gl, mesh);
+				}
+				queue.countDrawCall();
+			}
 		}
+		
+		gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+		mWireframeMaterial.unbind(gl);
 
-		/* Render marked edges (e.g. for subdiv creases), if we're supposed to and if they exist. */
-		if (mRenderWireframes && mesh.getEdgeData() != null)
+		mWireframeMarkedEdgeMaterial.retrieveShader(gl, mShaderCache);
+		mWireframeMarkedEdgeMaterial.bind(gl);
+		gl.glLineWidth(5.0f);
+		
+		if (mUseCoreProfile)
 		{
-			mWireframeMarkedEdgeMaterial.retrieveShader(gl, mShaderCache);
-			mWireframeMarkedEdgeMaterial.bind(gl);
+			mWireframeMarkedEdgeMaterial.getShaderProgram().setProjectionMatrix(gl, mProjection);
+		}
 
-			gl.glLineWidth(5.0f);
-			gl.glPolygonOffset(0.0f, 1.0f);
-			gl.glEnable(GL2.GL_POLYGON_OFFSET_LINE);
-			gl.glDrawElements(GL2.GL_LINES, mesh.getEdgeData().capacity(), GL2.GL_UNSIGNED_INT, mesh.getEdgeData());
-			
-			mWireframeMarkedEdgeMaterial.unbind(gl);
+		for (RenderQueue.Item item : queue.getItems())
+		{
+			Mesh mesh = item.getMesh();
+			if (mesh.getEdgeData() != null)
+			{
+				if (mUseCoreProfile)
+				{
+					mWireframeMarkedEdgeMaterial.getShaderProgram().setModelviewMatrix(gl, item.getModelview(), item.getNormalMatrix());
+					mCoreBackend.drawEdges(gl, mesh, mWireframeMarkedEdgeMaterial.getShaderProgram());
+				}
+				else
+				{
+					gl.glLoadMatrixf(item.getModelview(), 0);
+					bindMeshArrays(gl, mesh);
+					mWireframeMarkedEdgeMaterial.getShaderProgram().setPositionDequantization(gl, mesh.getPositionScale(), mesh.getPositionBias());
+					gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, mesh.getBufferHandle(Mesh.EDGE_STREAM));
+					gl.glDrawElements(GL2.GL_LINES, mesh.getEdgeData().capacity(), GL2.GL_UNSIGNED_INT, 0);
+					gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+				}
+				queue.countDrawCall();
+			}
 		}
 		
-		gl.glPopClientAttrib();
-		gl.glPopAttrib();
-		
-		/* Check for errors. */
-		OpenGLException.checkOpenGLError(gl);
+		mWireframeMarkedEdgeMaterial.unbind(gl);
+		gl.glLineWidth(1.0f);
+		gl.glDisable(GL2.GL_POLYGON_OFFSET_LINE);
 	}
 	
 	/**
-	 * Binds all custom vertex attributes required by a mesh's material to buffers provided
-	 * by that mesh.
+	 * Binds all custom vertex attributes required by a material to buffers provided by a mesh.
+	 * The mesh's buffer objects must already be up to date (see `bindMeshArrays()`).
 	 * 
 	 * @param gl The OpenGL state.
-	 * @param mesh All custom vertex attributes required by mesh's material and shader are bound to the 
-	 *        correspondingly-named buffers in the mesh's `vertexAttribData` map.
+	 * @param mesh All custom vertex attributes required by the material and shader are bound to the 
+	 *        correspondingly-named buffers in the mesh's `vertexAttribData` map, or set to the mesh's 
+	 *        per-instance values (see `Mesh.setInstanceAttrib()`).
+	 * @param material The material the mesh is being rendered with.
 	 *        
+	 * @return The attribute locations which were enabled, with -1 for unused attributes, so they can be 
+	 *         disabled after drawing.
 	 * @throws OpenGLException If a required attribute isn't supplied by the mesh.
 	 */
-	void bindRequiredMeshAttributes(GL2 gl, Mesh mesh) throws OpenGLException
+	int[] bindRequiredMeshAttributes(GL2 gl, Mesh mesh, Material material) throws OpenGLException
 	{
-		ShaderProgram shader = mesh.getMaterial().getShaderProgram();
+		ShaderProgram shader = material.getShaderProgram();
+		String requiredAttributes[] = material.getRequiredVertexAttributes();
+		int enabledLocations[] = new int[requiredAttributes.length];
 		
-		for (String attrib : mesh.getMaterial().getRequiredVertexAttributes())
+		for (int i = 0; i < requiredAttributes.length; ++i)
 		{
+			String attrib = requiredAttributes[i];
+			
 			/* Ignore attributes which aren't actually used in the shader. */
 			int location = shader.getAttribLocation(gl, attrib);
+			enabledLocations[i] = -1;
+			
 			if (location < 0)
 			{
 				continue;
 			}
 			
+			/* A per-instance value needs no array. */
+			if (mesh.bindInstanceAttrib(gl, attrib, location))
+			{
+				continue;
+			}
+			
 			/* Get data for this attribute from the mesh. */
 			FloatBuffer attribData = mesh.vertexAttribData.get(attrib);
+			PackedVertexData packed = mesh.getPackedVertexData();
 			
 			/* This attribute is required, so throw an exception if the mesh doesn't supply it. */
 			if (attribData == null)
 			{
 				throw new OpenGLException("Material requires vertex attribute '" + attrib + "' which is not present in mesh's vertexAttribData.");
 			}
+			else if (packed != null)
+			{
+				PackedVertexData.Element element = packed.getAttribute(attrib);
+				
+				gl.glEnableVertexAttribArray(location);
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getPackedBufferHandle());
+				gl.glVertexAttribPointer(location, element.getComponents(), element.getType(), element.isNormalized(), packed.getStride(), element.getOffset());
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+				enabledLocations[i] = location;
+			}
 			else
 			{
 				gl.glEnableVertexAttribArray(location);
-				gl.glVertexAttribPointer(location, attribData.capacity() / mesh.getVertexCount(), GL2.GL_FLOAT, false, 0, attribData);
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, mesh.getAttribBufferHandle(attrib));
+				gl.glVertexAttribPointer(location, attribData.capacity() / mesh.getVertexCount(), GL2.GL_FLOAT, false, 0, 0);
+				gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+				enabledLocations[i] = location;
 			}
 		}
+		
+		return enabledLocations;
 	}
 
 	/**
@@ -666,24 +1060,377 @@ public class Renderer
 	}
 	
 	/**
-	 * Clears the display and renders a fullscreen quad with the passed texture.
+	 * Selects the fixed-function (compatibility) or core-profile rendering path. The switch 
+	 * happens at the start of the next frame.
+	 */
+	public void setUseCoreProfile(boolean useCoreProfile)
+	{
+		mRequestedCoreProfile = useCoreProfile;
+	}
+	
+	/**
+	 * Returns true if the core-profile rendering path is (or will be, from the next frame) in use.
+	 */
+	public boolean getUseCoreProfile()
+	{
+		return mRequestedCoreProfile;
+	}
+	
+	/**
+	 * Selects the compact gbuffer layout, which takes about a third of the memory and bandwidth of 
+	 * the full one (see "shaders/gbuffer.glsl"), or the full layout. The switch happens at the start 
+	 * of the next frame. The compact layout has no position or gradient textures to preview.
+	 */
+	public void setUseCompactGBuffer(boolean useCompactGBuffer)
+	{
+		mRequestedCompactGBuffer = useCompactGBuffer;
+	}
+	
+	/**
+	 * Returns true if the compact gbuffer layout is (or will be, from the next frame) in use.
+	 */
+	public boolean getUseCompactGBuffer()
+	{
+		return mRequestedCompactGBuffer;
+	}
+	
+	/**
+	 * Sets the resolution of the translucent pass as a fraction of the window's: 1 for full resolution, 
+	 * 2 for half, or 4 for quarter. The switch happens at the start of the next frame.
+	 */
+	public void setTranslucentResolution(int divisor)
+	{
+		mRequestedTranslucentDivisor = Math.max(1, divisor);
+	}
+	
+	/**
+	 * Returns the divisor of the translucent pass's resolution which is (or will be, from the next frame) in use.
+	 */
+	public int getTranslucentResolution()
+	{
+		return mRequestedTranslucentDivisor;
+	}
+	
+	/**
+	 * Returns the time of the translucent stage at each resolution it has been rendered at, and how 
+	 * much each reduced resolution saves over full resolution.
+	 */
+	public String getTranslucentResolutionTimings()
+	{
+		StringBuilder report = new StringBuilder("Translucent stage:");
+		Float full = mTranslucentMillis.get(1);
+		
+		for (Map.Entry<Integer, Float> entry : mTranslucentMillis.entrySet())
+		{
+			int divisor = entry.getKey();
+			float millis = entry.getValue();
+			
+			report.append(divisor == 1 ? "\n  full resolution" : "\n  1/" + divisor + " resolution");
+			report.append(String.format(" %7.3f ms", millis));
+			
+			if (divisor != 1 && full != null)
+			{
+				report.append(String.format(" (saves %.3f ms per frame)", full - millis));
+			}
+		}
+		
+		return report.toString();
+	}
+	
+	/**
+	 * Returns the controller which picks the internal resolution from frame times, through which 
+	 * dynamic resolution can be turned off and its target frame time and bounds set.
+	 */
+	public ResolutionController getResolutionController()
+	{
+		return mResolutionController;
+	}
+	
+	/**
+	 * Returns the loader which decodes textures in the background for this renderer. Textures requested
+	 * from it are created at the start of the first frame after they finish decoding.
+	 */
+	public TextureLoader getTextureLoader()
+	{
+		return mTextureLoader;
+	}
+	
+	/**
+	 * Returns a summary of the draw calls and state changes issued by the opaque and translucent 
+	 * queues during the last frame.
+	 */
+	public String getRenderQueueStatistics()
+	{
+		return "opaque: " + mOpaqueQueue + "; translucent: " + mTranslucentQueue;
+	}
+	
+	/**
+	 * Returns the profiler collecting the times of every stage of the frame. Stages outside the 
+	 * renderer (e.g. animating the scene) can record their own times with it.
+	 */
+	public FrameProfiler getProfiler()
+	{
+		return mProfiler;
+	}
+	
+	/**
+	 * Turns the on-screen table of stage timings on or off.
+	 */
+	public void setShowProfilerOverlay(boolean show)
+	{
+		mShowProfilerOverlay = show;
+	}
+	
+	/**
+	 * Returns true if the table of stage timings is drawn over each frame.
+	 */
+	public boolean getShowProfilerOverlay()
+	{
+		return mShowProfilerOverlay;
+	}
+	
+	/**
+	 * Returns the CPU and GPU time of each stage of the render graph, and which stages were skipped 
+	 * in the last frame.
+	 */
+	public String getRenderGraphTimings()
+	{
+		return mRenderGraph.getTimingReport();
+	}
+	
+	/**
+	 * Shows a render target in the window: the final scene, or the gbuffer texture being previewed.
+	 */
+	private void presentTarget(GL2 gl, String name) throws OpenGLException
+	{
+		/* Upscaling filters bilinearly, which at the right and top edges of a reduced-resolution frame
+		 * reaches one texel past it, into the pooled target's margin. */
+		if (mRenderGraph.getWidth() != (int)mViewportWidth || mRenderGraph.getHeight() != (int)mViewportHeight)
+		{
+			mRenderGraph.extendEdges(gl, name);
+			GLState.bindFramebuffer(gl, GL2.GL_READ_FRAMEBUFFER, 0);
+		}
+		
+		if (mUseCoreProfile)
+		{
+			blitTargetFullscreen(gl, name);
+		}
+		else
+		{
+			renderTextureFullscreen(gl, mRenderGraph.getTexture(name));
+		}
+	}
+	
+	/**
+	 * Clears the display and renders a fullscreen quad with the passed render target.
 	 * 
 	 * @param gl The OpenGL state.
-	 * @param texture The texture to display.
+	 * @param texture The texture to display. Only its lower-left corner, the size the render graph rendered 
+	 *        at, is shown, stretched over the window (with bilinear filtering) if that's smaller.
 	 */
 	private void renderTextureFullscreen(GL2 gl, Texture2D texture) throws OpenGLException
 	{
 		/* Save state and make sure the output will overwrite whatever was there. This way
 		 * we don't have to waste time clearing buffers. */
-		gl.glPushAttrib(GL2.GL_DEPTH_BUFFER_BIT | GL2.GL_ENABLE_BIT);
-		gl.glDisable(GL2.GL_DEPTH_TEST);
-		gl.glDisable(GL2.GL_BLEND);
+		GLState.pushAttrib(gl, GL2.GL_DEPTH_BUFFER_BIT | GL2.GL_ENABLE_BIT);
+		GLState.setDepthTest(gl, false);
+		GLState.setBlend(gl, false);
 		
 		/* Draw the texture. */
-		texture.blit(gl);
+		texture.blit(gl, mRenderGraph.getWidth(), mRenderGraph.getHeight());
 		
 		/* Restore state. */
-		gl.glPopAttrib();
+		GLState.popAttrib(gl);
+	}
+	
+	/**
+	 * Draws the profiler's table of stage timings in the top-left corner of the window. The text is 
+	 * fixed-function bitmap text, drawn on either rendering path since the window's context is 
+	 * always a compatibility one.
+	 */
+	private void drawProfilerOverlay(GL2 gl)
+	{
+		/* Sorting the percentiles every frame would be wasted; nobody reads that fast. */
+		if (mOverlayLines == null || ++mOverlayAge >= OVERLAY_REFRESH_FRAMES)
+		{
+			mOverlayLines = mProfiler.getReport().split("\n");
+			mOverlayAge = 0;
+		}
+		
+		GLState.pushAttrib(gl, GL2.GL_CURRENT_BIT | GL2.GL_ENABLE_BIT);
+		GLState.setDepthTest(gl, false);
+		GLState.setBlend(gl, false);
+		GLState.useProgram(gl, 0);
+		
+		/* Raster positions from glWindowPos are in window pixels, so no matrices are involved. */
+		gl.glColor3f(1.0f, 1.0f, 0.6f);
+		for (int i = 0; i < mOverlayLines.length; ++i)
+		{
+			gl.glWindowPos2i(8, (int)mViewportHeight - 20 - 14 * i);
+			mGlut.glutBitmapString(GLUT.BITMAP_8_BY_13, mOverlayLines[i]);
+		}
+		
+		GLState.popAttrib(gl);
+	}
+	
+	/**
+	 * Copies one of the render targets to the window with a framebuffer blit, the core-profile 
+	 * replacement for `renderTextureFullscreen()`. The target is upscaled if the frame was rendered 
+	 * at reduced resolution.
+	 */
+	private void blitTargetFullscreen(GL2 gl, String name) throws OpenGLException
+	{
+		mRenderGraph.bindForReading(gl, name);
+		GLState.bindFramebuffer(gl, GL2.GL_DRAW_FRAMEBUFFER, 0);
+		
+		boolean scaled = (mRenderGraph.getWidth() != (int)mViewportWidth || mRenderGraph.getHeight() != (int)mViewportHeight);
+		gl.glBlitFramebuffer(0, 0, mRenderGraph.getWidth(), mRenderGraph.getHeight(), 
+							 0, 0, (int)mViewportWidth, (int)mViewportHeight, 
+							 GL2.GL_COLOR_BUFFER_BIT, (scaled ? GL2.GL_LINEAR : GL2.GL_NEAREST));
+		
+		GLState.bindFramebuffer(gl, GL2.GL_READ_FRAMEBUFFER, 0);
+		OpenGLException.checkOpenGLError(gl);
+	}
+	
+	/**
+	 * Sets the projection matrix for rendering the scene from the given camera: on the matrix stack 
+	 * for the fixed-function path, or in `mProjection` for the core-profile path, which passes it to 
+	 * each shader as a uniform.
+	 */
+	private void setProjection(GL2 gl, Camera camera)
+	{
+		if (mUseCoreProfile)
+		{
+			CoreProfileBackend.computePerspective(camera.getFOV(), mViewportWidth / mViewportHeight, camera.getNear(), camera.getFar(), mProjection);
+		}
+		else
+		{
+			GLU glu = GLU.createGLU(gl);
+			
+			gl.glMatrixMode(GL2.GL_PROJECTION);
+			gl.glLoadIdentity();
+			glu.gluPerspective(camera.getFOV(), mViewportWidth / mViewportHeight, camera.getNear(), camera.getFar());
+			gl.glMatrixMode(GL2.GL_MODELVIEW);
+		}
+	}
+	
+	/**
+	 * Sets the ubershader's inverse projection, with which it unprojects the 
+	 * depth buffer of the compact gbuffer to eyespace positions.
+	 */
+	private void setInverseProjection(GL2 gl, Camera camera)
+	{
+		float projection[] = new float[16];
+		CoreProfileBackend.computePerspective(camera.getFOV(), mViewportWidth / mViewportHeight, camera.getNear(), camera.getFar(), projection);
+		
+		/* Matrix4f reads arrays by row, so this inverts the transpose, which is the transposed inverse; 
+		 * reading it back by row again gives the inverse in column-major order. */
+		Matrix4f inverse = new Matrix4f(projection);
+		inverse.invert();
+		
+		for (int row = 0; row < 4; ++row)
+		{
+			for (int column = 0; column < 4; ++column)
+			{
+				projection[4 * row + column] = inverse.getElement(row, column);
+			}
+		}
+		
+		if (mInverseProjectionUniformLocation >= 0)
+		{
+			gl.glUniformMatrix4fv(mInverseProjectionUniformLocation, 1, false, projection, 0);
+		}
+	}
+	
+	/**
+	 * Disables depth testing and blending for a fullscreen pass. The fixed-function path saves the 
+	 * previous state on the attribute stack; the core-profile path restores the defaults afterwards.
+	 */
+	private void beginFullscreenPass(GL2 gl)
+	{
+		if (!mUseCoreProfile)
+		{
+			GLState.pushAttrib(gl, GL2.GL_ENABLE_BIT);
+		}
+		
+		GLState.setDepthTest(gl, false);
+		GLState.setBlend(gl, false);
+	}
+	
+	/**
+	 * Restores state changed by `beginFullscreenPass()`.
+	 */
+	private void endFullscreenPass(GL2 gl)
+	{
+		if (mUseCoreProfile)
+		{
+			GLState.setDepthTest(gl, true);
+		}
+		else
+		{
+			GLState.popAttrib(gl);
+		}
+	}
+	
+	/**
+	 * Draws a fullscreen quad with the bound shader, using whichever rendering path is active.
+	 */
+	private void drawFullscreen(GL2 gl) throws OpenGLException
+	{
+		if (mUseCoreProfile)
+		{
+			mCoreBackend.drawFullscreen(gl);
+		}
+		else
+		{
+			drawFullscreenQuad(gl, mViewportWidth, mViewportHeight);
+		}
+	}
+	
+	/**
+	 * Switches between the fixed-function and core-profile rendering paths, and between the full and 
+	 * compact gbuffer layouts. Every shader is compiled for one path and layout, so all cached shaders 
+	 * are released and reloaded, including those of every material in the scene being rendered; a 
+	 * layout change also rebuilds the render graph.
+	 */
+	private void switchRenderingPath(GL2 gl, boolean useCoreProfile, boolean useCompactGBuffer, SceneObject sceneRoot) throws OpenGLException, IOException
+	{
+		for (ShaderProgram shader : mShaderCache.values())
+		{
+			shader.releaseGPUResources(gl);
+		}
+		mShaderCache.clear();
+		mUberShader.releaseGPUResources(gl);
+		mSilhouetteShader.releaseGPUResources(gl);
+		mDownsampleDepthShader.releaseGPUResources(gl);
+		mUpsampleShader.releaseGPUResources(gl);
+		
+		mUseCoreProfile = useCoreProfile;
+		ShaderProgram.setUseCoreProfile(useCoreProfile);
+		
+		if (mUseCompactGBuffer != useCompactGBuffer)
+		{
+			mUseCompactGBuffer = useCompactGBuffer;
+			ShaderProgram.setUseCompactGBuffer(useCompactGBuffer);
+			
+			mRenderGraph.releaseGPUResources(gl);
+			createRenderGraph();
+		}
+		
+		if (mUseCoreProfile && mCoreBackend == null)
+		{
+			mCoreBackend = new CoreProfileBackend(gl);
+		}
+		
+		/* Materials reload their shaders from the (now empty) cache when next queued; build them all now 
+		 * instead, including those (e.g. terrain and ocean) which only exist in the scene. */
+		loadPostprocessShaders(gl);
+		warmUpShaders(gl);
+		
+		if (sceneRoot != null)
+		{
+			warmUpShaders(gl, sceneRoot);
+		}
 	}
 	
 	/**
@@ -698,7 +1445,7 @@ public class Renderer
 	public static void drawFullscreenQuad(GL2 gl, float smax, float tmax) throws OpenGLException
 	{
 		/* Save which matrix is active. */
-		gl.glPushAttrib(GL2.GL_TRANSFORM_BIT);
+		GLState.pushAttrib(gl, GL2.GL_TRANSFORM_BIT);
 		
 		/* Reset projection and modelview matrices. */
 		gl.glMatrixMode(GL2.GL_PROJECTION);
@@ -724,7 +1471,7 @@ public class Renderer
 		gl.glPopMatrix();
 
 		/* Restore active matrix. */
-		gl.glPopAttrib();
+		GLState.popAttrib(gl);
 		
 		/* Make sure nothing went wrong. */
 		OpenGLException.checkOpenGLError(gl);
@@ -737,102 +1484,40 @@ public class Renderer
 	public void init(GLAutoDrawable drawable)
 	{
 		GL2 gl = drawable.getGL().getGL2();
-		//ALL TEXTURES CREATED HERE LOOK
-		if (textures[0] == null) {
-		try {
-			System.out.println("rendering");
-			Texture2D tex1 = Texture2D.load(gl, "models/cloud.png");
-			Texture2D tex2 = Texture2D.load(gl, "models/cloud2.png");
-			Texture2D tex3 = Texture2D.load(gl, "models/cloud3.png");
-			Texture2D tex4 = Texture2D.load(gl, "models/cloud4.png");
-			Texture2D tex5 = Texture2D.load(gl, "models/cloud5.png");
-			Texture2D tex6 = Texture2D.load(gl, "models/cloud6.png");
-			Texture2D tex7 = Texture2D.load(gl, "models/cloud7.png");
-			Texture2D tex8 = Texture2D.load(gl, "models/cloud8.png");
-			Texture2D tex9 = Texture2D.load(gl, "models/snowflake.png");
-			Texture2D tex10 = Texture2D.load(gl, "models/lightning.png");
-			Texture2D tex11 = Texture2D.load(gl, "models/lightning2.png");
-			Texture2D tex12 = Texture2D.load(gl, "models/lightning3.png");
-			Texture2D tex13 = Texture2D.load(gl, "models/raindrop.png");
-			
-			Texture2D tex14 = Texture2D.load(gl, "models/clear.png");
-			if (tex1 == null) System.out.println("texture was null WTF");
-			else {
-				textures[0] = tex1;
-				textures[1] = tex2;
-				textures[2] = tex3;
-				textures[3] = tex4;
-				textures[4] = tex5;
-				textures[5] = tex6;
-				textures[6] = tex7;
-				textures[7] = tex8;
-				textures[8] = tex9;
-				textures[9] = tex10;
-				textures[10] = tex11;
-				textures[11] = tex12;
-				textures[12] = tex13;
-				textures[13] = tex14;
-			}
-			
-			System.out.println("set texture in renderer");
-		} catch (OpenGLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		}
-
+		
+		/* This may be a new context, so nothing tracked about the old one applies. */
+		GLState.reset();
+		createRenderGraph();
+		
 		/* Enable depth testing. */
-		gl.glEnable(GL2.GL_DEPTH_TEST);
-		gl.glDepthFunc(GL2.GL_LEQUAL);
+		GLState.setDepthTest(gl, true);
+		GLState.setDepthFunc(gl, GL2.GL_LEQUAL);
 
 		try
 		{
-			/* Load the ubershader. */
-			mUberShader = new ShaderProgram(gl, "shaders/ubershader");
-
-			/* Set material buffer indices once here, since they never have to change. */
-			mUberShader.bind(gl);
-			gl.glUniform1i(mUberShader.getUniformLocation(gl, "DiffuseBuffer"), 0);
-			gl.glUniform1i(mUberShader.getUniformLocation(gl, "MaterialParamsBuffer"), 1);
-			gl.glUniform1i(mUberShader.getUniformLocation(gl, "PositionBuffer"), 2);
-			gl.glUniform1i(mUberShader.getUniformLocation(gl, "NormalBuffer"), 3);
-			gl.glUniform1i(mUberShader.getUniformLocation(gl, "SilhouetteBuffer"), 4);
-			gl.glUniform3f(mUberShader.getUniformLocation(gl, "SkyColor"), 0.1f, 0.1f, 0.1f);
-			mUberShader.unbind(gl);
-			
-			/* Get locations of the lighting uniforms, since these will have to be updated every frame. */
-			mLightPositionsUniformLocation = mUberShader.getUniformLocation(gl, "LightPositions");
-			mLightColorsUniformLocation = mUberShader.getUniformLocation(gl, "LightColors");
-			mLightAttenuationsUniformLocation = mUberShader.getUniformLocation(gl, "LightAttenuations");
-			mNumLightsUniformLocation = mUberShader.getUniformLocation(gl, "NumLights");
-			mEnableToonShadingUniformLocation = mUberShader.getUniformLocation(gl, "EnableToonShading");
-			
-			/* Get the maximum number of lights the shader supports. */
-			//int arraySize[] = new int[1];
-			//gl.glGetActiveUniform(mUberShader.getHandle(), mLightPositionsUniformLocation, /* shader and uniform handles */ 
-			//					  0, null, 0, /* name string buffer size (don't care) */ 
-			//					  arraySize, 0, /* uniform array size buffer */
-			//					  null, 0, /* uniform type buffer (don't care) */
-			//					  null, 0); /* name buffer (don't care) */
-			mMaxLightsInUberShader = 100;
-			
-			/* Load the silhouette (edge-detection) shader. */
-			mSilhouetteShader = new ShaderProgram(gl, "shaders/silhouette");
-
-			mSilhouetteShader.bind(gl);
-			gl.glUniform1i(mSilhouetteShader.getUniformLocation(gl, "PositionBuffer"), 0);
-			gl.glUniform1i(mSilhouetteShader.getUniformLocation(gl, "NormalBuffer"), 1);
-			mSilhouetteShader.unbind(gl);
+			/* Decode the sprite images in parallel and pack them into one texture array (or atlas) for the 
+			 * particle systems. The scene is built right after this and reads `sprites`, so wait for all of them. */
+			if (sprites == null)
+			{
+				sprites = new SpriteArray(gl, mTextureLoader.decodeAll(SPRITE_IDENTIFIERS));
+			}
+			
+			/* Load the ubershader, silhouette shader, and the shaders of the low-resolution translucent pass. */
+			loadPostprocessShaders(gl);
+			
+			/* Create the buffer of light data which the ubershader and forward-shaded materials read. */
+			mLightBuffer = new LightBuffer(gl, 128);
+			mLightClusters = new LightClusters(gl);
 			
 			/* Load the material used to render mesh edges (e.g. creases for subdivs). */
 			mWireframeMaterial = new UnshadedMaterial(new Color3f(0.8f, 0.8f, 0.8f));
 			mWireframeMarkedEdgeMaterial = new UnshadedMaterial(new Color3f(1.0f, 0.0f, 1.0f));
 			
-			/* Make sure nothing went wrong. */
-			OpenGLException.checkOpenGLError(gl);
+			/* Build the material shaders now rather than on first use, which would stall a frame. */
+			warmUpShaders(gl);
+			
+			/* Make sure nothing went wrong, even in release builds, since this only happens once. */
+			OpenGLException.checkOpenGLErrorAlways(gl);
 		}
 		catch (Exception err)
 		{
@@ -842,9 +1527,295 @@ public class Renderer
 		}
 	}
 
+	/**
+	 * Builds the shaders of the renderer's own materials and of every material class which can be 
+	 * created without arguments, so that they're in the shader cache before the first frame. Materials 
+	 * which need arguments (e.g. terrain and ocean) are built by `warmUpShaders(GL2, SceneObject)`.
+	 */
+	private void warmUpShaders(GL2 gl)
+	{
+		Material materials[] = new Material[] {
+			mWireframeMaterial, 
+			new BlinnPhongMaterial(), 
+			new LambertianMaterial(), 
+			new ParticleMaterial(), 
+			new PrecipitationMaterial(), 
+			new CloudMaterial(), 
+			new LightningMaterial()
+		};
+		
+		for (Material material : materials)
+		{
+			material.retrieveShader(gl, mShaderCache);
+		}
+	}
+	
+	/**
+	 * Builds the shader of every material in a scene, so that none is compiled on first use mid-frame. 
+	 * Call this once the scene is built; materials added later are built when first rendered.
+	 * 
+	 * @param gl The OpenGL state.
+	 * @param sceneRoot The root of the scene.
+	 */
+	public void warmUpShaders(GL2 gl, SceneObject sceneRoot)
+	{
+		if (sceneRoot instanceof Geometry)
+		{
+			for (Mesh mesh : ((Geometry)sceneRoot).getMeshes())
+			{
+				if (mesh.getMaterial() != null)
+				{
+					mesh.getMaterial().retrieveShader(gl, mShaderCache);
+				}
+			}
+		}
+		
+		for (SceneObject child : sceneRoot.getChildren())
+		{
+			warmUpShaders(gl, child);
+		}
+	}
+	
+	/**
+	 * Builds the render graph: the stages of a frame, in order, with the gbuffer textures each one 
+	 * reads and writes.
+	 */
+	private void createRenderGraph()
+	{
+		mRenderGraph = new RenderGraph();
+		mRenderGraph.setSize((int)mViewportWidth, (int)mViewportHeight);
+		mRenderGraph.setProfiler(mProfiler);
+		
+		String diffuse = GBUFFER_TARGETS[GBuffer_DiffuseIndex];
+		String material = GBUFFER_TARGETS[GBuffer_MaterialIndex];
+		String position = GBUFFER_TARGETS[GBuffer_PositionIndex];
+		String normal = GBUFFER_TARGETS[GBuffer_NormalIndex];
+		String gradients = GBUFFER_TARGETS[GBuffer_GradientsIndex];
+		String finalScene = GBUFFER_TARGETS[GBuffer_FinalSceneIndex];
+		String gbufferOutputs[];
+		
+		if (mUseCompactGBuffer)
+		{
+			/* Compact layout: no position or gradients, which the ubershader derives from depth and normals. 
+			 * Depth is read where the position buffer would be. */
+			mRenderGraph.addTarget(diffuse, Format.RGBA, Datatype.INT8);
+			mRenderGraph.addTarget(material, Format.RGBA, Datatype.INT8);
+			mRenderGraph.addTarget(normal, Format.RG, Datatype.INT16);
+			
+			gbufferOutputs = new String[] { diffuse, material, normal, DEPTH_TARGET };
+			mLightingInputs = new String[] { diffuse, material, DEPTH_TARGET, normal };
+			mToonLightingInputs = mLightingInputs;
+		}
+		else
+		{
+			for (int i = 0; i < GBuffer_FinalSceneIndex; ++i)
+			{
+				mRenderGraph.addTarget(GBUFFER_TARGETS[i], Format.RGBA, Datatype.FLOAT16);
+			}
+			
+			gbufferOutputs = new String[] { diffuse, material, position, normal, DEPTH_TARGET };
+			mLightingInputs = new String[] { diffuse, material, position, normal };
+			mToonLightingInputs = new String[] { diffuse, material, position, normal, gradients };
+		}
+		
+		mRenderGraph.addTarget(finalScene, Format.RGBA, Datatype.FLOAT16);
+		mRenderGraph.addTarget(DEPTH_TARGET, Format.DEPTH, Datatype.INT32);
+		
+		/* 1. Fill the gbuffer given this scene and camera. */
+		mRenderGraph.addPass(new RenderGraph.Pass("GBuffer", new String[0], gbufferOutputs)
+		{
+			public void execute(GL2 gl, RenderGraph graph) throws OpenGLException, ScenegraphException
+			{
+				fillGBuffer(gl, mFrameSceneRoot, mFrameCamera);
+			}
+		});
+		
+		/* 2. Compute gradient buffer based on positions and normals, used for toon shading. */
+		if (!mUseCompactGBuffer)
+		{
+			mRenderGraph.addPass(new RenderGraph.Pass("Gradients", new String[] { position, normal }, new String[] { gradients })
+			{
+				public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+				{
+					computeGradientBuffer(gl);
+				}
+			});
+		}
+		
+		/* 3. Apply deferred lighting to the g-buffer. At this point, the opaque scene has been rendered. 
+		 * Gradients are only read when toon shading, so otherwise stage 2 is culled. */
+		mRenderGraph.addPass(new RenderGraph.Pass("Lighting", mLightingInputs, new String[] { finalScene })
+		{
+			@Override
+			public String[] getInputs()
+			{
+				return (mFrameToonShading ? mToonLightingInputs : mLightingInputs);
+			}
+			
+			public void execute(GL2 gl, RenderGraph graph) throws OpenGLException, ScenegraphException
+			{
+				lightGBuffer(gl, mFrameCamera);
+			}
+		});
+		
+		/* 4. Render any translucent geometry in a forward shading pass, straight over the final scene... */
+		if (mTranslucentDivisor == 1)
+		{
+			mRenderGraph.addPass(new RenderGraph.Pass("Translucent", new String[] { finalScene, DEPTH_TARGET }, new String[] { finalScene, DEPTH_TARGET })
+			{
+				public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+				{
+					compositeTranslucentGeometry(gl, mFrameSceneRoot, mFrameCamera);
+				}
+			});
+		}
+		else
+		{
+			/* ...or at reduced resolution, which is mostly fill rate saved on large overlapping particles. */
+			mRenderGraph.addTarget(LOW_RES_DEPTH_TARGET, Format.DEPTH, Datatype.INT32, mTranslucentDivisor);
+			mRenderGraph.addTarget(LOW_RES_TRANSLUCENT_TARGET, Format.RGBA, Datatype.FLOAT16, mTranslucentDivisor);
+			
+			/* 4a. Reduce the depth buffer to the lower resolution. */
+			mRenderGraph.addPass(new RenderGraph.Pass(TRANSLUCENT_PASSES[0], new String[] { DEPTH_TARGET }, new String[] { LOW_RES_DEPTH_TARGET })
+			{
+				public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+				{
+					downsampleDepth(gl);
+				}
+			});
+			
+			/* 4b. Render translucent geometry into an empty buffer, tested against the reduced depth. The 
+			 * materials blend premultiplied, so the result is the color to add and the coverage in alpha. */
+			mRenderGraph.addPass(new RenderGraph.Pass(TRANSLUCENT_PASSES[1], new String[] { LOW_RES_DEPTH_TARGET }, new String[] { LOW_RES_TRANSLUCENT_TARGET, LOW_RES_DEPTH_TARGET })
+			{
+				public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+				{
+					gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+					gl.glClear(GL2.GL_COLOR_BUFFER_BIT);
+					compositeTranslucentGeometry(gl, mFrameSceneRoot, mFrameCamera);
+				}
+			});
+			
+			/* 4c. Upsample it over the final scene, guided by both depth buffers. */
+			mRenderGraph.addPass(new RenderGraph.Pass(TRANSLUCENT_PASSES[2], 
+					new String[] { finalScene, LOW_RES_TRANSLUCENT_TARGET, LOW_RES_DEPTH_TARGET, DEPTH_TARGET }, new String[] { finalScene })
+			{
+				public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+				{
+					upsampleTranslucentGeometry(gl, mFrameCamera);
+				}
+			});
+		}
+		
+		/* 5. Output the final scene to the window, or the gbuffer texture being previewed. */
+		mRenderGraph.addPass(new RenderGraph.Pass("Present", mPresentInputs, new String[] { DISPLAY })
+		{
+			public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+			{
+				presentTarget(gl, mPresentInputs[0]);
+			}
+		});
+		
+		/* 6. Draw the stage timings over the window, if enabled; otherwise the pass writes nothing and is culled. */
+		mRenderGraph.addPass(new RenderGraph.Pass("Overlay", new String[] { DISPLAY }, new String[] { DISPLAY })
+		{
+			@Override
+			public String[] getOutputs()
+			{
+				return (mShowProfilerOverlay ? super.getOutputs() : new String[0]);
+			}
+			
+			public void execute(GL2 gl, RenderGraph graph) throws OpenGLException
+			{
+				drawProfilerOverlay(gl);
+			}
+		});
+	}
+	
+	/**
+	 * Loads the ubershader, silhouette shader, and the depth downsample and bilateral upsample shaders, 
+	 * and sets their constant uniforms. Called at initialization and again whenever the rendering 
+	 * path changes.
+	 */
+	private void loadPostprocessShaders(GL2 gl) throws OpenGLException, IOException
+	{
+		/* Load the ubershader. */
+		mUberShader = new ShaderProgram(gl, "shaders/ubershader");
+
+		/* Set material buffer indices once here, since they never have to change. */
+		mUberShader.bind(gl);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "DiffuseBuffer"), 0);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "MaterialParamsBuffer"), 1);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "PositionBuffer"), 2);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "DepthBuffer"), 2);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "NormalBuffer"), 3);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "SilhouetteBuffer"), 4);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "LightBuffer"), GBuffer_FinalSceneIndex);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "ClusterTable"), LightClusters_TableUnit);
+		mUberShader.setUniform1i(gl, mUberShader.getUniformLocation(gl, "ClusterLightIndices"), LightClusters_IndexUnit);
+		mUberShader.setUniform3f(gl, mUberShader.getUniformLocation(gl, "SkyColor"), 0.1f, 0.1f, 0.1f);
+		mUberShader.unbind(gl);
+		
+		/* Get locations of the lighting uniforms, since these will have to be updated every frame. */
+		mClusterTileScaleUniformLocation = mUberShader.getUniformLocation(gl, "ClusterTileScale");
+		mClusterDepthParamsUniformLocation = mUberShader.getUniformLocation(gl, "ClusterDepthParams");
+		mEnableToonShadingUniformLocation = mUberShader.getUniformLocation(gl, "EnableToonShading");
+		mInverseProjectionUniformLocation = mUberShader.getUniformLocation(gl, "InverseProjection");
+		mViewportSizeUniformLocation = mUberShader.getUniformLocation(gl, "ViewportSize");
+		
+		/* Load the silhouette (edge-detection) shader. */
+		mSilhouetteShader = new ShaderProgram(gl, "shaders/silhouette");
+
+		mSilhouetteShader.bind(gl);
+		mSilhouetteShader.setUniform1i(gl, mSilhouetteShader.getUniformLocation(gl, "PositionBuffer"), 0);
+		mSilhouetteShader.setUniform1i(gl, mSilhouetteShader.getUniformLocation(gl, "NormalBuffer"), 1);
+		mSilhouetteShader.unbind(gl);
+		
+		mSilhouetteViewportSizeUniformLocation = mSilhouetteShader.getUniformLocation(gl, "ViewportSize");
+		
+		/* Load the shaders of the low-resolution translucent pass. */
+		mDownsampleDepthShader = new ShaderProgram(gl, "shaders/downsample_depth");
+		
+		mDownsampleDepthShader.bind(gl);
+		mDownsampleDepthShader.setUniform1i(gl, mDownsampleDepthShader.getUniformLocation(gl, "DepthBuffer"), 0);
+		mDownsampleDepthShader.unbind(gl);
+		
+		mDownsampleFactorUniformLocation = mDownsampleDepthShader.getUniformLocation(gl, "Factor");
+		mDownsampleDepthSizeUniformLocation = mDownsampleDepthShader.getUniformLocation(gl, "DepthSize");
+		
+		mUpsampleShader = new ShaderProgram(gl, "shaders/bilateral_upsample");
+		
+		mUpsampleShader.bind(gl);
+		mUpsampleShader.setUniform1i(gl, mUpsampleShader.getUniformLocation(gl, "TranslucentBuffer"), 0);
+		mUpsampleShader.setUniform1i(gl, mUpsampleShader.getUniformLocation(gl, "LowResDepthBuffer"), 1);
+		mUpsampleShader.setUniform1i(gl, mUpsampleShader.getUniformLocation(gl, "DepthBuffer"), 2);
+		mUpsampleShader.unbind(gl);
+		
+		mUpsampleFactorUniformLocation = mUpsampleShader.getUniformLocation(gl, "Factor");
+		mUpsampleLowResSizeUniformLocation = mUpsampleShader.getUniformLocation(gl, "LowResSize");
+		mUpsampleDepthRangeUniformLocation = mUpsampleShader.getUniformLocation(gl, "DepthRange");
+		
+		/* Fullscreen passes draw directly in clip space. */
+		if (mUseCoreProfile)
+		{
+			float identity4[] = new float[] { 1, 0, 0, 0,  0, 1, 0, 0,  0, 0, 1, 0,  0, 0, 0, 1 };
+			float identity3[] = new float[] { 1, 0, 0,  0, 1, 0,  0, 0, 1 };
+			
+			for (ShaderProgram shader : new ShaderProgram[] { mUberShader, mSilhouetteShader, mDownsampleDepthShader, mUpsampleShader })
+			{
+				shader.bind(gl);
+				shader.setProjectionMatrix(gl, identity4);
+				shader.setModelviewMatrix(gl, identity4, identity3);
+				shader.unbind(gl);
+			}
+		}
+	}
+	
 	/**
 	 * Called whenever the OpenGL context changes size. This renderer resizes the gbuffer 
-	 * so it's always the same size as the viewport.
+	 * so it's always the same size as the viewport. Gbuffer textures are pooled in size buckets 
+	 * (see `RenderTargetPool`), so this rarely allocates anything. Frames rendered at reduced 
+	 * resolution (see `ResolutionController`) use only the lower-left corner of the gbuffer.
 	 * 
 	 * @param drawable The drawable being rendered to.
 	 * @param width The new viewport width.
@@ -858,23 +1829,8 @@ public class Renderer
 		mViewportWidth = width;
 		mViewportHeight = height;
 		
-		/* If we already had a gbuffer, release it. */
-		if (mGBufferFBO != null)
-		{
-			mGBufferFBO.releaseGPUResources(gl);
-		}
-		
-		/* Make a new gbuffer with the new size. */
-		try
-		{
-			mGBufferFBO = new FramebufferObject(gl, Format.RGBA, Datatype.FLOAT16, width, height, GBuffer_Count, true, true);
-		}
-		catch (OpenGLException err)
-		{
-			/* If that fails, we can't render - so just die. */
-			err.printStackTrace();
-			System.exit(-1);
-		}
+		/* Targets are taken from the pool at the new size from the next frame on. */
+		mRenderGraph.setSize(width, height);
 	}
 
 	/**
@@ -882,9 +1838,24 @@ public class Renderer
 	 */
 	public void releaseGPUResources(GL2 gl)
 	{
-		mGBufferFBO.releaseGPUResources(gl);
+		mRenderGraph.releaseGPUResources(gl);
 		mUberShader.releaseGPUResources(gl);
+		mLightBuffer.releaseGPUResources(gl);
+		mLightClusters.releaseGPUResources(gl);
 		mSilhouetteShader.releaseGPUResources(gl);
+		mDownsampleDepthShader.releaseGPUResources(gl);
+		mUpsampleShader.releaseGPUResources(gl);
+		
+		if (sprites != null)
+		{
+			sprites.releaseGPUResources(gl);
+			sprites = null;
+		}
+		
+		if (mCoreBackend != null)
+		{
+			mCoreBackend.releaseGPUResources(gl);
+		}
 	}
 	
 
@@ -0,0 +1,200 @@
+package cs5625.deferred.rendering;
+
+import java.util.Arrays;
+
+/**
+ * ResolutionController.java
+ *
+ * Chooses the scale, relative to the window, at which the renderer draws each frame from recent
+ * frame times. Frames slower than the target lower the scale so fewer pixels are shaded; frames
+ * leaving enough headroom raise it again, up to the upper bound. Shading cost grows with the number
+ * of pixels, i.e. with the square of the scale, so each adjustment scales by the square root of the
+ * ratio between the desired and the measured frame time, limited to `MAX_STEP`.
+ *
+ * Decisions use the median of `SAMPLE_FRAMES` frames, so a single hitch (e.g. a garbage collection)
+ * doesn't change the resolution, and after a change the next `SETTLE_FRAMES` frames are ignored,
+ * since GPU times are read back a few frames late and would still describe the old scale.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class ResolutionController
+{
+	/* Frames measured per decision, and frames ignored after a change. */
+	public static final int SAMPLE_FRAMES = 15;
+	public static final int SETTLE_FRAMES = 4;
+	
+	/* Fraction of the target below which the scale is raised (frame times between it and the target
+	 * leave the scale alone), and the largest change of the scale in one adjustment. */
+	public static final float HEADROOM = 0.8f;
+	public static final float MAX_STEP = 0.1f;
+	
+	private boolean mEnabled = true;
+	private float mTargetMillis = 1000.0f / 60.0f;
+	private float mMinScale = 0.5f;
+	private float mMaxScale = 1.0f;
+	private float mScale = 1.0f;
+	
+	/* CPU and GPU times of the frames measured at the current scale, and the frames left to ignore. */
+	private float mCpuSamples[] = new float[SAMPLE_FRAMES];
+	private float mGpuSamples[] = new float[SAMPLE_FRAMES];
+	private int mSampleCount = 0;
+	private int mSettleFrames = 0;
+	
+	/**
+	 * Records the times of a frame and returns the scale to render the next one at.
+	 *
+	 * @param cpuMillis Time the CPU spent rendering the frame, in milliseconds.
+	 * @param gpuMillis Time the GPU spent rendering the frame, in milliseconds, or a negative value
+	 *        if it isn't known (e.g. without timer queries), in which case the CPU time is all there is.
+	 */
+	public float update(float cpuMillis, float gpuMillis)
+	{
+		if (!mEnabled)
+		{
+			return mScale;
+		}
+		
+		if (mSettleFrames > 0)
+		{
+			--mSettleFrames;
+			return mScale;
+		}
+		
+		mCpuSamples[mSampleCount] = cpuMillis;
+		mGpuSamples[mSampleCount] = gpuMillis;
+		
+		if (++mSampleCount < SAMPLE_FRAMES)
+		{
+			return mScale;
+		}
+		
+		mSampleCount = 0;
+		Arrays.sort(mCpuSamples);
+		Arrays.sort(mGpuSamples);
+		
+		float cpu = mCpuSamples[SAMPLE_FRAMES / 2];
+		float gpu = mGpuSamples[SAMPLE_FRAMES / 2];
+		float frame = Math.max(cpu, gpu);
+		
+		/* A frame is as slow as the slower of the CPU and the GPU. Fewer pixels only help the GPU, so
+		 * don't lower the scale while the CPU is the bottleneck. */
+		boolean tooSlow = (frame > mTargetMillis && !(gpu >= 0.0f && cpu > gpu));
+		boolean tooFast = (frame < HEADROOM * mTargetMillis);
+		
+		if (tooSlow || tooFast)
+		{
+			/* Aim for the middle of the band between the headroom and the target. */
+			float desired = 0.5f * (1.0f + HEADROOM) * mTargetMillis;
+			float scale = mScale * (float)Math.sqrt(desired / Math.max(frame, 1.0e-3f));
+			
+			setScale(Math.max(mScale - MAX_STEP, Math.min(mScale + MAX_STEP, scale)));
+		}
+		
+		return mScale;
+	}
+	
+	/**
+	 * Returns the scale the current frame is rendered at.
+	 */
+	public float getScale()
+	{
+		return mScale;
+	}
+	
+	/**
+	 * Sets the scale, clamped to the bounds. The controller adjusts it from there if enabled.
+	 */
+	public void setScale(float scale)
+	{
+		scale = Math.max(mMinScale, Math.min(mMaxScale, scale));
+		
+		if (scale != mScale)
+		{
+			mScale = scale;
+			mSampleCount = 0;
+			mSettleFrames = SETTLE_FRAMES;
+		}
+	}
+	
+	/**
+	 * Sets the range the scale is kept in, e.g. 0.5 to 1 to never render below half resolution.
+	 */
+	public void setScaleBounds(float minScale, float maxScale)
+	{
+		if (minScale <= 0.0f || minScale > maxScale || maxScale > 1.0f)
+		{
+			throw new IllegalArgumentException("Render scale bounds must satisfy 0 < min <= max <= 1.");
+		}
+		
+		mMinScale = minScale;
+		mMaxScale = maxScale;
+		setScale(mScale);
+	}
+	
+	/**
+	 * Returns the lowest scale the controller will choose.
+	 */
+	public float getMinScale()
+	{
+		return mMinScale;
+	}
+	
+	/**
+	 * Returns the highest scale the controller will choose.
+	 */
+	public float getMaxScale()
+	{
+		return mMaxScale;
+	}
+	
+	/**
+	 * Sets the frame time the controller aims to stay under, in milliseconds (e.g. 16.7 for 60 FPS).
+	 */
+	public void setTargetFrameTime(float millis)
+	{
+		if (millis <= 0.0f)
+		{
+			throw new IllegalArgumentException("Target frame time must be positive.");
+		}
+		
+		mTargetMillis = millis;
+		mSampleCount = 0;
+	}
+	
+	/**
+	 * Returns the frame time the controller aims to stay under, in milliseconds.
+	 */
+	public float getTargetFrameTime()
+	{
+		return mTargetMillis;
+	}
+	
+	/**
+	 * Turns the controller on or off. While off, frames are rendered at the upper bound of the scale.
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		mEnabled = enabled;
+		
+		if (!enabled)
+		{
+			setScale(mMaxScale);
+		}
+	}
+	
+	/**
+	 * Returns true if the controller is adjusting the scale.
+	 */
+	public boolean isEnabled()
+	{
+		return mEnabled;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format("render scale %.2f (%s, %.2f to %.2f, target %.1f ms)",
+				mScale, (mEnabled ? "dynamic" : "fixed"), mMinScale, mMaxScale, mTargetMillis);
+	}
+}
@@ -0,0 +1,275 @@
+package cs5625.deferred.rendering;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * ShaderBinaryCache.java
+ *
+ * Cache of linked shader programs, used by `ShaderProgram` so that each shader is only compiled from
+ * source once per driver. After a program is linked from source, its driver-specific binary is read
+ * back with `glGetProgramBinary()` and written to a file named after the SHA-1 hash of the shader
+ * sources and the OpenGL vendor, renderer, and version strings; later loads of the same sources on
+ * the same driver hand that binary to `glProgramBinary()` instead of compiling.
+ *
+ * A cache file holds, in native byte order: a magic number, version, the binary format enum, the
+ * binary's length in bytes, and the binary itself.
+ *
+ * Program binaries need OpenGL 4.1 or `GL_ARB_get_program_binary`, and a driver which offers at least
+ * one binary format; see `isSupported()`. Drivers may also reject a binary they wrote themselves (e.g.
+ * after an update which kept the same version string), in which case it's ignored and rewritten.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+class ShaderBinaryCache
+{
+	/* File identification; the magic number also detects files written with the other byte order. */
+	private static final int MAGIC = 0x43535343;
+	private static final int VERSION = 1;
+	
+	/* Directory holding the cache files, or null if caching is disabled. */
+	private static File sDirectory = new File(System.getProperty("java.io.tmpdir"), "cs5625-shader-cache");
+	
+	/**
+	 * Sets the directory holding cache files (created when first needed), or disables caching if null.
+	 */
+	public static void setDirectory(File directory)
+	{
+		sDirectory = directory;
+	}
+	
+	/**
+	 * Returns the directory holding cache files, or null if caching is disabled.
+	 */
+	public static File getDirectory()
+	{
+		return sDirectory;
+	}
+	
+	/**
+	 * Returns true if caching is enabled and the current context can save and restore program binaries.
+	 */
+	public static boolean isSupported(GL2 gl)
+	{
+		if (sDirectory == null)
+		{
+			return false;
+		}
+		
+		if (!gl.isExtensionAvailable("GL_ARB_get_program_binary") && !gl.isExtensionAvailable("GL_VERSION_4_1"))
+		{
+			return false;
+		}
+		
+		int formatCount[] = new int[1];
+		gl.glGetIntegerv(GL2.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+		return formatCount[0] > 0;
+	}
+	
+	/**
+	 * Returns the cache key of a program: the hex SHA-1 hash of the driver's identification strings and
+	 * the given parts (e.g. the program's sources). Null parts are allowed, and differ from empty ones.
+	 */
+	public static String getKey(GL2 gl, String... parts) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException err)
+		{
+			throw new IOException("SHA-1 is not available to hash shader sources.");
+		}
+		
+		update(digest, gl.glGetString(GL2.GL_VENDOR));
+		update(digest, gl.glGetString(GL2.GL_RENDERER));
+		update(digest, gl.glGetString(GL2.GL_VERSION));
+		
+		for (String part : parts)
+		{
+			update(digest, part);
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		
+		return hex.toString();
+	}
+	
+	/**
+	 * Adds a length-prefixed string to a digest, so that consecutive strings can't run together.
+	 */
+	private static void update(MessageDigest digest, String value) throws UnsupportedEncodingException
+	{
+		if (value == null)
+		{
+			digest.update(new byte[] { -1, -1, -1, -1 });
+			return;
+		}
+		
+		byte bytes[] = value.getBytes("UTF-8");
+		digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+		digest.update(bytes);
+	}
+	
+	/**
+	 * Creates a program from the cache file with the given key.
+	 *
+	 * @return The handle of the linked program, or 0 if there is no valid cache file for this key.
+	 */
+	public static int load(GL2 gl, String key)
+	{
+		File file = new File(sDirectory, key + ".bin");
+		if (!file.isFile())
+		{
+			return 0;
+		}
+		
+		int format;
+		ByteBuffer binary;
+		
+		try
+		{
+			DataInputStream stream = new DataInputStream(new FileInputStream(file));
+			try
+			{
+				byte header[] = new byte[16];
+				stream.readFully(header);
+				
+				ByteBuffer fields = ByteBuffer.wrap(header).order(ByteOrder.nativeOrder());
+				if (fields.getInt() != MAGIC || fields.getInt() != VERSION)
+				{
+					return 0;
+				}
+				
+				format = fields.getInt();
+				int length = fields.getInt();
+				
+				if (length <= 0 || length != file.length() - header.length)
+				{
+					return 0;
+				}
+				
+				byte bytes[] = new byte[length];
+				stream.readFully(bytes);
+				binary = Buffers.newDirectByteBuffer(bytes);
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		catch (IOException err)
+		{
+			/* Unreadable files are just cache misses. */
+			return 0;
+		}
+		
+		int program = gl.glCreateProgram();
+		gl.glProgramBinary(program, format, binary, binary.capacity());
+		
+		int linkedSuccessfully[] = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, linkedSuccessfully, 0);
+		
+		if (linkedSuccessfully[0] != GL2.GL_TRUE)
+		{
+			/* The driver no longer accepts this binary; the program will be rebuilt from source and re-saved. */
+			gl.glDeleteProgram(program);
+			file.delete();
+			return 0;
+		}
+		
+		return program;
+	}
+	
+	/**
+	 * Writes a linked program's binary to the cache file with the given key. The program should have been
+	 * linked with `GL_PROGRAM_BINARY_RETRIEVABLE_HINT` set. The file is written under a temporary name and
+	 * then renamed, so a partially written file is never read.
+	 */
+	public static void save(GL2 gl, int program, String key) throws IOException
+	{
+		int length[] = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_PROGRAM_BINARY_LENGTH, length, 0);
+		
+		if (length[0] <= 0)
+		{
+			return;
+		}
+		
+		ByteBuffer bytes = Buffers.newDirectByteBuffer(16 + length[0]);
+		bytes.order(ByteOrder.nativeOrder());
+		
+		/* The binary goes after the header; its format and actual length fill in the header. */
+		bytes.position(16);
+		ByteBuffer binary = bytes.slice();
+		IntBuffer written = Buffers.newDirectIntBuffer(1);
+		IntBuffer format = Buffers.newDirectIntBuffer(1);
+		gl.glGetProgramBinary(program, length[0], written, format, binary);
+		
+		if (written.get(0) <= 0)
+		{
+			return;
+		}
+		
+		bytes.putInt(0, MAGIC);
+		bytes.putInt(4, VERSION);
+		bytes.putInt(8, format.get(0));
+		bytes.putInt(12, written.get(0));
+		bytes.position(0);
+		bytes.limit(16 + written.get(0));
+		
+		File file = new File(sDirectory, key + ".bin");
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create shader cache directory '" + directory + "'.");
+		}
+		
+		File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			
+			while (bytes.hasRemaining())
+			{
+				channel.write(bytes);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		/* Another process may have written the same file meanwhile, which is fine. */
+		if (!temporary.renameTo(file))
+		{
+			file.delete();
+			if (!temporary.renameTo(file))
+			{
+				temporary.delete();
+				throw new IOException("Could not write shader cache file '" + file + "'.");
+			}
+		}
+	}
+}
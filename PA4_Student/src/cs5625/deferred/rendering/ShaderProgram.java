@@ -1,12 +1,15 @@
 package cs5625.deferred.rendering;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.HashMap;
 
 import javax.media.opengl.GL2;
 
+import cs5625.deferred.misc.GLState;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.OpenGLResourceObject;
 
@@ -23,14 +26,132 @@ import cs5625.deferred.misc.OpenGLResourceObject;
  */
 public class ShaderProgram implements OpenGLResourceObject
 {
+	/** Attribute locations of the standard vertex inputs when using the core-profile path. */
+	public static final int POSITION_ATTRIB_LOCATION = 0;
+	public static final int NORMAL_ATTRIB_LOCATION = 1;
+	public static final int TEXCOORD_ATTRIB_LOCATION = 2;
+	
+	/* Every vertex shader is compiled with one of these preludes, which define the standard vertex 
+	 * inputs and transforms. The fixed-function prelude maps them onto the built-in matrix stack and 
+	 * client arrays; the core-profile prelude declares them as generic attributes and uniforms which 
+	 * the renderer sets explicitly. Vertex shaders must use these names instead of the built-ins. */
+	private static final String FIXED_FUNCTION_PRELUDE = 
+		"uniform vec3 PositionScale;\n" + 
+		"uniform vec3 PositionBias;\n" + 
+		"#define VertexPosition vec4(gl_Vertex.xyz * PositionScale + PositionBias, 1.0)\n" + 
+		"#define VertexNormal gl_Normal\n" + 
+		"#define VertexTexCoord gl_MultiTexCoord0\n" + 
+		"#define ModelviewMatrix gl_ModelViewMatrix\n" + 
+		"#define NormalMatrix gl_NormalMatrix\n" + 
+		"#define ModelviewProjectionMatrix gl_ModelViewProjectionMatrix\n";
+	
+	private static final String CORE_PROFILE_PRELUDE = 
+		"attribute vec4 VertexPositionRaw;\n" + 
+		"uniform vec3 PositionScale;\n" + 
+		"uniform vec3 PositionBias;\n" + 
+		"#define VertexPosition vec4(VertexPositionRaw.xyz * PositionScale + PositionBias, 1.0)\n" + 
+		"attribute vec3 VertexNormal;\n" + 
+		"attribute vec4 VertexTexCoord;\n" + 
+		"uniform mat4 ModelviewMatrix;\n" + 
+		"uniform mat3 NormalMatrix;\n" + 
+		"uniform mat4 ProjectionMatrix;\n" + 
+		"#define ModelviewProjectionMatrix (ProjectionMatrix * ModelviewMatrix)\n";
+	
+	/* Which prelude newly loaded shaders are compiled with. */
+	private static boolean sUseCoreProfile = false;
+	
+	/* Every fragment shader is compiled with the gbuffer encoding functions, and COMPACT_GBUFFER defined 
+	 * if the renderer uses the compact gbuffer layout; see "shaders/gbuffer.glsl". */
+	private static final String GBUFFER_PRELUDE_IDENTIFIER = "shaders/gbuffer.glsl";
+	private static String sGBufferPrelude = null;
+	private static boolean sUseCompactGBuffer = false;
 	
 	/* Internal variables of the shader. */
 	private int mHandle = -1;
-	private int mPreviousBinding[] = new int[1];
+	private int mPreviousBinding = 0;
 	private boolean mIsBound = false;
+	private boolean mIsPinned = false;
+	private boolean mIsCoreProfile = false;
+	
+	/* Locations of the transform uniforms in the core-profile prelude, or -1 if unused. */
+	private int mModelviewMatrixUniformLocation = -1;
+	private int mNormalMatrixUniformLocation = -1;
+	private int mProjectionMatrixUniformLocation = -1;
+	
+	/* Locations of the position dequantization uniforms in both preludes. */
+	private int mPositionScaleUniformLocation = -1;
+	private int mPositionBiasUniformLocation = -1;
+	
+	/* Uniform locations by name, reflected from the active uniforms after linking. Names which aren't 
+	 * active uniforms (e.g. later array elements) are added, with their location or -1, when first looked up. */
+	private HashMap<String, Integer> mUniformLocations = new HashMap<String, Integer>();
+	
+	/* Last value uploaded through the `setUniform*()` methods, by location: a tag (component count, 
+	 * negated for ints) followed by the raw bits of up to 4 components. */
+	private HashMap<Integer, int[]> mUniformValues = new HashMap<Integer, int[]>();
+	
+	/* Uniform uploads issued and skipped as redundant, over all shaders, since `resetUniformUploadCounts()`. */
+	private static int sUniformUploads = 0;
+	private static int sSkippedUniformUploads = 0;
+	
+	/**
+	 * Sets whether shaders loaded from now on use the core-profile prelude (explicit attributes 
+	 * and transform uniforms) or the fixed-function one. Shaders which are already loaded are 
+	 * unaffected, so the renderer reloads all its shaders when switching.
+	 */
+	public static void setUseCoreProfile(boolean useCoreProfile)
+	{
+		sUseCoreProfile = useCoreProfile;
+	}
+	
+	/**
+	 * Returns true if shaders loaded from now on use the core-profile prelude.
+	 */
+	public static boolean getUseCoreProfile()
+	{
+		return sUseCoreProfile;
+	}
+	
+	/**
+	 * Sets whether fragment shaders loaded from now on write and read the compact gbuffer layout. 
+	 * As with `setUseCoreProfile()`, shaders which are already loaded are unaffected.
+	 */
+	public static void setUseCompactGBuffer(boolean useCompactGBuffer)
+	{
+		sUseCompactGBuffer = useCompactGBuffer;
+	}
+	
+	/**
+	 * Returns true if fragment shaders loaded from now on use the compact gbuffer layout.
+	 */
+	public static boolean getUseCompactGBuffer()
+	{
+		return sUseCompactGBuffer;
+	}
+	
+	/**
+	 * Sets the directory in which linked programs are cached as driver-specific binaries, or disables 
+	 * the cache if null. Defaults to "cs5625-shader-cache" in the system temporary directory.
+	 */
+	public static void setBinaryCacheDirectory(File directory)
+	{
+		ShaderBinaryCache.setDirectory(directory);
+	}
+	
+	/**
+	 * Returns the directory in which linked programs are cached, or null if the cache is disabled.
+	 */
+	public static File getBinaryCacheDirectory()
+	{
+		return ShaderBinaryCache.getDirectory();
+	}
 	
 	/**
 	 * Loads a shader resource named by the given identifier.
+	 * 
+	 * Where the driver supports program binaries, the linked program is cached (see 
+	 * `setBinaryCacheDirectory()`), keyed by the hash of its sources and the driver, and later loads of 
+	 * unchanged sources restore that binary instead of compiling and linking again.
 	 *  
 	 * @param gl The OpenGL state.
 	 * @param identifier The identifier of the shader to load, using the class resource loader.
@@ -39,18 +160,136 @@ public class ShaderProgram implements OpenGLResourceObject
 	 */
 	public ShaderProgram(GL2 gl, String identifier) throws OpenGLException, IOException
 	{
-		/* Create the two shader objects. */
-		int vertexShader   = createShaderObject(gl, GL2.GL_VERTEX_SHADER,   identifier + ".vp");
-		int fragmentShader = createShaderObject(gl, GL2.GL_FRAGMENT_SHADER, identifier + ".fp");
+		mIsCoreProfile = sUseCoreProfile;
+		
+		/* Read the two sources; vertex shaders get the standard inputs for whichever path this shader is for. */
+		String vertexSource = readShaderSource(identifier + ".vp");
+		String fragmentSource = readShaderSource(identifier + ".fp");
 		
-		/* If neither were created, we have no shader. */
-		if (vertexShader == 0 && fragmentShader == 0)
+		/* If neither exists, we have no shader. */
+		if (vertexSource == null && fragmentSource == null)
 		{
 			throw new OpenGLException("No source found for shader '" + identifier + "'.");
 		}
 		
+		if (vertexSource != null)
+		{
+			vertexSource = (mIsCoreProfile ? CORE_PROFILE_PRELUDE : FIXED_FUNCTION_PRELUDE) + vertexSource;
+		}
+		
+		if (fragmentSource != null)
+		{
+			fragmentSource = addFragmentPrelude(fragmentSource);
+		}
+		
+		/* Restore the linked program from the binary cache if possible; otherwise build it from source. */
+		String cacheKey = null;
+		if (ShaderBinaryCache.isSupported(gl))
+		{
+			cacheKey = ShaderBinaryCache.getKey(gl, vertexSource, fragmentSource, Boolean.toString(mIsCoreProfile));
+			mHandle = ShaderBinaryCache.load(gl, cacheKey);
+		}
+		
+		if (mHandle <= 0)
+		{
+			linkFromSource(gl, identifier, vertexSource, fragmentSource, cacheKey != null);
+			
+			if (cacheKey != null)
+			{
+				try
+				{
+					ShaderBinaryCache.save(gl, mHandle, cacheKey);
+				}
+				catch (IOException err)
+				{
+					/* Caching is only an optimization; the shader itself linked fine. */
+					err.printStackTrace();
+				}
+			}
+		}
+		
+		reflectUniforms(gl);
+		
+		if (mIsCoreProfile)
+		{
+			mModelviewMatrixUniformLocation = getUniformLocation(gl, "ModelviewMatrix");
+			mNormalMatrixUniformLocation = getUniformLocation(gl, "NormalMatrix");
+			mProjectionMatrixUniformLocation = getUniformLocation(gl, "ProjectionMatrix");
+		}
+		
+		/* Positions are unquantized until a packed mesh says otherwise. */
+		mPositionScaleUniformLocation = getUniformLocation(gl, "PositionScale");
+		mPositionBiasUniformLocation = getUniformLocation(gl, "PositionBias");
+		
+		int previousProgram = GLState.getProgram(gl);
+		GLState.useProgram(gl, mHandle);
+		
+		setUniform3f(gl, mPositionScaleUniformLocation, 1.0f, 1.0f, 1.0f);
+		setUniform3f(gl, mPositionBiasUniformLocation, 0.0f, 0.0f, 0.0f);
+		
+		GLState.useProgram(gl, previousProgram);
+	}
+	
+	/**
+	 * Fills the uniform location table from the linked program's active uniforms.
+	 */
+	private void reflectUniforms(GL2 gl)
+	{
+		int uniformCount[] = new int[1];
+		int maxNameLength[] = new int[1];
+		gl.glGetProgramiv(mHandle, GL2.GL_ACTIVE_UNIFORMS, uniformCount, 0);
+		gl.glGetProgramiv(mHandle, GL2.GL_ACTIVE_UNIFORM_MAX_LENGTH, maxNameLength, 0);
+		
+		byte name[] = new byte[Math.max(maxNameLength[0], 1)];
+		int nameLength[] = new int[1];
+		int size[] = new int[1];
+		int type[] = new int[1];
+		
+		for (int i = 0; i < uniformCount[0]; ++i)
+		{
+			gl.glGetActiveUniform(mHandle, i, name.length, nameLength, 0, size, 0, type, 0, name, 0);
+			String uniformName = new String(name, 0, nameLength[0]);
+			
+			/* Built-in uniforms (e.g. gl_ModelViewMatrix) have no location. */
+			int location = gl.glGetUniformLocation(mHandle, uniformName);
+			if (location < 0)
+			{
+				continue;
+			}
+			
+			mUniformLocations.put(uniformName, location);
+			
+			/* Arrays are reported as "Name[0]", but are usually looked up as "Name". */
+			if (uniformName.endsWith("[0]"))
+			{
+				mUniformLocations.put(uniformName.substring(0, uniformName.length() - 3), location);
+			}
+		}
+	}
+	
+	/**
+	 * Compiles the given sources and links them into this shader's program. 
+	 * 
+	 * @param gl The OpenGL state.
+	 * @param identifier The shader's identifier, for error messages.
+	 * @param vertexSource Complete vertex shader source, or null for none.
+	 * @param fragmentSource Fragment shader source, or null for none.
+	 * @param retrievable If true, the program is linked so that `glGetProgramBinary()` can read it back.
+	 */
+	private void linkFromSource(GL2 gl, String identifier, String vertexSource, String fragmentSource, boolean retrievable) throws OpenGLException
+	{
+		/* Create the two shader objects. */
+		int vertexShader   = (vertexSource == null ? 0 : createShaderObject(gl, GL2.GL_VERTEX_SHADER,   identifier + ".vp", vertexSource));
+		int fragmentShader = (fragmentSource == null ? 0 : createShaderObject(gl, GL2.GL_FRAGMENT_SHADER, identifier + ".fp", fragmentSource));
+		
 		/* Create the shader program object. */
-		mHandle = gl.glCreateProgram();		
+		mHandle = gl.glCreateProgram();
+		
+		/* Ask the driver to keep the binary around, so the cache can read it back after linking. */
+		if (retrievable)
+		{
+			gl.glProgramParameteri(mHandle, GL2.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL2.GL_TRUE);
+		}
 		
 		/* Attach vertex and fragment shaders, if they each exist. */
 		if (vertexShader != 0)
@@ -63,9 +302,17 @@ public class ShaderProgram implements OpenGLResourceObject
 			gl.glAttachShader(mHandle, fragmentShader);
 		}
 		
+		/* Give the standard vertex inputs fixed locations, so meshes can be drawn without looking them up. */
+		if (mIsCoreProfile)
+		{
+			gl.glBindAttribLocation(mHandle, POSITION_ATTRIB_LOCATION, "VertexPositionRaw");
+			gl.glBindAttribLocation(mHandle, NORMAL_ATTRIB_LOCATION, "VertexNormal");
+			gl.glBindAttribLocation(mHandle, TEXCOORD_ATTRIB_LOCATION, "VertexTexCoord");
+		}
+		
 		/* Link the program and check its status. */
 		gl.glLinkProgram(mHandle);
-		int linkedSuccessfully[] = new int[1];;
+		int linkedSuccessfully[] = new int[1];
 		gl.glGetProgramiv(mHandle, GL2.GL_LINK_STATUS, linkedSuccessfully, 0);
 		
 		if (linkedSuccessfully[0] != GL2.GL_TRUE)
@@ -98,17 +345,42 @@ public class ShaderProgram implements OpenGLResourceObject
 	}
 	
 	/**
-	 * Creates a single shader object with the given identifier.
+	 * Returns a fragment shader's source with the gbuffer prelude inserted.
+	 */
+	private static String addFragmentPrelude(String source) throws IOException
+	{
+		if (sGBufferPrelude == null)
+		{
+			sGBufferPrelude = readShaderSource(GBUFFER_PRELUDE_IDENTIFIER);
+		}
+		
+		String prelude = (sUseCompactGBuffer ? "#define COMPACT_GBUFFER\n" : "") + sGBufferPrelude + "\n";
+		
+		/* #extension directives have to come before any code, so insert after the last one. */
+		int extension = source.lastIndexOf("#extension");
+		if (extension < 0)
+		{
+			return prelude + source;
+		}
+		
+		int lineEnd = source.indexOf('\n', extension);
+		if (lineEnd < 0)
+		{
+			return source + "\n" + prelude;
+		}
+		
+		return source.substring(0, lineEnd + 1) + prelude + source.substring(lineEnd + 1);
+	}
+	
+	/**
+	 * Reads a shader source file.
 	 * 
-	 * @param gl The OpenGL state.
-	 * @param type OpenGL constant (e.g. GL_VERTEX_SHADER) indicating the type of shader to create.
 	 * @param identifier The identifier of the shader file to load. Must include extension.
 	 * 
-	 * @return The handle/name/id of the new shader object.
+	 * @return The source code, or null if the file is empty.
 	 */
-	private int createShaderObject(GL2 gl, int type, String identifier) throws OpenGLException, IOException
+	private static String readShaderSource(String identifier) throws IOException
 	{
-		/* Read the source code file. */
 		URL url = ShaderProgram.class.getClassLoader().getResource(identifier);
 		if (url == null)
 		{
@@ -116,21 +388,39 @@ public class ShaderProgram implements OpenGLResourceObject
 		}
 		
 		BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
-		String code = "";
-		String line = reader.readLine();
+		StringBuilder code = new StringBuilder();
 		
-		while (line != null)
+		try
 		{
-			code += line + "\n";
-			line = reader.readLine();
+			String line = reader.readLine();
+			
+			while (line != null)
+			{
+				code.append(line).append('\n');
+				line = reader.readLine();
+			}
 		}
-
-		/* No code, no shader. */
-		if (code == "")
+		finally
 		{
-			return 0;
+			reader.close();
 		}
 		
+		/* No code, no shader. */
+		return (code.length() == 0 ? null : code.toString());
+	}
+	
+	/**
+	 * Compiles a single shader object.
+	 * 
+	 * @param gl The OpenGL state.
+	 * @param type OpenGL constant (e.g. GL_VERTEX_SHADER) indicating the type of shader to create.
+	 * @param identifier The identifier of the shader file, for error messages.
+	 * @param code The complete source code.
+	 * 
+	 * @return The handle/name/id of the new shader object.
+	 */
+	private int createShaderObject(GL2 gl, int type, String identifier, String code) throws OpenGLException
+	{
 		/* Create the shader object, send the code to OpenGL, and compile. */
 		int shader = gl.glCreateShader(type);
 		gl.glShaderSource(shader, 1, new String[]{code}, new int[]{code.length()}, 0);
@@ -181,8 +471,8 @@ public class ShaderProgram implements OpenGLResourceObject
 		if (!isBound())
 		{
 			/* Remember the shader bound before us. */
-			gl.glGetIntegerv(GL2.GL_CURRENT_PROGRAM, mPreviousBinding, 0);
-			gl.glUseProgram(mHandle);
+			mPreviousBinding = GLState.getProgram(gl);
+			GLState.useProgram(gl, mHandle);
 			mIsBound = true;
 		}
 	}
@@ -203,16 +493,207 @@ public class ShaderProgram implements OpenGLResourceObject
 	 */
 	public void unbind(GL2 gl)
 	{
-		if (isBound())
+		if (isBound() && !mIsPinned)
 		{
-			gl.glUseProgram(mPreviousBinding[0]);
+			GLState.useProgram(gl, mPreviousBinding);
 			mIsBound = false;
 		}
 	}
 	
+	/**
+	 * Pins or unpins this shader. While pinned, `unbind()` does nothing, so a run of materials 
+	 * sharing this shader can bind and unbind it without actually switching programs. The 
+	 * render queue pins a shader for the duration of each run. 
+	 */
+	void setPinned(boolean pinned)
+	{
+		mIsPinned = pinned;
+	}
+	
+	/**
+	 * Returns true if this shader was compiled for the core-profile path, and so takes its 
+	 * transforms from `setProjectionMatrix()` and `setModelviewMatrix()` rather than the matrix stack.
+	 */
+	public boolean isCoreProfile()
+	{
+		return mIsCoreProfile;
+	}
+	
+	/**
+	 * Sets the projection matrix of a core-profile shader. The shader must be bound.
+	 * 
+	 * @param projection Column-major 4x4 projection matrix.
+	 */
+	public void setProjectionMatrix(GL2 gl, float projection[])
+	{
+		if (mProjectionMatrixUniformLocation >= 0)
+		{
+			gl.glUniformMatrix4fv(mProjectionMatrixUniformLocation, 1, false, projection, 0);
+		}
+	}
+	
+	/**
+	 * Sets the modelview and normal matrices of a core-profile shader. The shader must be bound.
+	 * 
+	 * @param modelview Column-major 4x4 modelview matrix.
+	 * @param normal Column-major 3x3 normal matrix (inverse transpose of the modelview's upper 3x3).
+	 */
+	public void setModelviewMatrix(GL2 gl, float modelview[], float normal[])
+	{
+		if (mModelviewMatrixUniformLocation >= 0)
+		{
+			gl.glUniformMatrix4fv(mModelviewMatrixUniformLocation, 1, false, modelview, 0);
+		}
+		
+		if (mNormalMatrixUniformLocation >= 0)
+		{
+			gl.glUniformMatrix3fv(mNormalMatrixUniformLocation, 1, false, normal, 0);
+		}
+	}
+	
+	/**
+	 * Sets how the shader turns stored vertex positions into object-space positions: 
+	 * `VertexPosition = stored * scale + bias`. Meshes with quantized positions (see 
+	 * `PackedVertexData`) need this; all others use a scale of 1 and bias of 0. Redundant 
+	 * changes are skipped. The shader must be bound.
+	 * 
+	 * @param scale Per-axis scale (3 floats).
+	 * @param bias Per-axis offset (3 floats).
+	 */
+	public void setPositionDequantization(GL2 gl, float scale[], float bias[])
+	{
+		setUniform3f(gl, mPositionScaleUniformLocation, scale[0], scale[1], scale[2]);
+		setUniform3f(gl, mPositionBiasUniformLocation, bias[0], bias[1], bias[2]);
+	}
+	
+	/**
+	 * Sets an int (or sampler or bool) uniform of this shader, unless it already has that value. 
+	 * Locations of -1 are ignored. The shader must be bound.
+	 */
+	public void setUniform1i(GL2 gl, int location, int x)
+	{
+		if (updateUniformValue(location, -1, x, 0, 0, 0))
+		{
+			gl.glUniform1i(location, x);
+		}
+	}
+	
+	/**
+	 * Sets a float uniform of this shader, unless it already has that value. 
+	 * Locations of -1 are ignored. The shader must be bound.
+	 */
+	public void setUniform1f(GL2 gl, int location, float x)
+	{
+		if (updateUniformValue(location, 1, Float.floatToRawIntBits(x), 0, 0, 0))
+		{
+			gl.glUniform1f(location, x);
+		}
+	}
+	
+	/**
+	 * Sets a vec2 uniform of this shader, unless it already has that value. 
+	 * Locations of -1 are ignored. The shader must be bound.
+	 */
+	public void setUniform2f(GL2 gl, int location, float x, float y)
+	{
+		if (updateUniformValue(location, 2, Float.floatToRawIntBits(x), Float.floatToRawIntBits(y), 0, 0))
+		{
+			gl.glUniform2f(location, x, y);
+		}
+	}
+	
+	/**
+	 * Sets a vec3 uniform of this shader, unless it already has that value. 
+	 * Locations of -1 are ignored. The shader must be bound.
+	 */
+	public void setUniform3f(GL2 gl, int location, float x, float y, float z)
+	{
+		if (updateUniformValue(location, 3, Float.floatToRawIntBits(x), Float.floatToRawIntBits(y), Float.floatToRawIntBits(z), 0))
+		{
+			gl.glUniform3f(location, x, y, z);
+		}
+	}
+	
+	/**
+	 * Sets a vec4 uniform of this shader, unless it already has that value. 
+	 * Locations of -1 are ignored. The shader must be bound.
+	 */
+	public void setUniform4f(GL2 gl, int location, float x, float y, float z, float w)
+	{
+		if (updateUniformValue(location, 4, Float.floatToRawIntBits(x), Float.floatToRawIntBits(y), Float.floatToRawIntBits(z), Float.floatToRawIntBits(w)))
+		{
+			gl.glUniform4f(location, x, y, z, w);
+		}
+	}
+	
+	/**
+	 * Records a uniform's new value in the shadow table and counts the upload.
+	 * 
+	 * @param tag Number of components, negated for ints; distinguishes e.g. 1i from 1f with the same bits.
+	 * 
+	 * @return True if the value must be uploaded, false if the uniform already has it or doesn't exist.
+	 */
+	private boolean updateUniformValue(int location, int tag, int a, int b, int c, int d)
+	{
+		if (location < 0)
+		{
+			return false;
+		}
+		
+		int value[] = mUniformValues.get(location);
+		
+		if (value == null)
+		{
+			value = new int[5];
+			mUniformValues.put(location, value);
+		}
+		else if (value[0] == tag && value[1] == a && value[2] == b && value[3] == c && value[4] == d)
+		{
+			++sSkippedUniformUploads;
+			return false;
+		}
+		
+		value[0] = tag;
+		value[1] = a;
+		value[2] = b;
+		value[3] = c;
+		value[4] = d;
+		
+		++sUniformUploads;
+		return true;
+	}
+	
+	/**
+	 * Returns the number of uniform values uploaded through `setUniform*()`, over all shaders, 
+	 * since the counts were last reset.
+	 */
+	public static int getUniformUploadCount()
+	{
+		return sUniformUploads;
+	}
+	
+	/**
+	 * Returns the number of `setUniform*()` calls skipped because the uniform already had that value, 
+	 * over all shaders, since the counts were last reset.
+	 */
+	public static int getSkippedUniformUploadCount()
+	{
+		return sSkippedUniformUploads;
+	}
+	
+	/**
+	 * Resets the uniform upload counts. The renderer does this at the start of every frame.
+	 */
+	public static void resetUniformUploadCounts()
+	{
+		sUniformUploads = 0;
+		sSkippedUniformUploads = 0;
+	}
+	
 	/**
 	 * Returns the location of the named uniform in this shader, or -1 if the uniform
-	 * doesn't appear (or isn't used) in the shader.
+	 * doesn't appear (or isn't used) in the shader. Locations come from a table built 
+	 * when the shader is loaded, so this doesn't query OpenGL.
 
 	 * @param gl The OpenGL state.
 	 * @param uniformName Name of the desired uniform.
@@ -221,7 +702,15 @@ public class ShaderProgram implements OpenGLResourceObject
 	 */
 	public int getUniformLocation(GL2 gl, String uniformName)
 	{
-		return gl.glGetUniformLocation(mHandle, uniformName);
+		Integer location = mUniformLocations.get(uniformName);
+		
+		if (location == null)
+		{
+			location = gl.glGetUniformLocation(mHandle, uniformName);
+			mUniformLocations.put(uniformName, location);
+		}
+		
+		return location;
 	}
 	
 	/**
@@ -255,6 +744,7 @@ public class ShaderProgram implements OpenGLResourceObject
 		
 		/* Delete the program object. */
 		gl.glDeleteProgram(mHandle);
+		GLState.programDeleted(mHandle);
 		mHandle = -1;
 
 		/* Delete each attached shader object. */
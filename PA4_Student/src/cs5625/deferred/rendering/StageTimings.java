@@ -0,0 +1,138 @@
+package cs5625.deferred.rendering;
+
+import java.util.Arrays;
+
+/**
+ * StageTimings.java
+ *
+ * Rolling CPU and GPU times of one stage of a frame (e.g. the gbuffer pass, or animating the scene),
+ * kept for the last `WINDOW` frames. Recording a time is an array store, so this can stay on all the
+ * time; percentiles are only computed (by sorting a copy of the window) when someone asks for them.
+ *
+ * Times are recorded on the rendering and animation threads and read from JMX threads, so every
+ * method is synchronized; the lock is uncontended except while statistics are being read.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class StageTimings implements StageTimingsMBean
+{
+	/* Number of frames the statistics cover. */
+	public static final int WINDOW = 256;
+	
+	private String mName;
+	
+	/* Ring buffers of times in milliseconds, and the number of times recorded into each. */
+	private float mCpuMillis[] = new float[WINDOW];
+	private float mGpuMillis[] = new float[WINDOW];
+	private long mCpuCount = 0;
+	private long mGpuCount = 0;
+	
+	/**
+	 * Creates empty timings for the named stage.
+	 */
+	public StageTimings(String name)
+	{
+		mName = name;
+	}
+	
+	/**
+	 * Records the CPU time of one frame of this stage, in milliseconds.
+	 */
+	public synchronized void recordCpu(float millis)
+	{
+		mCpuMillis[(int)(mCpuCount++ % WINDOW)] = millis;
+	}
+	
+	/**
+	 * Records the GPU time of one frame of this stage, in milliseconds.
+	 */
+	public synchronized void recordGpu(float millis)
+	{
+		mGpuMillis[(int)(mGpuCount++ % WINDOW)] = millis;
+	}
+	
+	/**
+	 * Returns the `percentile`-th percentile (0 to 100) of the CPU times in the window, or -1 if none.
+	 */
+	public synchronized float getCpuPercentile(float percentile)
+	{
+		return percentile(mCpuMillis, mCpuCount, percentile);
+	}
+	
+	/**
+	 * Returns the `percentile`-th percentile (0 to 100) of the GPU times in the window, or -1 if none.
+	 */
+	public synchronized float getGpuPercentile(float percentile)
+	{
+		return percentile(mGpuMillis, mGpuCount, percentile);
+	}
+	
+	/**
+	 * Returns a percentile of the first `min(count, WINDOW)` values of `samples`, by nearest rank.
+	 */
+	private static float percentile(float samples[], long count, float percentile)
+	{
+		int n = (int)Math.min(count, WINDOW);
+		if (n == 0)
+		{
+			return -1.0f;
+		}
+		
+		float sorted[] = Arrays.copyOf(samples, n);
+		Arrays.sort(sorted);
+		
+		int rank = (int)Math.ceil(percentile / 100.0f * n);
+		return sorted[Math.max(0, Math.min(n - 1, rank - 1))];
+	}
+	
+	public String getName()
+	{
+		return mName;
+	}
+	
+	public synchronized long getFrameCount()
+	{
+		return Math.max(mCpuCount, mGpuCount);
+	}
+	
+	public float getCpuMillisP50()
+	{
+		return getCpuPercentile(50.0f);
+	}
+	
+	public float getCpuMillisP95()
+	{
+		return getCpuPercentile(95.0f);
+	}
+	
+	public float getCpuMillisP99()
+	{
+		return getCpuPercentile(99.0f);
+	}
+	
+	public float getCpuMillisMax()
+	{
+		return getCpuPercentile(100.0f);
+	}
+	
+	public float getGpuMillisP50()
+	{
+		return getGpuPercentile(50.0f);
+	}
+	
+	public float getGpuMillisP95()
+	{
+		return getGpuPercentile(95.0f);
+	}
+	
+	public float getGpuMillisP99()
+	{
+		return getGpuPercentile(99.0f);
+	}
+	
+	public float getGpuMillisMax()
+	{
+		return getGpuPercentile(100.0f);
+	}
+}
@@ -0,0 +1,27 @@
+package cs5625.deferred.rendering;
+
+/**
+ * StageTimingsMBean.java
+ *
+ * Management interface through which JMX clients (e.g. JConsole or VisualVM) read the timings of
+ * one stage of a frame; see `StageTimings`. Times are in milliseconds, over the most recent
+ * `StageTimings.WINDOW` frames, and are -1 if the stage hasn't been measured on that processor.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public interface StageTimingsMBean
+{
+	public String getName();
+	public long getFrameCount();
+	
+	public float getCpuMillisP50();
+	public float getCpuMillisP95();
+	public float getCpuMillisP99();
+	public float getCpuMillisMax();
+	
+	public float getGpuMillisP50();
+	public float getGpuMillisP95();
+	public float getGpuMillisP99();
+	public float getGpuMillisMax();
+}
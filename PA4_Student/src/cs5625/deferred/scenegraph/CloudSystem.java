@@ -21,9 +21,10 @@ import com.jogamp.common.nio.Buffers;
 import cs5625.deferred.materials.CloudMaterial;
 import cs5625.deferred.materials.LightningMaterial;
 import cs5625.deferred.materials.ParticleMaterial;
+import cs5625.deferred.materials.SpriteArray;
 import cs5625.deferred.materials.Texture;
-import cs5625.deferred.materials.Texture2D;
 import cs5625.deferred.materials.UnshadedMaterial;
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.ScenegraphException;
 import cs5625.deferred.procedural.PerlinNoiseGenerator;
@@ -69,17 +70,13 @@ public class CloudSystem extends ParticleSystem
 	float[][] pixels = generator.seededPerlinNoiseTexture(10, 1);
 
 	
-	/* Particle things for memory allocation shenanigans */  
+	/* Particle things for memory allocation shenanigans. All puffs share one material, and pick 
+	 * their texture by sprite layer (the index of the image in the renderer's sprite array). */  
 	private CloudMaterial material = new CloudMaterial(xlimit);
-	private CloudMaterial material2 = new CloudMaterial(xlimit);
-	private CloudMaterial material3 = new CloudMaterial(xlimit);
-	private CloudMaterial material5 = new CloudMaterial(xlimit);
-	private CloudMaterial material6 = new CloudMaterial(xlimit);
-	private CloudMaterial material7 = new CloudMaterial(xlimit);
-	private CloudMaterial material8 = new CloudMaterial(xlimit);
+	private static final int LIGHTNING_LAYER = 9;
+	private static final int CLEAR_LAYER = 13;
 	
-	private CloudMaterial clearmaterial = new CloudMaterial(xlimit);
-	private Texture2D[] textures = new Texture2D[14];
+	private SpriteArray sprites;
 	
 	private ArrayList<Cloud> toBeAdded = new ArrayList<Cloud>();
 	
@@ -128,19 +125,20 @@ public class CloudSystem extends ParticleSystem
 	 * @param maxParticles The maximum number of particles which can exist at a single time. 
 	 *        Particles are created and destroyed in `animate()` depending on the behavior 
 	 *        of this particular system.
+	 * @param sprites The renderer's sprite array, used by the puffs, precipitation, and lightning.
 	 * @throws IOException 
 	 */
-	public CloudSystem(int maxParticles, Texture2D[] list, int id, Point3f s) throws IOException
+	public CloudSystem(int maxParticles, SpriteArray sprites, int id, Point3f s) throws IOException
 	{
 		// TODO initialize particle pool with shared geometry and texture data\
 		//CHANGES HERE LOOK
 		number = maxParticles;
 		biomeID = id;
 		start = new Point3f(s);
-		textures = list;
+		this.sprites = sprites;
 		
 		materialStarts();
-		materialTex(list);
+		material.setSprites(sprites);
 		materialIDs(id);
 
 		
@@ -152,11 +150,12 @@ public class CloudSystem extends ParticleSystem
 			
 			particle.setPosition(point);
 	
-			List<Geometry> geom = Particle.load("models/plane.obj", true, true);
+			List<Geometry> geom = AssetManager.acquireGeometry("models/plane.obj", true, true);
 			List<Mesh> meshes = geom.get(0).getMeshes();
 			
 			Quadmesh mesh = (Quadmesh) meshes.get(0);
-			mesh.setMaterial(clearmaterial);
+			mesh.setMaterial(material);
+			SpriteArray.setLayer(mesh, CLEAR_LAYER);
 			
 			try {this.addChild(particle);} catch (ScenegraphException e) {e.printStackTrace();}
 			particle.addMesh(mesh);
@@ -233,21 +232,20 @@ public class CloudSystem extends ParticleSystem
 				if (point.y < 0.21+start.y) {
 					part.maxy = point.y + 0.1f*scale;
 					part.miny = point.y;
-					if (Math.random() > 0.7) mesh.setMaterial(material5);
-					else mesh.setMaterial(material6);
+					if (Math.random() > 0.7) SpriteArray.setLayer(mesh, 4);
+					else SpriteArray.setLayer(mesh, 5);
 					//set ID for storms
 					if (biomeID == 3) {
-						material5.setID(3);
-						material6.setID(3);
+						material.setID(3);
 					}
 				}
-				else if (point.y > 0.6+start.y) mesh.setMaterial(material2);
+				else if (point.y > 0.6+start.y) SpriteArray.setLayer(mesh, 1);
 				else {
-					if (Math.random() > 0.3) mesh.setMaterial(material);
-					else mesh.setMaterial(material8);
+					if (Math.random() > 0.3) SpriteArray.setLayer(mesh, 0);
+					else SpriteArray.setLayer(mesh, 7);
 					}
 				if (Math.random() >= 0.9) {
-					mesh.setMaterial(material3);
+					SpriteArray.setLayer(mesh, 2);
 					part.maxy = point.y + 0.5f;
 					part.miny = point.y - 0.2f;
 				}
@@ -267,9 +265,9 @@ public class CloudSystem extends ParticleSystem
 				part.maxy = 0.0f*scale;
 				part.miny = -0.1f*scale;
 				
-				if (Math.random() > 0.5) mesh.setMaterial(material6);
-				else if (Math.random() > 0.5) mesh.setMaterial(material7);
-				else mesh.setMaterial(material2);
+				if (Math.random() > 0.5) SpriteArray.setLayer(mesh, 5);
+				else if (Math.random() > 0.5) SpriteArray.setLayer(mesh, 6);
+				else SpriteArray.setLayer(mesh, 1);
 			}
 			
 			part.getMeshes().set(0, mesh);
@@ -418,51 +416,16 @@ public class CloudSystem extends ParticleSystem
 	public void dissapate() {
 		xlimit = maxPoint.x + 1.0f;
 		material.setLimis(xlimit);
-		material2.setLimis(xlimit);
-		material3.setLimis(xlimit);
-		material5.setLimis(xlimit);
-		material6.setLimis(xlimit);
-		material7.setLimis(xlimit);
-		material8.setLimis(xlimit);
 	}
 	
 	public void materialStarts() {
 		material.setPosition(start);
-		material2.setPosition(start);
-		material3.setPosition(start);
-		material5.setPosition(start);
-		material6.setPosition(start);
-		material7.setPosition(start);
-		material8.setPosition(start);
 	}
 	public void materialMax() {
 		material.setMax(maxPoint);
-		material2.setMax(maxPoint);
-		material3.setMax(maxPoint);
-		material5.setMax(maxPoint);
-		material6.setMax(maxPoint);
-		material7.setMax(maxPoint);
-		material8.setMax(maxPoint);
 	}
 	
-	public void materialTex(Texture2D[] list) {
-		clearmaterial.setTexture(list[13]);
-		
-		material.setTexture(list[0]);
-		material2.setTexture(list[1]);
-		material3.setTexture(list[2]);
-		material5.setTexture(list[4]);
-		material6.setTexture(list[5]);
-		material7.setTexture(list[6]);
-		material8.setTexture(list[7]);
-	}
 	public void materialIDs(int id) {
-		material7.setID(id);
-		material8.setID(id);
-		material6.setID(id);
-		material5.setID(id);
-		material3.setID(id);
-		material2.setID(id);
 		material.setID(id);
 	}
 	
@@ -496,7 +459,7 @@ public class CloudSystem extends ParticleSystem
 		if ((biomeID == 2 || biomeID == 4) && particle.getChildren().size() == 0) {
 			PrecipitationSystem system = new PrecipitationSystem();;
 			try {
-				system = new PrecipitationSystem(5, textures, biomeID);
+				system = new PrecipitationSystem(5, sprites, biomeID);
 			} catch (IOException e1) {
 				// TODO Auto-generated catch block
 				e1.printStackTrace();
@@ -526,16 +489,13 @@ public class CloudSystem extends ParticleSystem
 			light.setColor(lightColor);
 			
 			Lightning lightning = new Lightning();
-			LightningMaterial lightningMaterial = new LightningMaterial(textures[9]);
-			lightn += 1;
-			if (lightn > 1)  lightningMaterial = new LightningMaterial(textures[10]);
-			if (lightn > 2)  {
-				lightningMaterial = new LightningMaterial(textures[11]);
-				lightn = 0;
-			}
+			/* Cycle through the three lightning sprites. */
+			LightningMaterial lightningMaterial = new LightningMaterial();
+			lightningMaterial.setSprite(sprites, LIGHTNING_LAYER + lightn);
+			lightn = (lightn + 1) % 3;
 			lightningMaterial.disable();
 			
-			List<Geometry> g = Particle.load("models/plane2.obj", true, true);
+			List<Geometry> g = AssetManager.acquireGeometry("models/plane2.obj", true, true);
 			List<Mesh> m = g.get(0).getMeshes();
 			
 			Quadmesh me = (Quadmesh) m.get(0);
@@ -18,8 +18,9 @@ import javax.vecmath.Vector3f;
 import com.jogamp.common.nio.Buffers;
 
 import cs5625.deferred.materials.ParticleMaterial;
+import cs5625.deferred.materials.SpriteArray;
 import cs5625.deferred.materials.Texture;
-import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.ScenegraphException;
 import cs5625.deferred.procedural.PerlinNoiseGenerator;
@@ -55,6 +56,9 @@ public class LightningSystem extends ParticleSystem
 	/* Particle things for memory allocation shenanigans */  
 	private ParticleMaterial material = new ParticleMaterial();
 
+	/* Layer of the renderer's sprite array holding the particle image. */
+	private static final int CLOUD_LAYER = 0;
+	
 	private ArrayList<Particle> toBeAdded = new ArrayList<Particle>();
 	
     private Point3f start = new Point3f(0.0f, .5f, 0.0f);
@@ -62,7 +66,6 @@ public class LightningSystem extends ParticleSystem
     private int partCount;
     
     //Biome info and textures
-    private Texture2D[] textures;
     private int biomeID = 0; 
     //0 = cumulus - textures 1, 4, 8 - use 2 and 3 for thickening, rest to disperse
     //1 = stratus - textures 2, 5, 6, 7
@@ -85,17 +88,16 @@ public class LightningSystem extends ParticleSystem
 	 *        of this particular system.
 	 * @throws IOException 
 	 */
-	public LightningSystem(int maxParticles, Texture2D[] list, int id) throws IOException
+	public LightningSystem(int maxParticles, SpriteArray sprites, int id) throws IOException
 	{
 		// TODO initialize particle pool with shared geometry and texture data\
 
 		//CHANGES HERE LOOK
-		textures = list;
 		number = maxParticles;
 		transformPointToWorldSpace(start);
 		System.out.println("getting texture for particle");
 		biomeID = id;
-		material.setTexture(list[0]);
+		material.setSprite(sprites, CLOUD_LAYER);
 	
 
 		
@@ -107,7 +109,7 @@ public class LightningSystem extends ParticleSystem
 			transformPointToWorldSpace(point);
 			particle.setPosition(point);
 	
-			List<Geometry> geom = Particle.load("models/plane.obj", true, true);
+			List<Geometry> geom = AssetManager.acquireGeometry("models/plane.obj", true, true);
 			List<Mesh> meshes = geom.get(0).getMeshes();
 			
 			Quadmesh mesh = (Quadmesh) meshes.get(0);
@@ -1,44 +1,131 @@
 package cs5625.deferred.scenegraph;
 
+import java.nio.Buffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.media.opengl.GL2;
 
+import com.jogamp.common.nio.Buffers;
+
 import cs5625.deferred.materials.BlinnPhongMaterial;
 import cs5625.deferred.materials.Material;
+import cs5625.deferred.misc.AssetManager;
+import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.OpenGLResourceObject;
+import cs5625.deferred.rendering.BufferObject;
 
 /**
  * Mesh.java
  * 
  * The Mesh abstract class represents a mesh of n-gons, where n is specified by the subclass.
  * 
+ * Each data buffer is mirrored in an OpenGL buffer object, uploaded the first time the mesh is
+ * drawn and afterwards only when it changes. Replacing a buffer with one of the setters marks it 
+ * as changed automatically; code which modifies a buffer's contents in place must call 
+ * `markDirty()` (or `markAttribDataDirty()`) with the modified range before the next draw.
+ * 
+ * Optionally (see `setUsePackedVertexData()`), vertex data is instead kept on the GPU in a single 
+ * interleaved, compressed buffer built by `PackedVertexData`. The client-side buffers are unchanged.
+ * 
+ * Several meshes can share one set of data and GPU buffers while having their own names and materials; 
+ * see `createInstance()`. The GPU buffers are reference counted, and released along with the last 
+ * instance using them.
+ * 
  * Written for Cornell CS 5625 (Interactive Computer Graphics).
  * Copyright (c) 2012, Computer Science Department, Cornell University.
  * 
  * @author Asher Dunn (ad488)
  * @date 2012-04-06
  */
-public abstract class Mesh implements OpenGLResourceObject
+public abstract class Mesh implements OpenGLResourceObject, Cloneable
 {
-	/* Material and name of this mesh. */
-	private Material mMaterial = new BlinnPhongMaterial();
+	/* Material and name of this mesh. The material may be shared with other meshes, so this mesh 
+	 * counts as one of its users until `releaseGPUResources()`; see `Material.addUser()`. */
+	private Material mMaterial = null;
+	private boolean mUsesMaterial = false;
 	private String mName = "";
 	
-	/* Buffers to hold vertex and polygon index data. Buffer formats are 
-	 * described in the comments for the getter and setter methods, 
-	 * farther down the file. */
-	protected FloatBuffer mVertexData, mNormalData, mTexCoordData;
-	protected IntBuffer mPolygonData, mEdgeData;
+	/* Data shared with other instances of this mesh; see `createInstance()`. */
+	private SharedData mShared = new SharedData();
+	
+	/* True while this instance counts as a user of the shared GPU buffers, i.e. between uploading 
+	 * them and `releaseGPUResources()`. */
+	private boolean mHoldsGPUBuffers = false;
 	
 	/**
 	 * Map of generic vertex attribute name -> generic vertex attribute buffer. The number of elements in 
 	 * each buffer must match the number of vertices; each buffer's dimensionality (float, vec2, vec3, vec4) 
-	 * will be inferred based on its size.
+	 * will be inferred based on its size. Shared by all instances of this mesh.
+	 */
+	public HashMap<String, FloatBuffer> vertexAttribData = mShared.mVertexAttribData;
+	
+	/* Generic vertex attributes with one value for the whole of this instance, padded to 4 components; 
+	 * see `setInstanceAttrib()`. Not shared with other instances. */
+	private HashMap<String, float[]> mInstanceAttribs = new HashMap<String, float[]>();
+	
+	/** Stream identifiers for `markDirty()` and `getBufferHandle()`. */
+	public static final int VERTEX_STREAM = 0;
+	public static final int NORMAL_STREAM = 1;
+	public static final int TEXCOORD_STREAM = 2;
+	public static final int POLYGON_STREAM = 3;
+	public static final int EDGE_STREAM = 4;
+	
+	/* Dequantization transform for meshes which aren't packed. */
+	private static final float IDENTITY_SCALE[] = new float[] { 1.0f, 1.0f, 1.0f };
+	private static final float ZERO_BIAS[] = new float[] { 0.0f, 0.0f, 0.0f };
+	
+	/**
+	 * Creates an empty mesh with a default material.
+	 */
+	public Mesh()
+	{
+		setMaterial(new BlinnPhongMaterial());
+	}
+	
+	/**
+	 * Everything about a mesh except its name and material: the client-side data buffers and their 
+	 * GPU copies. Instances created with `createInstance()` share one of these.
 	 */
-	public HashMap<String, FloatBuffer> vertexAttribData = new HashMap<String, FloatBuffer>();
+	private static class SharedData
+	{
+		/* Buffers to hold vertex and polygon index data. Buffer formats are 
+		 * described in the comments for the getter and setter methods, 
+		 * farther down the file. */
+		private FloatBuffer mVertexData, mNormalData, mTexCoordData;
+		private IntBuffer mPolygonData, mEdgeData;
+		private HashMap<String, FloatBuffer> mVertexAttribData = new HashMap<String, FloatBuffer>();
+		
+		/* GPU copies of the streams above, and of the generic vertex attributes. The client buffer each 
+		 * attribute was last uploaded from is remembered, so a replaced buffer is noticed. */
+		private BufferObject mStreamBuffers[] = new BufferObject[] {
+			new BufferObject(GL2.GL_ARRAY_BUFFER),
+			new BufferObject(GL2.GL_ARRAY_BUFFER),
+			new BufferObject(GL2.GL_ARRAY_BUFFER),
+			new BufferObject(GL2.GL_ELEMENT_ARRAY_BUFFER),
+			new BufferObject(GL2.GL_ELEMENT_ARRAY_BUFFER)
+		};
+		private HashMap<String, BufferObject> mAttribBuffers = new HashMap<String, BufferObject>();
+		private HashMap<String, FloatBuffer> mUploadedAttribData = new HashMap<String, FloatBuffer>();
+		
+		/* Interleaved, compressed copy of the vertex data, used instead of the separate vertex, normal, 
+		 * texcoord, and attribute buffers on the GPU when enabled. */
+		private boolean mUsePackedVertexData = false;
+		private boolean mQuantizePositions = false;
+		private PackedVertexData mPackedData;
+		private BufferObject mPackedBuffer = new BufferObject(GL2.GL_ARRAY_BUFFER);
+		
+		/* Polygons split into triangles, for drawing quads where there is no quad primitive. Created on demand. */
+		private IntBuffer mTriangleData;
+		private BufferObject mTriangleBuffer;
+		
+		/* Number of instances holding the GPU buffers; they are released when this drops to 0. */
+		private int mGPUUsers = 0;
+	}
 	
 	/**
 	 * Implemented by subclasses to specify how many vertices per polygon this type of mesh has.
@@ -81,10 +168,20 @@ public abstract class Mesh implements OpenGLResourceObject
 
 	/**
 	 * Sets the material used to render this mesh. Must not be null.
+	 * 
+	 * The previous material is no longer counted as used by this mesh, but isn't released here, since 
+	 * other meshes may still be using it.
 	 */
 	public void setMaterial(Material mat)
 	{
+		if (mUsesMaterial)
+		{
+			mMaterial.removeUser();
+		}
+		
 		mMaterial = mat;
+		mMaterial.addUser();
+		mUsesMaterial = true;
 	}
 	
 	/**
@@ -94,13 +191,13 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public int getVertexCount()
 	{
-		if (mVertexData == null)
+		if (mShared.mVertexData == null)
 		{
 			return 0;
 		}
 		else
 		{
-			return mVertexData.capacity() / 3;
+			return mShared.mVertexData.capacity() / 3;
 		}
 	}
 	
@@ -110,7 +207,7 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public FloatBuffer getVertexData()
 	{
-		return mVertexData;
+		return mShared.mVertexData;
 	}
 
 	/**
@@ -119,7 +216,8 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public void setVertexData(FloatBuffer vertices)
 	{
-		mVertexData = vertices;
+		mShared.mVertexData = vertices;
+		mShared.mStreamBuffers[VERTEX_STREAM].markDirty();
 	}
 
 	/**
@@ -128,7 +226,7 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public FloatBuffer getNormalData()
 	{
-		return mNormalData;
+		return mShared.mNormalData;
 	}
 
 	/**
@@ -137,7 +235,8 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public void setNormalData(FloatBuffer normals)
 	{
-		mNormalData = normals;
+		mShared.mNormalData = normals;
+		mShared.mStreamBuffers[NORMAL_STREAM].markDirty();
 	}
 
 	/**
@@ -146,7 +245,7 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public FloatBuffer getTexCoordData()
 	{
-		return mTexCoordData;
+		return mShared.mTexCoordData;
 	}
 	
 	/**
@@ -155,7 +254,8 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public void setTexCoordData(FloatBuffer texcoords)
 	{
-		mTexCoordData = texcoords;
+		mShared.mTexCoordData = texcoords;
+		mShared.mStreamBuffers[TEXCOORD_STREAM].markDirty();
 	}
 
 	/**
@@ -166,13 +266,13 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public int getPolygonCount()
 	{
-		if (mPolygonData == null)
+		if (mShared.mPolygonData == null)
 		{
 			return 0;
 		}
 		else
 		{
-			return mPolygonData.capacity() / getVerticesPerPolygon();
+			return mShared.mPolygonData.capacity() / getVerticesPerPolygon();
 		}
 	}
 	
@@ -183,7 +283,7 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public IntBuffer getPolygonData()
 	{
-		return mPolygonData;
+		return mShared.mPolygonData;
 	}
 	
 	/**
@@ -192,7 +292,9 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public void setPolygonData(IntBuffer polys)
 	{
-		mPolygonData = polys;
+		mShared.mPolygonData = polys;
+		mShared.mStreamBuffers[POLYGON_STREAM].markDirty();
+		mShared.mTriangleData = null;
 	}
 
 	/**
@@ -202,7 +304,7 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public IntBuffer getEdgeData()
 	{
-		return mEdgeData;
+		return mShared.mEdgeData;
 	}
 	
 	/**
@@ -211,14 +313,502 @@ public abstract class Mesh implements OpenGLResourceObject
 	 */
 	public void setEdgeData(IntBuffer edges)
 	{
-		mEdgeData = edges;
+		mShared.mEdgeData = edges;
+		mShared.mStreamBuffers[EDGE_STREAM].markDirty();
+	}
+	
+	/**
+	 * Marks the whole of one of the mesh's data buffers as modified, so it is re-uploaded before the next draw.
+	 * 
+	 * @param stream One of `VERTEX_STREAM`, `NORMAL_STREAM`, `TEXCOORD_STREAM`, `POLYGON_STREAM`, or `EDGE_STREAM`.
+	 */
+	public void markDirty(int stream)
+	{
+		mShared.mStreamBuffers[stream].markDirty();
+		
+		if (stream == POLYGON_STREAM)
+		{
+			mShared.mTriangleData = null;
+		}
+	}
+	
+	/**
+	 * Marks part of one of the mesh's data buffers as modified. Only the modified range is re-uploaded.
+	 * 
+	 * @param stream One of `VERTEX_STREAM`, `NORMAL_STREAM`, `TEXCOORD_STREAM`, `POLYGON_STREAM`, or `EDGE_STREAM`.
+	 * @param first Index of the first modified float or int (not vertex or polygon) in the buffer.
+	 * @param count Number of modified floats or ints.
+	 */
+	public void markDirty(int stream, int first, int count)
+	{
+		mShared.mStreamBuffers[stream].markDirty(first, count);
+		
+		if (stream == POLYGON_STREAM)
+		{
+			mShared.mTriangleData = null;
+		}
+	}
+	
+	/**
+	 * Gives a generic vertex attribute the same value at every vertex of this mesh, without a buffer. 
+	 * Unlike `vertexAttribData`, the value belongs to this instance alone, so instances sharing their 
+	 * data (see `createInstance()`) can still differ in it, e.g. in which sprite they show. It takes 
+	 * precedence over a buffer of the same name.
+	 * 
+	 * @param name The attribute name, as in the shader.
+	 * @param value 1 to 4 components; missing components default to (0, 0, 0, 1) as in OpenGL.
+	 */
+	public void setInstanceAttrib(String name, float... value)
+	{
+		float padded[] = new float[] { 0.0f, 0.0f, 0.0f, 1.0f };
+		System.arraycopy(value, 0, padded, 0, Math.min(value.length, 4));
+		mInstanceAttribs.put(name, padded);
+	}
+	
+	/**
+	 * Returns the 4-component value of a per-instance attribute set with `setInstanceAttrib()`, or null 
+	 * if this instance doesn't have one.
+	 */
+	public float[] getInstanceAttrib(String name)
+	{
+		return mInstanceAttribs.get(name);
+	}
+	
+	/**
+	 * If this instance has a value for the named attribute (see `setInstanceAttrib()`), disables the 
+	 * attribute array at `location` and sets its current value instead, which the shader then reads at 
+	 * every vertex.
+	 * 
+	 * @return True if the attribute was set, false if it should come from `vertexAttribData`.
+	 */
+	public boolean bindInstanceAttrib(GL2 gl, String name, int location)
+	{
+		float value[] = mInstanceAttribs.get(name);
+		
+		if (value == null)
+		{
+			return false;
+		}
+		
+		gl.glDisableVertexAttribArray(location);
+		gl.glVertexAttrib4fv(location, value, 0);
+		return true;
+	}
+	
+	/**
+	 * Marks the whole of a generic vertex attribute buffer as modified.
+	 */
+	public void markAttribDataDirty(String name)
+	{
+		BufferObject buffer = mShared.mAttribBuffers.get(name);
+		if (buffer != null)
+		{
+			buffer.markDirty();
+		}
+	}
+	
+	/**
+	 * Marks part of a generic vertex attribute buffer as modified.
+	 * 
+	 * @param first Index of the first modified float in the buffer.
+	 * @param count Number of modified floats.
+	 */
+	public void markAttribDataDirty(String name, int first, int count)
+	{
+		BufferObject buffer = mShared.mAttribBuffers.get(name);
+		if (buffer != null)
+		{
+			buffer.markDirty(first, count);
+		}
+	}
+	
+	/**
+	 * Sets whether this mesh's vertex data is stored on the GPU in the interleaved, compressed 
+	 * format of `PackedVertexData`, which is typically 2-3 times smaller than separate float buffers.
+	 * The packed data is rebuilt whenever any vertex stream or attribute is marked dirty, so this 
+	 * is best suited to meshes which rarely change.
+	 * 
+	 * @param usePacked True to use the packed format.
+	 * @param quantizePositions If true, positions are stored as 16-bit integers relative to the 
+	 *        mesh's bounding box, rather than as floats. Ignored if `usePacked` is false.
+	 */
+	public void setUsePackedVertexData(boolean usePacked, boolean quantizePositions)
+	{
+		if (usePacked != mShared.mUsePackedVertexData)
+		{
+			/* Switching format means uploading everything again in the new one. */
+			mShared.mStreamBuffers[VERTEX_STREAM].markDirty();
+			mShared.mStreamBuffers[NORMAL_STREAM].markDirty();
+			mShared.mStreamBuffers[TEXCOORD_STREAM].markDirty();
+			
+			for (BufferObject buffer : mShared.mAttribBuffers.values())
+			{
+				buffer.markDirty();
+			}
+		}
+		
+		mShared.mUsePackedVertexData = usePacked;
+		mShared.mQuantizePositions = quantizePositions;
+		mShared.mPackedData = null;
+	}
+	
+	/**
+	 * Returns true if this mesh stores its vertex data in the packed format.
+	 */
+	public boolean getUsePackedVertexData()
+	{
+		return mShared.mUsePackedVertexData;
+	}
+	
+	/**
+	 * Returns the packed vertex data and its layout, or null if the mesh isn't using the packed 
+	 * format. Valid after `updateGPUBuffers()`.
+	 */
+	public PackedVertexData getPackedVertexData()
+	{
+		return (mShared.mUsePackedVertexData ? mShared.mPackedData : null);
+	}
+	
+	/**
+	 * Returns the OpenGL buffer holding the packed vertex data, or -1 if there is none.
+	 * Valid after `updateGPUBuffers()`.
+	 */
+	public int getPackedBufferHandle()
+	{
+		return mShared.mPackedBuffer.getHandle();
+	}
+	
+	/**
+	 * Returns the per-axis scale which shaders apply to stored positions to get object-space 
+	 * positions; (1, 1, 1) unless positions are quantized.
+	 */
+	public float[] getPositionScale()
+	{
+		return (getPackedVertexData() == null ? IDENTITY_SCALE : mShared.mPackedData.getPositionScale());
+	}
+	
+	/**
+	 * Returns the per-axis offset which shaders add to scaled stored positions to get object-space 
+	 * positions; (0, 0, 0) unless positions are quantized.
+	 */
+	public float[] getPositionBias()
+	{
+		return (getPackedVertexData() == null ? ZERO_BIAS : mShared.mPackedData.getPositionBias());
+	}
+	
+	/**
+	 * Uploads every data buffer which has changed since the last call (or all of them, the first 
+	 * time) to its OpenGL buffer object. Cheap if nothing has changed, so the renderer calls it before 
+	 * every draw.
+	 */
+	public void updateGPUBuffers(GL2 gl) throws OpenGLException
+	{
+		if (!mHoldsGPUBuffers)
+		{
+			mHoldsGPUBuffers = true;
+			++mShared.mGPUUsers;
+		}
+		
+		/* Notice attributes which were added to or replaced in the map. */
+		for (Map.Entry<String, FloatBuffer> entry : vertexAttribData.entrySet())
+		{
+			BufferObject buffer = mShared.mAttribBuffers.get(entry.getKey());
+			
+			if (buffer == null)
+			{
+				buffer = new BufferObject(GL2.GL_ARRAY_BUFFER);
+				mShared.mAttribBuffers.put(entry.getKey(), buffer);
+			}
+			
+			if (entry.getValue() != mShared.mUploadedAttribData.get(entry.getKey()))
+			{
+				buffer.markDirty();
+				mShared.mUploadedAttribData.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		if (mShared.mUsePackedVertexData)
+		{
+			updatePackedBuffer(gl);
+		}
+		else
+		{
+			if (mShared.mPackedBuffer.getHandle() >= 0)
+			{
+				mShared.mPackedBuffer.releaseGPUResources(gl);
+			}
+			
+			updateStream(gl, VERTEX_STREAM, mShared.mVertexData);
+			updateStream(gl, NORMAL_STREAM, mShared.mNormalData);
+			updateStream(gl, TEXCOORD_STREAM, mShared.mTexCoordData);
+			
+			for (Map.Entry<String, FloatBuffer> entry : vertexAttribData.entrySet())
+			{
+				BufferObject buffer = mShared.mAttribBuffers.get(entry.getKey());
+				
+				if (entry.getValue() != null && buffer.isDirty())
+				{
+					buffer.update(gl, entry.getValue());
+					buffer.unbind(gl);
+				}
+			}
+		}
+		
+		updateStream(gl, POLYGON_STREAM, mShared.mPolygonData);
+		updateStream(gl, EDGE_STREAM, mShared.mEdgeData);
+		
+		Iterator<Map.Entry<String, BufferObject>> it = mShared.mAttribBuffers.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<String, BufferObject> entry = it.next();
+			
+			if (!vertexAttribData.containsKey(entry.getKey()))
+			{
+				entry.getValue().releaseGPUResources(gl);
+				mShared.mUploadedAttribData.remove(entry.getKey());
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Repacks and uploads the vertex data if any of its sources changed, and releases the separate 
+	 * per-stream buffers, which aren't needed while packed.
+	 */
+	private void updatePackedBuffer(GL2 gl) throws OpenGLException
+	{
+		ArrayList<BufferObject> sources = new ArrayList<BufferObject>(mShared.mAttribBuffers.values());
+		sources.add(mShared.mStreamBuffers[VERTEX_STREAM]);
+		sources.add(mShared.mStreamBuffers[NORMAL_STREAM]);
+		sources.add(mShared.mStreamBuffers[TEXCOORD_STREAM]);
+		
+		boolean changed = (mShared.mPackedData == null);
+		for (BufferObject source : sources)
+		{
+			changed |= source.isDirty();
+		}
+		
+		if (changed && mShared.mVertexData != null)
+		{
+			mShared.mPackedData = PackedVertexData.pack(this, mShared.mQuantizePositions);
+			mShared.mPackedBuffer.markDirty();
+			mShared.mPackedBuffer.update(gl, mShared.mPackedData.getData());
+			mShared.mPackedBuffer.unbind(gl);
+			
+			for (BufferObject source : sources)
+			{
+				if (source.getHandle() >= 0)
+				{
+					source.releaseGPUResources(gl);
+				}
+				source.markClean();
+			}
+		}
+	}
+	
+	/**
+	 * Uploads one stream if it has data and has changed.
+	 */
+	private void updateStream(GL2 gl, int stream, Buffer data) throws OpenGLException
+	{
+		BufferObject buffer = mShared.mStreamBuffers[stream];
+		
+		if (data != null && buffer.isDirty())
+		{
+			buffer.update(gl, data);
+			buffer.unbind(gl);
+		}
+	}
+	
+	/**
+	 * Returns the OpenGL buffer holding one of the mesh's data buffers, or -1 if the mesh has no such data.
+	 * Valid after `updateGPUBuffers()`.
+	 * 
+	 * @param stream One of `VERTEX_STREAM`, `NORMAL_STREAM`, `TEXCOORD_STREAM`, `POLYGON_STREAM`, or `EDGE_STREAM`.
+	 */
+	public int getBufferHandle(int stream)
+	{
+		return mShared.mStreamBuffers[stream].getHandle();
+	}
+	
+	/**
+	 * Returns the OpenGL buffer holding the named generic vertex attribute, or -1 if there is none.
+	 * Valid after `updateGPUBuffers()`.
+	 */
+	public int getAttribBufferHandle(String name)
+	{
+		BufferObject buffer = mShared.mAttribBuffers.get(name);
+		return (buffer == null ? -1 : buffer.getHandle());
+	}
+	
+	/**
+	 * Returns the OpenGL index buffer to draw this mesh as triangles, lines, or points: the polygon 
+	 * buffer itself, except for quad meshes, whose quads are split into two triangles each. Call after
+	 * `updateGPUBuffers()`.
+	 */
+	public int getTriangleBufferHandle(GL2 gl) throws OpenGLException
+	{
+		if (getVerticesPerPolygon() != 4)
+		{
+			return getBufferHandle(POLYGON_STREAM);
+		}
+		
+		if (mShared.mTriangleData == null)
+		{
+			int quadCount = getPolygonCount();
+			mShared.mTriangleData = Buffers.newDirectIntBuffer(quadCount * 6);
+			
+			for (int q = 0; q < quadCount; ++q)
+			{
+				int a = mShared.mPolygonData.get(4 * q + 0);
+				int b = mShared.mPolygonData.get(4 * q + 1);
+				int c = mShared.mPolygonData.get(4 * q + 2);
+				int d = mShared.mPolygonData.get(4 * q + 3);
+				
+				mShared.mTriangleData.put(a).put(b).put(c);
+				mShared.mTriangleData.put(a).put(c).put(d);
+			}
+			
+			mShared.mTriangleData.rewind();
+			
+			if (mShared.mTriangleBuffer == null)
+			{
+				mShared.mTriangleBuffer = new BufferObject(GL2.GL_ELEMENT_ARRAY_BUFFER);
+			}
+			mShared.mTriangleBuffer.markDirty();
+		}
+		
+		if (mShared.mTriangleBuffer.isDirty())
+		{
+			mShared.mTriangleBuffer.update(gl, mShared.mTriangleData);
+			mShared.mTriangleBuffer.unbind(gl);
+		}
+		
+		return mShared.mTriangleBuffer.getHandle();
+	}
+	
+	/**
+	 * Returns the number of indices in the buffer returned by `getTriangleBufferHandle()`.
+	 */
+	public int getTriangleIndexCount()
+	{
+		if (getVerticesPerPolygon() == 4)
+		{
+			return 6 * getPolygonCount();
+		}
+		else
+		{
+			return getVerticesPerPolygon() * getPolygonCount();
+		}
+	}
+	
+	/**
+	 * Creates a new instance of this mesh, which shares its data buffers (including `vertexAttribData`)
+	 * and their GPU copies, but has its own name, material, and per-instance attributes (see 
+	 * `setInstanceAttrib()`), initially the same as this mesh's. The material is then shared too, and 
+	 * released along with the last mesh using it.
+	 * 
+	 * Data changed through any instance changes for all of them, so shared meshes, such as those handed
+	 * out by `AssetManager`, should be treated as read-only.
+	 */
+	public Mesh createInstance()
+	{
+		Mesh instance;
+		
+		try
+		{
+			instance = (Mesh)clone();
+		}
+		catch (CloneNotSupportedException err)
+		{
+			/* Can't happen, since Mesh is Cloneable. */
+			throw new RuntimeException(err);
+		}
+		
+		instance.mHoldsGPUBuffers = false;
+		instance.mUsesMaterial = false;
+		instance.setMaterial(mMaterial);
+		instance.mInstanceAttribs = new HashMap<String, float[]>(mInstanceAttribs);
+		return instance;
+	}
+	
+	/**
+	 * Returns the number of instances of this mesh (see `createInstance()`) which have uploaded the 
+	 * shared GPU buffers and not yet released them.
+	 */
+	public int getGPUUserCount()
+	{
+		return mShared.mGPUUsers;
+	}
+	
+	/**
+	 * Returns true if this mesh and the given one are instances of the same mesh (see `createInstance()`).
+	 */
+	public boolean sharesDataWith(Mesh other)
+	{
+		return (mShared == other.mShared);
 	}
 	
 	/** 
-	 * Releases OpenGL resources owned by this mesh or its material.
+	 * Releases OpenGL resources owned by this mesh or its material. Buffers shared with other instances
+	 * of the mesh, and a material shared with other meshes, are only released once no mesh is using them.
+	 * Releasing the last instance holding the buffers lets `AssetManager` forget the model it came from.
 	 */
 	public void releaseGPUResources(GL2 gl)
 	{
-		mMaterial.releaseGPUResources(gl);
+		boolean lastUser = false;
+		
+		if (mHoldsGPUBuffers)
+		{
+			mHoldsGPUBuffers = false;
+			--mShared.mGPUUsers;
+			lastUser = (mShared.mGPUUsers == 0);
+		}
+		
+		if (mShared.mGPUUsers == 0)
+		{
+			releaseSharedGPUResources(gl);
+		}
+		
+		if (mUsesMaterial)
+		{
+			mUsesMaterial = false;
+			
+			if (mMaterial.removeUser())
+			{
+				mMaterial.releaseGPUResources(gl);
+			}
+		}
+		
+		if (lastUser)
+		{
+			AssetManager.meshReleased(gl, this);
+		}
+	}
+	
+	/**
+	 * Releases the GPU copies of the shared data.
+	 */
+	private void releaseSharedGPUResources(GL2 gl)
+	{
+		for (BufferObject buffer : mShared.mStreamBuffers)
+		{
+			buffer.releaseGPUResources(gl);
+		}
+		
+		for (BufferObject buffer : mShared.mAttribBuffers.values())
+		{
+			buffer.releaseGPUResources(gl);
+		}
+		mShared.mAttribBuffers.clear();
+		mShared.mUploadedAttribData.clear();
+		
+		if (mShared.mTriangleBuffer != null)
+		{
+			mShared.mTriangleBuffer.releaseGPUResources(gl);
+		}
+		
+		mShared.mPackedBuffer.releaseGPUResources(gl);
+		mShared.mPackedData = null;
 	}
 }
@@ -0,0 +1,568 @@
+package cs5625.deferred.scenegraph;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs5625.deferred.materials.BlinnPhongMaterial;
+import cs5625.deferred.materials.Material;
+
+/**
+ * MeshCache.java
+ *
+ * Binary cache of loaded model files, used by `Geometry.load()` so that each .obj file is only
+ * parsed once. The first load of a model writes the resulting objects to a cache file named after
+ * the SHA-1 hash of the model file's contents; later loads of the same contents memory-map that file
+ * and hand slices of it to the meshes as their vertex, normal, texcoord, attribute, polygon, and edge
+ * buffers, so nothing is parsed or copied on the CPU.
+ *
+ * The cache file holds, in native byte order and with every block 4-byte aligned:
+ *
+ *  - A header: magic number, version, number of objects, and the material libraries (.mtl
+ *    identifiers) referenced by the model, which are re-read with `Material.load()` if requested.
+ *  - For each object: its name, position, orientation, scale, and number of meshes.
+ *  - For each mesh: its name (which is also its material name), vertices per polygon, element
+ *    counts, and names and sizes of its generic attributes (e.g. tangents), followed by the data
+ *    blocks themselves.
+ *
+ * Files are mapped copy-on-write, so meshes may still modify their buffers in place without
+ * touching the cache. Unreadable or outdated cache files are ignored and rewritten.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+class MeshCache
+{
+	/* File identification; the magic number also detects files written with the other byte order. */
+	private static final int MAGIC = 0x434d5343;
+	private static final int VERSION = 1;
+	
+	/* Directory holding the cache files, or null if caching is disabled. */
+	private static File sDirectory = new File(System.getProperty("java.io.tmpdir"), "cs5625-mesh-cache");
+	
+	/**
+	 * Sets the directory holding cache files (created when first needed), or disables caching if null.
+	 */
+	public static void setDirectory(File directory)
+	{
+		sDirectory = directory;
+	}
+	
+	/**
+	 * Returns the directory holding cache files, or null if caching is disabled.
+	 */
+	public static File getDirectory()
+	{
+		return sDirectory;
+	}
+	
+	/**
+	 * Loads models from a wavefront object file, through the cache if possible. Parameters and results
+	 * are as for `Geometry.load()`.
+	 */
+	public static List<Geometry> load(String identifier, boolean loadMaterials, boolean centerObjects) throws IOException
+	{
+		File cacheFile = null;
+		
+		if (sDirectory != null)
+		{
+			/* Centering changes the stored vertices and positions, so it's part of the key. */
+			cacheFile = new File(sDirectory, hashResource(identifier) + (centerObjects ? "-centered" : "") + ".mesh");
+			
+			if (cacheFile.isFile())
+			{
+				List<Geometry> cached = read(cacheFile, loadMaterials);
+				if (cached != null)
+				{
+					return cached;
+				}
+			}
+		}
+		
+		/* Cache miss: parse the model, and save it for next time. */
+		ArrayList<String> materialLibraries = new ArrayList<String>();
+		List<Geometry> result = OBJLoader.load(identifier, loadMaterials, centerObjects, materialLibraries);
+		
+		if (cacheFile != null)
+		{
+			try
+			{
+				write(cacheFile, result, materialLibraries);
+			}
+			catch (IOException err)
+			{
+				/* Caching is only an optimization; the model itself loaded fine. */
+				err.printStackTrace();
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Returns the hex SHA-1 hash of a resource's contents.
+	 */
+	private static String hashResource(String identifier) throws IOException
+	{
+		URL url = Geometry.class.getClassLoader().getResource(identifier);
+		if (url == null)
+		{
+			throw new IOException("Could not find model file '" + identifier + "'.");
+		}
+		
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException err)
+		{
+			throw new IOException("SHA-1 is not available to hash '" + identifier + "'.");
+		}
+		
+		InputStream stream = url.openStream();
+		try
+		{
+			byte chunk[] = new byte[65536];
+			int count;
+			
+			while ((count = stream.read(chunk)) > 0)
+			{
+				digest.update(chunk, 0, count);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		
+		return hex.toString();
+	}
+	
+	/**
+	 * Maps a cache file and builds Geometry objects on top of it.
+	 *
+	 * @return The objects, or null if the file is not a valid cache file of the current version.
+	 */
+	private static List<Geometry> read(File file, boolean loadMaterials) throws IOException
+	{
+		/* Copy-on-write mappings need a writable channel, though nothing is written back. */
+		ByteBuffer data;
+		RandomAccessFile stream = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			data = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size()).order(ByteOrder.nativeOrder());
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		ArrayList<Geometry> results = new ArrayList<Geometry>();
+		HashMap<String, Material> materials = new HashMap<String, Material>();
+		
+		try
+		{
+			if (data.getInt() != MAGIC || data.getInt() != VERSION)
+			{
+				return null;
+			}
+			
+			int objectCount = data.getInt();
+			int libraryCount = data.getInt();
+			
+			materials.put("", new BlinnPhongMaterial());
+			for (int i = 0; i < libraryCount; ++i)
+			{
+				String library = readString(data);
+				
+				if (loadMaterials)
+				{
+					materials.putAll(Material.load(library));
+				}
+			}
+			
+			for (int o = 0; o < objectCount; ++o)
+			{
+				Geometry object = new Geometry();
+				object.setName(readString(data));
+				object.getPosition().set(data.getFloat(), data.getFloat(), data.getFloat());
+				object.getOrientation().set(data.getFloat(), data.getFloat(), data.getFloat(), data.getFloat());
+				object.setScale(data.getFloat());
+				
+				int meshCount = data.getInt();
+				for (int m = 0; m < meshCount; ++m)
+				{
+					Mesh mesh = readMesh(data);
+					if (mesh == null)
+					{
+						return null;
+					}
+					
+					if (loadMaterials && materials.containsKey(mesh.getName()))
+					{
+						mesh.setMaterial(materials.get(mesh.getName()));
+					}
+					
+					object.addMesh(mesh);
+				}
+				
+				results.add(object);
+			}
+		}
+		catch (BufferUnderflowException err)
+		{
+			return null;
+		}
+		catch (IllegalArgumentException err)
+		{
+			/* A block runs past the end of the file. */
+			return null;
+		}
+		catch (NegativeArraySizeException err)
+		{
+			return null;
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Reads one mesh's description, and wraps its data blocks in buffers.
+	 * 
+	 * @return The mesh, or null if it is of an unsupported type.
+	 */
+	private static Mesh readMesh(ByteBuffer data) throws IOException
+	{
+		String name = readString(data);
+		int verticesPerPolygon = data.getInt();
+		int vertexCount = data.getInt();
+		int polygonIndexCount = data.getInt();
+		int edgeIndexCount = data.getInt();
+		boolean hasNormals = (data.getInt() != 0);
+		boolean hasTexCoords = (data.getInt() != 0);
+		int attribCount = data.getInt();
+		
+		String attribNames[] = new String[attribCount];
+		int attribComponents[] = new int[attribCount];
+		for (int a = 0; a < attribCount; ++a)
+		{
+			attribNames[a] = readString(data);
+			attribComponents[a] = data.getInt();
+		}
+		
+		Mesh mesh;
+		if (verticesPerPolygon == 4)
+		{
+			mesh = new Quadmesh();
+		}
+		else if (verticesPerPolygon == 3)
+		{
+			mesh = new Trimesh();
+		}
+		else
+		{
+			return null;
+		}
+		
+		mesh.setName(name);
+		mesh.setVertexData(sliceFloats(data, 3 * vertexCount));
+		
+		if (hasNormals)
+		{
+			mesh.setNormalData(sliceFloats(data, 3 * vertexCount));
+		}
+		
+		if (hasTexCoords)
+		{
+			mesh.setTexCoordData(sliceFloats(data, 2 * vertexCount));
+		}
+		
+		for (int a = 0; a < attribCount; ++a)
+		{
+			mesh.vertexAttribData.put(attribNames[a], sliceFloats(data, attribComponents[a] * vertexCount));
+		}
+		
+		mesh.setPolygonData(sliceInts(data, polygonIndexCount));
+		
+		if (edgeIndexCount >= 0)
+		{
+			mesh.setEdgeData(sliceInts(data, edgeIndexCount));
+		}
+		
+		return mesh;
+	}
+	
+	/**
+	 * Writes objects to a cache file. The file is written under a temporary name and then renamed,
+	 * so a partially written file is never read.
+	 */
+	private static void write(File file, List<Geometry> objects, List<String> materialLibraries) throws IOException
+	{
+		Writer out = new Writer();
+		
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putInt(objects.size());
+		out.putInt(materialLibraries.size());
+		
+		for (String library : materialLibraries)
+		{
+			out.putString(library);
+		}
+		
+		for (Geometry object : objects)
+		{
+			out.putString(object.getName());
+			out.putFloat(object.getPosition().x);
+			out.putFloat(object.getPosition().y);
+			out.putFloat(object.getPosition().z);
+			out.putFloat(object.getOrientation().x);
+			out.putFloat(object.getOrientation().y);
+			out.putFloat(object.getOrientation().z);
+			out.putFloat(object.getOrientation().w);
+			out.putFloat(object.getScale());
+			out.putInt(object.getMeshes().size());
+			
+			for (Mesh mesh : object.getMeshes())
+			{
+				writeMesh(out, mesh);
+			}
+		}
+		
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create mesh cache directory '" + directory + "'.");
+		}
+		
+		File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try
+		{
+			ByteBuffer bytes = out.getBytes();
+			FileChannel channel = stream.getChannel();
+			
+			while (bytes.hasRemaining())
+			{
+				channel.write(bytes);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		/* Another process may have written the same file meanwhile, which is fine. */
+		if (!temporary.renameTo(file))
+		{
+			file.delete();
+			if (!temporary.renameTo(file))
+			{
+				temporary.delete();
+				throw new IOException("Could not write mesh cache file '" + file + "'.");
+			}
+		}
+	}
+	
+	/**
+	 * Writes one mesh's description and data blocks.
+	 */
+	private static void writeMesh(Writer out, Mesh mesh)
+	{
+		out.putString(mesh.getName());
+		out.putInt(mesh.getVerticesPerPolygon());
+		out.putInt(mesh.getVertexCount());
+		out.putInt(mesh.getPolygonData().capacity());
+		out.putInt(mesh.getEdgeData() == null ? -1 : mesh.getEdgeData().capacity());
+		out.putInt(mesh.getNormalData() == null ? 0 : 1);
+		out.putInt(mesh.getTexCoordData() == null ? 0 : 1);
+		
+		ArrayList<Map.Entry<String, FloatBuffer>> attribs = new ArrayList<Map.Entry<String, FloatBuffer>>();
+		for (Map.Entry<String, FloatBuffer> entry : mesh.vertexAttribData.entrySet())
+		{
+			if (entry.getValue() != null)
+			{
+				attribs.add(entry);
+			}
+		}
+		
+		out.putInt(attribs.size());
+		for (Map.Entry<String, FloatBuffer> entry : attribs)
+		{
+			out.putString(entry.getKey());
+			out.putInt(entry.getValue().capacity() / mesh.getVertexCount());
+		}
+		
+		out.putFloats(mesh.getVertexData());
+		
+		if (mesh.getNormalData() != null)
+		{
+			out.putFloats(mesh.getNormalData());
+		}
+		
+		if (mesh.getTexCoordData() != null)
+		{
+			out.putFloats(mesh.getTexCoordData());
+		}
+		
+		for (Map.Entry<String, FloatBuffer> entry : attribs)
+		{
+			out.putFloats(entry.getValue());
+		}
+		
+		out.putInts(mesh.getPolygonData());
+		
+		if (mesh.getEdgeData() != null)
+		{
+			out.putInts(mesh.getEdgeData());
+		}
+	}
+	
+	/**
+	 * Returns the next `count` floats of `data` as a buffer sharing its memory, and moves past them.
+	 */
+	private static FloatBuffer sliceFloats(ByteBuffer data, int count)
+	{
+		ByteBuffer block = data.slice().order(ByteOrder.nativeOrder());
+		block.limit(4 * count);
+		data.position(data.position() + 4 * count);
+		return block.asFloatBuffer();
+	}
+	
+	/**
+	 * Returns the next `count` ints of `data` as a buffer sharing its memory, and moves past them.
+	 */
+	private static IntBuffer sliceInts(ByteBuffer data, int count)
+	{
+		ByteBuffer block = data.slice().order(ByteOrder.nativeOrder());
+		block.limit(4 * count);
+		data.position(data.position() + 4 * count);
+		return block.asIntBuffer();
+	}
+	
+	/**
+	 * Reads a length-prefixed UTF-8 string, padded to a multiple of 4 bytes.
+	 */
+	private static String readString(ByteBuffer data) throws UnsupportedEncodingException
+	{
+		byte bytes[] = new byte[data.getInt()];
+		data.get(bytes);
+		data.position(data.position() + padding(bytes.length));
+		return new String(bytes, "UTF-8");
+	}
+	
+	/**
+	 * Returns the number of bytes needed to pad `length` to a multiple of 4.
+	 */
+	private static int padding(int length)
+	{
+		return (4 - (length & 3)) & 3;
+	}
+	
+	/**
+	 * Growable native-order byte buffer for assembling a cache file.
+	 */
+	private static class Writer
+	{
+		private ByteBuffer mBuffer = ByteBuffer.allocate(65536).order(ByteOrder.nativeOrder());
+		
+		private void reserve(int bytes)
+		{
+			if (mBuffer.remaining() < bytes)
+			{
+				int capacity = mBuffer.capacity();
+				while (capacity - mBuffer.position() < bytes)
+				{
+					capacity *= 2;
+				}
+				
+				ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+				mBuffer.flip();
+				grown.put(mBuffer);
+				mBuffer = grown;
+			}
+		}
+		
+		public void putInt(int value)
+		{
+			reserve(4);
+			mBuffer.putInt(value);
+		}
+		
+		public void putFloat(float value)
+		{
+			reserve(4);
+			mBuffer.putFloat(value);
+		}
+		
+		public void putString(String value)
+		{
+			byte bytes[];
+			try
+			{
+				bytes = value.getBytes("UTF-8");
+			}
+			catch (UnsupportedEncodingException err)
+			{
+				/* Every JVM supports UTF-8. */
+				throw new RuntimeException(err);
+			}
+			
+			reserve(4 + bytes.length + 3);
+			mBuffer.putInt(bytes.length);
+			mBuffer.put(bytes);
+			mBuffer.position(mBuffer.position() + padding(bytes.length));
+		}
+		
+		public void putFloats(FloatBuffer values)
+		{
+			FloatBuffer source = values.duplicate();
+			source.clear();
+			
+			reserve(4 * source.capacity());
+			mBuffer.asFloatBuffer().put(source);
+			mBuffer.position(mBuffer.position() + 4 * source.capacity());
+		}
+		
+		public void putInts(IntBuffer values)
+		{
+			IntBuffer source = values.duplicate();
+			source.clear();
+			
+			reserve(4 * source.capacity());
+			mBuffer.asIntBuffer().put(source);
+			mBuffer.position(mBuffer.position() + 4 * source.capacity());
+		}
+		
+		public ByteBuffer getBytes()
+		{
+			ByteBuffer bytes = mBuffer.duplicate();
+			bytes.flip();
+			return bytes;
+		}
+	}
+}
@@ -20,8 +20,8 @@ import com.jogamp.common.nio.Buffers;
 
 import cs5625.deferred.materials.CloudMaterial;
 import cs5625.deferred.materials.ParticleMaterial;
+import cs5625.deferred.materials.SpriteArray;
 import cs5625.deferred.materials.Texture;
-import cs5625.deferred.materials.Texture2D;
 import cs5625.deferred.materials.UnshadedMaterial;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.ScenegraphException;
@@ -102,7 +102,7 @@ public class MultipleCloudSystems extends ParticleSystem
 	 *        of this particular system.
 	 * @throws IOException 
 	 */
-	public MultipleCloudSystems(int maxParticles, Texture2D[] list, int id, Point3f s) throws IOException
+	public MultipleCloudSystems(int maxParticles, SpriteArray sprites, int id, Point3f s) throws IOException
 	{
 		
 	}
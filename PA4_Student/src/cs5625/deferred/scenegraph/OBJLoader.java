@@ -0,0 +1,1013 @@
+package cs5625.deferred.scenegraph;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.materials.BlinnPhongMaterial;
+import cs5625.deferred.materials.Material;
+import cs5625.deferred.misc.Util;
+
+/**
+ * OBJLoader.java
+ *
+ * Fast loader for wavefront object (.obj) files, used by `Geometry.load()`. See that method for the
+ * supported subset of the format and how objects and materials map onto Geometry and Mesh objects.
+ *
+ * The file is memory-mapped when it lives on disk (and read into one buffer otherwise), and parsed
+ * in place: numbers are parsed straight from the bytes, and vertex data, faces, and edges are kept in
+ * flat primitive arrays rather than per-vertex objects. The {v, t, n} index triplets of each mesh are
+ * deduplicated with an open-addressing hash table, and edges are remapped through an index from
+ * position to final vertices, so loading time is linear in the size of the file.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+class OBJLoader
+{
+	/* Powers of ten which are exactly representable as doubles, for number parsing. */
+	private static final double POWERS_OF_TEN[] = new double[23];
+	static
+	{
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; ++i)
+		{
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+	
+	/* The model being loaded. */
+	private String mIdentifier;
+	private boolean mLoadMaterials;
+	private ByteBuffer mData;
+	private int mPosition;
+	
+	/* Raw data from the file. Index 0 of each attribute list is a dummy entry, so the 1-based
+	 * indexing of the OBJ format can be used directly, and omitted indices (0) get zeros. */
+	private FloatList mPositions = new FloatList();
+	private FloatList mNormals = new FloatList();
+	private FloatList mTexcoords = new FloatList();
+	
+	/* Polygons: {v, t, n} triplets of all polygons back to back, and the index of each polygon's
+	 * first triplet (plus a final entry marking the end). Edges are pairs of position indices. */
+	private IntList mPolygonTriplets = new IntList();
+	private IntList mPolygonStarts = new IntList();
+	private IntList mEdges = new IntList();
+	
+	/* Separations between objects and between meshes (materials), as polygon or edge counts. */
+	private IntList mObjectDelimeters = new IntList();
+	private ArrayList<String> mObjectNames = new ArrayList<String>();
+	private IntList mMeshDelimeters = new IntList();
+	private IntList mEdgeDelimeters = new IntList();
+	private ArrayList<String> mMeshMaterialNames = new ArrayList<String>();
+	private HashMap<String, Material> mMaterials = new HashMap<String, Material>();
+	private List<String> mMaterialLibraries;
+	
+	/**
+	 * Loads models from a wavefront object file. Parameters and results are as for `Geometry.load()`.
+	 * 
+	 * @param materialLibraries Receives the identifiers of the material files referenced by the model, 
+	 *        whether or not they were loaded.
+	 */
+	public static List<Geometry> load(String identifier, boolean loadMaterials, boolean centerObjects, List<String> materialLibraries) throws IOException
+	{
+		OBJLoader loader = new OBJLoader(identifier, loadMaterials, materialLibraries);
+		loader.parse();
+		return loader.createGeometry(centerObjects);
+	}
+	
+	private OBJLoader(String identifier, boolean loadMaterials, List<String> materialLibraries)
+	{
+		mIdentifier = identifier;
+		mLoadMaterials = loadMaterials;
+		mMaterialLibraries = materialLibraries;
+	}
+	
+	/**
+	 * Maps or reads the whole model file into `mData`.
+	 */
+	private void openFile() throws IOException
+	{
+		URL url = Geometry.class.getClassLoader().getResource(mIdentifier);
+		if (url == null)
+		{
+			throw new IOException("Could not find model file '" + mIdentifier + "'.");
+		}
+		
+		if (url.getProtocol().equals("file"))
+		{
+			/* Map the file directly. */
+			File file;
+			try
+			{
+				file = new File(url.toURI());
+			}
+			catch (URISyntaxException err)
+			{
+				file = new File(url.getPath());
+			}
+			
+			FileInputStream stream = new FileInputStream(file);
+			try
+			{
+				FileChannel channel = stream.getChannel();
+				mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		else
+		{
+			/* Inside a jar or similar: read it all into memory instead. */
+			InputStream stream = url.openStream();
+			try
+			{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte chunk[] = new byte[65536];
+				int count;
+				
+				while ((count = stream.read(chunk)) > 0)
+				{
+					bytes.write(chunk, 0, count);
+				}
+				
+				mData = ByteBuffer.wrap(bytes.toByteArray());
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+	}
+	
+	/**
+	 * PHASE 1 -- reads the file into the raw data lists.
+	 */
+	private void parse() throws IOException
+	{
+		openFile();
+		
+		mPositions.add(0.0f, 0.0f, 0.0f);
+		mNormals.add(0.0f, 0.0f, 0.0f);
+		mTexcoords.add(0.0f, 0.0f);
+		mPolygonStarts.add(0);
+		
+		/* Add a default object and material, in case none is declared. */
+		mObjectDelimeters.add(0);
+		mObjectNames.add(mIdentifier);
+		
+		mMeshDelimeters.add(0);
+		mEdgeDelimeters.add(0);
+		
+		mMeshMaterialNames.add("");
+		mMaterials.put("", new BlinnPhongMaterial());
+		
+		int limit = mData.limit();
+		mPosition = 0;
+		
+		while (mPosition < limit)
+		{
+			skipSpaces();
+			
+			if (mPosition >= limit)
+			{
+				break;
+			}
+			
+			byte first = mData.get(mPosition);
+			
+			if (first == '\n' || first == '\r' || first == '#')
+			{
+				/* Skip blank and comment lines. */
+			}
+			else if (isCommand("v"))
+			{
+				/* Parse the 3 coordinates of the vertex. */
+				mPositions.add(parseFloat(), parseFloat(), parseFloat());
+			}
+			else if (isCommand("vn"))
+			{
+				mNormals.add(parseFloat(), parseFloat(), parseFloat());
+			}
+			else if (isCommand("vt"))
+			{
+				mTexcoords.add(parseFloat(), parseFloat());
+			}
+			else if (isCommand("f"))
+			{
+				parseFace();
+			}
+			else if (isCommand("o"))
+			{
+				/* Record the number of polygons up until this new object, and start a new mesh there too. */
+				mObjectDelimeters.add(getPolygonCount());
+				mObjectNames.add(readRestOfLine());
+				
+				mMeshDelimeters.add(getPolygonCount());
+				mMeshMaterialNames.add(mMeshMaterialNames.get(mMeshMaterialNames.size() - 1));
+				mEdgeDelimeters.add(mEdges.size() / 2);
+			}
+			else if (isCommand("mtllib"))
+			{
+				/* Try to load the named material file, assumed to be in the same directory as the model. */
+				String mtlIdentifier = Util.makeIdentifierOfSibling(mIdentifier, readRestOfLine());
+				mMaterialLibraries.add(mtlIdentifier);
+				
+				if (mLoadMaterials)
+				{
+					mMaterials.putAll(Material.load(mtlIdentifier));
+				}
+			}
+			else if (isCommand("usemtl"))
+			{
+				/* Record the number of polygons up to this new material. */
+				mMeshDelimeters.add(getPolygonCount());
+				mMeshMaterialNames.add(readRestOfLine());
+				mEdgeDelimeters.add(mEdges.size() / 2);
+			}
+			else
+			{
+				/* Silently ignore unknown commands. */
+			}
+			
+			skipLine();
+		}
+		
+		/* Add dummy entries to the delimeter lists to simplify the loop logic in the next step. */
+		mObjectDelimeters.add(getPolygonCount());
+		mMeshDelimeters.add(getPolygonCount());
+		mEdgeDelimeters.add(mEdges.size() / 2);
+		
+		mData = null;
+	}
+	
+	/**
+	 * Parses the vertices of an 'f' command, storing a polygon, or an edge if there are only 2. 
+	 * A '#' ends the vertex list; the rest of the line is a comment.
+	 */
+	private void parseFace() throws IOException
+	{
+		int firstTriplet = mPolygonTriplets.size();
+		int vertexCount = 0;
+		
+		skipSpaces();
+		while (mPosition < mData.limit() && !isEndOfLine(mData.get(mPosition)) && mData.get(mPosition) != '#')
+		{
+			/* Parse "v", "v/t", "v//n", or "v/t/n"; omitted indices are 0. */
+			int indices[] = new int[3];
+			int field = 0;
+			int tokenStart = mPosition;
+			
+			indices[0] = parseIndex();
+			while (mPosition < mData.limit() && mData.get(mPosition) == '/')
+			{
+				++mPosition;
+				++field;
+				
+				if (field > 2)
+				{
+					throw new IOException("Malformed face vertex specification in '" + mIdentifier + "'.");
+				}
+				
+				indices[field] = parseIndex();
+			}
+			
+			if (mPosition == tokenStart || (mPosition < mData.limit() && mData.get(mPosition) > ' ' && mData.get(mPosition) != '#'))
+			{
+				throw new IOException("Malformed face vertex specification in '" + mIdentifier + "'.");
+			}
+			
+			mPolygonTriplets.add(indices[0], indices[1], indices[2]);
+			++vertexCount;
+			skipSpaces();
+		}
+		
+		if (vertexCount == 2)
+		{
+			/* The face is really an edge. */
+			mEdges.add(mPolygonTriplets.get(firstTriplet));
+			mEdges.add(mPolygonTriplets.get(firstTriplet + 3));
+			mPolygonTriplets.truncate(firstTriplet);
+		}
+		else if (vertexCount > 2)
+		{
+			mPolygonStarts.add(mPolygonTriplets.size() / 3);
+		}
+		else
+		{
+			mPolygonTriplets.truncate(firstTriplet);
+		}
+	}
+	
+	/**
+	 * Returns the number of polygons parsed so far.
+	 */
+	private int getPolygonCount()
+	{
+		return mPolygonStarts.size() - 1;
+	}
+	
+	/**
+	 * PHASE 2 -- reassembles the raw data into Geometry objects and meshes.
+	 */
+	private List<Geometry> createGeometry(boolean centerObjects)
+	{
+		ArrayList<Geometry> results = new ArrayList<Geometry>();
+		
+		/* Keep track of our current index into the mesh delimeter arrays. */
+		int meshIndex = 0;
+		
+		for (int objectIndex = 0; objectIndex < mObjectDelimeters.size() - 1; ++objectIndex)
+		{
+			Geometry currentObject = new Geometry();
+			currentObject.setName(mObjectNames.get(objectIndex));
+			int objectLastIndex = mObjectDelimeters.get(objectIndex + 1);
+			
+			/* Keep track of the average vertex position in this object (summed in double precision,
+			 * since large objects have many vertices). */
+			double positionSum[] = new double[3];
+			int currentPositionCount = 0;
+			
+			while (meshIndex < mMeshDelimeters.size() - 1 && mMeshDelimeters.get(meshIndex + 1) <= objectLastIndex)
+			{
+				int meshFirstIndex = mMeshDelimeters.get(meshIndex);
+				int meshLastIndex = mMeshDelimeters.get(meshIndex + 1);
+				
+				/* Skip empty meshes. */
+				if (meshFirstIndex == meshLastIndex)
+				{
+					++meshIndex;
+					continue;
+				}
+				
+				Mesh mesh = createMesh(meshFirstIndex, meshLastIndex, mEdgeDelimeters.get(meshIndex), mEdgeDelimeters.get(meshIndex + 1));
+				
+				/* Accumulate in position average. */
+				FloatBuffer vertices = mesh.getVertexData();
+				for (int v = 0; v < mesh.getVertexCount(); ++v)
+				{
+					positionSum[0] += vertices.get(3 * v + 0);
+					positionSum[1] += vertices.get(3 * v + 1);
+					positionSum[2] += vertices.get(3 * v + 2);
+				}
+				currentPositionCount += mesh.getVertexCount();
+				
+				/* Assign the mesh's name and material. */
+				mesh.setName(mMeshMaterialNames.get(meshIndex));
+				
+				if (mLoadMaterials && mMaterials.containsKey(mesh.getName()))
+				{
+					mesh.setMaterial(mMaterials.get(mesh.getName()));
+				}
+				
+				currentObject.addMesh(mesh);
+				++meshIndex;
+			}
+			
+			/* If we are supposed to re-center each object, do that now. */
+			if (centerObjects)
+			{
+				Point3f currentPositionAverage = new Point3f(
+						(float)(positionSum[0] / currentPositionCount), 
+						(float)(positionSum[1] / currentPositionCount), 
+						(float)(positionSum[2] / currentPositionCount));
+				
+				for (Mesh mesh : currentObject.getMeshes())
+				{
+					FloatBuffer vertices = mesh.getVertexData();
+					
+					for (int v = 0; v < mesh.getVertexCount(); ++v)
+					{
+						vertices.put(3 * v + 0, vertices.get(3 * v + 0) - currentPositionAverage.x);
+						vertices.put(3 * v + 1, vertices.get(3 * v + 1) - currentPositionAverage.y);
+						vertices.put(3 * v + 2, vertices.get(3 * v + 2) - currentPositionAverage.z);
+					}
+				}
+				
+				currentObject.getPosition().set(currentPositionAverage);
+			}
+			
+			/* Add the finished object if it's not empty. */
+			if (currentObject.getMeshes().size() > 0)
+			{
+				results.add(currentObject);
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Creates one mesh from the given ranges of polygons and edges: a Quadmesh if all polygons
+	 * are quads, otherwise a Trimesh with all polygons triangulated as fans.
+	 */
+	private Mesh createMesh(int firstPolygon, int lastPolygon, int firstEdge, int lastEdge)
+	{
+		/* The wavefront object format indexes vertices, normals, and texture coordinates separately, but
+		 * OpenGL indexes them together, so make one vertex for each unique {v, t, n} triplet, numbered in
+		 * order of first appearance. `vertexOfTriplet` gives the final vertex of every triplet in the mesh. */
+		int firstTriplet = mPolygonStarts.get(firstPolygon);
+		int lastTriplet = mPolygonStarts.get(lastPolygon);
+		int vertexOfTriplet[] = new int[lastTriplet - firstTriplet];
+		TripletTable uniqueVertices = new TripletTable(lastTriplet - firstTriplet);
+		
+		for (int t = firstTriplet; t < lastTriplet; ++t)
+		{
+			vertexOfTriplet[t - firstTriplet] = uniqueVertices.findOrAdd(mPolygonTriplets.get(3 * t + 0), mPolygonTriplets.get(3 * t + 1), mPolygonTriplets.get(3 * t + 2));
+		}
+		
+		/* Check whether this is a quad mesh, and if not how many triangles the polygons break into. */
+		boolean allPolysAreQuads = true;
+		int trimeshTriangleCount = 0;
+		
+		for (int p = firstPolygon; p < lastPolygon; ++p)
+		{
+			int polySize = mPolygonStarts.get(p + 1) - mPolygonStarts.get(p);
+			allPolysAreQuads &= (polySize == 4);
+			trimeshTriangleCount += polySize - 2;
+		}
+		
+		/* Make a vertex for each unique triplet. */
+		int vertexCount = uniqueVertices.size();
+		float vertices[] = new float[3 * vertexCount];
+		float texcoords[] = new float[2 * vertexCount];
+		float normals[] = new float[3 * vertexCount];
+		int triplets[] = uniqueVertices.getTriplets();
+		
+		for (int v = 0; v < vertexCount; ++v)
+		{
+			int positionIndex = triplets[3 * v + 0];
+			int texcoordIndex = triplets[3 * v + 1];
+			int normalIndex = triplets[3 * v + 2];
+			
+			vertices[3 * v + 0] = mPositions.get(3 * positionIndex + 0);
+			vertices[3 * v + 1] = mPositions.get(3 * positionIndex + 1);
+			vertices[3 * v + 2] = mPositions.get(3 * positionIndex + 2);
+			
+			texcoords[2 * v + 0] = mTexcoords.get(2 * texcoordIndex + 0);
+			texcoords[2 * v + 1] = mTexcoords.get(2 * texcoordIndex + 1);
+			
+			normals[3 * v + 0] = mNormals.get(3 * normalIndex + 0);
+			normals[3 * v + 1] = mNormals.get(3 * normalIndex + 1);
+			normals[3 * v + 2] = mNormals.get(3 * normalIndex + 2);
+		}
+		
+		/* Fill the index buffer. */
+		Mesh mesh;
+		
+		if (allPolysAreQuads)
+		{
+			IntBuffer quads = Buffers.newDirectIntBuffer(vertexOfTriplet);
+			mesh = new Quadmesh();
+			mesh.setPolygonData(quads);
+		}
+		else
+		{
+			int triangles[] = new int[3 * trimeshTriangleCount];
+			int next = 0;
+			
+			for (int p = firstPolygon; p < lastPolygon; ++p)
+			{
+				int start = mPolygonStarts.get(p) - firstTriplet;
+				int end = mPolygonStarts.get(p + 1) - firstTriplet;
+				
+				for (int i = start + 2; i < end; ++i)
+				{
+					triangles[next++] = vertexOfTriplet[start];
+					triangles[next++] = vertexOfTriplet[i - 1];
+					triangles[next++] = vertexOfTriplet[i];
+				}
+			}
+			
+			mesh = new Trimesh();
+			mesh.setPolygonData(Buffers.newDirectIntBuffer(triangles));
+		}
+		
+		mesh.setVertexData(Buffers.newDirectFloatBuffer(vertices));
+		mesh.setNormalData(Buffers.newDirectFloatBuffer(normals));
+		mesh.setTexCoordData(Buffers.newDirectFloatBuffer(texcoords));
+		
+		if (lastEdge > firstEdge)
+		{
+			IntBuffer edges = createEdges(firstEdge, lastEdge, triplets, vertexCount);
+			if (edges != null)
+			{
+				mesh.setEdgeData(edges);
+			}
+		}
+		
+		return mesh;
+	}
+	
+	/**
+	 * Converts edges between position indices into edges between final vertex indices. A position
+	 * may have been split into several vertices (with different normals or texture coordinates), in
+	 * which case an edge is made between each pair of vertices.
+	 *
+	 * @return The edge buffer, or null if no edges touch a vertex of this mesh.
+	 */
+	private IntBuffer createEdges(int firstEdge, int lastEdge, int triplets[], int vertexCount)
+	{
+		/* Build an index from position to the vertices made from it: vertices of position p are
+		 * `verticesOfPosition[offsets[p] .. offsets[p + 1])`. */
+		int positionCount = mPositions.size() / 3;
+		int offsets[] = new int[positionCount + 1];
+		
+		for (int v = 0; v < vertexCount; ++v)
+		{
+			++offsets[triplets[3 * v] + 1];
+		}
+		
+		for (int p = 0; p < positionCount; ++p)
+		{
+			offsets[p + 1] += offsets[p];
+		}
+		
+		int verticesOfPosition[] = new int[vertexCount];
+		int fill[] = new int[positionCount];
+		
+		for (int v = 0; v < vertexCount; ++v)
+		{
+			int p = triplets[3 * v];
+			verticesOfPosition[offsets[p] + fill[p]++] = v;
+		}
+		
+		/* Add an edge between each {start, end} pair. */
+		IntList edges = new IntList();
+		
+		for (int e = firstEdge; e < lastEdge; ++e)
+		{
+			int start = mEdges.get(2 * e + 0);
+			int end = mEdges.get(2 * e + 1);
+			
+			if (start < 0 || start >= positionCount || end < 0 || end >= positionCount)
+			{
+				continue;
+			}
+			
+			for (int i = offsets[start]; i < offsets[start + 1]; ++i)
+			{
+				for (int j = offsets[end]; j < offsets[end + 1]; ++j)
+				{
+					edges.add(verticesOfPosition[i]);
+					edges.add(verticesOfPosition[j]);
+				}
+			}
+		}
+		
+		if (edges.size() == 0)
+		{
+			return null;
+		}
+		
+		IntBuffer result = Buffers.newDirectIntBuffer(edges.size());
+		result.put(edges.getArray(), 0, edges.size());
+		result.rewind();
+		return result;
+	}
+	
+	/**
+	 * Returns true, and moves past it, if the current line's command is `command`.
+	 */
+	private boolean isCommand(String command)
+	{
+		int length = command.length();
+		
+		if (mPosition + length > mData.limit())
+		{
+			return false;
+		}
+		
+		for (int i = 0; i < length; ++i)
+		{
+			if (mData.get(mPosition + i) != command.charAt(i))
+			{
+				return false;
+			}
+		}
+		
+		/* The command must be followed by whitespace or the end of the line. */
+		if (mPosition + length < mData.limit() && mData.get(mPosition + length) > ' ')
+		{
+			return false;
+		}
+		
+		mPosition += length;
+		return true;
+	}
+	
+	/**
+	 * Returns true for the bytes which end a line.
+	 */
+	private static boolean isEndOfLine(byte b)
+	{
+		return (b == '\n' || b == '\r');
+	}
+	
+	/**
+	 * Moves past spaces, tabs, and other whitespace within the current line.
+	 */
+	private void skipSpaces()
+	{
+		int limit = mData.limit();
+		
+		while (mPosition < limit)
+		{
+			byte b = mData.get(mPosition);
+			
+			if (b > ' ' || isEndOfLine(b))
+			{
+				break;
+			}
+			
+			++mPosition;
+		}
+	}
+	
+	/**
+	 * Moves past the end of the current line.
+	 */
+	private void skipLine()
+	{
+		int limit = mData.limit();
+		
+		while (mPosition < limit && !isEndOfLine(mData.get(mPosition)))
+		{
+			++mPosition;
+		}
+		
+		while (mPosition < limit && isEndOfLine(mData.get(mPosition)))
+		{
+			++mPosition;
+		}
+	}
+	
+	/**
+	 * Returns the remainder of the current line, trimmed, as a string; used for names.
+	 */
+	private String readRestOfLine()
+	{
+		skipSpaces();
+		
+		int start = mPosition;
+		int end = start;
+		
+		while (end < mData.limit() && !isEndOfLine(mData.get(end)))
+		{
+			++end;
+		}
+		
+		byte bytes[] = new byte[end - start];
+		for (int i = 0; i < bytes.length; ++i)
+		{
+			bytes[i] = mData.get(start + i);
+		}
+		
+		mPosition = end;
+		return new String(bytes).trim();
+	}
+	
+	/**
+	 * Parses a (possibly empty) face index field; empty fields are 0.
+	 */
+	private int parseIndex() throws IOException
+	{
+		int limit = mData.limit();
+		int value = 0;
+		boolean negative = false;
+		
+		if (mPosition < limit && mData.get(mPosition) == '-')
+		{
+			negative = true;
+			++mPosition;
+		}
+		
+		while (mPosition < limit)
+		{
+			int digit = mData.get(mPosition) - '0';
+			
+			if (digit < 0 || digit > 9)
+			{
+				break;
+			}
+			
+			value = 10 * value + digit;
+			++mPosition;
+		}
+		
+		if (negative)
+		{
+			throw new IOException("Relative (negative) indices are not supported, in '" + mIdentifier + "'.");
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * Parses a floating point number after any leading whitespace. Plain decimal and exponent
+	 * forms are parsed directly from the bytes; anything else (e.g. "nan") goes through
+	 * `Float.parseFloat()`.
+	 */
+	private float parseFloat() throws IOException
+	{
+		skipSpaces();
+		
+		int limit = mData.limit();
+		int start = mPosition;
+		boolean negative = false;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		
+		byte b = (mPosition < limit ? mData.get(mPosition) : 0);
+		if (b == '-' || b == '+')
+		{
+			negative = (b == '-');
+			++mPosition;
+		}
+		
+		/* Integer part. Digits beyond what a long holds only affect the exponent. */
+		while (mPosition < limit && (b = mData.get(mPosition)) >= '0' && b <= '9')
+		{
+			if (digits < 18)
+			{
+				mantissa = 10 * mantissa + (b - '0');
+				if (mantissa > 0)
+				{
+					++digits;
+				}
+			}
+			else
+			{
+				++exponent;
+			}
+			++mPosition;
+		}
+		
+		/* Fractional part. */
+		if (mPosition < limit && mData.get(mPosition) == '.')
+		{
+			++mPosition;
+			
+			while (mPosition < limit && (b = mData.get(mPosition)) >= '0' && b <= '9')
+			{
+				if (digits < 18)
+				{
+					mantissa = 10 * mantissa + (b - '0');
+					--exponent;
+					if (mantissa > 0)
+					{
+						++digits;
+					}
+				}
+				++mPosition;
+			}
+		}
+		
+		/* Exponent. */
+		if (mPosition < limit && ((b = mData.get(mPosition)) == 'e' || b == 'E'))
+		{
+			++mPosition;
+			boolean negativeExponent = false;
+			int explicitExponent = 0;
+			
+			if (mPosition < limit && ((b = mData.get(mPosition)) == '-' || b == '+'))
+			{
+				negativeExponent = (b == '-');
+				++mPosition;
+			}
+			
+			while (mPosition < limit && (b = mData.get(mPosition)) >= '0' && b <= '9')
+			{
+				explicitExponent = Math.min(10 * explicitExponent + (b - '0'), 1000);
+				++mPosition;
+			}
+			
+			exponent += (negativeExponent ? -explicitExponent : explicitExponent);
+		}
+		
+		/* Anything unusual: fall back to the library parser on the whole word. */
+		if (mPosition == start || (mPosition < limit && mData.get(mPosition) > ' '))
+		{
+			while (mPosition < limit && mData.get(mPosition) > ' ')
+			{
+				++mPosition;
+			}
+			
+			byte word[] = new byte[mPosition - start];
+			for (int i = 0; i < word.length; ++i)
+			{
+				word[i] = mData.get(start + i);
+			}
+			
+			try
+			{
+				return Float.parseFloat(new String(word));
+			}
+			catch (NumberFormatException err)
+			{
+				throw new IOException("Malformed number '" + new String(word) + "' in '" + mIdentifier + "'.");
+			}
+		}
+		
+		double value = mantissa;
+		if (exponent < 0)
+		{
+			value = (exponent >= -22 ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10.0, exponent));
+		}
+		else if (exponent > 0)
+		{
+			value = (exponent <= 22 ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10.0, exponent));
+		}
+		
+		return (float)(negative ? -value : value);
+	}
+	
+	/**
+	 * Open-addressing hash table mapping {v, t, n} index triplets to vertex indices, assigned in
+	 * order of insertion.
+	 */
+	private static class TripletTable
+	{
+		private int mSlots[];
+		private int mMask;
+		private int mTriplets[];
+		private int mSize = 0;
+		
+		/**
+		 * Creates a table which can hold up to `maxEntries` triplets without resizing.
+		 */
+		public TripletTable(int maxEntries)
+		{
+			int capacity = 16;
+			while (capacity < 2 * maxEntries)
+			{
+				capacity <<= 1;
+			}
+			
+			mSlots = new int[capacity];
+			Arrays.fill(mSlots, -1);
+			mMask = capacity - 1;
+			mTriplets = new int[3 * Math.max(maxEntries, 1)];
+		}
+		
+		/**
+		 * Returns the index of the given triplet, adding it if it's not already present.
+		 */
+		public int findOrAdd(int v, int t, int n)
+		{
+			int hash = v * 0x9E3779B1 + t * 0x85EBCA6B + n * 0xC2B2AE35;
+			int slot = (hash ^ (hash >>> 16)) & mMask;
+			
+			while (mSlots[slot] >= 0)
+			{
+				int index = mSlots[slot];
+				
+				if (mTriplets[3 * index] == v && mTriplets[3 * index + 1] == t && mTriplets[3 * index + 2] == n)
+				{
+					return index;
+				}
+				
+				slot = (slot + 1) & mMask;
+			}
+			
+			mSlots[slot] = mSize;
+			mTriplets[3 * mSize + 0] = v;
+			mTriplets[3 * mSize + 1] = t;
+			mTriplets[3 * mSize + 2] = n;
+			return mSize++;
+		}
+		
+		/**
+		 * Returns the number of unique triplets.
+		 */
+		public int size()
+		{
+			return mSize;
+		}
+		
+		/**
+		 * Returns the unique triplets in order of index, 3 ints each. Only the first `3 * size()` entries are valid.
+		 */
+		public int[] getTriplets()
+		{
+			return mTriplets;
+		}
+	}
+	
+	/**
+	 * Growable list of ints, without boxing.
+	 */
+	private static class IntList
+	{
+		private int mArray[] = new int[64];
+		private int mSize = 0;
+		
+		public void add(int value)
+		{
+			if (mSize == mArray.length)
+			{
+				int grown[] = new int[2 * mArray.length];
+				System.arraycopy(mArray, 0, grown, 0, mSize);
+				mArray = grown;
+			}
+			
+			mArray[mSize++] = value;
+		}
+		
+		public void add(int a, int b, int c)
+		{
+			add(a);
+			add(b);
+			add(c);
+		}
+		
+		public int get(int index)
+		{
+			return mArray[index];
+		}
+		
+		public int size()
+		{
+			return mSize;
+		}
+		
+		public void truncate(int size)
+		{
+			mSize = size;
+		}
+		
+		public int[] getArray()
+		{
+			return mArray;
+		}
+	}
+	
+	/**
+	 * Growable list of floats, without boxing.
+	 */
+	private static class FloatList
+	{
+		private float mArray[] = new float[64];
+		private int mSize = 0;
+		
+		public void add(float value)
+		{
+			if (mSize == mArray.length)
+			{
+				float grown[] = new float[2 * mArray.length];
+				System.arraycopy(mArray, 0, grown, 0, mSize);
+				mArray = grown;
+			}
+			
+			mArray[mSize++] = value;
+		}
+		
+		public void add(float a, float b)
+		{
+			add(a);
+			add(b);
+		}
+		
+		public void add(float a, float b, float c)
+		{
+			add(a);
+			add(b);
+			add(c);
+		}
+		
+		public float get(int index)
+		{
+			/* Bad indices in the file must not read stale entries past the end of the list. */
+			if (index >= mSize)
+			{
+				throw new IndexOutOfBoundsException("Index " + index + " out of range.");
+			}
+			
+			return mArray[index];
+		}
+		
+		public int size()
+		{
+			return mSize;
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package cs5625.deferred.scenegraph;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.misc.Util;
+
+/**
+ * PackedVertexData.java
+ *
+ * PackedVertexData holds a mesh's vertex data interleaved into a single buffer, with each
+ * attribute stored as compactly as its precision allows:
+ *
+ *  - Positions are 16-bit integers relative to the mesh's bounding box (or 32-bit floats, if
+ *    quantization is not requested). Shaders undo the quantization with `getPositionScale()` and
+ *    `getPositionBias()`; see `ShaderProgram.setPositionDequantization()`.
+ *  - Normals, and generic attributes listed in `DIRECTION_ATTRIBUTES` (tangents), are signed
+ *    normalized 10-10-10-2 integers. The 2-bit w component holds a tangent's handedness.
+ *  - Texture coordinates are half floats, unless they are too large for half precision.
+ *  - Generic attributes listed in `WEIGHT_ATTRIBUTES` (terrain splat weights), whose values lie
+ *    in [0, 1], are unsigned normalized bytes.
+ *  - Any other generic attributes are copied as 32-bit floats.
+ *
+ * A typical vertex with position, normal, texcoord, and tangent shrinks from 48 bytes to 20.
+ * Create one with `pack()`; meshes do this themselves when `Mesh.setUsePackedVertexData()` is on.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class PackedVertexData
+{
+	/** Generic attributes which hold unit vectors (with an optional sign in w), and are packed like normals. */
+	public static final String DIRECTION_ATTRIBUTES[] = new String[] { "VertexTangent" };
+	
+	/** Generic attributes of up to 4 components in [0, 1], which are packed as unsigned normalized bytes. */
+	public static final String WEIGHT_ATTRIBUTES[] = new String[] { "SplatWeights" };
+	
+	/** Texture coordinates with a larger magnitude than this are stored as floats, since half precision is too coarse for them. */
+	public static final float MAX_HALF_TEXCOORD = 2.0f;
+	
+	/**
+	 * Describes where and how one attribute is stored in each interleaved vertex; this maps
+	 * directly onto the arguments of `glVertexAttribPointer()`.
+	 */
+	public static class Element
+	{
+		private int mComponents;
+		private int mType;
+		private boolean mNormalized;
+		private int mOffset;
+		
+		private Element(int components, int type, boolean normalized, int offset)
+		{
+			mComponents = components;
+			mType = type;
+			mNormalized = normalized;
+			mOffset = offset;
+		}
+		
+		/** Number of components (1 - 4). */
+		public int getComponents()
+		{
+			return mComponents;
+		}
+		
+		/** OpenGL type of each component, e.g. GL_SHORT or GL_HALF_FLOAT. */
+		public int getType()
+		{
+			return mType;
+		}
+		
+		/** True if integer components are mapped to [-1, 1]. */
+		public boolean isNormalized()
+		{
+			return mNormalized;
+		}
+		
+		/** Byte offset of this attribute within each vertex. */
+		public int getOffset()
+		{
+			return mOffset;
+		}
+	}
+	
+	/* The interleaved data and its layout. */
+	private ByteBuffer mData;
+	private int mStride;
+	private Element mPosition, mNormal, mTexCoord;
+	private HashMap<String, Element> mAttributes = new HashMap<String, Element>();
+	
+	/* Dequantization transform: objectPosition = storedPosition * scale + bias. */
+	private float mPositionScale[] = new float[] { 1.0f, 1.0f, 1.0f };
+	private float mPositionBias[] = new float[] { 0.0f, 0.0f, 0.0f };
+	
+	private PackedVertexData()
+	{
+		/* Created by pack(). */
+	}
+	
+	/**
+	 * Packs a mesh's vertex, normal, texture coordinate, and generic attribute buffers.
+	 * The mesh itself is not modified.
+	 *
+	 * @param mesh The mesh to pack. Must have vertex data.
+	 * @param quantizePositions If true, positions are stored as 16-bit integers relative to the
+	 *        mesh's bounding box; otherwise they are stored as floats.
+	 */
+	public static PackedVertexData pack(Mesh mesh, boolean quantizePositions)
+	{
+		PackedVertexData result = new PackedVertexData();
+		int vertexCount = mesh.getVertexCount();
+		FloatBuffer vertices = mesh.getVertexData();
+		FloatBuffer normals = mesh.getNormalData();
+		FloatBuffer texcoords = mesh.getTexCoordData();
+		
+		/* Lay out the vertex. Every element is a multiple of 4 bytes, keeping them all aligned. */
+		int offset = 0;
+		
+		if (quantizePositions)
+		{
+			result.mPosition = new Element(3, GL2.GL_SHORT, false, offset);
+			offset += 8;
+		}
+		else
+		{
+			result.mPosition = new Element(3, GL2.GL_FLOAT, false, offset);
+			offset += 12;
+		}
+		
+		if (normals != null)
+		{
+			result.mNormal = new Element(4, GL2.GL_INT_2_10_10_10_REV, true, offset);
+			offset += 4;
+		}
+		
+		if (texcoords != null)
+		{
+			if (fitsInHalf(texcoords))
+			{
+				result.mTexCoord = new Element(2, GL2.GL_HALF_FLOAT, false, offset);
+				offset += 4;
+			}
+			else
+			{
+				result.mTexCoord = new Element(2, GL2.GL_FLOAT, false, offset);
+				offset += 8;
+			}
+		}
+		
+		for (Map.Entry<String, FloatBuffer> entry : mesh.vertexAttribData.entrySet())
+		{
+			if (entry.getValue() == null)
+			{
+				continue;
+			}
+			
+			int components = entry.getValue().capacity() / vertexCount;
+			
+			if (isDirectionAttribute(entry.getKey()) && components >= 3 && components <= 4)
+			{
+				result.mAttributes.put(entry.getKey(), new Element(4, GL2.GL_INT_2_10_10_10_REV, true, offset));
+				offset += 4;
+			}
+			else if (isWeightAttribute(entry.getKey()) && components <= 4)
+			{
+				result.mAttributes.put(entry.getKey(), new Element(components, GL2.GL_UNSIGNED_BYTE, true, offset));
+				offset += 4;
+			}
+			else
+			{
+				result.mAttributes.put(entry.getKey(), new Element(components, GL2.GL_FLOAT, false, offset));
+				offset += 4 * components;
+			}
+		}
+		
+		result.mStride = offset;
+		
+		/* Compute the quantization transform, mapping the bounding box onto [-32767, 32767]. */
+		if (quantizePositions)
+		{
+			float min[] = new float[] { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+			float max[] = new float[] { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+			
+			for (int v = 0; v < vertexCount; ++v)
+			{
+				for (int c = 0; c < 3; ++c)
+				{
+					min[c] = Math.min(min[c], vertices.get(3 * v + c));
+					max[c] = Math.max(max[c], vertices.get(3 * v + c));
+				}
+			}
+			
+			for (int c = 0; c < 3; ++c)
+			{
+				float halfExtent = Math.max((max[c] - min[c]) / 2.0f, 1e-6f);
+				result.mPositionBias[c] = (vertexCount == 0 ? 0.0f : (max[c] + min[c]) / 2.0f);
+				result.mPositionScale[c] = halfExtent / 32767.0f;
+			}
+		}
+		
+		/* Fill the interleaved buffer. */
+		ByteBuffer data = Buffers.newDirectByteBuffer(result.mStride * vertexCount).order(ByteOrder.nativeOrder());
+		
+		for (int v = 0; v < vertexCount; ++v)
+		{
+			int base = v * result.mStride;
+			
+			if (quantizePositions)
+			{
+				for (int c = 0; c < 3; ++c)
+				{
+					float q = (vertices.get(3 * v + c) - result.mPositionBias[c]) / result.mPositionScale[c];
+					data.putShort(base + 2 * c, (short)Math.max(-32767, Math.min(32767, Math.round(q))));
+				}
+			}
+			else
+			{
+				for (int c = 0; c < 3; ++c)
+				{
+					data.putFloat(base + 4 * c, vertices.get(3 * v + c));
+				}
+			}
+			
+			if (result.mNormal != null)
+			{
+				data.putInt(base + result.mNormal.getOffset(),
+							packDirection(normals.get(3 * v + 0), normals.get(3 * v + 1), normals.get(3 * v + 2), 1.0f));
+			}
+			
+			if (result.mTexCoord != null)
+			{
+				int texOffset = base + result.mTexCoord.getOffset();
+				
+				if (result.mTexCoord.getType() == GL2.GL_HALF_FLOAT)
+				{
+					data.putShort(texOffset + 0, Util.toHalfFloat(texcoords.get(2 * v + 0)));
+					data.putShort(texOffset + 2, Util.toHalfFloat(texcoords.get(2 * v + 1)));
+				}
+				else
+				{
+					data.putFloat(texOffset + 0, texcoords.get(2 * v + 0));
+					data.putFloat(texOffset + 4, texcoords.get(2 * v + 1));
+				}
+			}
+			
+			for (Map.Entry<String, Element> entry : result.mAttributes.entrySet())
+			{
+				FloatBuffer source = mesh.vertexAttribData.get(entry.getKey());
+				Element element = entry.getValue();
+				int components = source.capacity() / vertexCount;
+				int attribOffset = base + element.getOffset();
+				
+				if (element.getType() == GL2.GL_INT_2_10_10_10_REV)
+				{
+					float w = (components == 4 ? source.get(4 * v + 3) : 1.0f);
+					data.putInt(attribOffset, packDirection(source.get(components * v + 0), source.get(components * v + 1), source.get(components * v + 2), w));
+				}
+				else if (element.getType() == GL2.GL_UNSIGNED_BYTE)
+				{
+					for (int c = 0; c < components; ++c)
+					{
+						float value = Math.max(0.0f, Math.min(1.0f, source.get(components * v + c)));
+						data.put(attribOffset + c, (byte)Math.round(value * 255.0f));
+					}
+				}
+				else
+				{
+					for (int c = 0; c < components; ++c)
+					{
+						data.putFloat(attribOffset + 4 * c, source.get(components * v + c));
+					}
+				}
+			}
+		}
+		
+		result.mData = data;
+		return result;
+	}
+	
+	/**
+	 * Packs a direction (normalized first, if it isn't already) and sign into signed normalized 10-10-10-2 format.
+	 *
+	 * The sign is stored as 1 or -2, which decode to +1 and -1 under both the pre-4.2
+	 * `(2c + 1) / (2^b - 1)` and the newer `max(c / (2^(b-1) - 1), -1)` conversion rules.
+	 */
+	private static int packDirection(float x, float y, float z, float w)
+	{
+		float length = (float)Math.sqrt(x * x + y * y + z * z);
+		if (length > 0.0f)
+		{
+			x /= length;
+			y /= length;
+			z /= length;
+		}
+		
+		int ix = Math.round(Math.max(-1.0f, Math.min(1.0f, x)) * 511.0f);
+		int iy = Math.round(Math.max(-1.0f, Math.min(1.0f, y)) * 511.0f);
+		int iz = Math.round(Math.max(-1.0f, Math.min(1.0f, z)) * 511.0f);
+		int iw = (w < 0.0f ? -2 : 1);
+		
+		return (ix & 0x3ff) | ((iy & 0x3ff) << 10) | ((iz & 0x3ff) << 20) | ((iw & 0x3) << 30);
+	}
+	
+	/**
+	 * Returns true if every value in the buffer can be stored as a half float without losing too much precision.
+	 */
+	private static boolean fitsInHalf(FloatBuffer data)
+	{
+		for (int i = 0; i < data.capacity(); ++i)
+		{
+			if (Math.abs(data.get(i)) > MAX_HALF_TEXCOORD)
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns true if the named generic attribute is listed in `DIRECTION_ATTRIBUTES`.
+	 */
+	private static boolean isDirectionAttribute(String name)
+	{
+		for (String direction : DIRECTION_ATTRIBUTES)
+		{
+			if (direction.equals(name))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns true if the named generic attribute is listed in `WEIGHT_ATTRIBUTES`.
+	 */
+	private static boolean isWeightAttribute(String name)
+	{
+		for (String weight : WEIGHT_ATTRIBUTES)
+		{
+			if (weight.equals(name))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the interleaved vertex data.
+	 */
+	public ByteBuffer getData()
+	{
+		return mData;
+	}
+	
+	/**
+	 * Returns the size of each vertex, in bytes.
+	 */
+	public int getStride()
+	{
+		return mStride;
+	}
+	
+	/**
+	 * Returns the layout of the position within each vertex.
+	 */
+	public Element getPosition()
+	{
+		return mPosition;
+	}
+	
+	/**
+	 * Returns the layout of the normal within each vertex, or null if the mesh has no normals.
+	 */
+	public Element getNormal()
+	{
+		return mNormal;
+	}
+	
+	/**
+	 * Returns the layout of the texture coordinate within each vertex, or null if the mesh has none.
+	 */
+	public Element getTexCoord()
+	{
+		return mTexCoord;
+	}
+	
+	/**
+	 * Returns the layout of a named generic attribute within each vertex, or null if the mesh has no such attribute.
+	 */
+	public Element getAttribute(String name)
+	{
+		return mAttributes.get(name);
+	}
+	
+	/**
+	 * Returns the per-axis scale which converts stored positions back to object space.
+	 */
+	public float[] getPositionScale()
+	{
+		return mPositionScale;
+	}
+	
+	/**
+	 * Returns the per-axis offset which converts stored positions back to object space.
+	 */
+	public float[] getPositionBias()
+	{
+		return mPositionBias;
+	}
+}
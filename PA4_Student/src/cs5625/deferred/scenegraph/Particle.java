@@ -1,8 +1,5 @@
 package cs5625.deferred.scenegraph;
 
-import java.nio.FloatBuffer;
-import java.util.List;
-
 import javax.vecmath.Point3f;
 import javax.vecmath.Quat4f;
 import javax.vecmath.Vector3f;
@@ -109,26 +106,8 @@ public class Particle extends Geometry
 		newVelocity.add(force);
 		mVelocity = newVelocity;
 		
-		List<Mesh> meshes = getMeshes();
-		if (meshes.size() > 1) System.out.println("more than one mesh per particle");
-		
-		Mesh mesh = meshes.get(0);
-		FloatBuffer vertices = mesh.getVertexData();
-		
-		for (int j = 0; j < 4; j++) {
-			float p1 = vertices.get(3*j);
-			float p2 = vertices.get((3*j)+1);
-			float p3 = vertices.get((3*j)+2);
-			
-			Point3f point = new Point3f(p1, p2, p3);
-			transformPointToWorldSpace(point);
-			vertices.put(3*j, point.x);
-			vertices.put((3*j)+1, point.y);
-			vertices.put((3*j)+2, point.z);
-		}
-		
-		mesh.setVertexData(vertices);
-		
+		/* The quad is placed by this particle's own transform; its vertex data is shared with the 
+		 * other particles (see `AssetManager.acquireGeometry()`) and must not be modified. */
 		resetForces();
 
 
@@ -18,8 +18,9 @@ import javax.vecmath.Vector3f;
 import com.jogamp.common.nio.Buffers;
 
 import cs5625.deferred.materials.ParticleMaterial;
+import cs5625.deferred.materials.SpriteArray;
 import cs5625.deferred.materials.Texture;
-import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.ScenegraphException;
 import cs5625.deferred.rendering.Camera;
@@ -49,6 +50,9 @@ public class ParticleSystem extends SceneObject
 	/* Particle things for memory allocation shenanigans */
 	private Quadmesh quadmesh = new Quadmesh();
 	private ParticleMaterial material = new ParticleMaterial(new Color4f(1f, 1f, 0, 1f));
+	
+	/* Layer of the renderer's sprite array holding the particle image. */
+	private static final int CLOUD_LAYER = 0;
 	private float[] verts = {0f, 0f, 0f, .1f, 0f, 0f, .1f, .1f, 0f, 0f, .1f, 0f};
     private int[] polys = {0, 1, 2, 3};
     
@@ -75,10 +79,9 @@ public class ParticleSystem extends SceneObject
 	public ParticleSystem() {
 		
 	}
-	public ParticleSystem(int maxParticles, Texture2D[] list) throws IOException
+	public ParticleSystem(int maxParticles, SpriteArray sprites) throws IOException
 	{
-		material.setTexture(list[0]);
-		System.out.println("texture is " + list[0].getID());
+		material.setSprite(sprites, CLOUD_LAYER);
 		
 		for (int i = 0; i < maxParticles; i++)
 		{	
@@ -88,7 +91,7 @@ public class ParticleSystem extends SceneObject
 			transformPointToWorldSpace(point);
 			particle.setPosition(point);
 	
-			List<Geometry> geom = Particle.load("models/plane.obj", true, true);
+			List<Geometry> geom = AssetManager.acquireGeometry("models/plane.obj", true, true);
 			List<Mesh> meshes = geom.get(0).getMeshes();
 			
 			Quadmesh mesh = (Quadmesh) meshes.get(0);
@@ -19,8 +19,9 @@ import com.jogamp.common.nio.Buffers;
 
 import cs5625.deferred.materials.ParticleMaterial;
 import cs5625.deferred.materials.PrecipitationMaterial;
+import cs5625.deferred.materials.SpriteArray;
 import cs5625.deferred.materials.Texture;
-import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.misc.AssetManager;
 import cs5625.deferred.misc.OpenGLException;
 import cs5625.deferred.misc.ScenegraphException;
 import cs5625.deferred.rendering.Camera;
@@ -51,6 +52,10 @@ public class PrecipitationSystem extends SceneObject
 	
 	/* Particle things for memory allocation shenanigans */
 	private PrecipitationMaterial material = new PrecipitationMaterial(new Color4f(1f, 1f, 0, 1f));;
+	
+	/* Layers of the renderer's sprite array holding the snowflake and raindrop images. */
+	private static final int SNOWFLAKE_LAYER = 8;
+	private static final int RAINDROP_LAYER = 12;
     
     private Point3f start = new Point3f(0.0f, 1f, 0.0f);
 
@@ -90,17 +95,16 @@ public class PrecipitationSystem extends SceneObject
 	public PrecipitationSystem() {
 		
 	}
-	public PrecipitationSystem(int maxParticles, Texture2D[] list, int id) throws IOException
+	public PrecipitationSystem(int maxParticles, SpriteArray sprites, int id) throws IOException
 	{
 		if (id == 4) {
-			material.setTexture(list[8]);
+			material.setSprite(sprites, SNOWFLAKE_LAYER);
 			drag = 1.1f;
 		}
 		else {
-			material.setTexture(list[12]);
+			material.setSprite(sprites, RAINDROP_LAYER);
 			drag = 0.1f;
 		}
-		//System.out.println("texture is " + list[12].getID());
 		
 		material.setMax(maxy);
 		material.setPosition(start);
@@ -113,7 +117,7 @@ public class PrecipitationSystem extends SceneObject
 			transformPointToWorldSpace(point);
 			particle.setPosition(point);
 	
-			List<Geometry> geom = Particle.load("models/plane.obj", true, true);
+			List<Geometry> geom = AssetManager.acquireGeometry("models/plane.obj", true, true);
 			List<Mesh> meshes = geom.get(0).getMeshes();
 			
 			Quadmesh mesh = (Quadmesh) meshes.get(0);
@@ -0,0 +1,278 @@
+package cs5625.deferred.scenegraph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
+
+import com.jogamp.common.nio.Buffers;
+
+import cs5625.deferred.rendering.Camera;
+
+/**
+ * ProjectedGrid.java
+ *
+ * A water surface drawn as a "projected grid" (Johanson, "Real-time water rendering"). Its mesh
+ * is a regular grid in screen space. Each frame, `project()` casts a ray from the camera through
+ * every grid point and moves that vertex to where the ray meets the horizontal plane
+ * y = `getWaterHeight()`, in this object's space. Vertices are therefore spread evenly over
+ * the screen instead of the world: near water gets dense vertices, distant water sparse ones,
+ * and the vertex count stays the same at any view distance.
+ *
+ * The grid only places undisplaced points on the plane. The material's vertex shader adds the
+ * waves, sampling whatever displacement source it likes at the vertex position (e.g. the FFT
+ * maps of `OceanMaterial`). The grid extends a little past the screen edges (see
+ * `setScreenMargin()`) so that displaced vertices don't uncover gaps.
+ *
+ * Only the rows which can see the water, out to the camera's far plane, are used; rays which
+ * miss are clamped to the far plane. The renderer calls `project()` as it queues the object.
+ * The grid is rewritten every frame, so it is never packed (see `setUsePackedVertexDataForAllGeometry()`).
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class ProjectedGrid extends Geometry
+{
+	/* Grid size in quads, and the plane it's projected onto. */
+	private int mColumns, mRows;
+	private float mWaterHeight;
+	private float mScreenMargin = 0.1f;
+	
+	/* The grid mesh and its vertex positions, rewritten by `project()`. */
+	private Quadmesh mMesh = new Quadmesh();
+	private FloatBuffer mVertices;
+	
+	/* The view the grid was last projected for, to skip reprojecting while it doesn't change. */
+	private float mLastView[] = new float[11];
+	private boolean mProjected = false;
+	
+	/**
+	 * Creates a projected grid.
+	 *
+	 * @param columns Quads across the screen.
+	 * @param rows Quads up the screen.
+	 * @param waterHeight Height (y) of the water plane, in this object's space.
+	 */
+	public ProjectedGrid(int columns, int rows, float waterHeight)
+	{
+		mColumns = columns;
+		mRows = rows;
+		mWaterHeight = waterHeight;
+		
+		int vertexCount = (columns + 1) * (rows + 1);
+		mVertices = Buffers.newDirectFloatBuffer(3 * vertexCount);
+		FloatBuffer normals = Buffers.newDirectFloatBuffer(3 * vertexCount);
+		FloatBuffer texcoords = Buffers.newDirectFloatBuffer(2 * vertexCount);
+		IntBuffer quads = Buffers.newDirectIntBuffer(4 * columns * rows);
+		
+		/* The water plane always faces up; texcoords are the vertex's position on the screen grid. */
+		for (int row = 0; row <= rows; ++row)
+		{
+			for (int column = 0; column <= columns; ++column)
+			{
+				normals.put(0.0f).put(1.0f).put(0.0f);
+				texcoords.put((float)column / columns).put((float)row / rows);
+			}
+		}
+		
+		for (int row = 0; row < rows; ++row)
+		{
+			for (int column = 0; column < columns; ++column)
+			{
+				int corner = row * (columns + 1) + column;
+				quads.put(corner).put(corner + 1).put(corner + columns + 2).put(corner + columns + 1);
+			}
+		}
+		
+		normals.rewind();
+		texcoords.rewind();
+		quads.rewind();
+		
+		mMesh.setVertexData(mVertices);
+		mMesh.setNormalData(normals);
+		mMesh.setTexCoordData(texcoords);
+		mMesh.setPolygonData(quads);
+		addMesh(mMesh);
+	}
+	
+	/**
+	 * Returns the grid mesh, e.g. to set its material.
+	 */
+	public Mesh getMesh()
+	{
+		return mMesh;
+	}
+	
+	/**
+	 * Returns the height of the water plane, in this object's space.
+	 */
+	public float getWaterHeight()
+	{
+		return mWaterHeight;
+	}
+	
+	/**
+	 * Sets the height of the water plane, in this object's space.
+	 */
+	public void setWaterHeight(float height)
+	{
+		mWaterHeight = height;
+		mProjected = false;
+	}
+	
+	/**
+	 * Sets how far the grid extends past each edge of the screen, as a fraction of the half-screen
+	 * (normalized device coordinates). Should cover the largest on-screen wave displacement.
+	 */
+	public void setScreenMargin(float margin)
+	{
+		mScreenMargin = margin;
+		mProjected = false;
+	}
+	
+	/**
+	 * Returns how far the grid extends past each edge of the screen.
+	 */
+	public float getScreenMargin()
+	{
+		return mScreenMargin;
+	}
+	
+	/**
+	 * Moves the grid's vertices onto the water plane as seen from the given camera. Does nothing if
+	 * the view hasn't changed since the last call.
+	 *
+	 * @param camera The camera the grid will be rendered from.
+	 * @param aspect The viewport's width / height.
+	 */
+	public void project(Camera camera, float aspect)
+	{
+		/* Camera position and axes, in this object's space. */
+		Point3f eye = transformPointFromWorldSpace(camera.transformPointToWorldSpace(new Point3f(0.0f, 0.0f, 0.0f)));
+		Vector3f forward = transformVectorFromWorldSpace(camera.transformVectorToWorldSpace(new Vector3f(0.0f, 0.0f, -1.0f)));
+		Vector3f right = transformVectorFromWorldSpace(camera.transformVectorToWorldSpace(new Vector3f(1.0f, 0.0f, 0.0f)));
+		Vector3f up = transformVectorFromWorldSpace(camera.transformVectorToWorldSpace(new Vector3f(0.0f, 1.0f, 0.0f)));
+		float far = transformDistanceFromWorldSpace(camera.transformDistanceToWorldSpace(camera.getFar()));
+		
+		float tanY = (float)Math.tan(Math.toRadians(camera.getFOV()) / 2.0);
+		forward.normalize();
+		right.normalize();
+		right.scale(tanY * aspect);
+		up.normalize();
+		up.scale(tanY);
+		
+		float view[] = new float[] { eye.x, eye.y, eye.z, forward.x, forward.y, forward.z, up.x, up.y, up.z, aspect, far };
+		if (mProjected && Arrays.equals(view, mLastView))
+		{
+			return;
+		}
+		
+		mLastView = view;
+		mProjected = true;
+		
+		/* Find the range of screen rows which see the water, assuming the horizon crosses the screen
+		 * centerline once. Rows outside it would be wasted on the sky. */
+		float bottom = -1.0f - mScreenMargin;
+		float top = 1.0f + mScreenMargin;
+		boolean bottomHits = hitsWater(eye, forward, up, bottom, far);
+		boolean topHits = hitsWater(eye, forward, up, top, far);
+		
+		if (bottomHits != topHits)
+		{
+			/* Bisect for the horizon, then move the missing end of the range to it. */
+			float hit = (bottomHits ? bottom : top);
+			float miss = (bottomHits ? top : bottom);
+			
+			for (int i = 0; i < 16; ++i)
+			{
+				float middle = (hit + miss) / 2.0f;
+				if (hitsWater(eye, forward, up, middle, far))
+				{
+					hit = middle;
+				}
+				else
+				{
+					miss = middle;
+				}
+			}
+			
+			if (bottomHits)
+			{
+				top = hit;
+			}
+			else
+			{
+				bottom = hit;
+			}
+		}
+		
+		/* Cast a ray through each grid point and intersect it with the plane. */
+		Vector3f direction = new Vector3f();
+		int index = 0;
+		
+		for (int row = 0; row <= mRows; ++row)
+		{
+			float v = bottom + (top - bottom) * row / mRows;
+			
+			for (int column = 0; column <= mColumns; ++column)
+			{
+				float u = (-1.0f - mScreenMargin) + 2.0f * (1.0f + mScreenMargin) * column / mColumns;
+				
+				direction.scaleAdd(u, right, forward);
+				direction.scaleAdd(v, up, direction);
+				
+				float t = (mWaterHeight - eye.y) / direction.y;
+				float x, z;
+				
+				if (t > 0.0f && t * direction.length() <= far)
+				{
+					x = eye.x + t * direction.x;
+					z = eye.z + t * direction.z;
+				}
+				else
+				{
+					/* The ray misses the water before the far plane: clamp it to the far plane, straight
+					 * out from the eye. If no rows see the water at all, this collapses the whole grid. */
+					float horizontal = (float)Math.sqrt(direction.x * direction.x + direction.z * direction.z);
+					float scale = (horizontal > 0.0f ? far / horizontal : 0.0f);
+					x = eye.x + scale * direction.x;
+					z = eye.z + scale * direction.z;
+				}
+				
+				mVertices.put(index++, x);
+				mVertices.put(index++, mWaterHeight);
+				mVertices.put(index++, z);
+			}
+		}
+		
+		mMesh.markDirty(Mesh.VERTEX_STREAM);
+	}
+	
+	/**
+	 * Returns true if the ray through the center of screen row `v` (in normalized device coordinates)
+	 * meets the water within `far` of the eye.
+	 */
+	private boolean hitsWater(Point3f eye, Vector3f forward, Vector3f up, float v, float far)
+	{
+		Vector3f direction = new Vector3f();
+		direction.scaleAdd(v, up, forward);
+		
+		float t = (mWaterHeight - eye.y) / direction.y;
+		return (t > 0.0f && t * direction.length() <= far);
+	}
+	
+	/**
+	 * Keeps the grid unpacked, since it is rewritten every time the view changes, but passes the
+	 * setting on to any children.
+	 */
+	@Override
+	public void setUsePackedVertexDataForAllGeometry(boolean usePacked, boolean quantizePositions)
+	{
+		for (SceneObject child : getChildren())
+		{
+			child.setUsePackedVertexDataForAllGeometry(usePacked, quantizePositions);
+		}
+	}
+}
@@ -199,6 +199,18 @@ public class SceneObject implements OpenGLResourceObject
 			child.calculateTangentVectorsForAllGeometry();
 		}
 	}
+	
+	/**
+	 * Traverses the hierarchy rooted at this node and sets whether every mesh stores its vertex 
+	 * data in the compact interleaved format; see `Mesh.setUsePackedVertexData()`.
+	 */
+	public void setUsePackedVertexDataForAllGeometry(boolean usePacked, boolean quantizePositions)
+	{
+		for (SceneObject child : mChildren)
+		{
+			child.setUsePackedVertexDataForAllGeometry(usePacked, quantizePositions);
+		}
+	}
 
 	/**
 	 * Returns the position of this object in its parent's space.
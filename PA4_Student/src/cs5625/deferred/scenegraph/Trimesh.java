@@ -49,32 +49,32 @@ public class Trimesh extends Mesh implements OpenGLResourceObject
 		for (int triIndex = 0; triIndex < getPolygonCount(); ++triIndex)
 		{
 			/* Get vertex indices of this triangle. */
-			int i1 = mPolygonData.get(3 * triIndex + 0);
-			int i2 = mPolygonData.get(3 * triIndex + 1);
-			int i3 = mPolygonData.get(3 * triIndex + 2);
+			int i1 = getPolygonData().get(3 * triIndex + 0);
+			int i2 = getPolygonData().get(3 * triIndex + 1);
+			int i3 = getPolygonData().get(3 * triIndex + 2);
 			
 			/* Get vertex coordinates of this triangle. */
-			float v1x = mVertexData.get(3 * i1 + 0);
-			float v1y = mVertexData.get(3 * i1 + 1);
-			float v1z = mVertexData.get(3 * i1 + 2);
+			float v1x = getVertexData().get(3 * i1 + 0);
+			float v1y = getVertexData().get(3 * i1 + 1);
+			float v1z = getVertexData().get(3 * i1 + 2);
 
-			float v2x = mVertexData.get(3 * i2 + 0);
-			float v2y = mVertexData.get(3 * i2 + 1);
-			float v2z = mVertexData.get(3 * i2 + 2);
+			float v2x = getVertexData().get(3 * i2 + 0);
+			float v2y = getVertexData().get(3 * i2 + 1);
+			float v2z = getVertexData().get(3 * i2 + 2);
 
-			float v3x = mVertexData.get(3 * i3 + 0);
-			float v3y = mVertexData.get(3 * i3 + 1);
-			float v3z = mVertexData.get(3 * i3 + 2);
+			float v3x = getVertexData().get(3 * i3 + 0);
+			float v3y = getVertexData().get(3 * i3 + 1);
+			float v3z = getVertexData().get(3 * i3 + 2);
 
 			/* Get texture coordinates of this triangle. */
-			float w1x = mTexCoordData.get(2 * i1 + 0);
-			float w1y = mTexCoordData.get(2 * i1 + 1);
+			float w1x = getTexCoordData().get(2 * i1 + 0);
+			float w1y = getTexCoordData().get(2 * i1 + 1);
 
-			float w2x = mTexCoordData.get(2 * i2 + 0);
-			float w2y = mTexCoordData.get(2 * i2 + 1);
+			float w2x = getTexCoordData().get(2 * i2 + 0);
+			float w2y = getTexCoordData().get(2 * i2 + 1);
 
-			float w3x = mTexCoordData.get(2 * i3 + 0);
-			float w3y = mTexCoordData.get(2 * i3 + 1);
+			float w3x = getTexCoordData().get(2 * i3 + 0);
+			float w3y = getTexCoordData().get(2 * i3 + 1);
 			
 			/* Get positions of vertices relative to first vertex. */
 	        float x1 = v2x - v1x;
@@ -134,9 +134,9 @@ public class Trimesh extends Mesh implements OpenGLResourceObject
 		for (int vIndex = 0; vIndex < getVertexCount(); ++vIndex)
 		{
 			/* Get vertex normal. */
-			float nx = mNormalData.get(3 * vIndex + 0);
-			float ny = mNormalData.get(3 * vIndex + 1);
-			float nz = mNormalData.get(3 * vIndex + 2);
+			float nx = getNormalData().get(3 * vIndex + 0);
+			float ny = getNormalData().get(3 * vIndex + 1);
+			float nz = getNormalData().get(3 * vIndex + 2);
 			
 			/* Get tentative tangent vector at this vertex. */
 			float tx = tan1[3 * vIndex + 0];
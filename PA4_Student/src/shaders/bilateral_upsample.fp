@@ -0,0 +1,67 @@
+/**
+ * bilateral_upsample.fp
+ * 
+ * Composites the low-resolution translucent buffer (premultiplied color, and coverage in alpha) over 
+ * the full-resolution scene. Each pixel blends the four nearest low-resolution pixels with bilinear 
+ * weights, scaled down by how much their depth differs from the pixel's own, so translucency doesn't 
+ * bleed across depth edges the way a plain bilinear upsample would. Output is premultiplied, for 
+ * blending with (ONE, ONE_MINUS_SRC_ALPHA).
+ * 
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+
+uniform sampler2DRect TranslucentBuffer;
+uniform sampler2DRect LowResDepthBuffer;
+uniform sampler2DRect DepthBuffer;
+
+/* Size of a low-resolution pixel in full-resolution pixels, size of the low-resolution buffers, 
+ * and the camera's near and far planes. */
+uniform float Factor;
+uniform vec2 LowResSize;
+uniform vec2 DepthRange;
+
+/* Relative depth difference at which a sample's weight is halved. */
+const float DEPTH_TOLERANCE = 0.02;
+
+/**
+ * Converts a depth buffer value to distance from the eye.
+ */
+float linearDepth(float depth)
+{
+	return DepthRange.x * DepthRange.y / (DepthRange.y - depth * (DepthRange.y - DepthRange.x));
+}
+
+/**
+ * Adds the low-resolution pixel at `texel`, with bilinear weight `bilinear`, to a running weighted sum.
+ */
+void accumulate(vec2 texel, float bilinear, float depth, inout vec4 color, inout float total)
+{
+	texel = clamp(texel, vec2(0.0), LowResSize - 1.0) + 0.5;
+	
+	float difference = abs(linearDepth(texture2DRect(LowResDepthBuffer, texel).x) - depth) / depth;
+	float weight = bilinear / (1.0 + difference / DEPTH_TOLERANCE) + 1e-5;
+	
+	color += weight * texture2DRect(TranslucentBuffer, texel);
+	total += weight;
+}
+
+void main()
+{
+	float depth = linearDepth(texture2DRect(DepthBuffer, gl_FragCoord.xy).x);
+	
+	/* Find the 2x2 low-resolution pixels around this one, and where it lies between their centers. */
+	vec2 coord = gl_FragCoord.xy / Factor - 0.5;
+	vec2 base = floor(coord);
+	vec2 f = coord - base;
+	
+	vec4 color = vec4(0.0);
+	float total = 0.0;
+	
+	accumulate(base,                  (1.0 - f.x) * (1.0 - f.y), depth, color, total);
+	accumulate(base + vec2(1.0, 0.0), f.x * (1.0 - f.y),         depth, color, total);
+	accumulate(base + vec2(0.0, 1.0), (1.0 - f.x) * f.y,         depth, color, total);
+	accumulate(base + vec2(1.0, 1.0), f.x * f.y,                 depth, color, total);
+	
+	gl_FragColor = color / total;
+}
@@ -0,0 +1,35 @@
+/**
+ * downsample_depth.fp
+ * 
+ * Reduces the depth buffer by an integer factor, keeping the nearest depth of each block of pixels. 
+ * Translucent geometry tested against it is hidden wherever any of the block is covered, so it 
+ * never paints over thin foreground objects; the bilateral upsample fills the missing coverage at 
+ * their edges from neighbouring low-resolution pixels whose depth matches the background.
+ * 
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+
+uniform sampler2DRect DepthBuffer;
+
+/* Size of a low-resolution pixel in full-resolution pixels, and the size of the full-resolution buffer. */
+uniform float Factor;
+uniform vec2 DepthSize;
+
+void main()
+{
+	vec2 base = floor(gl_FragCoord.xy) * Factor;
+	float depth = 1.0;
+	
+	for (float y = 0.5; y < Factor; y += 1.0)
+	{
+		for (float x = 0.5; x < Factor; x += 1.0)
+		{
+			/* Blocks along the right and top edges may hang over the end of the buffer. */
+			vec2 coord = min(base + vec2(x, y), DepthSize - 0.5);
+			depth = min(depth, texture2DRect(DepthBuffer, coord).x);
+		}
+	}
+	
+	gl_FragDepth = depth;
+}
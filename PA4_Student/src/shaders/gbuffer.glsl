@@ -0,0 +1,59 @@
+/**
+ * gbuffer.glsl
+ *
+ * Functions for encoding and decoding the compact gbuffer layout, which ShaderProgram inserts into
+ * every fragment shader (after any #extension directives). COMPACT_GBUFFER is defined before this
+ * when the renderer uses the compact layout:
+ *
+ *   0. RGBA8: diffuse color, and material ID / 255 in alpha.
+ *   1. RGBA8: material parameters, scaled into [0, 1] (see the ranges below).
+ *   2. RG16:  octahedral-encoded eyespace normal.
+ *   Depth:    eyespace position is reconstructed from depth and the inverse projection.
+ *
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+
+/* Largest values of the material parameters stored in 8 bits by the compact layout. */
+const float MAX_PHONG_EXPONENT = 255.0;
+const float MAX_TERRAIN_HEIGHT = 64.0;
+
+/* Folds the lower hemisphere of the octahedron over the upper one. */
+vec2 octahedronWrap(vec2 v)
+{
+	return (1.0 - abs(v.yx)) * vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+}
+
+/* Maps a vector's direction onto the octahedron |x| + |y| + |z| = 1, unfolded into [0, 1]^2. 
+ * The vector needn't be normalized; a zero vector encodes +z. */
+vec2 encodeNormal(vec3 n)
+{
+	n /= max(abs(n.x) + abs(n.y) + abs(n.z), 1e-6);
+	vec2 e = (n.z >= 0.0 ? n.xy : octahedronWrap(n.xy));
+
+	return e * 0.5 + 0.5;
+}
+
+vec3 decodeNormal(vec2 e)
+{
+	e = e * 2.0 - 1.0;
+	vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+
+	if (n.z < 0.0)
+	{
+		n.xy = octahedronWrap(n.xy);
+	}
+
+	return normalize(n);
+}
+
+/* Material IDs are stored in an 8-bit normalized channel. */
+float encodeMaterialID(int id)
+{
+	return float(id) / 255.0;
+}
+
+int decodeMaterialID(float encoded)
+{
+	return int(encoded * 255.0 + 0.5);
+}
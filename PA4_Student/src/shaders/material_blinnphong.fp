@@ -50,11 +50,18 @@ void main()
 		specular *= texture2D(SpecularTexture, TexCoord);
 	}
 	
+#ifdef COMPACT_GBUFFER
+	/* Store {diffuse, specular, normal} into the compact gbuffer (see gbuffer.glsl). */
+	gl_FragData[0] = vec4(diffuse, encodeMaterialID(BLINNPHONG_MATERIAL_ID));
+	gl_FragData[1] = vec4(specular.rgb, specular.a / MAX_PHONG_EXPONENT);
+	gl_FragData[2] = vec4(encodeNormal(EyespaceNormal), 0.0, 0.0);
+#else
 	/* Store {diffuse, specular, position, normal} into the gbuffer. */
 	gl_FragData[0] = vec4(diffuse, float(BLINNPHONG_MATERIAL_ID));
 	gl_FragData[1] = specular;
 	gl_FragData[2] = vec4(EyespacePosition, 1.0);
 	gl_FragData[3] = vec4(normalize(EyespaceNormal), 1.0);
+#endif
 //FILLIN
 //	gl_FragData[0] = gl_FragData[1] = gl_FragData[2] = gl_FragData[3] = vec4(1.0);
 //ENDSOLUTION
@@ -9,6 +9,13 @@
  * @author Asher Dunn (ad488)
  * @date 2012-04-15
  */
+
+/* Needed for samplerBuffer and texelFetchBuffer(), used to read the shared light buffer. */
+#extension GL_EXT_gpu_shader4 : require
+
+/* Sprite arrays are texture arrays where supported, or atlases otherwise; see SpriteArray.java. */
+#extension GL_EXT_texture_array : enable
+
 /* Material properties passed from the application. */
 uniform vec4 Color;
 
@@ -20,16 +27,37 @@ uniform vec3 maxPoint;
 uniform int ID;
 uniform float xlimit;
 
-
-/* Some constant maximum number of lights which GLSL and Java have to agree on. */
-#define MAX_LIGHTS 100
-
+/* Sprites used instead of Texture if UseSprites is set; each particle picks one by its layer. */
+#ifdef GL_EXT_texture_array
+uniform sampler2DArray Sprites;
+#else
+uniform sampler2D Sprites;
+#endif
+uniform bool UseSprites;
+uniform vec2 AtlasGrid;
+uniform float AtlasInset;
+varying float Layer;
 
 /* Uniforms describing the lights. */
 uniform int NumLights;
-uniform vec3 LightPositions[MAX_LIGHTS];
-uniform vec3 LightAttenuations[MAX_LIGHTS];
-uniform vec3 LightColors[MAX_LIGHTS];
+uniform samplerBuffer LightBuffer;
+
+/* Each light is three texels of the light buffer: eye-space position, color, and attenuation. 
+ * Must agree with LightBuffer.java. */
+vec3 getLightPosition(int i)
+{
+	return texelFetchBuffer(LightBuffer, 3 * i).xyz;
+}
+
+vec3 getLightColor(int i)
+{
+	return texelFetchBuffer(LightBuffer, 3 * i + 1).xyz;
+}
+
+vec3 getLightAttenuation(int i)
+{
+	return texelFetchBuffer(LightBuffer, 3 * i + 2).xyz;
+}
 
 /* Texture coordinate passed from vertex shader. */
 varying vec2 TexCoord;
@@ -39,6 +67,18 @@ varying vec3 EyespaceNormal;
 
 
 
+vec4 sampleSprite(vec2 texcoord, float layer)
+{
+#ifdef GL_EXT_texture_array
+	return texture2DArray(Sprites, vec3(texcoord, layer));
+#else
+	/* Find the layer's cell in the atlas, and keep bilinear filtering from reaching the neighbours. */
+	vec2 cell = vec2(mod(layer, AtlasGrid.x), floor(layer / AtlasGrid.x));
+	vec2 inside = clamp(texcoord, AtlasInset, 1.0 - AtlasInset);
+	return texture2D(Sprites, (cell + inside) / AtlasGrid);
+#endif
+}
+
 vec3 shadeLambertian(vec3 diffuse, vec3 position, vec3 normal, vec3 lightPosition, vec3 lightColor, vec3 lightAttenuation)
 {
 	vec3 lightDirection = normalize(lightPosition - position);
@@ -68,7 +108,8 @@ void main()
 	//if (abs(maxDiff) != maxDiff && maxPoint.x != maxPoint.x) maxDiff *= -1;
 	if (HasTexture)
 	{
-		color *= texture2D(Texture, TexCoord);
+		if (UseSprites) color *= sampleSprite(TexCoord, floor(Layer + 0.5));
+		else color *= texture2D(Texture, TexCoord);
 		if (ID == 0 || ID == 4) color.a *= 0.4;
 		if (ID == 3 || ID == 2) color.a *= 0.6;
 		if (ID == 1) color.a *= 0.15;
@@ -84,7 +125,7 @@ void main()
 		
 		
 		for (int i = 0; i < NumLights; i++) {
-			vec3 c = color.xyz + vec3(shadeLambertian(color.xyz, position, normal, LightPositions[i], LightColors[i], LightAttenuations[i]));
+			vec3 c = color.xyz + vec3(shadeLambertian(color.xyz, position, normal, getLightPosition(i), getLightColor(i), getLightAttenuation(i)));
 			if (c.x <= 1.0 && c.y <= 1.0 && c.z <= 1.0) color.xyz = c;
 		}
 	
@@ -37,11 +37,18 @@ void main()
 		diffuse *= texture2D(DiffuseTexture, TexCoord).rgb;
 	}
 	
+#ifdef COMPACT_GBUFFER
+	/* Store {diffuse, [unused], normal} into the compact gbuffer (see gbuffer.glsl). */
+	gl_FragData[0] = vec4(diffuse, encodeMaterialID(LAMBERTIAN_MATERIAL_ID));
+	gl_FragData[1] = vec4(0.0);
+	gl_FragData[2] = vec4(encodeNormal(EyespaceNormal), 0.0, 0.0);
+#else
 	/* Store {diffuse, [unused], position, normal} into the gbuffer. */
 	gl_FragData[0] = vec4(diffuse, float(LAMBERTIAN_MATERIAL_ID));
 	gl_FragData[1] = vec4(0.0);
 	gl_FragData[2] = vec4(EyespacePosition, 1.0);
 	gl_FragData[3] = vec4(EyespaceNormal, 1.0);
+#endif
 //FILLIN
 //	gl_FragData[0] = gl_FragData[1] = gl_FragData[2] = gl_FragData[3] = vec4(1.0);
 //ENDSOLUTION
@@ -8,18 +8,36 @@ varying vec3 EyespacePosition;
 varying vec3 EyespaceNormal;
 varying vec2 TexCoord;
 
-/* Textures and flags for whether they exist. */
+/* Eyespace directions of world +x and +z, and the coordinate into the simulation's maps. */
+varying vec3 EyespaceTangent;
+varying vec3 EyespaceBitangent;
+varying vec2 OceanCoord;
+
+/* Base color, and the simulated surface normals (0.5 * normal + 0.5) and displacements. */
 uniform vec3 DiffuseColor;
-uniform sampler2D NoiseTexture;
+uniform sampler2D NormalMap;
+uniform sampler2D DisplacementMap;
 
 void main()
 {
 	vec3 diffuse = DiffuseColor;
-	vec3 noise = texture2D(NoiseTexture, TexCoord).rgb;
 	
-	/* Store {diffuse, [unused], position, normal} into the gbuffer. */
+	/* Rotate the simulated world space normal into eyespace. */
+	vec3 waveNormal = texture2D(NormalMap, OceanCoord).xyz * 2.0 - 1.0;
+	vec3 normal = normalize(waveNormal.x * EyespaceTangent + waveNormal.y * EyespaceNormal + waveNormal.z * EyespaceBitangent);
+	vec3 displacement = texture2D(DisplacementMap, OceanCoord).xyz;
+	
+	/* Store {diffuse, displacement, position, normal} into the gbuffer, with worldspace position in the alpha channels. */
+#ifdef COMPACT_GBUFFER
+	/* The compact gbuffer (see gbuffer.glsl) drops the displacement and worldspace position, which 
+	 * ocean lighting doesn't use. */
+	gl_FragData[0] = vec4(diffuse, encodeMaterialID(OCEAN_MATERIAL_ID));
+	gl_FragData[1] = vec4(0.0);
+	gl_FragData[2] = vec4(encodeNormal(normal), 0.0, 0.0);
+#else
 	gl_FragData[0] = vec4(diffuse, float(OCEAN_MATERIAL_ID));
-	gl_FragData[1] = vec4(noise, WorldspacePosition.x);
+	gl_FragData[1] = vec4(displacement, WorldspacePosition.x);
 	gl_FragData[2] = vec4(EyespacePosition, WorldspacePosition.y);
-	gl_FragData[3] = vec4(EyespaceNormal, WorldspacePosition.z);
-}
\ No newline at end of file
+	gl_FragData[3] = vec4(normal, WorldspacePosition.z);
+#endif
+}
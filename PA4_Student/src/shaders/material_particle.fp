@@ -10,6 +10,9 @@
  * @date 2012-04-15
  */
 
+/* Sprite arrays are texture arrays where supported, or atlases otherwise; see SpriteArray.java. */
+#extension GL_EXT_texture_array : enable
+
 /* Material properties passed from the application. */
 uniform vec4 Color;
 
@@ -17,16 +20,40 @@ uniform vec4 Color;
 uniform sampler2D Texture;
 uniform bool HasTexture;
 
+/* Sprites used instead of Texture if UseSprites is set: this material's layer of the array. */
+#ifdef GL_EXT_texture_array
+uniform sampler2DArray Sprites;
+#else
+uniform sampler2D Sprites;
+#endif
+uniform bool UseSprites;
+uniform float Layer;
+uniform vec2 AtlasGrid;
+uniform float AtlasInset;
+
 /* Texture coordinate passed from vertex shader. */
 varying vec2 TexCoord;
 
+vec4 sampleSprite(vec2 texcoord, float layer)
+{
+#ifdef GL_EXT_texture_array
+	return texture2DArray(Sprites, vec3(texcoord, layer));
+#else
+	/* Find the layer's cell in the atlas, and keep bilinear filtering from reaching the neighbours. */
+	vec2 cell = vec2(mod(layer, AtlasGrid.x), floor(layer / AtlasGrid.x));
+	vec2 inside = clamp(texcoord, AtlasInset, 1.0 - AtlasInset);
+	return texture2D(Sprites, (cell + inside) / AtlasGrid);
+#endif
+}
+
 void main()
 {
 	/* Multiply color by texture, if we have one. */
 	vec4 color = Color;
 	if (HasTexture)
 	{	color = vec4(1.0);
-		color *= texture2D(Texture, TexCoord);
+		if (UseSprites) color *= sampleSprite(TexCoord, Layer);
+		else color *= texture2D(Texture, TexCoord);
 	}
 
 	/* Output premultiplied color and alpha to achieve regular alpha blending.  
@@ -9,12 +9,26 @@
  * @author Asher Dunn (ad488)
  * @date 2012-04-15
  */
+
+/* Sprite arrays are texture arrays where supported, or atlases otherwise; see SpriteArray.java. */
+#extension GL_EXT_texture_array : enable
 /* Material properties passed from the application. */
 uniform vec4 Color;
 
 /* Textures and flags for whether they exist. */
 uniform sampler2D Texture;
 uniform bool HasTexture;
+
+/* Sprites used instead of Texture if UseSprites is set: this material's layer of the array. */
+#ifdef GL_EXT_texture_array
+uniform sampler2DArray Sprites;
+#else
+uniform sampler2D Sprites;
+#endif
+uniform bool UseSprites;
+uniform float Layer;
+uniform vec2 AtlasGrid;
+uniform float AtlasInset;
 uniform vec3 startPosition;
 uniform float ylimit;
 uniform float difference;
@@ -24,6 +38,18 @@ uniform float maxDiff;
 varying vec2 TexCoord;
 varying vec4 position;
 
+vec4 sampleSprite(vec2 texcoord, float layer)
+{
+#ifdef GL_EXT_texture_array
+	return texture2DArray(Sprites, vec3(texcoord, layer));
+#else
+	/* Find the layer's cell in the atlas, and keep bilinear filtering from reaching the neighbours. */
+	vec2 cell = vec2(mod(layer, AtlasGrid.x), floor(layer / AtlasGrid.x));
+	vec2 inside = clamp(texcoord, AtlasInset, 1.0 - AtlasInset);
+	return texture2D(Sprites, (cell + inside) / AtlasGrid);
+#endif
+}
+
 void main()
 {
 	/* Multiply color by texture, if we have one. */
@@ -31,7 +57,8 @@ void main()
 	
 	if (HasTexture)
 	{	color = vec4(1.0);
-		color *= texture2D(Texture, TexCoord);
+		if (UseSprites) color *= sampleSprite(TexCoord, Layer);
+		else color *= texture2D(Texture, TexCoord);
 	}
 	
 	if (difference < 1.0) color.a *= 1.0 - (1.0 - difference);
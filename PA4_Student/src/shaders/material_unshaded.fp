@@ -27,8 +27,14 @@ void main()
 	/* Store {diffuse, [unused], position, normal} into the gbuffer. Position and normal
 	 * aren't used for shading, but they might be required by a post-processing effect, so
 	 * we still have to write them out. */
+#ifdef COMPACT_GBUFFER
+	gl_FragData[0] = vec4(Color, encodeMaterialID(UNSHADED_MATERIAL_ID));
+	gl_FragData[1] = vec4(0.0);
+	gl_FragData[2] = vec4(encodeNormal(EyespaceNormal), 0.0, 0.0);
+#else
 	gl_FragData[0] = vec4(Color, float(UNSHADED_MATERIAL_ID));
 	gl_FragData[1] = vec4(0.0);
 	gl_FragData[2] = vec4(EyespacePosition, 1.0);
 	gl_FragData[3] = vec4(EyespaceNormal, 1.0);
+#endif
 }
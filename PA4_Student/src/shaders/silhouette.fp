@@ -13,11 +13,17 @@
 uniform sampler2DRect PositionBuffer;
 uniform sampler2DRect NormalBuffer;
 
+/* Size of the part of the buffers that was rendered. They are pooled render targets, which can be 
+ * larger, and what lies beyond is left over from other passes. */
+uniform vec2 ViewportSize;
+
 /**
  * Samples from position and normal buffer and returns (nx, ny, nz, depth) packed into one vec4.
+ * Taps over the edge of the rendered part repeat its border pixels.
  */
 vec4 sample(vec2 coord)
 {
+	coord = clamp(coord, vec2(0.5), ViewportSize - 0.5);
 	return vec4(texture2DRect(NormalBuffer, coord).xyz, texture2DRect(PositionBuffer, coord).z);
 }
 
@@ -12,6 +12,10 @@
  * @date 2012-03-24
  */
 
+/* Needed for samplerBuffer and texelFetchBuffer(), used to read the shared light buffer. */
+#extension GL_EXT_gpu_shader4 : require
+
+
 /* Copy the IDs of any new materials here. */
 const int UNSHADED_MATERIAL_ID = 1;
 const int LAMBERTIAN_MATERIAL_ID = 2;
@@ -19,8 +23,10 @@ const int BLINNPHONG_MATERIAL_ID = 3;
 const int TERRAIN_MATERIAL_ID = 4;
 const int OCEAN_MATERIAL_ID = 5;
 
-/* Some constant maximum number of lights which GLSL and Java have to agree on. */
-#define MAX_LIGHTS 100
+/* Size of the light cluster grid, which GLSL and Java (LightClusters.java) have to agree on. */
+const int CLUSTERS_X = 16;
+const int CLUSTERS_Y = 9;
+const int CLUSTERS_Z = 24;
 
 /* Samplers for each texture of the GBuffer. */
 uniform sampler2DRect DiffuseBuffer;
@@ -29,26 +35,120 @@ uniform sampler2DRect PositionBuffer;
 uniform sampler2DRect NormalBuffer;
 uniform sampler2DRect SilhouetteBuffer;
 
+/* The compact gbuffer (see gbuffer.glsl) has no position or silhouette buffers. Eyespace positions 
+ * are unprojected from the depth buffer. */
+uniform sampler2DRect DepthBuffer;
+uniform mat4 InverseProjection;
+
+/* Size of the rendered part of the gbuffer. Its textures are pooled render targets, which can be 
+ * larger; neighbour taps are clamped to this so they never read what lies beyond. */
+uniform vec2 ViewportSize;
+
 uniform bool EnableToonShading;
 
 /* Uniform specifying the sky (background) color. */
 uniform vec3 SkyColor;
 
 /* Uniforms describing the lights. */
-uniform int NumLights;
-uniform vec3 LightPositions[MAX_LIGHTS];
-uniform vec3 LightAttenuations[MAX_LIGHTS];
-uniform vec3 LightColors[MAX_LIGHTS];
+uniform samplerBuffer LightBuffer;
+
+/* Uniforms describing which lights reach each cluster: the (first index, count) of each cluster's 
+ * light list, the concatenated light lists, and the factors mapping pixels and log(depth) to clusters. */
+uniform samplerBuffer ClusterTable;
+uniform samplerBuffer ClusterLightIndices;
+uniform vec2 ClusterTileScale;
+uniform vec2 ClusterDepthParams;
+
+/* Each light is three texels of the light buffer: eye-space position, color, and attenuation. 
+ * Must agree with LightBuffer.java. */
+vec3 getLightPosition(int i)
+{
+	return texelFetchBuffer(LightBuffer, 3 * i).xyz;
+}
+
+vec3 getLightColor(int i)
+{
+	return texelFetchBuffer(LightBuffer, 3 * i + 1).xyz;
+}
+
+vec3 getLightAttenuation(int i)
+{
+	return texelFetchBuffer(LightBuffer, 3 * i + 2).xyz;
+}
+
+/* Returns the (first index, count) of the light list for the cluster containing this fragment. */
+vec2 getCluster(vec3 position)
+{
+	int x = int(min(gl_FragCoord.x * ClusterTileScale.x, float(CLUSTERS_X - 1)));
+	int y = int(min(gl_FragCoord.y * ClusterTileScale.y, float(CLUSTERS_Y - 1)));
+	int z = int(clamp(log(-position.z) * ClusterDepthParams.x + ClusterDepthParams.y, 0.0, float(CLUSTERS_Z - 1)));
+	
+	return texelFetchBuffer(ClusterTable, (z * CLUSTERS_Y + y) * CLUSTERS_X + x).xy;
+}
+
+/* Returns the index (into the light buffer) of the k'th entry of the cluster light lists. */
+int getClusterLight(int k)
+{
+	return int(texelFetchBuffer(ClusterLightIndices, k).x);
+}
 
 const float DETECTION_THRESHOLD_DEPTH = 0.1;
 const float DETECTION_THRESHOLD_NORM = 0.2;
 
+#ifdef COMPACT_GBUFFER
+
+/* Returns the eyespace position of the surface at a pixel of the compact gbuffer. */
+vec3 reconstructPosition(vec2 coord)
+{
+	float depth = texture2DRect(DepthBuffer, coord).x;
+	vec4 position = InverseProjection * vec4(coord / ViewportSize * 2.0 - 1.0, depth * 2.0 - 1.0, 1.0);
+	
+	return position.xyz / position.w;
+}
+
+/* Returns (nx, ny, nz, eyespace depth) at a pixel, as the silhouette shader does for the full layout. */
+vec4 sampleNormalAndDepth(vec2 coord)
+{
+	coord = clamp(coord, vec2(0.5), ViewportSize - 0.5);
+	return vec4(decodeNormal(texture2DRect(NormalBuffer, coord).xy), reconstructPosition(coord).z);
+}
+
+/**
+ * Estimates silhouettes straight from the normal and depth of the compact gbuffer. Instead of 
+ * filtering a separate gradient buffer with the 3x3 nonlinear filter, this takes the weighted 
+ * 3x3 gradient of silhouette.fp at this pixel only, which marks the same edges.
+ */
+float silhouetteStrength()
+{
+	vec4 x = sampleNormalAndDepth(gl_FragCoord.xy);
+	vec4 A = sampleNormalAndDepth(gl_FragCoord.xy + vec2(-1.0,  1.0));
+	vec4 B = sampleNormalAndDepth(gl_FragCoord.xy + vec2( 0.0,  1.0));
+	vec4 C = sampleNormalAndDepth(gl_FragCoord.xy + vec2( 1.0,  1.0));
+	vec4 D = sampleNormalAndDepth(gl_FragCoord.xy + vec2(-1.0,  0.0));
+	vec4 E = sampleNormalAndDepth(gl_FragCoord.xy + vec2( 1.0,  0.0));
+	vec4 F = sampleNormalAndDepth(gl_FragCoord.xy + vec2(-1.0, -1.0));
+	vec4 G = sampleNormalAndDepth(gl_FragCoord.xy + vec2( 0.0, -1.0));
+	vec4 H = sampleNormalAndDepth(gl_FragCoord.xy + vec2( 1.0, -1.0));
+	
+	vec4 g = (abs(A - x) + 2.0 * abs(B - x) + abs(C - x) + 
+	          2.0 * abs(D - x) + 2.0 * abs(E - x) + 
+	          abs(F - x) + 2.0 * abs(G - x) + abs(H - x)) / 8.0;
+	
+	float pX = min(dot(g.xyz, g.xyz) / DETECTION_THRESHOLD_NORM, 1.0);
+	float pY = min((g.w * g.w) / DETECTION_THRESHOLD_NORM, 1.0);
+	
+	return max(pX, pY);
+}
+
+#else
+
 /**
 * Puts the magnitude of the vector consisting of the xyz components of the silhouette buffer sample in x 
 * Puts the w value of the silhouette buffer sample in y
 **/
 vec2 sampleSilhouetteBuffer(vec2 coord)
 {
+	coord = clamp(coord, vec2(0.5), ViewportSize - 0.5);
 	vec4 temp = texture2DRect(SilhouetteBuffer, coord);
 	return vec2(sqrt(temp.x * temp.x + temp.y * temp.y + temp.z * temp.z), temp.w);
 }
@@ -98,6 +198,8 @@ float silhouetteStrength()
 	return max(pX, pY);
 }
 
+#endif
+
 /**
  * Performs Lambertian shading on the passed fragment data (color, normal, etc.) for a single light.
  * 
@@ -213,6 +315,26 @@ vec3 shadeOcean(vec3 diffuse, vec3 noise, vec3 worldspacePos, vec3 position, vec
 
 void main()
 {
+#ifdef COMPACT_GBUFFER
+	/* Sample the compact gbuffer, and scale the parameters of the materials which use them back 
+	 * to their full range. The ocean's worldspace position isn't stored. */
+	vec4 diffuse        = texture2DRect(DiffuseBuffer, gl_FragCoord.xy);
+	vec4 materialParams = texture2DRect(MaterialParamsBuffer, gl_FragCoord.xy);
+	vec3 position       = reconstructPosition(gl_FragCoord.xy);
+	vec3 normal         = decodeNormal(texture2DRect(NormalBuffer, gl_FragCoord.xy).xy);
+	vec3 oceanwspos     = vec3(0.0);
+	
+	int materialID = decodeMaterialID(diffuse.a);
+	
+	if (materialID == BLINNPHONG_MATERIAL_ID)
+	{
+		materialParams.a *= MAX_PHONG_EXPONENT;
+	}
+	else if (materialID == TERRAIN_MATERIAL_ID)
+	{
+		materialParams.x *= MAX_TERRAIN_HEIGHT;
+	}
+#else
 	/* Sample gbuffer. */
 	vec4 diffuse        = texture2DRect(DiffuseBuffer, gl_FragCoord.xy);
 	vec4 materialParams = texture2DRect(MaterialParamsBuffer, gl_FragCoord.xy);
@@ -222,13 +344,17 @@ void main()
 							   texture2DRect(PositionBuffer, gl_FragCoord.xy).a,
 							   texture2DRect(NormalBuffer, gl_FragCoord.xy).a);
 	
-	vec4 X = texture2DRect(SilhouetteBuffer, vec2(gl_FragCoord.xy));
+	/* Branch on material ID and shade as appropriate. */
+	int materialID = int(diffuse.a);
+#endif
 			
 	/* Initialize fragment to black. */
 	gl_FragColor = vec4(0.0, 0.0, 0.0, 1.0);
-
-	/* Branch on material ID and shade as appropriate. */
-	int materialID = int(diffuse.a);
+	
+	/* Only lights in this fragment's cluster can reach it. */
+	vec2 cluster = getCluster(position);
+	int firstLight = int(cluster.x);
+	int lastLight = firstLight + int(cluster.y);
 
 	if (materialID == 0)
 	{
@@ -246,8 +372,9 @@ void main()
 	{	
 		vec3 color = vec3(0.0);
 
-		for (int i = 0; i < NumLights; i++) {
-			color += shadeLambertian(diffuse.xyz, position, normal, LightPositions[i], LightColors[i], LightAttenuations[i]);
+		for (int k = firstLight; k < lastLight; k++) {
+			int i = getClusterLight(k);
+			color += shadeLambertian(diffuse.xyz, position, normal, getLightPosition(i), getLightColor(i), getLightAttenuation(i));
 		}
 		gl_FragColor.rgb = color.rgb;
 	}
@@ -256,8 +383,9 @@ void main()
 	{
 		vec3 color = vec3(0.0);
 		
-		for (int i = 0; i < NumLights; i++) {
-			color += shadeBlinnPhong(diffuse.xyz, materialParams, position, normal, LightPositions[i], LightColors[i], LightAttenuations[i]);
+		for (int k = firstLight; k < lastLight; k++) {
+			int i = getClusterLight(k);
+			color += shadeBlinnPhong(diffuse.xyz, materialParams, position, normal, getLightPosition(i), getLightColor(i), getLightAttenuation(i));
 		}
 		gl_FragColor.rgb = color.rgb;
 	}
@@ -266,8 +394,9 @@ void main()
 	{
 		vec3 color = vec3(0.0);
 		
-		for (int i = 0; i < NumLights; i++) {
-			color += shadeTerrain(diffuse.xyz, materialParams.x, position, normal, LightPositions[i], LightColors[i], LightAttenuations[i]);
+		for (int k = firstLight; k < lastLight; k++) {
+			int i = getClusterLight(k);
+			color += shadeTerrain(diffuse.xyz, materialParams.x, position, normal, getLightPosition(i), getLightColor(i), getLightAttenuation(i));
 		}
 		
 		gl_FragColor.rgb = color.rgb;
@@ -277,8 +406,9 @@ void main()
 	{
 		vec3 color = vec3(0.0);
 		
-		for (int i = 0; i < NumLights; i++) {
-			color += shadeOcean(diffuse.xyz, materialParams.xyz, oceanwspos, position, normal, LightPositions[i], LightColors[i], LightAttenuations[i]);
+		for (int k = firstLight; k < lastLight; k++) {
+			int i = getClusterLight(k);
+			color += shadeOcean(diffuse.xyz, materialParams.xyz, oceanwspos, position, normal, getLightPosition(i), getLightColor(i), getLightAttenuation(i));
 		}
 		
 		gl_FragColor.rgb = color.rgb;
@@ -0,0 +1,147 @@
+package cs5625.deferred.scenegraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLDrawable;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLException;
+import javax.media.opengl.GLProfile;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import cs5625.deferred.materials.BlinnPhongMaterial;
+import cs5625.deferred.misc.AssetManager;
+
+/**
+ * MeshInstanceTest.java
+ * 
+ * Checks that instances of a mesh (see `Mesh.createInstance()`) share their material without 
+ * releasing it out from under each other. Tests which need textures create an offscreen OpenGL 
+ * context, and are skipped where none is available.
+ * 
+ * Written for Cornell CS 5625 (Interactive Computer Graphics).
+ * Copyright (c) 2012, Computer Science Department, Cornell University.
+ */
+public class MeshInstanceTest
+{
+	private static final String DIFFUSE_TEXTURE = "textures/grass.png";
+	private static final String SPECULAR_TEXTURE = "textures/rock.png";
+	
+	/* Offscreen drawable and context, if a test created them. */
+	private GLDrawable mDrawable = null;
+	private GLContext mContext = null;
+	
+	@After
+	public void tearDown()
+	{
+		if (mContext != null)
+		{
+			mContext.release();
+			mContext.destroy();
+		}
+		
+		if (mDrawable != null)
+		{
+			mDrawable.setRealized(false);
+		}
+	}
+	
+	@Test
+	public void instancesCountAsMaterialUsers()
+	{
+		Trimesh prototype = new Trimesh();
+		BlinnPhongMaterial material = new BlinnPhongMaterial();
+		prototype.setMaterial(material);
+		
+		Mesh first = prototype.createInstance();
+		Mesh second = prototype.createInstance();
+		assertSame(material, first.getMaterial());
+		assertSame(material, second.getMaterial());
+		assertEquals(3, material.getUserCount());
+		
+		/* Giving an instance its own material drops its use of the shared one. */
+		second.setMaterial(new BlinnPhongMaterial());
+		assertEquals(2, material.getUserCount());
+		
+		/* Nothing was uploaded, so releasing doesn't touch OpenGL. */
+		first.releaseGPUResources(null);
+		first.releaseGPUResources(null);
+		assertEquals(1, material.getUserCount());
+	}
+	
+	@Test
+	public void releasingOneInstanceKeepsSharedTextures() throws Exception
+	{
+		GL2 gl = createContext();
+		
+		Trimesh prototype = new Trimesh();
+		BlinnPhongMaterial material = new BlinnPhongMaterial();
+		material.setDiffuseTexture(AssetManager.acquireTexture(gl, DIFFUSE_TEXTURE));
+		material.setSpecularTexture(AssetManager.acquireTexture(gl, SPECULAR_TEXTURE));
+		prototype.setMaterial(material);
+		
+		Mesh first = prototype.createInstance();
+		Mesh second = prototype.createInstance();
+		
+		/* As when `AssetManager` purges the prototype of a model. */
+		prototype.releaseGPUResources(gl);
+		first.releaseGPUResources(gl);
+		
+		BlinnPhongMaterial remaining = (BlinnPhongMaterial)second.getMaterial();
+		assertSame(material, remaining);
+		assertNotNull(remaining.getDiffuseTexture());
+		assertNotNull(remaining.getSpecularTexture());
+		assertTrue(remaining.getDiffuseTexture().getHandle() >= 0);
+		assertTrue(remaining.getSpecularTexture().getHandle() >= 0);
+		assertEquals(1, AssetManager.getTextureUserCount(DIFFUSE_TEXTURE));
+		assertEquals(1, AssetManager.getTextureUserCount(SPECULAR_TEXTURE));
+		
+		/* The last instance takes the textures with it. */
+		second.releaseGPUResources(gl);
+		assertNull(material.getDiffuseTexture());
+		assertNull(material.getSpecularTexture());
+		assertEquals(0, AssetManager.getTextureUserCount(DIFFUSE_TEXTURE));
+		assertEquals(0, AssetManager.getTextureUserCount(SPECULAR_TEXTURE));
+	}
+	
+	/**
+	 * Makes a 1x1 offscreen OpenGL context current and returns its GL2 interface, or skips the 
+	 * calling test if that isn't possible (e.g. on a headless build machine).
+	 */
+	private GL2 createContext()
+	{
+		try
+		{
+			GLProfile profile = GLProfile.get(GLProfile.GL2);
+			GLCapabilities caps = new GLCapabilities(profile);
+			caps.setOnscreen(false);
+			
+			mDrawable = GLDrawableFactory.getFactory(profile).createOffscreenDrawable(null, caps, null, 1, 1);
+			mDrawable.setRealized(true);
+			mContext = mDrawable.createContext(null);
+			Assume.assumeTrue(mContext.makeCurrent() != GLContext.CONTEXT_NOT_CURRENT);
+			
+			return mContext.getGL().getGL2();
+		}
+		catch (GLException err)
+		{
+			Assume.assumeNoException(err);
+			return null;
+		}
+		catch (UnsatisfiedLinkError err)
+		{
+			/* JOGL's native libraries aren't on the library path. */
+			Assume.assumeNoException(err);
+			return null;
+		}
+	}
+}